@@ -0,0 +1,223 @@
+/*
+ * Copyright 2013 Geoffroy Jamgotchian <geoffroy.jamgotchian at gmail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.jamgotchian.jabat.benchmarks;
+
+import fr.jamgotchian.jabat.jobxml.JobUtil;
+import fr.jamgotchian.jabat.jobxml.model.Artifact;
+import fr.jamgotchian.jabat.jobxml.model.ArtifactBuilder;
+import fr.jamgotchian.jabat.jobxml.model.ChunkStep;
+import fr.jamgotchian.jabat.jobxml.model.ChunkStepBuilder;
+import fr.jamgotchian.jabat.jobxml.model.Job;
+import fr.jamgotchian.jabat.jobxml.model.JobBuilder;
+import fr.jamgotchian.jabat.runtime.artifact.ArtifactContainer;
+import fr.jamgotchian.jabat.runtime.artifact.ArtifactPool;
+import fr.jamgotchian.jabat.runtime.artifact.BatchXml;
+import fr.jamgotchian.jabat.runtime.artifact.Resettable;
+import fr.jamgotchian.jabat.runtime.artifact.Reusable;
+import fr.jamgotchian.jabat.runtime.context.JabatStepContext;
+import fr.jamgotchian.jabat.runtime.context.ThreadContext;
+import fr.jamgotchian.jabat.runtime.repository.JabatJobExecution;
+import fr.jamgotchian.jabat.runtime.repository.JabatJobInstance;
+import fr.jamgotchian.jabat.runtime.repository.JabatStepExecution;
+import fr.jamgotchian.jabat.runtime.repository.JobRepository;
+import fr.jamgotchian.jabat.runtime.repository.impl.JobRepositoryImpl;
+import java.io.Externalizable;
+import java.lang.reflect.Field;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import javax.batch.annotation.BatchContext;
+import javax.batch.annotation.BatchProperty;
+import javax.batch.api.Batchlet;
+import javax.batch.api.ItemReader;
+import javax.batch.runtime.context.JobContext;
+import javax.batch.runtime.context.StepContext;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of the creation of an artifact declared in batch.xml, including the
+ * injection of its contexts and properties. The reflective benchmark is the
+ * baseline: it loads the class, instantiates it and looks up its annotated
+ * fields on each creation, as done before injection plans were cached. The
+ * pooled benchmark creates and releases a reusable artifact: it measures the
+ * overhead of the pool, which pays off for artifacts expensive to build.
+ *
+ * @author Geoffroy Jamgotchian <geoffroy.jamgotchian at gmail.com>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class ArtifactCreationBenchmark {
+
+    public static class InjectedItemReader implements ItemReader<Object> {
+
+        @BatchContext
+        private JobContext jobContext;
+
+        @BatchContext
+        private StepContext stepContext;
+
+        @BatchProperty
+        private String fileName;
+
+        @BatchProperty(name = "buffer.size")
+        private String bufferSize;
+
+        private int position;
+
+        @Override
+        public void open(Externalizable checkpoint) throws Exception {
+        }
+
+        @Override
+        public void close() throws Exception {
+        }
+
+        @Override
+        public Object readItem() throws Exception {
+            return null;
+        }
+
+        @Override
+        public Externalizable checkpointInfo() throws Exception {
+            return null;
+        }
+    }
+
+    @Reusable
+    public static class ReusableItemReader extends InjectedItemReader implements Resettable {
+
+        @Override
+        public void reset() throws Exception {
+        }
+    }
+
+    private BatchXml batchXml;
+
+    private BatchXml reusableBatchXml;
+
+    private ArtifactPool pool;
+
+    @Setup
+    public void setUp() {
+        batchXml = new BatchXml();
+        batchXml.addArtifact("reader", InjectedItemReader.class.getName());
+        reusableBatchXml = new BatchXml();
+        reusableBatchXml.addArtifact("reader", ReusableItemReader.class.getName());
+        pool = new ArtifactPool();
+
+        ChunkStep step = new ChunkStepBuilder()
+                .setId("chunk")
+                .setReader(new ArtifactBuilder().setRef("reader")
+                        .addProperty("fileName", "#{jobParameters['infile.name']}")
+                        .addProperty("buffer.size", "4096")
+                        .build())
+                .setProcessor(new ArtifactBuilder().setRef("processor").build())
+                .setWriter(new ArtifactBuilder().setRef("writer").build())
+                .build();
+        Job job = new JobBuilder()
+                .setId("job")
+                .addStep(step)
+                .build();
+
+        Properties parameters = new Properties();
+        parameters.setProperty("infile.name", "in.txt");
+
+        JobRepository repository = new JobRepositoryImpl();
+        JabatJobInstance jobInstance = repository.createJobInstance(job);
+        JabatJobExecution jobExecution = repository.createJobExecution(jobInstance, parameters);
+        JabatStepExecution stepExecution = repository.createStepExecution(step, jobExecution);
+
+        // artifacts are created on the benchmark thread, which owns the contexts
+        ThreadContext.getInstance().createJobContext(job, jobInstance, jobExecution);
+        ThreadContext.getInstance().createStepContext(step, stepExecution);
+        ThreadContext.getInstance().getStepContext().setResolvedProperties(JobUtil.resolve(step, parameters));
+    }
+
+    @TearDown
+    public void tearDown() {
+        ThreadContext.getInstance().removeStepContext();
+        ThreadContext.getInstance().removeJobContext();
+    }
+
+    @Benchmark
+    public ItemReader create() {
+        ArtifactContainer container = new ArtifactContainer(batchXml, null,
+                Collections.synchronizedSet(new HashSet<Batchlet>()));
+        return container.create("reader", ItemReader.class);
+    }
+
+    @Benchmark
+    public ItemReader createPooled() {
+        ArtifactContainer container = new ArtifactContainer(reusableBatchXml, null,
+                Collections.synchronizedSet(new HashSet<Batchlet>()), pool);
+        ItemReader reader = container.create("reader", ItemReader.class);
+        container.release();
+        return reader;
+    }
+
+    @Benchmark
+    public Object createReflective() throws Exception {
+        Object obj = Class.forName(batchXml.getArtifactClass("reader")).newInstance();
+        injectReflective(obj, "reader");
+        return obj;
+    }
+
+    private static void injectReflective(Object instance, String name) throws IllegalAccessException {
+        ThreadContext threadContext = ThreadContext.getInstance();
+        for (Class<?> clazz = instance.getClass(); clazz != Object.class; clazz = clazz.getSuperclass()) {
+            for (Field field : clazz.getDeclaredFields()) {
+                if (field.isAnnotationPresent(BatchContext.class)) {
+                    Object value = field.getType() == JobContext.class
+                            ? threadContext.getJobContext() : threadContext.getStepContext();
+                    if (!field.isAccessible()) {
+                        field.setAccessible(true);
+                    }
+                    field.set(instance, value);
+                }
+                BatchProperty batchProperty = field.getAnnotation(BatchProperty.class);
+                if (batchProperty != null) {
+                    JabatStepContext context = threadContext.getStepContext();
+                    Artifact artifact = context.getNode().getArtifact(name);
+                    String propertyName = batchProperty.name().isEmpty()
+                            ? field.getName() : batchProperty.name();
+                    String value = context.getResolvedProperties().getArtifactProperties(artifact).get(propertyName);
+                    if (value != null) {
+                        if (!field.isAccessible()) {
+                            field.setAccessible(true);
+                        }
+                        field.set(instance, value);
+                    }
+                }
+            }
+        }
+    }
+
+}
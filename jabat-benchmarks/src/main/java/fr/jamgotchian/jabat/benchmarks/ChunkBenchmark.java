@@ -0,0 +1,137 @@
+/*
+ * Copyright 2013 Geoffroy Jamgotchian <geoffroy.jamgotchian at gmail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.jamgotchian.jabat.benchmarks;
+
+import fr.jamgotchian.jabat.benchmarks.NoOpArtifacts.BlackholeItemWriter;
+import fr.jamgotchian.jabat.benchmarks.NoOpArtifacts.NoOpItemProcessor;
+import fr.jamgotchian.jabat.benchmarks.NoOpArtifacts.NoOpItemReader;
+import fr.jamgotchian.jabat.jobxml.model.ArtifactBuilder;
+import fr.jamgotchian.jabat.jobxml.model.ChunkStep;
+import fr.jamgotchian.jabat.jobxml.model.ChunkStepBuilder;
+import fr.jamgotchian.jabat.runtime.checkpoint.ItemCheckpointAlgorithm;
+import fr.jamgotchian.jabat.runtime.chunk.ChunkCheckpoint;
+import fr.jamgotchian.jabat.runtime.chunk.ChunkProcessor;
+import fr.jamgotchian.jabat.runtime.chunk.ParallelItemProcessor;
+import fr.jamgotchian.jabat.runtime.chunk.PipelinedChunkProcessor;
+import fr.jamgotchian.jabat.runtime.chunk.SerialChunkProcessor;
+import fr.jamgotchian.jabat.runtime.chunk.SkipRetryHandler;
+import fr.jamgotchian.jabat.runtime.metric.StepMetrics;
+import fr.jamgotchian.jabat.runtime.metric.StepMetrics.PartitionMetrics;
+import fr.jamgotchian.jabat.runtime.task.TaskManager;
+import fr.jamgotchian.jabat.runtime.task.impl.ForkJoinTaskManager;
+import fr.jamgotchian.jabat.runtime.transaction.NoTransactionManager;
+import java.util.Arrays;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import javax.batch.api.ItemProcessor;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Framework overhead of the chunk loop, in nanoseconds per item, with no-op
+ * reader, processor and writer.
+ *
+ * @author Geoffroy Jamgotchian <geoffroy.jamgotchian at gmail.com>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@OperationsPerInvocation(ChunkBenchmark.ITEM_COUNT)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class ChunkBenchmark {
+
+    static final int ITEM_COUNT = 100000;
+
+    private static final int PROCESSOR_THREADS = 4;
+
+    @Param({"serial", "pipelined", "parallel"})
+    private String mode;
+
+    @Param({"10", "100"})
+    private int commitInterval;
+
+    @Param({"true", "false"})
+    private boolean latencyRecorded;
+
+    private ChunkStep step;
+
+    private TaskManager taskManager;
+
+    @Setup
+    public void setUp() throws Exception {
+        step = new ChunkStepBuilder()
+                .setId("chunk")
+                .setReader(new ArtifactBuilder().setRef("reader").build())
+                .setProcessor(new ArtifactBuilder().setRef("processor").build())
+                .setWriter(new ArtifactBuilder().setRef("writer").build())
+                .setCommitInterval(commitInterval)
+                .setPipelined("pipelined".equals(mode))
+                .setProcessorThreads("parallel".equals(mode) ? PROCESSOR_THREADS : 1)
+                .setLatencyRecorded(latencyRecorded)
+                .build();
+        taskManager = new ForkJoinTaskManager();
+        taskManager.initialize(new Properties());
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        taskManager.shutdown();
+    }
+
+    @Benchmark
+    public void processItems(Blackhole blackhole) throws Exception {
+        NoOpItemReader reader = new NoOpItemReader(ITEM_COUNT);
+        ItemProcessor processor = new NoOpItemProcessor();
+        BlackholeItemWriter writer = new BlackholeItemWriter(blackhole);
+        ItemCheckpointAlgorithm algorithm = new ItemCheckpointAlgorithm(commitInterval);
+        ChunkCheckpoint checkpoint = new ChunkCheckpoint();
+        PartitionMetrics metrics = new StepMetrics(1, step.isLatencyRecorded()).getPartition(0);
+        SkipRetryHandler skipRetryHandler = new SkipRetryHandler(step, null);
+
+        ChunkProcessor chunkProcessor;
+        if (step.isPipelined()) {
+            chunkProcessor = new PipelinedChunkProcessor(step, reader, processor, writer, algorithm,
+                                                         new NoTransactionManager(), checkpoint,
+                                                         metrics, skipRetryHandler, taskManager);
+        } else if (step.getProcessorThreads() > 1) {
+            ItemProcessor[] processors = new ItemProcessor[step.getProcessorThreads()];
+            Arrays.fill(processors, processor);
+            chunkProcessor = new SerialChunkProcessor(step, reader, processor, writer, algorithm,
+                                                      new NoTransactionManager(), checkpoint, metrics,
+                                                      skipRetryHandler, new ParallelItemProcessor(processors, taskManager, metrics));
+        } else {
+            chunkProcessor = new SerialChunkProcessor(step, reader, processor, writer, algorithm,
+                                                      new NoTransactionManager(), checkpoint, metrics,
+                                                      skipRetryHandler);
+        }
+        chunkProcessor.process();
+    }
+
+}
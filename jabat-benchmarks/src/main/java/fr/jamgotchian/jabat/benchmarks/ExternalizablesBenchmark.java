@@ -0,0 +1,135 @@
+/*
+ * Copyright 2013 Geoffroy Jamgotchian <geoffroy.jamgotchian at gmail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.jamgotchian.jabat.benchmarks;
+
+import fr.jamgotchian.jabat.runtime.checkpoint.CheckpointCodec;
+import fr.jamgotchian.jabat.runtime.checkpoint.PositionCheckpoint;
+import fr.jamgotchian.jabat.runtime.checkpoint.impl.CompactCheckpointCodec;
+import fr.jamgotchian.jabat.runtime.util.Externalizables;
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of the serialization of a typical reader checkpoint, done at each
+ * commit, with Java serialization and with the default checkpoint codec.
+ *
+ * @author Geoffroy Jamgotchian <geoffroy.jamgotchian at gmail.com>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class ExternalizablesBenchmark {
+
+    public static class FileCheckpoint implements Externalizable {
+
+        private String fileName;
+
+        private long position;
+
+        public FileCheckpoint() {
+        }
+
+        public FileCheckpoint(String fileName, long position) {
+            this.fileName = fileName;
+            this.position = position;
+        }
+
+        @Override
+        public void writeExternal(ObjectOutput out) throws IOException {
+            out.writeUTF(fileName);
+            out.writeLong(position);
+        }
+
+        @Override
+        public void readExternal(ObjectInput in) throws IOException, ClassNotFoundException {
+            fileName = in.readUTF();
+            position = in.readLong();
+        }
+    }
+
+    private FileCheckpoint checkpoint;
+
+    private byte[] data;
+
+    private final CheckpointCodec codec = new CompactCheckpointCodec();
+
+    private byte[] encodedData;
+
+    private PositionCheckpoint position;
+
+    private byte[] encodedPosition;
+
+    @Setup
+    public void setUp() throws Exception {
+        checkpoint = new FileCheckpoint("/data/in.txt", 123456789L);
+        data = Externalizables.serialize(checkpoint);
+        encodedData = codec.encode(checkpoint, null);
+        position = new PositionCheckpoint(123456789L);
+        encodedPosition = codec.encode(position, null);
+    }
+
+    @Benchmark
+    public byte[] serialize() throws Exception {
+        return Externalizables.serialize(checkpoint);
+    }
+
+    @Benchmark
+    public Externalizable deserialize() throws Exception {
+        return Externalizables.deserialize(data);
+    }
+
+    @Benchmark
+    public byte[] encode() throws Exception {
+        return codec.encode(checkpoint, null);
+    }
+
+    @Benchmark
+    public byte[] encodeUnchanged() throws Exception {
+        return codec.encode(checkpoint, encodedData);
+    }
+
+    @Benchmark
+    public Externalizable decode() throws Exception {
+        return codec.decode(encodedData);
+    }
+
+    @Benchmark
+    public byte[] encodePosition() throws Exception {
+        return codec.encode(position, null);
+    }
+
+    @Benchmark
+    public Externalizable decodePosition() throws Exception {
+        return codec.decode(encodedPosition);
+    }
+
+}
@@ -0,0 +1,67 @@
+/*
+ * Copyright 2013 Geoffroy Jamgotchian <geoffroy.jamgotchian at gmail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.jamgotchian.jabat.benchmarks;
+
+import com.google.common.io.ByteStreams;
+import fr.jamgotchian.jabat.jobxml.JobXmlParser;
+import fr.jamgotchian.jabat.jobxml.model.Job;
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of the parsing, validation and consistency check of a job XML.
+ *
+ * @author Geoffroy Jamgotchian <geoffroy.jamgotchian at gmail.com>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class JobXmlParserBenchmark {
+
+    private final JobXmlParser parser = new JobXmlParser();
+
+    private byte[] jobXml;
+
+    @Setup
+    public void setUp() throws Exception {
+        InputStream is = getClass().getResourceAsStream("/benchmark-job.xml");
+        try {
+            jobXml = ByteStreams.toByteArray(is);
+        } finally {
+            is.close();
+        }
+    }
+
+    @Benchmark
+    public Job parseJob() {
+        return parser.parseJob(new ByteArrayInputStream(jobXml));
+    }
+
+}
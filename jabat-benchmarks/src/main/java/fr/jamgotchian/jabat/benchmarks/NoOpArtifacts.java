@@ -0,0 +1,102 @@
+/*
+ * Copyright 2013 Geoffroy Jamgotchian <geoffroy.jamgotchian at gmail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.jamgotchian.jabat.benchmarks;
+
+import java.io.Externalizable;
+import java.util.List;
+import javax.batch.api.ItemProcessor;
+import javax.batch.api.ItemReader;
+import javax.batch.api.ItemWriter;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Artifacts doing as little as possible, so that only the framework overhead
+ * is measured.
+ *
+ * @author Geoffroy Jamgotchian <geoffroy.jamgotchian at gmail.com>
+ */
+final class NoOpArtifacts {
+
+    private static final Object ITEM = new Object();
+
+    private NoOpArtifacts() {
+    }
+
+    static class NoOpItemReader implements ItemReader<Object> {
+
+        private final int itemCount;
+
+        private int count = 0;
+
+        NoOpItemReader(int itemCount) {
+            this.itemCount = itemCount;
+        }
+
+        @Override
+        public void open(Externalizable checkpoint) throws Exception {
+        }
+
+        @Override
+        public void close() throws Exception {
+        }
+
+        @Override
+        public Object readItem() throws Exception {
+            return count++ < itemCount ? ITEM : null;
+        }
+
+        @Override
+        public Externalizable checkpointInfo() throws Exception {
+            return null;
+        }
+    }
+
+    static class NoOpItemProcessor implements ItemProcessor<Object, Object> {
+
+        @Override
+        public Object processItem(Object item) throws Exception {
+            return item;
+        }
+    }
+
+    static class BlackholeItemWriter implements ItemWriter<Object> {
+
+        private final Blackhole blackhole;
+
+        BlackholeItemWriter(Blackhole blackhole) {
+            this.blackhole = blackhole;
+        }
+
+        @Override
+        public void open(Externalizable checkpoint) throws Exception {
+        }
+
+        @Override
+        public void close() throws Exception {
+        }
+
+        @Override
+        public void writeItems(List<Object> items) throws Exception {
+            blackhole.consume(items);
+        }
+
+        @Override
+        public Externalizable checkpointInfo() throws Exception {
+            return null;
+        }
+    }
+
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright 2013 Geoffroy Jamgotchian <geoffroy.jamgotchian at gmail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.jamgotchian.jabat.benchmarks;
+
+import fr.jamgotchian.jabat.runtime.task.AbstractTaskResultListener;
+import fr.jamgotchian.jabat.runtime.task.TaskManager;
+import fr.jamgotchian.jabat.runtime.task.impl.ExecutorServiceTaskManager;
+import fr.jamgotchian.jabat.runtime.task.impl.ForkJoinTaskManager;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Cost of the fan-out of the partitions of a step and of the collection of
+ * their results, for both task managers.
+ *
+ * @author Geoffroy Jamgotchian <geoffroy.jamgotchian at gmail.com>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class PartitionFanOutBenchmark {
+
+    @Param({"fork-join", "executor-service"})
+    private String taskManagerType;
+
+    @Param({"10", "200"})
+    private int partitions;
+
+    @Param({"4"})
+    private int threads;
+
+    /* amount of work done by a partition, in JMH tokens */
+    @Param({"0", "1000"})
+    private long work;
+
+    private TaskManager taskManager;
+
+    private List<Callable<Long>> tasks;
+
+    @Setup
+    public void setUp() throws Exception {
+        if ("fork-join".equals(taskManagerType)) {
+            taskManager = new ForkJoinTaskManager();
+        } else {
+            taskManager = new ExecutorServiceTaskManager();
+        }
+        taskManager.initialize(new Properties());
+
+        tasks = new ArrayList<Callable<Long>>(partitions);
+        for (int i = 0; i < partitions; i++) {
+            final long partitionNumber = i;
+            tasks.add(new Callable<Long>() {
+                @Override
+                public Long call() throws Exception {
+                    Blackhole.consumeCPU(work);
+                    return partitionNumber;
+                }
+            });
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        taskManager.shutdown();
+    }
+
+    @Benchmark
+    public long fanOut() throws Exception {
+        final long[] sum = new long[1];
+        taskManager.submitAndWait(tasks, threads, new AbstractTaskResultListener<Long>() {
+            @Override
+            public void onSuccess(Long result) {
+                sum[0] += result;
+            }
+        });
+        return sum[0];
+    }
+
+}
@@ -0,0 +1,77 @@
+/*
+ * Copyright 2013 Geoffroy Jamgotchian <geoffroy.jamgotchian at gmail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.jamgotchian.jabat.benchmarks;
+
+import fr.jamgotchian.jabat.jobxml.JobUtil;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of the substitution of a property value, for the usual kinds of value.
+ *
+ * @author Geoffroy Jamgotchian <geoffroy.jamgotchian at gmail.com>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class SubstitutionBenchmark {
+
+    private Properties parameters;
+
+    private Properties properties;
+
+    @Setup
+    public void setUp() {
+        parameters = new Properties();
+        parameters.setProperty("infile.name", "in.txt");
+        properties = new Properties();
+        properties.setProperty("outfile.name", "out.txt");
+    }
+
+    @Benchmark
+    public String literal() {
+        return JobUtil.substitute("in.txt", parameters, properties);
+    }
+
+    @Benchmark
+    public String jobParameter() {
+        return JobUtil.substitute("#{jobParameters['infile.name']}", parameters, properties);
+    }
+
+    @Benchmark
+    public String jobProperty() {
+        return JobUtil.substitute("#{jobProperties['outfile.name']}", parameters, properties);
+    }
+
+    @Benchmark
+    public String defaultValue() {
+        return JobUtil.substitute("#{jobParameters['foo']}?:in.txt", parameters, properties);
+    }
+
+}
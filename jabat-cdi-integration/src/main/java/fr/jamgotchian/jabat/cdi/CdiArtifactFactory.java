@@ -1,36 +1,100 @@
 package fr.jamgotchian.jabat.cdi;
 
+import com.google.common.base.Optional;
 import fr.jamgotchian.jabat.runtime.artifact.ArtifactFactory;
 import fr.jamgotchian.jabat.runtime.util.JabatRuntimeException;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import javax.enterprise.context.spi.CreationalContext;
 import javax.enterprise.inject.spi.Bean;
+import javax.enterprise.inject.spi.BeanManager;
 
 /**
+ * Create the artifacts which are CDI beans named after the artifact.
+ *
+ * The bean of an artifact name is resolved once and cached until the bean
+ * manager changes, on a redeployment. The creational context of each artifact
+ * is kept until the artifact is destroyed, so that its dependent objects are
+ * released with it.
  *
  * @author Geoffroy Jamgotchian <geoffroy.jamgotchian at gmail.com>
  */
 public class CdiArtifactFactory implements ArtifactFactory {
 
-    @Override
-    public Object create(String name) {
-        if (JabatCdiExtension.BEAN_MANAGER == null) {
+    private static class ManagedInstance {
+
+        private final Bean bean;
+
+        private final CreationalContext ctx;
+
+        private ManagedInstance(Bean bean, CreationalContext ctx) {
+            this.bean = bean;
+            this.ctx = ctx;
+        }
+    }
+
+    /* the bean manager the resolved beans come from */
+    private BeanManager beanManager;
+
+    private final ConcurrentMap<String, Optional<Bean<?>>> beans = new ConcurrentHashMap<String, Optional<Bean<?>>>();
+
+    /* artifacts are compared by identity as they may override equals */
+    private final Map<Object, ManagedInstance> instances
+            = Collections.synchronizedMap(new IdentityHashMap<Object, ManagedInstance>());
+
+    private synchronized BeanManager getBeanManager() {
+        BeanManager current = JabatCdiExtension.BEAN_MANAGER;
+        if (current == null) {
             throw new JabatRuntimeException("CDI container not initialized");
         }
-        Set<Bean<?>> beans = JabatCdiExtension.BEAN_MANAGER.getBeans(name);
-        if (beans.isEmpty()) {
-            return null;
-        } else {
+        if (current != beanManager) {
+            // the application has been redeployed
+            beans.clear();
+            beanManager = current;
+        }
+        return current;
+    }
+
+    private Bean<?> getBean(BeanManager beanManager, String name) {
+        Optional<Bean<?>> bean = beans.get(name);
+        if (bean == null) {
+            Set<Bean<?>> candidates = beanManager.getBeans(name);
             // there is an artifact annotated by @Named
-            Bean bean = beans.iterator().next();
-            CreationalContext ctx = JabatCdiExtension.BEAN_MANAGER.createCreationalContext(null);
-            return bean.create(ctx);
+            bean = Optional.<Bean<?>>fromNullable(candidates.isEmpty() ? null : beanManager.resolve(candidates));
+            beans.put(name, bean);
+        }
+        return bean.orNull();
+    }
+
+    @Override
+    public Object create(String name) {
+        BeanManager bm = getBeanManager();
+        Bean bean = getBean(bm, name);
+        if (bean == null) {
+            return null;
         }
+        CreationalContext ctx = bm.createCreationalContext(bean);
+        Object instance = bean.create(ctx);
+        instances.put(instance, new ManagedInstance(bean, ctx));
+        return instance;
     }
 
     @Override
     public void destroy(Object instance) {
-        // TODO
+        ManagedInstance managedInstance = instances.remove(instance);
+        if (managedInstance != null) {
+            // also releases the dependent objects of the instance
+            managedInstance.bean.destroy(instance, managedInstance.ctx);
+        }
+    }
+
+    /* for test only */
+    int getInstanceCount() {
+        return instances.size();
     }
 
 }
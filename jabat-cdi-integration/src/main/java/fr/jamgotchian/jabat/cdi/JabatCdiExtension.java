@@ -15,7 +15,10 @@
  */
 package fr.jamgotchian.jabat.cdi;
 
+import fr.jamgotchian.jabat.runtime.artifact.ArtifactType;
+import fr.jamgotchian.jabat.runtime.context.InjectionPlan;
 import fr.jamgotchian.jabat.runtime.context.ThreadContext;
+import fr.jamgotchian.jabat.runtime.util.JabatRuntimeException;
 import javax.enterprise.context.spi.CreationalContext;
 import javax.enterprise.event.Observes;
 import javax.enterprise.inject.InjectionException;
@@ -46,17 +49,25 @@ public class JabatCdiExtension implements Extension {
         final InjectionTarget<X> it = pit.getInjectionTarget();
         final AnnotatedType<X> at = pit.getAnnotatedType();
 
-        // TODO check the type is a batch artifact
-        if (at.isAnnotationPresent(Named.class)) {
+        // only named batch artifacts are injected with batch contexts and
+        // properties
+        Class<X> clazz = at.getJavaClass();
+        if (at.isAnnotationPresent(Named.class) && ArtifactType.getIndexes(clazz).length > 0) {
+            final String name = getBeanName(at);
+            final InjectionPlan plan;
+            try {
+                plan = InjectionPlan.get(clazz);
+            } catch (JabatRuntimeException e) {
+                pit.addDefinitionError(e);
+                return;
+            }
             InjectionTarget<X> wrapped = new ForwardingInjectionTarget<X>(it) {
 
                 @Override
                 public void inject(X instance, CreationalContext<X> ctx) {
                     it.inject(instance, ctx);
                     try {
-                        // get the bean name
-                        String name = at.getAnnotation(Named.class).value();
-                        ThreadContext.getInstance().inject(instance, name);
+                        plan.inject(instance, name, ThreadContext.getInstance());
                     } catch (Throwable t) {
                         throw new InjectionException(t);
                     }
@@ -67,4 +78,17 @@ public class JabatCdiExtension implements Extension {
         }
     }
 
+    /**
+     * Get the name of a bean annotated with @Named, by default the simple name
+     * of the bean class with its first letter lower cased.
+     */
+    private static String getBeanName(AnnotatedType<?> at) {
+        String name = at.getAnnotation(Named.class).value();
+        if (name.isEmpty()) {
+            String simpleName = at.getJavaClass().getSimpleName();
+            name = Character.toLowerCase(simpleName.charAt(0)) + simpleName.substring(1);
+        }
+        return name;
+    }
+
 }
@@ -0,0 +1,245 @@
+/*
+ * Copyright 2013 Geoffroy Jamgotchian <geoffroy.jamgotchian at gmail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.jamgotchian.jabat.cdi;
+
+import fr.jamgotchian.jabat.runtime.util.JabatRuntimeException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import javax.enterprise.context.spi.CreationalContext;
+import javax.enterprise.inject.spi.Bean;
+import javax.enterprise.inject.spi.BeanManager;
+import org.junit.After;
+import static org.junit.Assert.*;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ *
+ * @author Geoffroy Jamgotchian <geoffroy.jamgotchian at gmail.com>
+ */
+public class CdiArtifactFactoryTest {
+
+    /**
+     * All the artifacts are equal, they can only be told apart by identity.
+     */
+    public static class Artifact {
+
+        @Override
+        public boolean equals(Object obj) {
+            return obj instanceof Artifact;
+        }
+
+        @Override
+        public int hashCode() {
+            return 0;
+        }
+    }
+
+    /**
+     * An implementation of an interface where only the methods used by the
+     * factory are supported.
+     */
+    private abstract static class Stub implements InvocationHandler {
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            if (method.getDeclaringClass() == Object.class) {
+                if (method.getName().equals("equals")) {
+                    return proxy == args[0];
+                } else if (method.getName().equals("hashCode")) {
+                    return System.identityHashCode(proxy);
+                } else {
+                    return getClass().getSimpleName();
+                }
+            }
+            return call(method.getName(), args);
+        }
+
+        protected abstract Object call(String method, Object[] args) throws Throwable;
+
+        protected <T> T newProxy(Class<T> type) {
+            return type.cast(Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] {type}, this));
+        }
+    }
+
+    private static class StubCreationalContext extends Stub {
+
+        private final CreationalContext proxy = newProxy(CreationalContext.class);
+
+        private int releaseCount = 0;
+
+        @Override
+        protected Object call(String method, Object[] args) {
+            if (method.equals("release")) {
+                releaseCount++;
+                return null;
+            }
+            throw new UnsupportedOperationException(method);
+        }
+    }
+
+    private static class StubBean extends Stub {
+
+        private final Bean proxy = newProxy(Bean.class);
+
+        private final List<Object> destroyed = new ArrayList<Object>();
+
+        @Override
+        protected Object call(String method, Object[] args) {
+            if (method.equals("create")) {
+                return new Artifact();
+            } else if (method.equals("destroy")) {
+                destroyed.add(args[0]);
+                ((CreationalContext) args[1]).release();
+                return null;
+            }
+            throw new UnsupportedOperationException(method);
+        }
+    }
+
+    private static class StubBeanManager extends Stub {
+
+        private final BeanManager proxy = newProxy(BeanManager.class);
+
+        private final StubBean bean = new StubBean();
+
+        private final List<StubCreationalContext> contexts = new ArrayList<StubCreationalContext>();
+
+        private int lookupCount = 0;
+
+        @Override
+        protected Object call(String method, Object[] args) {
+            if (method.equals("getBeans") && args.length == 1 && args[0] instanceof String) {
+                lookupCount++;
+                if (args[0].equals("artifact")) {
+                    return Collections.<Bean<?>>singleton(bean.proxy);
+                } else {
+                    return Collections.<Bean<?>>emptySet();
+                }
+            } else if (method.equals("resolve")) {
+                return ((Set<?>) args[0]).iterator().next();
+            } else if (method.equals("createCreationalContext")) {
+                assertSame(bean.proxy, args[0]);
+                StubCreationalContext context = new StubCreationalContext();
+                contexts.add(context);
+                return context.proxy;
+            }
+            throw new UnsupportedOperationException(method);
+        }
+    }
+
+    private StubBeanManager beanManager;
+
+    private CdiArtifactFactory factory;
+
+    public CdiArtifactFactoryTest() {
+    }
+
+    @Before
+    public void setUp() {
+        beanManager = new StubBeanManager();
+        JabatCdiExtension.BEAN_MANAGER = beanManager.proxy;
+        factory = new CdiArtifactFactory();
+    }
+
+    @After
+    public void tearDown() {
+        JabatCdiExtension.BEAN_MANAGER = null;
+        factory = null;
+        beanManager = null;
+    }
+
+    @Test(expected = JabatRuntimeException.class)
+    public void testContainerNotInitialized() {
+        JabatCdiExtension.BEAN_MANAGER = null;
+        factory.create("artifact");
+    }
+
+    @Test
+    public void testUnknownArtifact() {
+        assertNull(factory.create("unknown"));
+        assertNull(factory.create("unknown"));
+        // the absence of bean is cached too
+        assertEquals(1, beanManager.lookupCount);
+        assertEquals(0, factory.getInstanceCount());
+    }
+
+    @Test
+    public void testBeanResolvedOnce() {
+        Object artifact1 = factory.create("artifact");
+        Object artifact2 = factory.create("artifact");
+        assertTrue(artifact1 instanceof Artifact);
+        assertNotSame(artifact1, artifact2);
+        assertEquals(1, beanManager.lookupCount);
+        // one creational context per artifact
+        assertEquals(2, beanManager.contexts.size());
+        assertEquals(2, factory.getInstanceCount());
+    }
+
+    @Test
+    public void testCacheClearedOnRedeployment() {
+        factory.create("artifact");
+        StubBeanManager redeployed = new StubBeanManager();
+        JabatCdiExtension.BEAN_MANAGER = redeployed.proxy;
+        Object artifact = factory.create("artifact");
+        assertEquals(1, beanManager.lookupCount);
+        assertEquals(1, redeployed.lookupCount);
+        // the bean of the new deployment is used
+        assertEquals(1, redeployed.contexts.size());
+        factory.destroy(artifact);
+        assertEquals(Collections.singletonList(artifact), redeployed.bean.destroyed);
+        assertTrue(beanManager.bean.destroyed.isEmpty());
+    }
+
+    @Test
+    public void testDestroy() {
+        Object artifact1 = factory.create("artifact");
+        Object artifact2 = factory.create("artifact");
+        // equal artifacts are tracked separately
+        assertEquals(artifact1, artifact2);
+        StubCreationalContext context1 = beanManager.contexts.get(0);
+        StubCreationalContext context2 = beanManager.contexts.get(1);
+
+        factory.destroy(artifact1);
+        assertEquals(1, beanManager.bean.destroyed.size());
+        assertSame(artifact1, beanManager.bean.destroyed.get(0));
+        assertEquals(1, context1.releaseCount);
+        assertEquals(0, context2.releaseCount);
+        assertEquals(1, factory.getInstanceCount());
+
+        // no longer tracked
+        factory.destroy(artifact1);
+        assertEquals(1, beanManager.bean.destroyed.size());
+        assertEquals(1, context1.releaseCount);
+
+        factory.destroy(artifact2);
+        assertSame(artifact2, beanManager.bean.destroyed.get(1));
+        assertEquals(1, context2.releaseCount);
+        assertEquals(0, factory.getInstanceCount());
+    }
+
+    @Test
+    public void testDestroyNotCreated() {
+        factory.destroy(new Artifact());
+        assertTrue(beanManager.bean.destroyed.isEmpty());
+    }
+
+}
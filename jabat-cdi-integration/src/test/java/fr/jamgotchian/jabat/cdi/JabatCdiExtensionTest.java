@@ -0,0 +1,269 @@
+/*
+ * Copyright 2013 Geoffroy Jamgotchian <geoffroy.jamgotchian at gmail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.jamgotchian.jabat.cdi;
+
+import fr.jamgotchian.jabat.jobxml.JobUtil;
+import fr.jamgotchian.jabat.jobxml.model.ArtifactBuilder;
+import fr.jamgotchian.jabat.jobxml.model.BatchletStep;
+import fr.jamgotchian.jabat.jobxml.model.BatchletStepBuilder;
+import fr.jamgotchian.jabat.runtime.context.JabatStepContext;
+import fr.jamgotchian.jabat.runtime.context.ThreadContext;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import javax.batch.annotation.BatchContext;
+import javax.batch.annotation.BatchProperty;
+import javax.batch.api.Batchlet;
+import javax.batch.runtime.context.StepContext;
+import javax.enterprise.inject.InjectionException;
+import javax.enterprise.inject.spi.AnnotatedType;
+import javax.enterprise.inject.spi.InjectionTarget;
+import javax.enterprise.inject.spi.ProcessInjectionTarget;
+import javax.inject.Named;
+import org.junit.After;
+import static org.junit.Assert.*;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ *
+ * @author Geoffroy Jamgotchian <geoffroy.jamgotchian at gmail.com>
+ */
+public class JabatCdiExtensionTest {
+
+    public abstract static class AbstractTestBatchlet implements Batchlet {
+
+        @BatchContext
+        private StepContext stepContext;
+
+        @BatchProperty
+        private String name;
+
+        @Override
+        public String process() throws Exception {
+            return null;
+        }
+
+        @Override
+        public void stop() throws Exception {
+        }
+    }
+
+    @Named("batchlet")
+    public static class NamedBatchlet extends AbstractTestBatchlet {
+    }
+
+    /* named batchlet by default */
+    @Named
+    public static class Batchlet1 extends AbstractTestBatchlet {
+    }
+
+    public static class NotNamedBatchlet extends AbstractTestBatchlet {
+    }
+
+    @Named("batchlet")
+    public static class NotArtifact {
+
+        @BatchProperty
+        private String name;
+    }
+
+    @Named("batchlet")
+    public static class InvalidBatchlet extends AbstractTestBatchlet {
+
+        @BatchProperty
+        private Integer count;
+    }
+
+    /**
+     * The container side of the processing of an injection target.
+     */
+    private static class StubProcessInjectionTarget implements InvocationHandler {
+
+        private final Class<?> clazz;
+
+        private final AnnotatedType<?> annotatedType;
+
+        private final InjectionTarget<?> injectionTarget;
+
+        private final List<Object> injected = new ArrayList<Object>();
+
+        private InjectionTarget<?> wrapped;
+
+        private Throwable definitionError;
+
+        private StubProcessInjectionTarget(Class<?> clazz) {
+            this.clazz = clazz;
+            annotatedType = newProxy(AnnotatedType.class);
+            injectionTarget = newProxy(InjectionTarget.class);
+        }
+
+        private <T> T newProxy(Class<T> type) {
+            return type.cast(Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] {type}, this));
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            String name = method.getName();
+            if (method.getDeclaringClass() == Object.class) {
+                if (name.equals("equals")) {
+                    return proxy == args[0];
+                } else if (name.equals("hashCode")) {
+                    return System.identityHashCode(proxy);
+                } else {
+                    return clazz.getSimpleName();
+                }
+            } else if (name.equals("getAnnotatedType")) {
+                return annotatedType;
+            } else if (name.equals("getInjectionTarget")) {
+                return injectionTarget;
+            } else if (name.equals("setInjectionTarget")) {
+                wrapped = (InjectionTarget<?>) args[0];
+                return null;
+            } else if (name.equals("addDefinitionError")) {
+                definitionError = (Throwable) args[0];
+                return null;
+            } else if (name.equals("getJavaClass")) {
+                return clazz;
+            } else if (name.equals("isAnnotationPresent")) {
+                return clazz.isAnnotationPresent((Class) args[0]);
+            } else if (name.equals("getAnnotation")) {
+                return clazz.getAnnotation((Class) args[0]);
+            } else if (name.equals("inject")) {
+                // the injection done by the container
+                injected.add(args[0]);
+                return null;
+            }
+            throw new UnsupportedOperationException(name);
+        }
+
+        private void process(JabatCdiExtension extension) {
+            extension.processBatchArtifact((ProcessInjectionTarget) newProxy(ProcessInjectionTarget.class));
+        }
+
+        private <X> void inject(X instance) {
+            ((InjectionTarget<X>) wrapped).inject(instance, null);
+        }
+    }
+
+    private JabatCdiExtension extension;
+
+    private JabatStepContext stepContext;
+
+    public JabatCdiExtensionTest() {
+    }
+
+    @Before
+    public void setUp() {
+        setStepContext("batchlet");
+        extension = new JabatCdiExtension();
+    }
+
+    /**
+     * Set the context of a step running an artifact.
+     */
+    private void setStepContext(String ref) {
+        BatchletStep step = new BatchletStepBuilder()
+                .setId("step")
+                .setArtifact(new ArtifactBuilder().setRef(ref)
+                        .addProperty("name", "#{jobParameters['name']}")
+                        .build())
+                .build();
+        Properties jobParameters = new Properties();
+        jobParameters.setProperty("name", "value");
+        stepContext = ThreadContext.getInstance().createStepContext(step, null);
+        stepContext.setResolvedProperties(JobUtil.resolve(step, jobParameters));
+    }
+
+    @After
+    public void tearDown() {
+        ThreadContext.getInstance().removeStepContext();
+        extension = null;
+    }
+
+    @Test
+    public void testInject() {
+        StubProcessInjectionTarget pit = new StubProcessInjectionTarget(NamedBatchlet.class);
+        pit.process(extension);
+        assertNull(pit.definitionError);
+        assertNotNull(pit.wrapped);
+        NamedBatchlet batchlet = new NamedBatchlet();
+        pit.inject(batchlet);
+        // injected by the container first, then with the batch context and
+        // the properties of the artifact
+        assertEquals(1, pit.injected.size());
+        assertSame(batchlet, pit.injected.get(0));
+        assertSame(stepContext, ((AbstractTestBatchlet) batchlet).stepContext);
+        assertEquals("value", ((AbstractTestBatchlet) batchlet).name);
+    }
+
+    @Test
+    public void testPlanReused() {
+        StubProcessInjectionTarget pit = new StubProcessInjectionTarget(NamedBatchlet.class);
+        pit.process(extension);
+        // the plan built at deployment injects each new instance
+        for (int i = 0; i < 3; i++) {
+            NamedBatchlet batchlet = new NamedBatchlet();
+            pit.inject(batchlet);
+            assertEquals("value", ((AbstractTestBatchlet) batchlet).name);
+        }
+        assertEquals(3, pit.injected.size());
+    }
+
+    @Test
+    public void testDefaultName() {
+        setStepContext("batchlet1");
+        StubProcessInjectionTarget pit = new StubProcessInjectionTarget(Batchlet1.class);
+        pit.process(extension);
+        Batchlet1 batchlet = new Batchlet1();
+        // injected with the properties of the 'batchlet1' artifact
+        pit.inject(batchlet);
+        assertSame(stepContext, ((AbstractTestBatchlet) batchlet).stepContext);
+        assertEquals("value", ((AbstractTestBatchlet) batchlet).name);
+    }
+
+    @Test
+    public void testNotBatchArtifact() {
+        StubProcessInjectionTarget pit = new StubProcessInjectionTarget(NotNamedBatchlet.class);
+        pit.process(extension);
+        assertNull(pit.wrapped);
+        pit = new StubProcessInjectionTarget(NotArtifact.class);
+        pit.process(extension);
+        assertNull(pit.wrapped);
+        assertNull(pit.definitionError);
+    }
+
+    @Test
+    public void testInvalidArtifact() {
+        StubProcessInjectionTarget pit = new StubProcessInjectionTarget(InvalidBatchlet.class);
+        pit.process(extension);
+        // reported at deployment, not at the first injection
+        assertNotNull(pit.definitionError);
+        assertNull(pit.wrapped);
+    }
+
+    @Test(expected = InjectionException.class)
+    public void testInjectionFailure() {
+        StubProcessInjectionTarget pit = new StubProcessInjectionTarget(NamedBatchlet.class);
+        pit.process(extension);
+        ThreadContext.getInstance().removeStepContext();
+        pit.inject(new NamedBatchlet());
+    }
+
+}
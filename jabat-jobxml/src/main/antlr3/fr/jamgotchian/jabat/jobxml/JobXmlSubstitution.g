@@ -18,6 +18,8 @@ grammar JobXmlSubstitution;
 
 @header {
 package fr.jamgotchian.jabat.jobxml;
+
+import fr.jamgotchian.jabat.jobxml.model.SubstitutionExpression;
 }
 
 @lexer::header {
@@ -26,8 +28,6 @@ package fr.jamgotchian.jabat.jobxml;
 
 @members {
 String propertyName;
-java.util.Properties jobParameters;
-fr.jamgotchian.jabat.jobxml.JobUtil.JobProperties jobProperties;
 
 @Override
 public void emitErrorMessage(String message) {
@@ -44,30 +44,30 @@ public String getErrorHeader(RecognitionException e) {
 }
 }
 
-attributeValue returns [String value]
-    : n = valueExpression { $value = $n.value; } (QUESTION_MARK_COLON n = valueExpression { $value = ($value == null ? $n.value :$value); })? ;
+attributeValue returns [SubstitutionExpression value]
+    : n = valueExpression { $value = $n.value; } (QUESTION_MARK_COLON n = valueExpression { $value = SubstitutionExpression.defaultValue($value, $n.value); })? ;
 
-valueExpression returns [String value]
+valueExpression returns [SubstitutionExpression value]
     : (
         (SHARP_OPEN_CURLY_BRACKET n = operatorExpression { $value = $n.value; } CLOSE_CURLY_BRACKET)
-        | STRING_LITERAL { $value = $STRING_LITERAL.text; }
+        | STRING_LITERAL { $value = SubstitutionExpression.literal($STRING_LITERAL.text); }
       )
-      (n = valueExpression { $value += $n.value; })? ;
+      (n = valueExpression { $value = SubstitutionExpression.concatenation($value, $n.value); })? ;
 
-operatorExpression returns [String value]
+operatorExpression returns [SubstitutionExpression value]
     : n = operator1 { $value = $n.value; }
     | n = operator2 { $value = $n.value; }
     | n = operator3 { $value = $n.value; }
     ;
 
-operator1 returns [String value] :
-    JOB_PARAMETERS OPEN_SQUARE_BRACKET n = singleQuotedStringLiteral { $value = (jobParameters == null ? null : jobParameters.getProperty($n.value)); } CLOSE_SQUARE_BRACKET ;
+operator1 returns [SubstitutionExpression value] :
+    JOB_PARAMETERS OPEN_SQUARE_BRACKET n = singleQuotedStringLiteral { $value = SubstitutionExpression.jobParameter($n.value); } CLOSE_SQUARE_BRACKET ;
 
-operator2 returns [String value] :
-    JOB_PROPERTIES OPEN_SQUARE_BRACKET n = singleQuotedStringLiteral { $value = (jobProperties == null ? null : jobProperties.getProperty($n.value)); } CLOSE_SQUARE_BRACKET ;
+operator2 returns [SubstitutionExpression value] :
+    JOB_PROPERTIES OPEN_SQUARE_BRACKET n = singleQuotedStringLiteral { $value = SubstitutionExpression.jobProperty($n.value); } CLOSE_SQUARE_BRACKET ;
 
-operator3 returns [String value] :
-    SYSTEM_PROPERTIES OPEN_SQUARE_BRACKET n = singleQuotedStringLiteral { $value = System.getProperty($n.value); } CLOSE_SQUARE_BRACKET ;
+operator3 returns [SubstitutionExpression value] :
+    SYSTEM_PROPERTIES OPEN_SQUARE_BRACKET n = singleQuotedStringLiteral { $value = SubstitutionExpression.systemProperty($n.value); } CLOSE_SQUARE_BRACKET ;
 
 singleQuotedStringLiteral returns [String value] :
     QUOTE STRING_LITERAL { $value = $STRING_LITERAL.text; } QUOTE ;
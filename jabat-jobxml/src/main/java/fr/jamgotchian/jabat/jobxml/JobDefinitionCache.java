@@ -0,0 +1,184 @@
+/*
+ * Copyright 2013 Geoffroy Jamgotchian <geoffroy.jamgotchian at gmail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.jamgotchian.jabat.jobxml;
+
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
+import com.google.common.io.ByteStreams;
+import fr.jamgotchian.jabat.jobxml.model.Job;
+import fr.jamgotchian.jabat.jobxml.util.JobXmlException;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A cache of parsed and validated job XML, keyed by job name.
+ *
+ * An entry is only reused while the job XML keeps the same identity, its URL
+ * and last modification time, or a hash of its content when the last
+ * modification time is unknown. A job model is never modified by an
+ * execution, properties being resolved in a separate view per execution, so
+ * the same job model is shared by all the executions of a job.
+ *
+ * @author Geoffroy Jamgotchian <geoffroy.jamgotchian at gmail.com>
+ */
+public class JobDefinitionCache {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(JobDefinitionCache.class);
+
+    private static class Entry {
+
+        private final String url;
+
+        private final long lastModified;
+
+        private final HashCode hash;
+
+        private final Job job;
+
+        private Entry(String url, long lastModified, HashCode hash, Job job) {
+            this.url = url;
+            this.lastModified = lastModified;
+            this.hash = hash;
+            this.job = job;
+        }
+
+        private boolean isSameResource(String url, long lastModified, HashCode hash) {
+            return this.url.equals(url)
+                    && this.lastModified == lastModified
+                    && (hash == null ? this.hash == null : hash.equals(this.hash));
+        }
+    }
+
+    private final JobXmlLocator locator;
+
+    private final JobXmlParser parser = new JobXmlParser();
+
+    private final ConcurrentMap<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+
+    private final AtomicLong hitCount = new AtomicLong();
+
+    private final AtomicLong missCount = new AtomicLong();
+
+    public JobDefinitionCache(JobXmlLocator locator) {
+        this.locator = locator;
+    }
+
+    private static long getLastModified(URL url) throws IOException {
+        if ("file".equals(url.getProtocol())) {
+            try {
+                return new File(url.toURI()).lastModified();
+            } catch (URISyntaxException e) {
+                throw new JobXmlException(e);
+            }
+        } else {
+            return url.openConnection().getLastModified();
+        }
+    }
+
+    private static byte[] read(JobXml jobXml) throws IOException {
+        InputStream is = jobXml.getInputStream();
+        try {
+            return ByteStreams.toByteArray(is);
+        } finally {
+            is.close();
+        }
+    }
+
+    /**
+     * Get the job model of a job.
+     *
+     * @param jobName name of the job
+     * @return the job model or null if the job XML cannot be found
+     */
+    public Job getJob(String jobName) {
+        JobXml jobXml = locator.locate(jobName);
+        if (jobXml == null) {
+            return null;
+        }
+        try {
+            URL url = jobXml.getURL();
+            long lastModified = getLastModified(url);
+            byte[] content = null;
+            HashCode hash = null;
+            if (lastModified == 0) {
+                // the last modification time is unknown, fallback to the
+                // content to identify the job XML
+                content = read(jobXml);
+                hash = Hashing.md5().hashBytes(content);
+            }
+
+            Entry entry = entries.get(jobName);
+            if (entry != null && entry.isSameResource(url.toExternalForm(), lastModified, hash)) {
+                hitCount.incrementAndGet();
+                return entry.job;
+            }
+            missCount.incrementAndGet();
+
+            InputStream is = content != null ? new ByteArrayInputStream(content) : jobXml.getInputStream();
+            Job job;
+            try {
+                job = parser.parseJob(is);
+            } finally {
+                is.close();
+            }
+
+            entries.put(jobName, new Entry(url.toExternalForm(), lastModified, hash, job));
+
+            LOGGER.debug("Loaded job '{}' from {}", jobName, url);
+
+            return job;
+        } catch (IOException e) {
+            throw new JobXmlException(e);
+        }
+    }
+
+    /**
+     * Remove a job from the cache, its job XML will be parsed again at the
+     * next lookup.
+     */
+    public void invalidate(String jobName) {
+        entries.remove(jobName);
+    }
+
+    /**
+     * Remove all the jobs from the cache.
+     */
+    public void invalidateAll() {
+        entries.clear();
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    public long getMissCount() {
+        return missCount.get();
+    }
+
+}
@@ -15,15 +15,17 @@
  */
 package fr.jamgotchian.jabat.jobxml;
 
+import com.google.common.collect.ImmutableMap;
 import fr.jamgotchian.jabat.jobxml.model.Artifact;
 import fr.jamgotchian.jabat.jobxml.model.Node;
-import fr.jamgotchian.jabat.jobxml.model.Propertiable;
+import fr.jamgotchian.jabat.jobxml.model.SubstitutionExpression;
 import fr.jamgotchian.jabat.jobxml.util.JobXmlException;
-import java.io.ByteArrayInputStream;
-import java.io.IOException;
-import java.io.InputStream;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.Properties;
-import org.antlr.runtime.ANTLRInputStream;
+import java.util.regex.Pattern;
+import org.antlr.runtime.ANTLRStringStream;
 import org.antlr.runtime.CommonTokenStream;
 import org.antlr.runtime.RecognitionException;
 
@@ -33,16 +35,15 @@ import org.antlr.runtime.RecognitionException;
  */
 public class JobUtil {
 
-    private JobUtil() {
-    }
-
-    static interface JobProperties {
+    /* a value the substitution grammar reads as a single string literal */
+    private static final Pattern LITERAL_PATTERN = Pattern.compile("[a-zA-Z0-9./_\\-]+");
 
-        String getProperty(String name);
+    private static final Pattern KEYWORD_PATTERN = Pattern.compile("jobParameters|jobProperties|systemProperties");
 
+    private JobUtil() {
     }
 
-    private static class JobPropertiesImpl implements JobProperties {
+    private static class ContextImpl implements SubstitutionExpression.Context {
 
         /* current node */
         private final Node node;
@@ -50,15 +51,15 @@ public class JobUtil {
         /* job parameters */
         private final Properties parameters;
 
-        JobPropertiesImpl(Node node, Properties parameters) {
+        ContextImpl(Node node, Properties parameters) {
             this.node = node;
             this.parameters = parameters;
         }
 
         private String getProperty(Node node, String name) {
-            String value = node.getProperties().getProperty(name);
-            if (value != null) {
-                return JobUtil.substitute(value, parameters, new JobPropertiesImpl(node, parameters), name);
+            SubstitutionExpression expression = node.getPropertyExpressions().get(name);
+            if (expression != null) {
+                return expression.evaluate(new ContextImpl(node, parameters));
             } else {
                 if (node.getContainer() != null) {
                     return getProperty(node.getContainer(), name);
@@ -68,7 +69,12 @@ public class JobUtil {
         }
 
         @Override
-        public String getProperty(String name) {
+        public String getJobParameter(String name) {
+            return parameters == null ? null : parameters.getProperty(name);
+        }
+
+        @Override
+        public String getJobProperty(String name) {
             if (node.getContainer() != null) {
                 return getProperty(node.getContainer(), name);
             }
@@ -77,69 +83,104 @@ public class JobUtil {
 
     }
 
-    public static void substitute(Node node, Properties jobParameters) {
-        substitute(node, jobParameters, node);
+    /**
+     * Resolve the properties of a node and of its artifacts for an execution.
+     *
+     * @param node the node
+     * @param jobParameters the parameters of the execution
+     * @return the resolved properties
+     */
+    public static ResolvedProperties resolve(Node node, Properties jobParameters) {
+        SubstitutionExpression.Context context = new ContextImpl(node, jobParameters);
+        Map<Artifact, ImmutableMap<String, String>> artifactProperties
+                = new HashMap<Artifact, ImmutableMap<String, String>>();
         for (Artifact artifact : node.getArtifacts()) {
-            substitute(artifact, jobParameters, node);
+            artifactProperties.put(artifact, evaluate(artifact.getPropertyExpressions(), context));
         }
+        return new ResolvedProperties(evaluate(node.getPropertyExpressions(), context),
+                                      ImmutableMap.copyOf(artifactProperties));
     }
 
     /* for test only */
-    public static String substitute(String value, Properties jobParameters, final Properties jobProperties) {
-        return substitute(value, jobParameters, new JobProperties() {
-            @Override
-            public String getProperty(String name) {
-                return jobProperties.getProperty(name);
-            }
-        }, null);
-    }
+    public static String substitute(String value, final Properties jobParameters, final Properties jobProperties) {
+        return compile(value, null).evaluate(new SubstitutionExpression.Context() {
 
-    public static Properties substitute(final Properties properties, Properties jobParameters, Node node) {
-        final Properties substitutedProperties = new Properties();
-        substitute(new Propertiable() {
             @Override
-            public Properties getProperties() {
-                return properties;
+            public String getJobParameter(String name) {
+                return jobParameters.getProperty(name);
             }
 
             @Override
-            public Properties getSubstitutedProperties() {
-                return substitutedProperties;
+            public String getJobProperty(String name) {
+                return jobProperties.getProperty(name);
             }
-        }, jobParameters, node);
-        return substitutedProperties;
+        });
+    }
+
+    /**
+     * Resolve properties which are not part of the job model, the ones of a
+     * partition for instance, in the context of a node.
+     *
+     * @param properties the properties to resolve
+     * @param jobParameters the parameters of the execution
+     * @param node the node
+     * @return the resolved properties
+     */
+    public static ImmutableMap<String, String> resolve(Properties properties, Properties jobParameters, Node node) {
+        return evaluate(compile(properties), new ContextImpl(node, jobParameters));
     }
 
-    private static void substitute(Propertiable propertiable, Properties jobParameters, Node node) {
-        JobProperties jobProperties = new JobPropertiesImpl(node, jobParameters);
-        propertiable.getSubstitutedProperties().clear();
-        for (String name : propertiable.getProperties().stringPropertyNames()) {
-            String value = propertiable.getProperties().getProperty(name);
-            String substitutedValue = substitute(value, jobParameters, jobProperties, name);
-            propertiable.getSubstitutedProperties().setProperty(name, substitutedValue);
+    private static ImmutableMap<String, String> evaluate(Map<String, SubstitutionExpression> expressions,
+                                                         SubstitutionExpression.Context context) {
+        if (expressions.isEmpty()) {
+            return ImmutableMap.of();
+        }
+        ImmutableMap.Builder<String, String> builder = ImmutableMap.builder();
+        for (Map.Entry<String, SubstitutionExpression> entry : expressions.entrySet()) {
+            String value = entry.getValue().evaluate(context);
+            // an unresolved property is not defined
+            if (value != null) {
+                builder.put(entry.getKey(), value);
+            }
         }
+        return builder.build();
     }
 
-    private static String substitute(String value, Properties jobParameters, JobProperties jobProperties, String propertyName) {
-        String result = null;
+    /**
+     * Compile the value of a property to a substitution expression.
+     *
+     * @param value the property value
+     * @param propertyName the property name, for error messages, can be null
+     * @return the substitution expression
+     */
+    public static SubstitutionExpression compile(String value, String propertyName) {
+        // no need to run the parser on a plain literal
+        if (LITERAL_PATTERN.matcher(value).matches() && !KEYWORD_PATTERN.matcher(value).find()) {
+            return SubstitutionExpression.literal(value);
+        }
         try {
-            InputStream is = new ByteArrayInputStream(value.getBytes("UTF-8"));
-            try {
-                JobXmlSubstitutionLexer lexer = new JobXmlSubstitutionLexer(new ANTLRInputStream(is, "UTF-8"));
-                CommonTokenStream tokens = new CommonTokenStream(lexer);
-                JobXmlSubstitutionParser parser = new JobXmlSubstitutionParser(tokens);
-                parser.propertyName = propertyName;
-                parser.jobParameters = jobParameters;
-                parser.jobProperties = jobProperties;
-                result = parser.attributeValue();
-            } finally {
-                is.close();
-            }
-        } catch (IOException e) {
-            throw new JobXmlException(e);
+            JobXmlSubstitutionLexer lexer = new JobXmlSubstitutionLexer(new ANTLRStringStream(value));
+            CommonTokenStream tokens = new CommonTokenStream(lexer);
+            JobXmlSubstitutionParser parser = new JobXmlSubstitutionParser(tokens);
+            parser.propertyName = propertyName;
+            return parser.attributeValue();
         } catch (RecognitionException e) {
             throw new JobXmlException(e);
         }
-        return result;
+    }
+
+    /**
+     * Compile the values of properties to substitution expressions.
+     *
+     * @param properties the properties
+     * @return an unmodifiable map of substitution expressions indexed by
+     *         property name
+     */
+    public static Map<String, SubstitutionExpression> compile(Properties properties) {
+        Map<String, SubstitutionExpression> expressions = new HashMap<String, SubstitutionExpression>();
+        for (String name : properties.stringPropertyNames()) {
+            expressions.put(name, compile(properties.getProperty(name), name));
+        }
+        return Collections.unmodifiableMap(expressions);
     }
 }
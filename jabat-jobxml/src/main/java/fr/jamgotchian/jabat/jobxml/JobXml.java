@@ -16,6 +16,7 @@
 package fr.jamgotchian.jabat.jobxml;
 
 import java.io.InputStream;
+import java.net.URL;
 
 /**
  *
@@ -25,6 +26,11 @@ public interface JobXml {
 
     InputStream getInputStream();
 
+    /**
+     * Get the location of the job XML, used to identify it.
+     */
+    URL getURL();
+
     TopLevelNodeType getTopLevelNodeType();
 
 }
@@ -183,7 +183,9 @@ public class JobXmlParser implements JobXmlConstants {
      *
      * <jsl:chunk reader="{artifact-name}" processor="{artifact-name}" writer="{artifact-name}"
      *            checkpoint-policy="{item|time|custom}" commit-interval="{value}"
-     *            buffer-size="{value}" skip-limit="{value}" retry-limit="{value}">
+     *            buffer-size="{value}" skip-limit="{value}" retry-limit="{value}"
+     *            pipelined="{true|false}" processor-threads="{value}"
+     *            latency-histograms="{true|false}">
      *     <jsl:properties>
      *         <jsl:property name="{artifact-name:property-name}" value="{property-value}"/>
      *     </jsl:properties>
@@ -262,6 +264,16 @@ public class JobXmlParser implements JobXmlConstants {
             builder.setCommitInterval(Integer.valueOf(value));
         }
 
+        value = chunkElem.getAttributeValue("commit-latency");
+        if (value != null) {
+            builder.setCommitLatency(Long.valueOf(value));
+        }
+
+        value = chunkElem.getAttributeValue("commit-bytes");
+        if (value != null) {
+            builder.setCommitBytes(Long.valueOf(value));
+        }
+
         value = chunkElem.getAttributeValue("buffer-size");
         if (value != null) {
             builder.setBufferSize(Integer.valueOf(value));
@@ -277,6 +289,21 @@ public class JobXmlParser implements JobXmlConstants {
             builder.setSkipLimit(Integer.valueOf(value));
         }
 
+        value = chunkElem.getAttributeValue("pipelined");
+        if (value != null) {
+            builder.setPipelined(Boolean.valueOf(value));
+        }
+
+        value = chunkElem.getAttributeValue("processor-threads");
+        if (value != null) {
+            builder.setProcessorThreads(Integer.valueOf(value));
+        }
+
+        value = chunkElem.getAttributeValue("latency-histograms");
+        if (value != null) {
+            builder.setLatencyRecorded(Boolean.valueOf(value));
+        }
+
         Element checkpointAlgoElem = chunkElem.getChild("checkpoint-algorithm", ns);
         if (checkpointAlgoElem != null) {
             builder.setCheckpointAlgo(createArtifact(checkpointAlgoElem, ns));
@@ -681,7 +708,7 @@ public class JobXmlParser implements JobXmlConstants {
 
         Element propertiesElem = jobElem.getChild("properties", ns);
         if (propertiesElem != null) {
-            builder.addProperties(createProperties(jobElem, ns));
+            builder.addProperties(createProperties(propertiesElem, ns));
         }
 
         Element listenersElem = jobElem.getChild("listeners", ns);
@@ -708,25 +735,27 @@ public class JobXmlParser implements JobXmlConstants {
         return builder.build();
     }
 
-    public Job parseJob(InputStream is) {
-        try {
-            SchemaFactory schemaFactory = SchemaFactory.newInstance("http://www.w3.org/2001/XMLSchema");
-            Schema schema = schemaFactory.newSchema(getClass().getResource("/jobXML.xsd"));
-
-            SAXBuilder builder = new SAXBuilder(new XMLReaderSchemaFactory(schema));
-            Document document = builder.build(is);
-
-            Element root = document.getRootElement();
-            Namespace ns = Namespace.getNamespace(NS_PREFIX, NS_URI);
+    private static Schema schema;
 
-            Job job = createJob(root, ns);
-
-            // check job consistency
-            ConsistencyReport report = new JobConsistencyChecker(job).check();
-
-            LOGGER.debug("Loaded job '{}'", job.getId());
+    /**
+     * Get the job XML schema, compiled once and shared by all parsers, a
+     * compiled schema being immutable and thread-safe.
+     */
+    private static synchronized Schema getSchema() throws SAXException {
+        if (schema == null) {
+            SchemaFactory schemaFactory = SchemaFactory.newInstance("http://www.w3.org/2001/XMLSchema");
+            schema = schemaFactory.newSchema(JobXmlParser.class.getResource("/jobXML.xsd"));
+        }
+        return schema;
+    }
 
-            return job;
+    /**
+     * Parse and validate a job XML document.
+     */
+    Document parseDocument(InputStream is) {
+        try {
+            SAXBuilder builder = new SAXBuilder(new XMLReaderSchemaFactory(getSchema()));
+            return builder.build(is);
         } catch (IOException e) {
             throw new JobXmlException(e);
         } catch (JDOMException e) {
@@ -736,4 +765,26 @@ public class JobXmlParser implements JobXmlConstants {
         }
     }
 
+    /**
+     * Create a job model from a validated job XML document. The document is
+     * only read so the same document can be used concurrently.
+     */
+    Job createJob(Document document) {
+        Element root = document.getRootElement();
+        Namespace ns = Namespace.getNamespace(NS_PREFIX, NS_URI);
+
+        return createJob(root, ns);
+    }
+
+    public Job parseJob(InputStream is) {
+        Job job = createJob(parseDocument(is));
+
+        // check job consistency
+        ConsistencyReport report = new JobConsistencyChecker(job).check();
+
+        LOGGER.debug("Loaded job '{}'", job.getId());
+
+        return job;
+    }
+
 }
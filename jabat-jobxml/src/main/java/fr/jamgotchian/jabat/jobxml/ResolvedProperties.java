@@ -0,0 +1,87 @@
+/*
+ * Copyright 2013 Geoffroy Jamgotchian <geoffroy.jamgotchian at gmail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.jamgotchian.jabat.jobxml;
+
+import com.google.common.collect.ImmutableMap;
+import fr.jamgotchian.jabat.jobxml.model.Artifact;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * The properties of a node and of its artifacts, resolved for one execution.
+ *
+ * Instances are immutable, so they can be read by several threads without
+ * locking, and a job model is never modified by an execution.
+ *
+ * @author Geoffroy Jamgotchian <geoffroy.jamgotchian at gmail.com>
+ */
+public final class ResolvedProperties {
+
+    public static final ResolvedProperties EMPTY
+            = new ResolvedProperties(ImmutableMap.<String, String>of(),
+                                     ImmutableMap.<Artifact, ImmutableMap<String, String>>of());
+
+    private final ImmutableMap<String, String> properties;
+
+    private final ImmutableMap<Artifact, ImmutableMap<String, String>> artifactProperties;
+
+    ResolvedProperties(ImmutableMap<String, String> properties,
+                       ImmutableMap<Artifact, ImmutableMap<String, String>> artifactProperties) {
+        this.properties = properties;
+        this.artifactProperties = artifactProperties;
+    }
+
+    /**
+     * Get the resolved properties of the node.
+     */
+    public ImmutableMap<String, String> getProperties() {
+        return properties;
+    }
+
+    /**
+     * Get the resolved properties of an artifact of the node.
+     */
+    public ImmutableMap<String, String> getArtifactProperties(Artifact artifact) {
+        ImmutableMap<String, String> result = artifactProperties.get(artifact);
+        return result != null ? result : ImmutableMap.<String, String>of();
+    }
+
+    /**
+     * Create new resolved properties where node properties are overridden.
+     *
+     * @param overridingProperties properties overriding the node properties,
+     *        the ones of a partition for instance
+     */
+    public ResolvedProperties override(Map<String, String> overridingProperties) {
+        if (overridingProperties.isEmpty()) {
+            return this;
+        }
+        Map<String, String> merged = new HashMap<String, String>(properties);
+        merged.putAll(overridingProperties);
+        return new ResolvedProperties(ImmutableMap.copyOf(merged), artifactProperties);
+    }
+
+    /**
+     * Copy the node properties to a new java.util.Properties object.
+     */
+    public Properties toProperties() {
+        Properties result = new Properties();
+        result.putAll(properties);
+        return result;
+    }
+
+}
@@ -17,6 +17,7 @@ package fr.jamgotchian.jabat.jobxml;
 
 import fr.jamgotchian.jabat.jobxml.util.JobXmlException;
 import java.io.InputStream;
+import java.net.URL;
 import javax.xml.stream.XMLInputFactory;
 import javax.xml.stream.XMLStreamException;
 import javax.xml.stream.XMLStreamReader;
@@ -39,6 +40,11 @@ public class ResourceJobXml implements JobXml {
         return Thread.currentThread().getContextClassLoader().getResourceAsStream(resourceName);
     }
 
+    @Override
+    public URL getURL() {
+        return Thread.currentThread().getContextClassLoader().getResource(resourceName);
+    }
+
     private static JobXmlException createCannotFindTopLevelNodeTypeException(Throwable cause) {
         throw new JobXmlException("Cannot find the top level node type", cause);
     }
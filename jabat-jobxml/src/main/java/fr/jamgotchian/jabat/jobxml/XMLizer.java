@@ -17,6 +17,7 @@ package fr.jamgotchian.jabat.jobxml;
 
 import fr.jamgotchian.jabat.jobxml.model.Artifact;
 import fr.jamgotchian.jabat.jobxml.model.BatchletStep;
+import fr.jamgotchian.jabat.jobxml.model.CheckpointPolicy;
 import fr.jamgotchian.jabat.jobxml.model.ChunkStep;
 import fr.jamgotchian.jabat.jobxml.model.ControlElement;
 import fr.jamgotchian.jabat.jobxml.model.Decision;
@@ -217,6 +218,12 @@ public class XMLizer implements JobXmlConstants {
         sw.writeAttribute("writer", step.getWriter().getRef());
         sw.writeAttribute("checkpoint-policy", step.getCheckpointPolicy().name().toLowerCase());
         sw.writeAttribute("commit-interval", Integer.toString(step.getCommitInterval()));
+        if (step.getCheckpointPolicy() == CheckpointPolicy.ADAPTIVE) {
+            sw.writeAttribute("commit-latency", Long.toString(step.getCommitLatency()));
+            if (step.getCommitBytes() > 0) {
+                sw.writeAttribute("commit-bytes", Long.toString(step.getCommitBytes()));
+            }
+        }
         sw.writeAttribute("buffer-size", Integer.toString(step.getBufferSize()));
         if (step.getSkipLimit() != -1) {
             sw.writeAttribute("skip-limit", Integer.toString(step.getSkipLimit()));
@@ -224,6 +231,15 @@ public class XMLizer implements JobXmlConstants {
         if (step.getRetryLimit() != -1) {
             sw.writeAttribute("retry-limit", Integer.toString(step.getRetryLimit()));
         }
+        if (step.isPipelined()) {
+            sw.writeAttribute("pipelined", Boolean.toString(true));
+        }
+        if (step.getProcessorThreads() > 1) {
+            sw.writeAttribute("processor-threads", Integer.toString(step.getProcessorThreads()));
+        }
+        if (step.isLatencyRecorded()) {
+            sw.writeAttribute("latency-histograms", Boolean.toString(true));
+        }
 
         Properties properties = new Properties();
         for (String propertyName : step.getReader().getProperties().stringPropertyNames()) {
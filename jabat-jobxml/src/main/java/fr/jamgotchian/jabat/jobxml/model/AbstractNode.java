@@ -15,6 +15,8 @@
  */
 package fr.jamgotchian.jabat.jobxml.model;
 
+import fr.jamgotchian.jabat.jobxml.JobUtil;
+import java.util.Map;
 import java.util.Properties;
 
 /**
@@ -27,7 +29,7 @@ abstract class AbstractNode implements Node {
 
     private final Properties properties;
 
-    private final Properties substitutedproperties = new Properties();
+    private volatile Map<String, SubstitutionExpression> propertyExpressions;
 
     private NodeContainer container;
 
@@ -47,8 +49,14 @@ abstract class AbstractNode implements Node {
     }
 
     @Override
-    public Properties getSubstitutedProperties() {
-        return substitutedproperties;
+    public Map<String, SubstitutionExpression> getPropertyExpressions() {
+        // compiled on first use, a race only compiles the expressions twice
+        Map<String, SubstitutionExpression> expressions = propertyExpressions;
+        if (expressions == null) {
+            expressions = JobUtil.compile(properties);
+            propertyExpressions = expressions;
+        }
+        return expressions;
     }
 
     @Override
@@ -15,6 +15,8 @@
  */
 package fr.jamgotchian.jabat.jobxml.model;
 
+import fr.jamgotchian.jabat.jobxml.JobUtil;
+import java.util.Map;
 import java.util.Properties;
 
 /**
@@ -27,7 +29,7 @@ public class Artifact implements Propertiable {
 
     private final Properties properties;
 
-    private final Properties substitutedproperties = new Properties();
+    private volatile Map<String, SubstitutionExpression> propertyExpressions;
 
     Artifact(String ref, Properties properties) {
         this.ref = ref;
@@ -44,8 +46,14 @@ public class Artifact implements Propertiable {
     }
 
     @Override
-    public Properties getSubstitutedProperties() {
-        return substitutedproperties;
+    public Map<String, SubstitutionExpression> getPropertyExpressions() {
+        // compiled on first use, a race only compiles the expressions twice
+        Map<String, SubstitutionExpression> expressions = propertyExpressions;
+        if (expressions == null) {
+            expressions = JobUtil.compile(properties);
+            propertyExpressions = expressions;
+        }
+        return expressions;
     }
 
 }
@@ -22,5 +22,6 @@ package fr.jamgotchian.jabat.jobxml.model;
 public enum CheckpointPolicy {
     ITEM,
     TIME,
+    ADAPTIVE,
     CUSTOM
 }
@@ -37,6 +37,10 @@ public class ChunkStep extends Step {
 
     private final int commitInterval;
 
+    private final long commitLatency;
+
+    private final long commitBytes;
+
     private Artifact checkpointAlgo;
 
     private final int bufferSize;
@@ -51,16 +55,23 @@ public class ChunkStep extends Step {
 
     private final ExceptionClassFilter noRollbackExceptionClasses;
 
+    private final boolean pipelined;
+
+    private final int processorThreads;
+
+    private final boolean latencyRecorded;
+
     ChunkStep(String id, String next, int startLimit, boolean allowStartIfComplete,
             Properties properties, PartitionPlan partitionPlan, Artifact partitionMapper,
             Artifact partitionReducer, Artifact partitionCollector, Artifact partitionAnalyser,
             List<Artifact> listeners, List<ControlElement> controlElements,
             Artifact reader, Artifact processor, Artifact writer,
             CheckpointPolicy checkpointPolicy, int commitInterval,
-            Artifact checkpointAlgo, int bufferSize, int retryLimit, int skipLimit,
+            long commitLatency, long commitBytes, Artifact checkpointAlgo, int bufferSize, int retryLimit, int skipLimit,
             ExceptionClassFilter skippableExceptionClasses,
             ExceptionClassFilter retryableExceptionClasses,
-            ExceptionClassFilter noRollbackExceptionClasses) {
+            ExceptionClassFilter noRollbackExceptionClasses,
+            boolean pipelined, int processorThreads, boolean latencyRecorded) {
         super(id, next, startLimit, allowStartIfComplete, properties, partitionPlan,
                 partitionMapper, partitionReducer, partitionCollector, partitionAnalyser,
                 listeners, controlElements);
@@ -69,6 +80,8 @@ public class ChunkStep extends Step {
         this.writer = writer;
         this.checkpointPolicy = checkpointPolicy;
         this.commitInterval = commitInterval;
+        this.commitLatency = commitLatency;
+        this.commitBytes = commitBytes;
         this.checkpointAlgo = checkpointAlgo;
         this.bufferSize = bufferSize;
         this.retryLimit = retryLimit;
@@ -76,6 +89,9 @@ public class ChunkStep extends Step {
         this.skippableExceptionClasses = skippableExceptionClasses;
         this.retryableExceptionClasses = retryableExceptionClasses;
         this.noRollbackExceptionClasses = noRollbackExceptionClasses;
+        this.pipelined = pipelined;
+        this.processorThreads = processorThreads;
+        this.latencyRecorded = latencyRecorded;
     }
 
     @Override
@@ -103,6 +119,22 @@ public class ChunkStep extends Step {
         return commitInterval;
     }
 
+    /**
+     * Get the target duration of a chunk in ms, for the adaptive checkpoint
+     * policy.
+     */
+    public long getCommitLatency() {
+        return commitLatency;
+    }
+
+    /**
+     * Get the maximum volume of items read by a chunk in bytes, for the
+     * adaptive checkpoint policy, 0 meaning no limit.
+     */
+    public long getCommitBytes() {
+        return commitBytes;
+    }
+
     public Artifact getCheckpointAlgo() {
         return checkpointAlgo;
     }
@@ -131,6 +163,30 @@ public class ChunkStep extends Step {
         return noRollbackExceptionClasses;
     }
 
+    /**
+     * Read, process and write stages run concurrently when the chunk step is
+     * pipelined.
+     */
+    public boolean isPipelined() {
+        return pipelined;
+    }
+
+    /**
+     * Number of threads, each one with its own processor instance, the items
+     * of a chunk are processed on.
+     */
+    public int getProcessorThreads() {
+        return processorThreads;
+    }
+
+    /**
+     * Latency histograms of the read, process, write, checkpoint and commit
+     * phases are recorded when true.
+     */
+    public boolean isLatencyRecorded() {
+        return latencyRecorded;
+    }
+
     @Override
     public Artifact getArtifact(String ref) {
         Artifact result = super.getArtifact(ref);
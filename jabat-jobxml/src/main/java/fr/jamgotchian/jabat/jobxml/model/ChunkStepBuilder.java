@@ -27,7 +27,11 @@ public class ChunkStepBuilder extends StepBuilder<ChunkStepBuilder, ChunkStep> {
 
     private CheckpointPolicy checkpointPolicy;
 
-    private int commitInterval = 10;
+    private Integer commitInterval;
+
+    private long commitLatency = 1000;
+
+    private long commitBytes = 0;
 
     private Artifact checkpointAlgo;
 
@@ -43,6 +47,12 @@ public class ChunkStepBuilder extends StepBuilder<ChunkStepBuilder, ChunkStep> {
 
     private Artifact writer;
 
+    private boolean pipelined = false;
+
+    private int processorThreads = 1;
+
+    private boolean latencyRecorded = true;
+
     private final Set<Class<?>> includedSkippableExceptionClasses = new HashSet<Class<?>>();
 
     private final Set<Class<?>> excludedSkippableExceptionClasses = new HashSet<Class<?>>();
@@ -91,6 +101,22 @@ public class ChunkStepBuilder extends StepBuilder<ChunkStepBuilder, ChunkStep> {
         return this;
     }
 
+    public ChunkStepBuilder setCommitLatency(long commitLatency) {
+        if (commitLatency < 1) {
+            throw new JobXmlException("Chunk commit latency should be greater than 0");
+        }
+        this.commitLatency = commitLatency;
+        return this;
+    }
+
+    public ChunkStepBuilder setCommitBytes(long commitBytes) {
+        if (commitBytes < 1) {
+            throw new JobXmlException("Chunk commit bytes should be greater than 0");
+        }
+        this.commitBytes = commitBytes;
+        return this;
+    }
+
     public ChunkStepBuilder setCheckpointAlgo(Artifact checkpointAlgo) {
         this.checkpointAlgo = checkpointAlgo;
         return this;
@@ -120,18 +146,46 @@ public class ChunkStepBuilder extends StepBuilder<ChunkStepBuilder, ChunkStep> {
         return this;
     }
 
+    public ChunkStepBuilder setPipelined(boolean pipelined) {
+        this.pipelined = pipelined;
+        return this;
+    }
+
+    public ChunkStepBuilder setProcessorThreads(int processorThreads) {
+        if (processorThreads < 1) {
+            throw new JobXmlException("Chunk processor threads is expected to be greater than 0");
+        }
+        this.processorThreads = processorThreads;
+        return this;
+    }
+
+    public ChunkStepBuilder setLatencyRecorded(boolean latencyRecorded) {
+        this.latencyRecorded = latencyRecorded;
+        return this;
+    }
+
     private CheckpointPolicy getCheckpointPolicy() {
         return checkpointPolicy == null ? CheckpointPolicy.ITEM : checkpointPolicy;
     }
 
+    private int getCommitInterval() {
+        if (commitInterval != null) {
+            return commitInterval;
+        } else {
+            // for the adaptive policy, the maximum number of items of a chunk
+            return getCheckpointPolicy() == CheckpointPolicy.ADAPTIVE ? 1000 : 10;
+        }
+    }
+
     private int getBufferSize() {
         if (bufferSize != null) {
             return bufferSize;
         } else {
             switch (getCheckpointPolicy()) {
                 case ITEM:
-                    return commitInterval;
+                    return getCommitInterval();
                 case TIME:
+                case ADAPTIVE:
                 case CUSTOM:
                     return 10;
                 default:
@@ -186,6 +240,9 @@ public class ChunkStepBuilder extends StepBuilder<ChunkStepBuilder, ChunkStep> {
         if (policy == CheckpointPolicy.CUSTOM && checkpointAlgo == null) {
             throw new JobXmlException("A checkpoint algorithm artifact is expected for a custom checkpoint policy");
         }
+        if (pipelined && processorThreads > 1) {
+            throw new JobXmlException("Processor threads are not supported by a pipelined chunk");
+        }
         ExceptionClassFilter skippableExceptionClasses =
                 new ExceptionClassFilter(includedSkippableExceptionClasses,
                                          excludedSkippableExceptionClasses);
@@ -200,10 +257,11 @@ public class ChunkStepBuilder extends StepBuilder<ChunkStepBuilder, ChunkStep> {
                                         partitionReducer, partitionCollector, partitionAnalyser,
                                         listeners, controlElements,
                                         reader, processor, writer,
-                                        policy, commitInterval,
+                                        policy, getCommitInterval(), commitLatency, commitBytes,
                                         checkpointAlgo, getBufferSize(), retryLimit, skipLimit,
                                         skippableExceptionClasses, retryableExceptionClasses,
-                                        noRollbackExceptionClasses);
+                                        noRollbackExceptionClasses, pipelined,
+                                        processorThreads, latencyRecorded);
         return chunk;
     }
 }
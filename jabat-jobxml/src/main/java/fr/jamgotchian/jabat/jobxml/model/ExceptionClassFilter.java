@@ -16,8 +16,13 @@
 package fr.jamgotchian.jabat.jobxml.model;
 
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 /**
+ * Included and excluded exception classes. An exception matches the filter if
+ * the nearest class of its hierarchy which is included or excluded is an
+ * included one. The outcome is cached per exception class.
  *
  * @author Geoffroy Jamgotchian <geoffroy.jamgotchian at gmail.com>
  */
@@ -27,6 +32,8 @@ public class ExceptionClassFilter {
 
     private final Set<Class<?>> excludedClasses;
 
+    private final ConcurrentMap<Class<?>, Boolean> matches = new ConcurrentHashMap<Class<?>, Boolean>();
+
     ExceptionClassFilter(Set<Class<?>> includedClasses, Set<Class<?>> excludedClasses) {
         this.includedClasses = includedClasses;
         this.excludedClasses = excludedClasses;
@@ -40,4 +47,22 @@ public class ExceptionClassFilter {
         return excludedClasses;
     }
 
+    public boolean matches(Throwable t) {
+        Boolean match = matches.get(t.getClass());
+        if (match == null) {
+            match = Boolean.FALSE;
+            for (Class<?> clazz = t.getClass(); clazz != null; clazz = clazz.getSuperclass()) {
+                if (excludedClasses.contains(clazz)) {
+                    break;
+                }
+                if (includedClasses.contains(clazz)) {
+                    match = Boolean.TRUE;
+                    break;
+                }
+            }
+            matches.put(t.getClass(), match);
+        }
+        return match;
+    }
+
 }
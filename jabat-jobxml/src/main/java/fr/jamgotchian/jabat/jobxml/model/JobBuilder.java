@@ -34,7 +34,7 @@ public class JobBuilder {
 
     private final List<Artifact> listeners = new ArrayList<Artifact>();
 
-    private boolean restartable = false;
+    private boolean restartable = true;
 
     public JobBuilder setId(String id) {
         this.id = id;
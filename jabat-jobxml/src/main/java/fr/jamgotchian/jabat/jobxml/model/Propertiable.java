@@ -15,6 +15,7 @@
  */
 package fr.jamgotchian.jabat.jobxml.model;
 
+import java.util.Map;
 import java.util.Properties;
 
 /**
@@ -25,6 +26,9 @@ public interface Propertiable {
 
     Properties getProperties();
 
-    Properties getSubstitutedProperties();
+    /**
+     * Get the compiled substitution expressions of the properties.
+     */
+    Map<String, SubstitutionExpression> getPropertyExpressions();
 
 }
@@ -0,0 +1,207 @@
+/*
+ * Copyright 2013 Geoffroy Jamgotchian <geoffroy.jamgotchian at gmail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.jamgotchian.jabat.jobxml.model;
+
+/**
+ * A compiled property value substitution expression, evaluated against the
+ * job parameters and job properties of an execution.
+ *
+ * @author Geoffroy Jamgotchian <geoffroy.jamgotchian at gmail.com>
+ */
+public abstract class SubstitutionExpression {
+
+    /**
+     * Values an expression is evaluated against.
+     */
+    public interface Context {
+
+        String getJobParameter(String name);
+
+        String getJobProperty(String name);
+
+    }
+
+    private static final class Literal extends SubstitutionExpression {
+
+        private final String value;
+
+        private Literal(String value) {
+            this.value = value;
+        }
+
+        @Override
+        public String evaluate(Context context) {
+            return value;
+        }
+
+        @Override
+        public boolean isLiteral() {
+            return true;
+        }
+
+        @Override
+        public String toString() {
+            return value;
+        }
+    }
+
+    private static final class JobParameter extends SubstitutionExpression {
+
+        private final String name;
+
+        private JobParameter(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public String evaluate(Context context) {
+            return context.getJobParameter(name);
+        }
+
+        @Override
+        public String toString() {
+            return "#{jobParameters['" + name + "']}";
+        }
+    }
+
+    private static final class JobProperty extends SubstitutionExpression {
+
+        private final String name;
+
+        private JobProperty(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public String evaluate(Context context) {
+            return context.getJobProperty(name);
+        }
+
+        @Override
+        public String toString() {
+            return "#{jobProperties['" + name + "']}";
+        }
+    }
+
+    private static final class SystemProperty extends SubstitutionExpression {
+
+        private final String name;
+
+        private SystemProperty(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public String evaluate(Context context) {
+            return System.getProperty(name);
+        }
+
+        @Override
+        public String toString() {
+            return "#{systemProperties['" + name + "']}";
+        }
+    }
+
+    private static final class Concatenation extends SubstitutionExpression {
+
+        private final SubstitutionExpression left;
+
+        private final SubstitutionExpression right;
+
+        private Concatenation(SubstitutionExpression left, SubstitutionExpression right) {
+            this.left = left;
+            this.right = right;
+        }
+
+        @Override
+        public String evaluate(Context context) {
+            return left.evaluate(context) + right.evaluate(context);
+        }
+
+        @Override
+        public String toString() {
+            return left.toString() + right.toString();
+        }
+    }
+
+    private static final class DefaultValue extends SubstitutionExpression {
+
+        private final SubstitutionExpression value;
+
+        private final SubstitutionExpression defaultValue;
+
+        private DefaultValue(SubstitutionExpression value, SubstitutionExpression defaultValue) {
+            this.value = value;
+            this.defaultValue = defaultValue;
+        }
+
+        @Override
+        public String evaluate(Context context) {
+            String result = value.evaluate(context);
+            return result != null ? result : defaultValue.evaluate(context);
+        }
+
+        @Override
+        public String toString() {
+            return value.toString() + "?:" + defaultValue.toString();
+        }
+    }
+
+    public static SubstitutionExpression literal(String value) {
+        return new Literal(value);
+    }
+
+    public static SubstitutionExpression jobParameter(String name) {
+        return new JobParameter(name);
+    }
+
+    public static SubstitutionExpression jobProperty(String name) {
+        return new JobProperty(name);
+    }
+
+    public static SubstitutionExpression systemProperty(String name) {
+        return new SystemProperty(name);
+    }
+
+    public static SubstitutionExpression concatenation(SubstitutionExpression left, SubstitutionExpression right) {
+        if (left.isLiteral() && right.isLiteral()) {
+            return new Literal(((Literal) left).value + ((Literal) right).value);
+        }
+        return new Concatenation(left, right);
+    }
+
+    public static SubstitutionExpression defaultValue(SubstitutionExpression value, SubstitutionExpression defaultValue) {
+        if (value.isLiteral()) {
+            // a literal is never null
+            return value;
+        }
+        return new DefaultValue(value, defaultValue);
+    }
+
+    SubstitutionExpression() {
+    }
+
+    public abstract String evaluate(Context context);
+
+    /**
+     * Check if the expression is a literal, whose evaluation does not depend
+     * on the execution.
+     */
+    public boolean isLiteral() {
+        return false;
+    }
+
+}
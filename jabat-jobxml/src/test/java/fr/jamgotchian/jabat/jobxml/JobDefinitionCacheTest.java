@@ -0,0 +1,257 @@
+/*
+ * Copyright 2013 Geoffroy Jamgotchian <geoffroy.jamgotchian at gmail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.jamgotchian.jabat.jobxml;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+import fr.jamgotchian.jabat.jobxml.model.Job;
+import fr.jamgotchian.jabat.jobxml.util.JobXmlException;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.Map;
+import org.junit.After;
+import static org.junit.Assert.*;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ *
+ * @author Geoffroy Jamgotchian <geoffroy.jamgotchian at gmail.com>
+ */
+public class JobDefinitionCacheTest {
+
+    /**
+     * A job XML whose content is held in memory, identified by the URL of a
+     * file which does not exist so that its last modification time is unknown.
+     */
+    private static class InMemoryJobXml implements JobXml {
+
+        private final URL url;
+
+        private byte[] content;
+
+        private InMemoryJobXml(URL url, String content) {
+            this.url = url;
+            this.content = content.getBytes(Charsets.UTF_8);
+        }
+
+        @Override
+        public InputStream getInputStream() {
+            return new ByteArrayInputStream(content);
+        }
+
+        @Override
+        public URL getURL() {
+            return url;
+        }
+
+        @Override
+        public TopLevelNodeType getTopLevelNodeType() {
+            return TopLevelNodeType.JOB;
+        }
+    }
+
+    private static class FileJobXml implements JobXml {
+
+        private final File file;
+
+        private FileJobXml(File file) {
+            this.file = file;
+        }
+
+        @Override
+        public InputStream getInputStream() {
+            try {
+                return new FileInputStream(file);
+            } catch (FileNotFoundException e) {
+                throw new JobXmlException(e);
+            }
+        }
+
+        @Override
+        public URL getURL() {
+            try {
+                return file.toURI().toURL();
+            } catch (MalformedURLException e) {
+                throw new JobXmlException(e);
+            }
+        }
+
+        @Override
+        public TopLevelNodeType getTopLevelNodeType() {
+            return TopLevelNodeType.JOB;
+        }
+    }
+
+    private File dir;
+
+    private final Map<String, JobXml> jobXmls = new HashMap<String, JobXml>();
+
+    private JobDefinitionCache cache;
+
+    public JobDefinitionCacheTest() {
+    }
+
+    @Before
+    public void setUp() {
+        dir = Files.createTempDir();
+        cache = new JobDefinitionCache(new JobXmlLocator() {
+
+            @Override
+            public JobXml locate(String jobName) {
+                return jobXmls.get(jobName);
+            }
+        });
+    }
+
+    @After
+    public void tearDown() {
+        for (File file : dir.listFiles()) {
+            file.delete();
+        }
+        dir.delete();
+        jobXmls.clear();
+        cache = null;
+    }
+
+    private static String createJobXml(String jobName, String stepName) {
+        return "<job id=\"" + jobName + "\" xmlns=\"http://batch.jsr352/jsl\">"
+                + "<step id=\"" + stepName + "\"><batchlet ref=\"batchlet\"/></step>"
+                + "</job>";
+    }
+
+    private File writeJobXml(String jobName, String stepName, long lastModified) throws IOException {
+        File file = new File(dir, jobName + ".xml");
+        Files.write(createJobXml(jobName, stepName), file, Charsets.UTF_8);
+        assertTrue(file.setLastModified(lastModified));
+        jobXmls.put(jobName, new FileJobXml(file));
+        return file;
+    }
+
+    private InMemoryJobXml addInMemoryJobXml(String jobName, String stepName) throws IOException {
+        // the file does not exist, its last modification time is 0
+        URL url = new File(dir, jobName + ".xml").toURI().toURL();
+        InMemoryJobXml jobXml = new InMemoryJobXml(url, createJobXml(jobName, stepName));
+        jobXmls.put(jobName, jobXml);
+        return jobXml;
+    }
+
+    @Test
+    public void testUnknownJob() throws Exception {
+        assertNull(cache.getJob("job1"));
+        assertEquals(0, cache.size());
+        assertEquals(0, cache.getHitCount());
+        assertEquals(0, cache.getMissCount());
+    }
+
+    @Test
+    public void testHit() throws Exception {
+        writeJobXml("job1", "step1", 10000);
+        Job job = cache.getJob("job1");
+        assertEquals("job1", job.getId());
+        assertEquals(0, cache.getHitCount());
+        assertEquals(1, cache.getMissCount());
+        assertSame(job, cache.getJob("job1"));
+        assertSame(job, cache.getJob("job1"));
+        assertEquals(2, cache.getHitCount());
+        assertEquals(1, cache.getMissCount());
+        assertEquals(1, cache.size());
+    }
+
+    @Test
+    public void testLastModifiedChanged() throws Exception {
+        File file = writeJobXml("job1", "step1", 10000);
+        Job job = cache.getJob("job1");
+        assertNotNull(job.getNode("step1"));
+
+        writeJobXml("job1", "step2", 20000);
+        Job job2 = cache.getJob("job1");
+        assertNotSame(job, job2);
+        assertNotNull(job2.getNode("step2"));
+        assertEquals(0, cache.getHitCount());
+        assertEquals(2, cache.getMissCount());
+
+        // the modification time identifies the job XML, not its content
+        assertTrue(file.setLastModified(10000));
+        assertNotSame(job2, cache.getJob("job1"));
+        assertEquals(3, cache.getMissCount());
+        assertEquals(1, cache.size());
+    }
+
+    @Test
+    public void testContentHash() throws Exception {
+        InMemoryJobXml jobXml = addInMemoryJobXml("job1", "step1");
+        Job job = cache.getJob("job1");
+        assertSame(job, cache.getJob("job1"));
+        assertEquals(1, cache.getHitCount());
+        assertEquals(1, cache.getMissCount());
+
+        // same last modification time, the content hash has changed
+        jobXml.content = createJobXml("job1", "step2").getBytes(Charsets.UTF_8);
+        Job job2 = cache.getJob("job1");
+        assertNotSame(job, job2);
+        assertNotNull(job2.getNode("step2"));
+        assertEquals(1, cache.getHitCount());
+        assertEquals(2, cache.getMissCount());
+
+        // an identical content is a hit, even when it is a new array
+        jobXml.content = createJobXml("job1", "step2").getBytes(Charsets.UTF_8);
+        assertSame(job2, cache.getJob("job1"));
+        assertEquals(2, cache.getHitCount());
+    }
+
+    @Test
+    public void testInvalidate() throws Exception {
+        writeJobXml("job1", "step1", 10000);
+        writeJobXml("job2", "step1", 10000);
+        Job job1 = cache.getJob("job1");
+        Job job2 = cache.getJob("job2");
+        assertEquals(2, cache.size());
+
+        cache.invalidate("job1");
+        assertEquals(1, cache.size());
+        assertNotSame(job1, cache.getJob("job1"));
+        assertSame(job2, cache.getJob("job2"));
+        assertEquals(1, cache.getHitCount());
+        assertEquals(3, cache.getMissCount());
+
+        // an unknown job is ignored
+        cache.invalidate("job3");
+        assertEquals(2, cache.size());
+    }
+
+    @Test
+    public void testInvalidateAll() throws Exception {
+        writeJobXml("job1", "step1", 10000);
+        addInMemoryJobXml("job2", "step1");
+        Job job1 = cache.getJob("job1");
+        Job job2 = cache.getJob("job2");
+        cache.invalidateAll();
+        assertEquals(0, cache.size());
+        assertNotSame(job1, cache.getJob("job1"));
+        assertNotSame(job2, cache.getJob("job2"));
+        assertEquals(0, cache.getHitCount());
+        assertEquals(4, cache.getMissCount());
+    }
+
+}
@@ -15,6 +15,13 @@
  */
 package fr.jamgotchian.jabat.jobxml;
 
+import com.google.common.collect.ImmutableMap;
+import fr.jamgotchian.jabat.jobxml.model.Artifact;
+import fr.jamgotchian.jabat.jobxml.model.ArtifactBuilder;
+import fr.jamgotchian.jabat.jobxml.model.BatchletStepBuilder;
+import fr.jamgotchian.jabat.jobxml.model.Job;
+import fr.jamgotchian.jabat.jobxml.model.JobBuilder;
+import fr.jamgotchian.jabat.jobxml.model.Step;
 import java.util.Properties;
 import org.junit.After;
 import static org.junit.Assert.*;
@@ -54,4 +61,53 @@ public class JobUtilTest {
         assertEquals(null, JobUtil.substitute("#{jobParameters['foo']}", parameters, properties));
         assertEquals("in.txt", JobUtil.substitute("#{jobParameters['foo']}?:in.txt", parameters, properties));
     }
+
+    @Test
+    public void testCompile() throws Exception {
+        assertTrue(JobUtil.compile("in.txt", null).isLiteral());
+        assertTrue(JobUtil.compile("in.txt?:out.txt", null).isLiteral());
+        assertFalse(JobUtil.compile("#{jobParameters['infile.name']}", null).isLiteral());
+        properties.setProperty("dir", "/tmp");
+        assertEquals("/tmp/in.txt", JobUtil.substitute("#{jobProperties['dir']}/#{jobParameters['infile.name']}", parameters, properties));
+    }
+
+    @Test
+    public void testResolveTwoExecutions() throws Exception {
+        Artifact batchlet = new ArtifactBuilder()
+                .setRef("batchlet")
+                .addProperty("name", "#{jobParameters['infile.name']}")
+                .build();
+        Step step = new BatchletStepBuilder()
+                .setId("step1")
+                .setArtifact(batchlet)
+                .addProperty("file", "#{jobProperties['infile.name']}")
+                .build();
+        Job job = new JobBuilder()
+                .setId("job1")
+                .addProperty("infile.name", "#{jobParameters['infile.name']}?:default.txt")
+                .addStep(step)
+                .build();
+
+        // the same job model resolved for two executions
+        ResolvedProperties resolved1 = JobUtil.resolve(step, parameters);
+        ResolvedProperties resolved2 = JobUtil.resolve(step, new Properties());
+        assertEquals(ImmutableMap.of("file", "in.txt"), resolved1.getProperties());
+        assertEquals(ImmutableMap.of("name", "in.txt"), resolved1.getArtifactProperties(batchlet));
+        assertEquals(ImmutableMap.of("file", "default.txt"), resolved2.getProperties());
+        assertEquals(ImmutableMap.<String, String>of(), resolved2.getArtifactProperties(batchlet));
+
+        // the views are independent
+        Properties copy = resolved1.toProperties();
+        copy.setProperty("file", "out.txt");
+        ResolvedProperties overridden = resolved2.override(ImmutableMap.of("file", "part.txt"));
+        assertEquals("part.txt", overridden.getProperties().get("file"));
+        assertEquals("in.txt", resolved1.getProperties().get("file"));
+        assertEquals("default.txt", resolved2.getProperties().get("file"));
+
+        // the model is not modified
+        assertEquals("#{jobProperties['infile.name']}", step.getProperties().getProperty("file"));
+        assertEquals("#{jobParameters['infile.name']}", batchlet.getProperties().getProperty("name"));
+        assertEquals("#{jobParameters['infile.name']}?:default.txt", job.getProperties().getProperty("infile.name"));
+        assertEquals(ImmutableMap.of("file", "in.txt"), JobUtil.resolve(step, parameters).getProperties());
+    }
 }
@@ -15,25 +15,40 @@
  */
 package fr.jamgotchian.jabat.runtime;
 
-import fr.jamgotchian.jabat.jobxml.JobXml;
-import fr.jamgotchian.jabat.jobxml.JobXmlLocator;
-import fr.jamgotchian.jabat.jobxml.JobXmlParser;
+import com.google.common.util.concurrent.Striped;
+import fr.jamgotchian.jabat.jobxml.JobDefinitionCache;
 import fr.jamgotchian.jabat.jobxml.MetaInfJobXmlLocator;
 import fr.jamgotchian.jabat.jobxml.model.Job;
 import fr.jamgotchian.jabat.runtime.artifact.ArtifactFactory;
+import fr.jamgotchian.jabat.runtime.artifact.ArtifactPool;
 import fr.jamgotchian.jabat.runtime.artifact.BatchXml;
+import fr.jamgotchian.jabat.runtime.checkpoint.CheckpointCodec;
+import fr.jamgotchian.jabat.runtime.checkpoint.CheckpointStore;
 import fr.jamgotchian.jabat.runtime.repository.BatchStatus;
 import fr.jamgotchian.jabat.runtime.repository.JabatJobExecution;
 import fr.jamgotchian.jabat.runtime.repository.JabatJobInstance;
+import fr.jamgotchian.jabat.runtime.repository.JobInstanceEvictionListener;
 import fr.jamgotchian.jabat.runtime.repository.JobRepository;
 import fr.jamgotchian.jabat.runtime.task.TaskManager;
+import fr.jamgotchian.jabat.runtime.util.JabatRuntimeException;
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Date;
+import java.util.EnumSet;
 import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
 import javax.batch.runtime.JobExecutionNotRunningException;
+import javax.batch.runtime.JobInstanceAlreadyCompleteException;
+import javax.batch.runtime.JobRestartException;
 import javax.batch.runtime.JobStartException;
 import javax.batch.runtime.NoSuchJobException;
 import javax.batch.runtime.NoSuchJobInstanceException;
@@ -48,18 +63,41 @@ public class JobContainer {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(JobContainer.class);
 
-    private final JobXmlLocator locator = new MetaInfJobXmlLocator();
+    public static final String STOP_TIMEOUT_KEY = "jabat.stopTimeout";
 
-    private final JobXmlParser parser = new JobXmlParser();
+    private static final long DEFAULT_STOP_TIMEOUT = 30000; // ms
+
+    /* statuses of an execution which has not ended */
+    private static final Set<BatchStatus> RUNNING_STATUSES
+            = Collections.unmodifiableSet(EnumSet.of(BatchStatus.STARTING, BatchStatus.STARTED, BatchStatus.STOPPING));
+
+    private final JobDefinitionCache jobDefinitions
+            = new JobDefinitionCache(new MetaInfJobXmlLocator());
 
     private final BatchXml batchXml;
 
     private final ArtifactFactory artifactFactory;
 
+    private final ArtifactPool artifactPool = new ArtifactPool();
+
     private final TaskManager taskManager;
 
     private final JobRepository repository;
 
+    private final CheckpointStore checkpointStore;
+
+    private final CheckpointCodec checkpointCodec;
+
+    private final Properties configuration;
+
+    /* time given to an execution to stop before its threads are interrupted */
+    private long stopTimeout = DEFAULT_STOP_TIMEOUT;
+
+    private ScheduledExecutorService stopTimer;
+
+    /* locks of the job instances being restarted */
+    private final Striped<Lock> instanceLocks = Striped.lock(64);
+
     private final Map<Long, JobExecutionContext> executionContexts
             = Collections.synchronizedMap(new HashMap<Long, JobExecutionContext>());
 
@@ -73,29 +111,85 @@ public class JobContainer {
         @Override
         public void finished(JobExecutionContext context) {
             executionContexts.remove(context.getJobExecution().getId());
+            repository.jobExecutionEnded(context.getJobExecution());
+        }
+    };
+
+    /* the checkpoints of the stopped or failed step executions of an evicted
+       job instance will never be used by a restart */
+    private final JobInstanceEvictionListener evictionListener = new JobInstanceEvictionListener() {
+
+        @Override
+        public void jobInstanceEvicted(JabatJobInstance jobInstance, List<Long> stepExecutionIds) {
+            for (long stepExecutionId : stepExecutionIds) {
+                try {
+                    checkpointStore.remove(stepExecutionId);
+                } catch (Exception e) {
+                    throw new JabatRuntimeException(e);
+                }
+            }
         }
     };
 
     JobContainer(BatchXml batchXml, ArtifactFactory artifactFactory,
-                 TaskManager taskManager, JobRepository repository) {
+                 TaskManager taskManager, JobRepository repository,
+                 CheckpointStore checkpointStore, CheckpointCodec checkpointCodec,
+                 Properties configuration) {
         this.batchXml = batchXml;
         this.artifactFactory = artifactFactory;
         this.taskManager = taskManager;
         this.repository = repository;
+        this.checkpointStore = checkpointStore;
+        this.checkpointCodec = checkpointCodec;
+        this.configuration = configuration;
     }
 
     public void initialize() throws Exception {
-        taskManager.initialize();
+        taskManager.initialize(configuration);
+        checkpointStore.initialize(configuration);
+        repository.initialize(configuration);
+        repository.setEvictionListener(evictionListener);
+        artifactPool.initialize(configuration);
+        String value = configuration.getProperty(STOP_TIMEOUT_KEY);
+        if (value != null) {
+            stopTimeout = Long.parseLong(value);
+            if (stopTimeout < 0) {
+                throw new JabatRuntimeException("Stop timeout is expected to be positive");
+            }
+        }
+        stopTimer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "JABAT-stop-timer");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
     }
 
     public void shutdown() throws Exception {
+        if (stopTimer != null) {
+            stopTimer.shutdownNow();
+        }
         taskManager.shutdown();
+        checkpointStore.shutdown();
+        repository.shutdown();
+        artifactPool.clear();
     }
 
     public JobRepository getRepository() {
         return repository;
     }
 
+    public ArtifactPool getArtifactPool() {
+        return artifactPool;
+    }
+
+    public JobDefinitionCache getJobDefinitions() {
+        return jobDefinitions;
+    }
+
     public Set<String> getJobIds() {
         return Collections.unmodifiableSet(repository.getJobIds());
     }
@@ -108,14 +202,106 @@ public class JobContainer {
         return Collections.unmodifiableList(jobInstanceIds);
     }
 
+    private static void checkPage(int start, int count) {
+        if (start < 0 || count < 0) {
+            throw new IllegalArgumentException("Page start and count are expected to be positive");
+        }
+    }
+
+    private static List<Long> checkJobFound(String jobId, List<Long> jobInstanceIds) throws NoSuchJobException {
+        if (jobInstanceIds == null) {
+            throw new NoSuchJobException("Job " + jobId + " not found");
+        }
+        return Collections.unmodifiableList(jobInstanceIds);
+    }
+
+    public int getJobInstanceCount(String jobId) throws NoSuchJobException {
+        int count = repository.getJobInstanceCount(jobId);
+        if (count == -1) {
+            throw new NoSuchJobException("Job " + jobId + " not found");
+        }
+        return count;
+    }
+
+    /**
+     * Get a page of the instance ids of a job, the most recent first.
+     *
+     * @param jobId the job id
+     * @param start the position of the first id, 0 being the most recent
+     *        instance
+     * @param count the maximum number of ids
+     */
+    public List<Long> getJobInstanceIds(String jobId, int start, int count) throws NoSuchJobException {
+        checkPage(start, count);
+        return checkJobFound(jobId, repository.getJobInstanceIds(jobId, start, count));
+    }
+
+    /**
+     * Get a page of the ids of the instances of a job whose last execution
+     * has one of the given statuses, the most recent first.
+     */
+    public List<Long> getJobInstanceIds(String jobId, Set<BatchStatus> statuses, int start, int count)
+            throws NoSuchJobException {
+        checkPage(start, count);
+        return checkJobFound(jobId, repository.getJobInstanceIds(jobId, statuses, start, count));
+    }
+
+    /**
+     * Get a page of the ids of the instances of a job created during a time
+     * range, the most recent first.
+     *
+     * @param from the beginning of the range, included, null for no bound
+     * @param to the end of the range, excluded, null for no bound
+     */
+    public List<Long> getJobInstanceIds(String jobId, Date from, Date to, int start, int count)
+            throws NoSuchJobException {
+        checkPage(start, count);
+        return checkJobFound(jobId, repository.getJobInstanceIds(jobId, from, to, start, count));
+    }
+
+    /**
+     * Get the ids of the instances of a job whose last execution is running,
+     * the most recent first.
+     */
+    public Set<Long> getRunningInstanceIds(String jobId) throws NoSuchJobException {
+        List<Long> ids = getJobInstanceIds(jobId, RUNNING_STATUSES, 0, Integer.MAX_VALUE);
+        return Collections.unmodifiableSet(new LinkedHashSet<Long>(ids));
+    }
+
+    /**
+     * Get the executions of a job instance, in creation order.
+     */
+    public List<JabatJobExecution> getJobExecutions(long instanceId) throws NoSuchJobInstanceException {
+        JabatJobInstance jobInstance = repository.getJobInstance(instanceId);
+        if (jobInstance == null) {
+            throw new NoSuchJobInstanceException("Job instance " + instanceId + " not found");
+        }
+        List<JabatJobExecution> jobExecutions = new ArrayList<JabatJobExecution>();
+        for (long executionId : jobInstance.getExecutionIds()) {
+            JabatJobExecution jobExecution = repository.getJobExecution(executionId);
+            if (jobExecution != null) {
+                jobExecutions.add(jobExecution);
+            }
+        }
+        return Collections.unmodifiableList(jobExecutions);
+    }
+
+    /**
+     * Get the definition of a job.
+     *
+     * @param id the job id
+     * @return the job or null if it is not found
+     */
+    Job getJob(String id) {
+        return jobDefinitions.getJob(id);
+    }
+
     public long start(String id, Properties parameters) throws NoSuchJobException, JobStartException {
-        JobXml jobXml = locator.locate(id);
-        if (jobXml == null) {
+        Job job = getJob(id);
+        if (job == null) {
             throw new NoSuchJobException("Job " + id + " not found");
         }
 
-        Job job = parser.parseJob(jobXml.getInputStream());
-
         if (job.getFirstChainableNode() == null) {
             throw new JobStartException("The job " + id + " does not contain any step, flow or split");
         }
@@ -130,14 +316,100 @@ public class JobContainer {
 
         // start the execution
         JobExecutionContext executionContext
-                = new JobExecutionContext(batchXml, artifactFactory, taskManager,
-                                          repository, parameters, jobInstance,
-                                          jobExecution);
+                = new JobExecutionContext(batchXml, artifactFactory, artifactPool, taskManager,
+                                          repository, checkpointStore, checkpointCodec, parameters,
+                                          jobInstance, jobExecution);
         new JobExecutor(job).execute(executionContext, executionListener);
 
         return jobInstance.getInstanceId();
     }
 
+    /**
+     * Restart a job instance whose last execution has failed or has been
+     * stopped. A new execution of the instance is created, the steps which
+     * have already completed are skipped and the other ones are resumed from
+     * their last checkpoint. An instance is restarted at most once at a time
+     * by a container, concurrent restarts of a stopped or failed instance
+     * end with a JobRestartException but for one.
+     *
+     * @param instanceId the job instance id
+     * @param parameters the parameters of the new execution
+     * @return the id of the new job execution
+     */
+    public long restart(long instanceId, Properties parameters) throws JobInstanceAlreadyCompleteException,
+            NoSuchJobException, JobRestartException {
+        JabatJobInstance jobInstance;
+        Job job;
+        JabatJobExecution jobExecution;
+
+        // the last execution is checked and the new one created under the
+        // lock of the instance, so that two concurrent restarts cannot both
+        // see the failed or stopped execution
+        Lock instanceLock = instanceLocks.get(instanceId);
+        instanceLock.lock();
+        try {
+            jobInstance = repository.getJobInstance(instanceId);
+            if (jobInstance == null) {
+                throw new JobRestartException("Job instance " + instanceId + " not found");
+            }
+
+            // an instance being started has no execution yet
+            JabatJobExecution lastExecution = null;
+            if (!jobInstance.getExecutionIds().isEmpty()) {
+                lastExecution = repository.getJobExecution(jobInstance.getLastExecutionId());
+            }
+            if (lastExecution == null) {
+                throw new JobRestartException("Job instance " + instanceId + " has no execution");
+            }
+            switch (lastExecution.getStatusEnum()) {
+                case COMPLETED:
+                    throw new JobInstanceAlreadyCompleteException("Job instance " + instanceId + " has already completed");
+                case STOPPED:
+                case FAILED:
+                    break;
+                default:
+                    throw new JobRestartException("Job instance " + instanceId + " cannot be restarted, its last execution is "
+                            + lastExecution.getStatusEnum());
+            }
+
+            job = getJob(jobInstance.getJobName());
+            if (job == null) {
+                throw new NoSuchJobException("Job " + jobInstance.getJobName() + " not found");
+            }
+
+            if (!job.isRestartable()) {
+                throw new JobRestartException("Job " + job.getId() + " is not restartable");
+            }
+
+            // create a new execution of the job instance, unless it has been
+            // evicted from the repository in the meantime
+            jobExecution = repository.createJobExecution(jobInstance, parameters);
+            if (jobExecution == null) {
+                throw new JobRestartException("Job instance " + instanceId + " not found");
+            }
+        } finally {
+            instanceLock.unlock();
+        }
+
+        // start the execution
+        JobExecutionContext executionContext
+                = new JobExecutionContext(batchXml, artifactFactory, artifactPool, taskManager,
+                                          repository, checkpointStore, checkpointCodec, parameters,
+                                          jobInstance, jobExecution);
+        new JobExecutor(job).execute(executionContext, executionListener);
+
+        return jobExecution.getId();
+    }
+
+    /**
+     * Stop the last execution of a job instance. The running steps are asked
+     * to stop, chunk steps commit their current checkpoint at the next item
+     * and batchlet steps are stopped through their stop method. The threads
+     * still running the execution after the stop timeout are interrupted.
+     * The method does not wait for the execution to be stopped.
+     *
+     * @param instanceId the job instance id
+     */
     public void stop(long instanceId) throws NoSuchJobInstanceException, JobExecutionNotRunningException {
         JabatJobInstance jobInstance = repository.getJobInstance(instanceId);
         if (jobInstance == null) {
@@ -151,11 +423,20 @@ public class JobContainer {
             throw new JobExecutionNotRunningException("Job execution " + executionId + "is not running");
         }
 
-        // update job and steps status to STOPPING
-        executionContext.getJobExecution().setStatus(BatchStatus.STOPPING);
-
-        executionContext.stopRunningSteps();
-
-        executionContext.getJobExecution().setStatus(BatchStatus.STOPPED);
+        // update job and steps status to STOPPING, the job status is updated
+        // to STOPPED by the execution once the steps have stopped
+        executionContext.requestStop();
+
+        final long stoppingExecutionId = executionId;
+        final JobExecutionContext stoppingContext = executionContext;
+        stopTimer.schedule(new Runnable() {
+
+            @Override
+            public void run() {
+                if (executionContexts.get(stoppingExecutionId) == stoppingContext) {
+                    stoppingContext.interruptRunningThreads();
+                }
+            }
+        }, stopTimeout, TimeUnit.MILLISECONDS);
     }
 }
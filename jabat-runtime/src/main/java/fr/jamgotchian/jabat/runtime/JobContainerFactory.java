@@ -18,6 +18,8 @@ package fr.jamgotchian.jabat.runtime;
 import fr.jamgotchian.jabat.runtime.artifact.ArtifactFactory;
 import fr.jamgotchian.jabat.runtime.artifact.BatchXml;
 import fr.jamgotchian.jabat.runtime.artifact.BatchXmlParser;
+import fr.jamgotchian.jabat.runtime.checkpoint.CheckpointCodec;
+import fr.jamgotchian.jabat.runtime.checkpoint.CheckpointStore;
 import fr.jamgotchian.jabat.runtime.repository.JobRepository;
 import fr.jamgotchian.jabat.runtime.task.TaskManager;
 import fr.jamgotchian.jabat.runtime.util.JabatRuntimeException;
@@ -32,10 +34,16 @@ import java.util.Properties;
 public class JobContainerFactory {
 
     private static final Class<? extends TaskManager> DEFAULT_TASK_MANAGER_CLASS
-            = fr.jamgotchian.jabat.runtime.task.impl.ExecutorServiceTaskManager.class;
+            = fr.jamgotchian.jabat.runtime.task.impl.ForkJoinTaskManager.class;
 
     private static final Class<? extends JobRepository> DEFAULT_JOB_REPOSITORY_CLASS
-            = fr.jamgotchian.jabat.runtime.repository.impl.JobRepositoryImpl.class;
+            = fr.jamgotchian.jabat.runtime.repository.impl.ConcurrentJobRepository.class;
+
+    private static final Class<? extends CheckpointStore> DEFAULT_CHECKPOINT_STORE_CLASS
+            = fr.jamgotchian.jabat.runtime.checkpoint.impl.MemoryCheckpointStore.class;
+
+    private static final Class<? extends CheckpointCodec> DEFAULT_CHECKPOINT_CODEC_CLASS
+            = fr.jamgotchian.jabat.runtime.checkpoint.impl.CompactCheckpointCodec.class;
 
     private BatchXml batchXml;
 
@@ -45,10 +53,15 @@ public class JobContainerFactory {
 
     private Class<? extends JobRepository> jobRepositoryClass;
 
+    private Class<? extends CheckpointStore> checkpointStoreClass;
+
+    private Class<? extends CheckpointCodec> checkpointCodecClass;
+
+    private final Properties props = new Properties();
+
     public JobContainerFactory() {
         InputStream is = getClass().getResourceAsStream("/jabat.properties");
         if (is != null) {
-            Properties props = new Properties();
             try {
                 props.load(is);
                 String artifactFactoryClassName = props.getProperty("jabat.artifactFactory");
@@ -63,6 +76,14 @@ public class JobContainerFactory {
                 if (jobRepositoryClassName != null) {
                     jobRepositoryClass = Class.forName(jobRepositoryClassName).asSubclass(JobRepository.class);
                 }
+                String checkpointStoreClassName = props.getProperty("jabat.checkpointStore");
+                if (checkpointStoreClassName != null) {
+                    checkpointStoreClass = Class.forName(checkpointStoreClassName).asSubclass(CheckpointStore.class);
+                }
+                String checkpointCodecClassName = props.getProperty("jabat.checkpointCodec");
+                if (checkpointCodecClassName != null) {
+                    checkpointCodecClass = Class.forName(checkpointCodecClassName).asSubclass(CheckpointCodec.class);
+                }
             } catch (IOException e) {
                 throw new JabatRuntimeException(e);
             } catch (ClassNotFoundException e) {
@@ -123,12 +144,49 @@ public class JobContainerFactory {
         this.jobRepositoryClass = jobRepositoryClass;
     }
 
+    private CheckpointStore getCheckpointStore() throws ReflectiveOperationException {
+        if (checkpointStoreClass == null) {
+            return DEFAULT_CHECKPOINT_STORE_CLASS.newInstance();
+        } else {
+            return checkpointStoreClass.newInstance();
+        }
+    }
+
+    public void setCheckpointStoreClass(Class<? extends CheckpointStore> checkpointStoreClass) {
+        this.checkpointStoreClass = checkpointStoreClass;
+    }
+
+    private CheckpointCodec getCheckpointCodec() throws ReflectiveOperationException {
+        if (checkpointCodecClass == null) {
+            return DEFAULT_CHECKPOINT_CODEC_CLASS.newInstance();
+        } else {
+            return checkpointCodecClass.newInstance();
+        }
+    }
+
+    public void setCheckpointCodecClass(Class<? extends CheckpointCodec> checkpointCodecClass) {
+        this.checkpointCodecClass = checkpointCodecClass;
+    }
+
+    /**
+     * Get the container configuration, the content of jabat.properties. It can
+     * be completed before creating a container.
+     */
+    public Properties getConfiguration() {
+        return props;
+    }
+
     public JobContainer newInstance() {
         try {
             ArtifactFactory artifactFactory = getArtifactFactory();
             TaskManager taskManager = getTaskManager();
             JobRepository repository = getJobRepository();
-            return new JobContainer(getBatchXml(), artifactFactory, taskManager, repository);
+            CheckpointStore checkpointStore = getCheckpointStore();
+            CheckpointCodec checkpointCodec = getCheckpointCodec();
+            Properties configuration = new Properties();
+            configuration.putAll(props);
+            return new JobContainer(getBatchXml(), artifactFactory, taskManager, repository,
+                                    checkpointStore, checkpointCodec, configuration);
         } catch(ReflectiveOperationException e) {
             throw new JabatRuntimeException(e);
         }
@@ -17,17 +17,25 @@ package fr.jamgotchian.jabat.runtime;
 
 import fr.jamgotchian.jabat.runtime.artifact.ArtifactContainer;
 import fr.jamgotchian.jabat.runtime.artifact.ArtifactFactory;
+import fr.jamgotchian.jabat.runtime.artifact.ArtifactPool;
 import fr.jamgotchian.jabat.runtime.artifact.BatchXml;
+import fr.jamgotchian.jabat.runtime.checkpoint.CheckpointCodec;
+import fr.jamgotchian.jabat.runtime.checkpoint.CheckpointStore;
+import fr.jamgotchian.jabat.runtime.chunk.ChunkProcessor;
+import fr.jamgotchian.jabat.runtime.context.JabatJobContext;
 import fr.jamgotchian.jabat.runtime.repository.BatchStatus;
 import fr.jamgotchian.jabat.runtime.repository.JabatJobExecution;
 import fr.jamgotchian.jabat.runtime.repository.JabatJobInstance;
 import fr.jamgotchian.jabat.runtime.repository.JabatStepExecution;
 import fr.jamgotchian.jabat.runtime.repository.JobRepository;
 import fr.jamgotchian.jabat.runtime.task.TaskManager;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Properties;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
 import javax.batch.api.Batchlet;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -44,10 +52,16 @@ class JobExecutionContext {
 
     private final ArtifactFactory artifactFactory;
 
+    private final ArtifactPool artifactPool;
+
     private final TaskManager taskManager;
 
     private final JobRepository repository;
 
+    private final CheckpointStore checkpointStore;
+
+    private final CheckpointCodec checkpointCodec;
+
     private final Properties jobParameters;
 
     private final JabatJobInstance jobInstance;
@@ -57,13 +71,27 @@ class JobExecutionContext {
     private final Set<Batchlet> runningBatchlets
             = Collections.synchronizedSet(new HashSet<Batchlet>());
 
-    JobExecutionContext(BatchXml batchXml, ArtifactFactory artifactFactory, TaskManager taskManager,
-                        JobRepository repository, Properties jobParameters, JabatJobInstance jobInstance,
+    private final Set<ChunkProcessor> runningChunkProcessors
+            = Collections.synchronizedSet(new HashSet<ChunkProcessor>());
+
+    /* set by the thread running the job */
+    private volatile JabatJobContext jobContext;
+
+    private volatile boolean stopRequested = false;
+
+    private volatile long stopRequestTime;
+
+    JobExecutionContext(BatchXml batchXml, ArtifactFactory artifactFactory, ArtifactPool artifactPool,
+                        TaskManager taskManager, JobRepository repository, CheckpointStore checkpointStore,
+                        CheckpointCodec checkpointCodec, Properties jobParameters, JabatJobInstance jobInstance,
                         JabatJobExecution jobExecution) {
         this.batchXml = batchXml;
         this.artifactFactory = artifactFactory;
+        this.artifactPool = artifactPool;
         this.taskManager = taskManager;
         this.repository = repository;
+        this.checkpointStore = checkpointStore;
+        this.checkpointCodec = checkpointCodec;
         this.jobParameters = jobParameters;
         this.jobInstance = jobInstance;
         this.jobExecution = jobExecution;
@@ -85,6 +113,14 @@ class JobExecutionContext {
         return repository;
     }
 
+    CheckpointStore getCheckpointStore() {
+        return checkpointStore;
+    }
+
+    CheckpointCodec getCheckpointCodec() {
+        return checkpointCodec;
+    }
+
     Properties getJobParameters() {
         return jobParameters;
     }
@@ -97,23 +133,120 @@ class JobExecutionContext {
         return jobExecution;
     }
 
+    /**
+     * Get the executions of a step by the previous executions of the job
+     * instance, the most recent first.
+     *
+     * @param stepName the step name
+     * @return the previous step executions
+     */
+    List<JabatStepExecution> getPreviousStepExecutions(String stepName) {
+        List<JabatStepExecution> stepExecutions = new ArrayList<JabatStepExecution>();
+        List<Long> executionIds = jobInstance.getExecutionIds();
+        for (int i = executionIds.size() - 1; i >= 0; i--) {
+            long executionId = executionIds.get(i);
+            if (executionId == jobExecution.getId()) {
+                continue;
+            }
+            JabatJobExecution previousExecution = repository.getJobExecution(executionId);
+            for (long stepExecutionId : previousExecution.getStepExecutionIds()) {
+                JabatStepExecution stepExecution = repository.getStepExecution(stepExecutionId);
+                if (stepName.equals(stepExecution.getStepName())) {
+                    stepExecutions.add(stepExecution);
+                }
+            }
+        }
+        return stepExecutions;
+    }
+
+    void setJobContext(JabatJobContext jobContext) {
+        this.jobContext = jobContext;
+    }
+
+    void addRunningChunkProcessor(ChunkProcessor chunkProcessor) {
+        runningChunkProcessors.add(chunkProcessor);
+        // the stop may have been requested before the processor was started
+        if (stopRequested) {
+            chunkProcessor.stop();
+        }
+    }
+
+    void removeRunningChunkProcessor(ChunkProcessor chunkProcessor) {
+        runningChunkProcessors.remove(chunkProcessor);
+    }
+
     ArtifactContainer createArtifactContainer() {
-        return new ArtifactContainer(batchXml, artifactFactory, runningBatchlets);
+        return new ArtifactContainer(batchXml, artifactFactory, runningBatchlets, artifactPool);
+    }
+
+    boolean isStopRequested() {
+        return stopRequested;
+    }
+
+    /**
+     * Request the execution to stop. Running steps are asked to stop and no
+     * other step will be started, the execution ends as soon as the running
+     * steps have stopped.
+     */
+    void requestStop() {
+        stopRequestTime = System.nanoTime();
+        stopRequested = true;
+        jobExecution.setStatus(BatchStatus.STOPPING);
+        stopRunningSteps();
+    }
+
+    /**
+     * Interrupt the threads still running the execution, when the steps do
+     * not stop in time on their own.
+     */
+    void interruptRunningThreads() {
+        JabatJobContext context = jobContext;
+        if (context != null) {
+            int count = context.interruptThreads();
+            LOGGER.warn("Job execution {} has not stopped in time, {} threads interrupted",
+                        jobExecution.getId(), count);
+        }
+    }
+
+    /**
+     * Mark the execution as stopped and record the stop latency.
+     */
+    void stopped() {
+        long stopLatency = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - stopRequestTime);
+        jobExecution.setStopLatency(stopLatency);
+        jobExecution.setStatus(BatchStatus.STOPPED);
+        LOGGER.info("Job execution {} stopped in {} ms", jobExecution.getId(), stopLatency);
     }
 
     void stopRunningSteps() {
-        // change step execution status to STOPPING
+        // change running step execution status to STOPPING, the ones which
+        // have already ended keep their status so that a restart can skip them
         for (long stepExecutionId : jobExecution.getStepExecutionIds()) {
             JabatStepExecution stepExecution = repository.getStepExecution(stepExecutionId);
-            stepExecution.setStatus(BatchStatus.STOPPING);
+            if (stepExecution.getStatusEnum() == BatchStatus.STARTING
+                    || stepExecution.getStatusEnum() == BatchStatus.STARTED) {
+                stepExecution.setStatus(BatchStatus.STOPPING);
+            }
         }
 
         // 2 cases:
-        //   - chunk steps check status regularly (between each item processing)
-        //     and consequently stop on their own
+        //   - chunk steps check a stop flag between each item and
+        //     consequently stop on their own
         //   - batchlet steps need to be stopped by calling the stop method
 
-        for (Batchlet b : runningBatchlets) {
+        List<ChunkProcessor> chunkProcessors;
+        synchronized (runningChunkProcessors) {
+            chunkProcessors = new ArrayList<ChunkProcessor>(runningChunkProcessors);
+        }
+        for (ChunkProcessor chunkProcessor : chunkProcessors) {
+            chunkProcessor.stop();
+        }
+
+        List<Batchlet> batchlets;
+        synchronized (runningBatchlets) {
+            batchlets = new ArrayList<Batchlet>(runningBatchlets);
+        }
+        for (Batchlet b : batchlets) {
             try {
                 b.stop();
             } catch(Throwable t) {
@@ -16,6 +16,7 @@
 package fr.jamgotchian.jabat.runtime;
 
 import fr.jamgotchian.jabat.jobxml.JobUtil;
+import fr.jamgotchian.jabat.jobxml.ResolvedProperties;
 import fr.jamgotchian.jabat.jobxml.model.Artifact;
 import fr.jamgotchian.jabat.jobxml.model.BatchletStep;
 import fr.jamgotchian.jabat.jobxml.model.Chainable;
@@ -34,22 +35,32 @@ import fr.jamgotchian.jabat.jobxml.model.Split;
 import fr.jamgotchian.jabat.jobxml.model.Step;
 import fr.jamgotchian.jabat.jobxml.model.StopElement;
 import fr.jamgotchian.jabat.runtime.artifact.ArtifactContainer;
+import fr.jamgotchian.jabat.runtime.checkpoint.CheckpointRecord;
+import fr.jamgotchian.jabat.runtime.checkpoint.CheckpointStore;
+import fr.jamgotchian.jabat.runtime.chunk.ChunkCheckpoint;
+import fr.jamgotchian.jabat.runtime.chunk.ChunkProcessor;
+import fr.jamgotchian.jabat.runtime.chunk.ParallelItemProcessor;
+import fr.jamgotchian.jabat.runtime.chunk.PipelinedChunkProcessor;
+import fr.jamgotchian.jabat.runtime.chunk.SerialChunkProcessor;
+import fr.jamgotchian.jabat.runtime.chunk.SkipRetryHandler;
 import fr.jamgotchian.jabat.runtime.context.JabatJobContext;
 import fr.jamgotchian.jabat.runtime.context.ThreadContext;
+import fr.jamgotchian.jabat.runtime.metric.StepMetrics;
+import fr.jamgotchian.jabat.runtime.metric.StepMetrics.PartitionMetrics;
 import fr.jamgotchian.jabat.runtime.repository.BatchStatus;
 import fr.jamgotchian.jabat.runtime.repository.JabatJobExecution;
 import fr.jamgotchian.jabat.runtime.repository.JabatStepExecution;
 import fr.jamgotchian.jabat.runtime.task.AbstractTaskResultListener;
 import fr.jamgotchian.jabat.runtime.task.TaskResultListener;
 import fr.jamgotchian.jabat.runtime.transaction.NoTransactionManager;
-import fr.jamgotchian.jabat.runtime.util.Externalizables;
+import fr.jamgotchian.jabat.runtime.util.JabatRuntimeException;
 import fr.jamgotchian.jabat.runtime.util.RethrowException;
 import java.io.Externalizable;
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.Collections;
+import java.util.Date;
 import java.util.List;
-import java.util.Properties;
+import java.util.Set;
 import java.util.concurrent.Callable;
 import javax.batch.api.Batchlet;
 import javax.batch.api.CheckpointAlgorithm;
@@ -87,8 +98,10 @@ class JobExecutor {
 
     private static void notifyBeforeStep(Step step, ArtifactContainer container) throws Exception {
         for (Artifact a : step.getListeners()) {
-            StepListener l = container.create(a.getRef(), StepListener.class);
-            l.beforeStep();
+            Object l = container.createStepListener(a.getRef());
+            if (l instanceof StepListener) {
+                ((StepListener) l).beforeStep();
+            }
         }
     }
 
@@ -98,6 +111,43 @@ class JobExecutor {
         }
     }
 
+    /**
+     * Check, on restart, whether a step has to be run again.
+     *
+     * @param step the step
+     * @param previousExecutions the previous executions of the step, the most
+     *        recent first
+     * @return false if the step has already completed and cannot be started
+     *         again
+     */
+    private static boolean isStepToRun(Step step, List<JabatStepExecution> previousExecutions) {
+        if (previousExecutions.isEmpty()) {
+            return true;
+        }
+        if (previousExecutions.get(0).getStatusEnum() == BatchStatus.COMPLETED
+                && !step.isAllowStartIfComplete()) {
+            LOGGER.debug("Step {} has already completed", step.getId());
+            return false;
+        }
+        if (step.getStartLimit() > 0 && previousExecutions.size() >= step.getStartLimit()) {
+            throw new JabatRuntimeException("Step " + step.getId() + " has reached its start limit ("
+                    + step.getStartLimit() + ")");
+        }
+        return true;
+    }
+
+    /**
+     * Get the step execution a restarted step resumes from, that is to say
+     * the most recent one if it has not completed.
+     */
+    private static JabatStepExecution getResumedExecution(List<JabatStepExecution> previousExecutions) {
+        if (previousExecutions.isEmpty()
+                || previousExecutions.get(0).getStatusEnum() == BatchStatus.COMPLETED) {
+            return null;
+        }
+        return previousExecutions.get(0);
+    }
+
     private static class PartitionContext {
 
         private Externalizable data;
@@ -140,19 +190,20 @@ class JobExecutor {
                 @Override
                 public void run() {
                     try {
+                        executionContext.getJobExecution().setStartTime(new Date());
                         executionContext.getJobExecution().setStatus(BatchStatus.STARTED);
 
                         listener.started(executionContext);
 
                         // create job context
-                        ThreadContext.getInstance().createJobContext(job, executionContext.getJobInstance(), executionContext.getJobExecution());
-
-                        // apply substitutions to job level elements
-                        JobUtil.substitute(job, executionContext.getJobParameters());
+                        JabatJobContext jobContext = ThreadContext.getInstance()
+                                .createJobContext(job, executionContext.getJobInstance(), executionContext.getJobExecution());
+                        executionContext.setJobContext(jobContext);
 
-                        // store job level properties in job context
+                        // resolve job level properties for this execution and
+                        // store them in job context
                         ThreadContext.getInstance().getJobContext()
-                                .setProperties(job.getSubstitutedProperties());
+                                .setResolvedProperties(JobUtil.resolve(job, executionContext.getJobParameters()));
 
                         ArtifactContainer container = executionContext.createArtifactContainer();
                         try {
@@ -165,6 +216,13 @@ class JobExecutor {
                             // run the job
                             job.getFirstChainableNode().accept(NodeVisitorImpl.this, executionContext);
 
+                            if (executionContext.isStopRequested()) {
+                                executionContext.stopped();
+                            } else if (executionContext.getJobExecution().getStatusEnum() == BatchStatus.STARTED) {
+                                // on restart, every step may have been skipped
+                                executionContext.getJobExecution().setStatus(BatchStatus.COMPLETED);
+                            }
+
                             // after job listeners
                             for (JobListener l : container.get(JobListener.class)) {
                                 l.afterJob();
@@ -174,16 +232,24 @@ class JobExecutor {
 
                             // remove job context
                             ThreadContext.getInstance().removeJobContext();
-
-                            listener.finished(executionContext);
                         }
                     } catch (Throwable t) {
                         Throwable t2 = t instanceof RethrowException ? t.getCause() : t;
                         LOGGER.error(t2.toString(), t2);
 
-                        executionContext.stopRunningSteps();
+                        if (executionContext.isStopRequested()) {
+                            // a step has failed while stopping, interrupted
+                            // after the stop timeout for instance
+                            executionContext.stopped();
+                        } else {
+                            executionContext.stopRunningSteps();
 
-                        executionContext.getJobExecution().setStatus(BatchStatus.FAILED);
+                            executionContext.getJobExecution().setStatus(BatchStatus.FAILED);
+                        }
+                    } finally {
+                        // the status of the execution is final
+                        executionContext.getJobExecution().setEndTime(new Date());
+                        listener.finished(executionContext);
                     }
                 }
             });
@@ -191,6 +257,10 @@ class JobExecutor {
 
         private <N extends Node & Chainable> void visitNextNode(N node, JobExecutionContext executionContext) {
             assert node.getContainer() != null;
+            // no other node is started once a stop has been requested
+            if (executionContext.isStopRequested()) {
+                return;
+            }
             if (node.getNext() != null) {
                 Node next = node.getContainer().getNode(node.getNext());
                 next.accept(this, executionContext);
@@ -199,6 +269,14 @@ class JobExecutor {
 
         @Override
         public void visit(final BatchletStep step, final JobExecutionContext executionContext) {
+            List<JabatStepExecution> previousExecutions
+                    = executionContext.getPreviousStepExecutions(step.getId());
+            if (!isStepToRun(step, previousExecutions)) {
+                visitNextNode(step, executionContext);
+                return;
+            }
+            JabatStepExecution resumedExecution = getResumedExecution(previousExecutions);
+
             final JabatStepExecution stepExecution = executionContext.getRepository()
                     .createStepExecution(step, executionContext.getJobExecution());
 
@@ -206,11 +284,17 @@ class JobExecutor {
                 // create step context
                 ThreadContext.getInstance().createStepContext(step, stepExecution);
 
-                // apply substitutions to step level elements
-                JobUtil.substitute(step, executionContext.getJobParameters());
+                // restore step context persistent area
+                if (resumedExecution != null) {
+                    ThreadContext.getInstance().getStepContext()
+                            .setPersistentUserData((Externalizable) resumedExecution.getUserPersistentData());
+                }
 
-                // store step level properties in step context
-                ThreadContext.getInstance().getStepContext().setProperties(step.getProperties());
+                // resolve step level properties for this execution and store
+                // them in step context
+                final ResolvedProperties stepProperties
+                        = JobUtil.resolve(step, executionContext.getJobParameters());
+                ThreadContext.getInstance().getStepContext().setResolvedProperties(stepProperties);
 
                 final ArtifactContainer container = executionContext.createArtifactContainer();
                 try {
@@ -232,18 +316,41 @@ class JobExecutor {
                         // create partition plan
                         final PartitionPlan plan = container.createPartitionPlan(step);
 
+                        // one metrics cell per partition
+                        stepExecution.setStepMetrics(new StepMetrics(plan.getPartitionCount(), false));
+
+                        // on restart, only the partitions which have not completed
+                        // are run again
+                        Set<Integer> completedPartitions = stepExecution.getCompletedPartitions();
+                        if (resumedExecution != null) {
+                            Set<Integer> previouslyCompleted = resumedExecution.getCompletedPartitions();
+                            synchronized (previouslyCompleted) {
+                                completedPartitions.addAll(previouslyCompleted);
+                            }
+                        }
+
                         // prepare a task for each parttion
                         List<Callable<PartitionContext>> tasks = new ArrayList<Callable<PartitionContext>>();
 
                         final JabatJobContext jobContext = ThreadContext.getInstance().getJobContext();
 
                         for (int i = 0; i < plan.getPartitionCount(); i++) {
+                            if (completedPartitions.contains(i)) {
+                                LOGGER.debug("Partition {} of step {} has already completed", i, step.getId());
+                                continue;
+                            }
                             final int partitionNumber = i;
 
                             tasks.add(new Callable<PartitionContext>() {
 
                                 @Override
                                 public PartitionContext call() throws Exception {
+                                    // a partition which has not started before
+                                    // a stop request is left for a restart
+                                    if (executionContext.isStopRequested()) {
+                                        return null;
+                                    }
+
                                     PartitionContext partitionContext = new PartitionContext();
 
                                     // each partion has its own job context
@@ -256,12 +363,11 @@ class JobExecutor {
 
                                         // store in the step context step level properties overriden
                                         // partition properties
-                                        Properties properties = new Properties();
-                                        properties.putAll(step.getProperties());
+                                        ResolvedProperties properties = stepProperties;
                                         if (plan.getPartitionProperties() != null) {
-                                            properties.putAll(JobUtil.substitute(plan.getPartitionProperties()[partitionNumber], executionContext.getJobParameters(), step));
+                                            properties = properties.override(JobUtil.resolve(plan.getPartitionProperties()[partitionNumber], executionContext.getJobParameters(), step));
                                         }
-                                        ThreadContext.getInstance().getStepContext().setProperties(properties);
+                                        ThreadContext.getInstance().getStepContext().setResolvedProperties(properties);
 
                                         try {
                                             Batchlet batchlet = container.create(step.getArtifact().getRef(), Batchlet.class);
@@ -269,8 +375,6 @@ class JobExecutor {
                                             // processing
                                             String exitStatus = batchlet.process();
 
-                                            // TODO batchlet has been stopped...
-
                                             // store the exit status return by the batchlet artifact
                                             // in the partition context
                                             partitionContext.setExitStatus(exitStatus);
@@ -283,6 +387,12 @@ class JobExecutor {
                                                 Externalizable data = collector.collectPartitionData();
                                                 partitionContext.setData(data);
                                             }
+
+                                            // a batchlet asked to stop may not have
+                                            // completed its work
+                                            if (!executionContext.isStopRequested()) {
+                                                stepExecution.getCompletedPartitions().add(partitionNumber);
+                                            }
                                         } finally {
                                             // store the exit status set in the step context in the partition context
                                             // PENDING consequently, it overrides the one returned by the batchlet artifact?
@@ -311,7 +421,9 @@ class JobExecutor {
 
                             @Override
                             public void onSuccess(PartitionContext partitionContext) {
-                                if (analyser != null) {
+                                // null if the partition has not been run
+                                // because of a stop request
+                                if (partitionContext != null && analyser != null) {
                                     try {
                                         analyser.analyzeCollectorData(partitionContext.getData());
                                         analyser.analyzeStatus(BatchStatus.COMPLETED.name(), partitionContext.getExitStatus());
@@ -335,15 +447,19 @@ class JobExecutor {
                         // processing
                         String exitStatus = batchlet.process();
 
-                        // TODO batchlet has been stopped...
-
                         // update the exit status of the step execution with the one
                         // returned by the batchlet artifact
                         stepExecution.setExitStatus(exitStatus);
                     }
 
-                    // update the batch status to COMPLETED
-                    stepExecution.setStatus(BatchStatus.COMPLETED);
+                    // update the batch status to COMPLETED, or to STOPPED if
+                    // the batchlet has been asked to stop, in which case the
+                    // step will be run again on restart
+                    if (stepExecution.getStatusEnum() == BatchStatus.STOPPING) {
+                        stepExecution.setStatus(BatchStatus.STOPPED);
+                    } else {
+                        stepExecution.setStatus(BatchStatus.COMPLETED);
+                    }
 
                     // update the exit status of the step execution with the one stored
                     // in the step context
@@ -353,8 +469,11 @@ class JobExecutor {
                     }
 
                     // the batch and exit status of the job are intially the same as the
-                    // batch and exit status on the last execution element to run
-                    executionContext.getJobExecution().setStatus(stepExecution.getStatusEnum());
+                    // batch and exit status on the last execution element to run,
+                    // unless the job is stopping
+                    if (!executionContext.isStopRequested()) {
+                        executionContext.getJobExecution().setStatus(stepExecution.getStatusEnum());
+                    }
                     // PENDING a job has an exit status?
 
                     // batch and exit status can be overridden by a decision element
@@ -367,22 +486,34 @@ class JobExecutor {
                     container.release();
 
                     // store step context persistent area
-                    // TODO
+                    stepExecution.setUserPersistentData(ThreadContext.getInstance().getStepContext().getPersistentUserData());
 
                     // remove step context
                     ThreadContext.getInstance().removeStepContext();
                 }
-
-                visitNextNode(step, executionContext);
             } catch (Throwable t) {
-                stepExecution.setStatus(BatchStatus.FAILED);
+                // a step interrupted after the stop timeout is stopped, not
+                // failed
+                stepExecution.setStatus(executionContext.isStopRequested() ? BatchStatus.STOPPED : BatchStatus.FAILED);
                 // rethrow
                 throw new RethrowException(t);
             }
+
+            // outside of the try block, a failure of the next nodes is not a
+            // failure of this step
+            visitNextNode(step, executionContext);
         }
 
         @Override
         public void visit(ChunkStep step, JobExecutionContext executionContext) {
+            List<JabatStepExecution> previousExecutions
+                    = executionContext.getPreviousStepExecutions(step.getId());
+            if (!isStepToRun(step, previousExecutions)) {
+                visitNextNode(step, executionContext);
+                return;
+            }
+            JabatStepExecution resumedExecution = getResumedExecution(previousExecutions);
+
             JabatStepExecution stepExecution = executionContext.getRepository()
                     .createStepExecution(step, executionContext.getJobExecution());
 
@@ -390,11 +521,17 @@ class JobExecutor {
                 // create step context
                 ThreadContext.getInstance().createStepContext(step, stepExecution);
 
-                // apply substitutions to step level elements
-                JobUtil.substitute(step, executionContext.getJobParameters());
+                // restore step context persistent area
+                if (resumedExecution != null) {
+                    ThreadContext.getInstance().getStepContext()
+                            .setPersistentUserData((Externalizable) resumedExecution.getUserPersistentData());
+                }
 
-                // store step level properties in step context
-                ThreadContext.getInstance().getStepContext().setProperties(step.getProperties());
+                // resolve step level properties for this execution and store
+                // them in step context
+                ResolvedProperties stepProperties
+                        = JobUtil.resolve(step, executionContext.getJobParameters());
+                ThreadContext.getInstance().getStepContext().setResolvedProperties(stepProperties);
 
                 ArtifactContainer container = executionContext.createArtifactContainer();
                 try {
@@ -415,62 +552,75 @@ class JobExecutor {
 
                     TransactionManagerSPI transaction = new NoTransactionManager();
 
-                    byte[] readerChkptData = null;
-                    byte[] writerChkptData = null;
+                    // checkpoint data is made durable at each commit
+                    CheckpointStore checkpointStore = executionContext.getCheckpointStore();
+                    ChunkCheckpoint checkpoint = new ChunkCheckpoint(stepExecution.getId(), checkpointStore,
+                                                                     executionContext.getCheckpointCodec());
+
+                    // a new step execution has no checkpoint, a record under
+                    // its id can only be left by a previous lifetime of a job
+                    // repository reusing ids and must not resume this step
+                    checkpointStore.remove(stepExecution.getId());
+
+                    // on restart, reader and writer are reopened with the last
+                    // checkpoint data committed by the previous execution, moved
+                    // to this one so that it can itself be resumed
+                    if (resumedExecution != null) {
+                        CheckpointRecord record = checkpointStore.load(resumedExecution.getId());
+                        if (record != null) {
+                            checkpoint.update(record.getReaderData(), record.getWriterData());
+                            checkpointStore.remove(resumedExecution.getId());
+                        }
+                    }
+
+                    // a chunk step is not partitioned, so it has a single
+                    // metrics cell
+                    StepMetrics stepMetrics = new StepMetrics(1, step.isLatencyRecorded());
+                    stepExecution.setStepMetrics(stepMetrics);
+                    PartitionMetrics metrics = stepMetrics.getPartition(0);
+
+                    // item level skip and retry
+                    SkipRetryHandler skipRetryHandler = new SkipRetryHandler(step, container);
+
+                    ChunkProcessor chunkProcessor;
+                    if (step.isPipelined()) {
+                        chunkProcessor = new PipelinedChunkProcessor(step, reader, processor, writer,
+                                                                     algorithm, transaction, checkpoint,
+                                                                     metrics, skipRetryHandler,
+                                                                     executionContext.getTaskManager());
+                    } else if (step.getProcessorThreads() > 1) {
+                        // one processor instance per processing thread
+                        ItemProcessor[] processors = new ItemProcessor[step.getProcessorThreads()];
+                        processors[0] = processor;
+                        for (int i = 1; i < processors.length; i++) {
+                            processors[i] = container.create(step.getProcessor().getRef(), ItemProcessor.class);
+                        }
+                        ParallelItemProcessor parallelProcessor
+                                = new ParallelItemProcessor(processors, executionContext.getTaskManager(),
+                                                            metrics);
+                        chunkProcessor = new SerialChunkProcessor(step, reader, processor, writer,
+                                                                  algorithm, transaction, checkpoint,
+                                                                  metrics, skipRetryHandler, parallelProcessor);
+                    } else {
+                        chunkProcessor = new SerialChunkProcessor(step, reader, processor, writer,
+                                                                  algorithm, transaction, checkpoint,
+                                                                  metrics, skipRetryHandler);
+                    }
 
-                    // start the retry loop
-                    boolean completed = false;
-                    int retryCount = 0;
-                    while (!(completed || (step.getRetryLimit() != -1 && retryCount >= step.getRetryLimit()))) {
+                    // the chunk processor is told when the job is stopped
+                    executionContext.addRunningChunkProcessor(chunkProcessor);
+                    try {
                         // open item reader
-                        reader.open(Externalizables.deserialize(readerChkptData));
+                        reader.open(checkpoint.getCodec().decode(checkpoint.getReaderData()));
                         try {
                             // open item writer
-                            writer.open(Externalizables.deserialize(writerChkptData));
+                            writer.open(checkpoint.getCodec().decode(checkpoint.getWriterData()));
                             try {
-                                try {
-                                    transaction.begin();
-                                    algorithm.beginCheckpoint();
-                                    try {
-                                        // chunk processing
-                                        Object item;
-                                        List<Object> buffer = new ArrayList<Object>(step.getBufferSize());
-                                        while ((item = reader.readItem()) != null) {
-                                            buffer.add(processor.processItem(item));
-
-                                            if (algorithm.isReadyToCheckpoint()) {
-                                                readerChkptData = Externalizables.serialize(reader.checkpointInfo());
-                                                writerChkptData = Externalizables.serialize(writer.checkpointInfo());
-
-                                                algorithm.endCheckpoint();
-                                                transaction.commit();
-
-                                                transaction.begin();
-                                                algorithm.beginCheckpoint();
-                                            }
-
-                                            // write items if buffer size is zero or the buffer reaches
-                                            // the maximum size
-                                            if (step.getBufferSize() == 0 || buffer.size() > step.getBufferSize()) {
-                                                writer.writeItems(Collections.unmodifiableList(buffer));
-                                                buffer.clear();
-                                            }
-                                        }
-                                        // write remaining items
-                                        if (buffer.size() > 0) {
-                                            writer.writeItems(Collections.unmodifiableList(buffer));
-                                        }
-                                    } finally {
-                                        algorithm.endCheckpoint();
-                                    }
-                                    transaction.commit();
-                                    completed = true;
-                                } catch (Throwable t) {
-                                    LOGGER.error(t.toString(), t);
-                                    transaction.rollback();
-                                    retryCount++;
-                                    // retry...
-                                }
+                                // chunk processing, failed items are retried or
+                                // skipped by the chunk processor, any other failure
+                                // fails the step which keeps its checkpoint so that
+                                // it can be resumed by a restart
+                                chunkProcessor.process();
                             } finally {
                                 // close item writer
                                 writer.close();
@@ -479,11 +629,23 @@ class JobExecutor {
                             // close item reader
                             reader.close();
                         }
-                    } // end of retry loop
+                    } finally {
+                        executionContext.removeRunningChunkProcessor(chunkProcessor);
+                    }
+
+                    if (chunkProcessor.isStopped()) {
+                        // the checkpoint committed on stop is kept so that the
+                        // step can be resumed by a restart
+                        stepExecution.setStatus(BatchStatus.STOPPED);
+                    } else {
+                        // the step will not have to be resumed
+                        checkpointStore.remove(stepExecution.getId());
 
-                    // TODO what should be the status if we reach the max number of retry?
-                    executionContext.getJobExecution().setStatus(BatchStatus.COMPLETED);
-                    stepExecution.setStatus(BatchStatus.COMPLETED);
+                        if (!executionContext.isStopRequested()) {
+                            executionContext.getJobExecution().setStatus(BatchStatus.COMPLETED);
+                        }
+                        stepExecution.setStatus(BatchStatus.COMPLETED);
+                    }
 
                     // after step listeners
                     // TODO should be called even if case of error?
@@ -492,17 +654,20 @@ class JobExecutor {
                     container.release();
 
                     // store step context persistent area
+                    stepExecution.setUserPersistentData(ThreadContext.getInstance().getStepContext().getPersistentUserData());
 
                     // remove step context
                     ThreadContext.getInstance().removeStepContext();
                 }
-
-                visitNextNode(step, executionContext);
-            } catch(Throwable t) {
-                stepExecution.setStatus(BatchStatus.FAILED);
+            } catch (Throwable t) {
+                // a step interrupted after the stop timeout is stopped, not
+                // failed
+                stepExecution.setStatus(executionContext.isStopRequested() ? BatchStatus.STOPPED : BatchStatus.FAILED);
                 // rethrow
                 throw new RethrowException(t);
             }
+
+            visitNextNode(step, executionContext);
         }
 
         @Override
@@ -50,17 +50,17 @@ public class JobOperatorImpl implements JobOperator {
 
     @Override
     public long getJobInstanceCount(String jobName) throws NoSuchJobException {
-        return container.getJobInstanceIds(jobName).size();
+        return container.getJobInstanceCount(jobName);
     }
 
     @Override
     public List<Long> getJobInstanceIds(String jobName, int start, int count) throws NoSuchJobException {
-        return container.getJobInstanceIds(jobName);
+        return container.getJobInstanceIds(jobName, start, count);
     }
 
     @Override
     public Set<Long> getRunningInstanceIds(String jobName) throws NoSuchJobException {
-        throw new UnsupportedOperationException("Not supported yet.");
+        return container.getRunningInstanceIds(jobName);
     }
 
     @Override
@@ -80,7 +80,7 @@ public class JobOperatorImpl implements JobOperator {
 
     @Override
     public Long restart(long instanceId, Properties jobParameters) throws JobInstanceAlreadyCompleteException, NoSuchJobExecutionException, NoSuchJobException, JobRestartException {
-        throw new UnsupportedOperationException("Not supported yet.");
+        return container.restart(instanceId, jobParameters);
     }
 
     @Override
@@ -95,7 +95,7 @@ public class JobOperatorImpl implements JobOperator {
 
     @Override
     public List<JobExecution> getJobExecutions(long instanceId) throws NoSuchJobInstanceException {
-        throw new UnsupportedOperationException("Not supported yet.");
+        return Collections.<JobExecution>unmodifiableList(container.getJobExecutions(instanceId));
     }
 
     @Override
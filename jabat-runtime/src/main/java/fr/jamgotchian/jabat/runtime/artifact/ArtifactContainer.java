@@ -15,14 +15,17 @@
  */
 package fr.jamgotchian.jabat.runtime.artifact;
 
-import com.google.common.collect.Iterables;
 import fr.jamgotchian.jabat.jobxml.model.ChunkStep;
 import fr.jamgotchian.jabat.jobxml.model.Step;
+import fr.jamgotchian.jabat.runtime.checkpoint.AdaptiveCheckpointAlgorithm;
 import fr.jamgotchian.jabat.runtime.checkpoint.ItemCheckpointAlgorithm;
 import fr.jamgotchian.jabat.runtime.checkpoint.TimeCheckpointAlgorithm;
+import fr.jamgotchian.jabat.runtime.context.InjectionPlan;
 import fr.jamgotchian.jabat.runtime.context.ThreadContext;
 import fr.jamgotchian.jabat.runtime.util.JabatRuntimeException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 import java.util.Set;
 import javax.batch.api.Batchlet;
@@ -44,12 +47,17 @@ public class ArtifactContainer {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(ArtifactContainer.class);
 
+    private static final Object[] NO_OBJECTS = new Object[0];
+
     private final BatchXml batchXml;
 
     private final ArtifactFactory factory;
 
     private final Set<Batchlet> runningBatchlets;
 
+    /* null if artifacts are not pooled */
+    private final ArtifactPool pool;
+
     private class MonitoredBatchlet implements Batchlet {
 
         private final Batchlet batchlet;
@@ -70,42 +78,77 @@ public class ArtifactContainer {
 
         @Override
         public void stop() throws Exception {
-            batchlet.process();
+            batchlet.stop();
         }
 
     }
 
+    /* the artifacts of a type */
+    private static final class TypeSlot {
+
+        private final List<Object> objects = new ArrayList<Object>();
+
+        /* a copy of the objects, null when it has to be rebuilt */
+        private volatile Object[] snapshot;
+
+    }
+
+    /* artifacts indexed by type, a slot is created with the first artifact of
+       its type. The partitions of a step create artifacts concurrently so
+       slots are modified under the container lock, artifacts are looked up
+       by a thread to which their creation is visible */
+    private volatile TypeSlot[] slots = new TypeSlot[ArtifactType.getTypeCount()];
+
+    /* artifacts created by the dependency injection framework, to be
+       destroyed on release */
     private final List<Object> managedObjects = new ArrayList<Object>();
 
-    private final List<Object> objects = new ArrayList<Object>();
+    /* reusable artifacts, to be given back to the pool on release */
+    private final List<Object> pooledObjects = new ArrayList<Object>();
 
     public ArtifactContainer(BatchXml batchXml, ArtifactFactory factory,
                              Set<Batchlet> runningBatchlets) {
+        this(batchXml, factory, runningBatchlets, null);
+    }
+
+    public ArtifactContainer(BatchXml batchXml, ArtifactFactory factory,
+                             Set<Batchlet> runningBatchlets, ArtifactPool pool) {
         this.batchXml = batchXml;
         this.factory = factory;
         this.runningBatchlets = runningBatchlets;
+        this.pool = pool;
     }
 
     private Object createFromBatchXml(String name, Class<?> type) {
-        String className = batchXml.getArtifactClass(name);
+        Class<?> clazz;
+        try {
+            clazz = batchXml.loadArtifactClass(name);
+        } catch (ClassNotFoundException e) {
+            throw new JabatRuntimeException("Batch artifact class '"
+                    + batchXml.getArtifactClass(name) + "' not found");
+        }
         Object obj = null;
-        if (className != null) {
-            Class<?> clazz;
-            try {
-                clazz = Class.forName(className);
-            } catch (ClassNotFoundException e) {
-                throw new JabatRuntimeException("Batch artifact class '"
-                        + className + "' not found");
-            }
+        if (clazz != null) {
             if (!type.isAssignableFrom(clazz)) {
                 throw new JabatRuntimeException("Expected artifact type is "
                         + type.getName() + ", instead of " + clazz.getName());
             }
+            InjectionPlan plan = InjectionPlan.get(clazz);
+            if (pool != null && ArtifactPool.isReusable(clazz)) {
+                obj = pool.acquire(clazz);
+                if (obj == null) {
+                    obj = plan.newInstance();
+                }
+                synchronized (this) {
+                    pooledObjects.add(obj);
+                }
+            } else {
+                obj = plan.newInstance();
+            }
+            register(obj);
             try {
-                obj = clazz.newInstance();
-                objects.add(obj);
-                ThreadContext.getInstance().inject(obj, name);
-            } catch (ReflectiveOperationException e) {
+                plan.inject(obj, name, ThreadContext.getInstance());
+            } catch (IllegalAccessException e) {
                 throw new JabatRuntimeException(e);
             }
         }
@@ -115,7 +158,10 @@ public class ArtifactContainer {
     private Object createFromDiFramework(String name, Class<?> type) {
         Object obj = factory.create(name);
         if (obj != null) {
-            managedObjects.add(obj);
+            synchronized (this) {
+                managedObjects.add(obj);
+            }
+            register(obj);
             if (!type.isAssignableFrom(obj.getClass())) {
                 throw new JabatRuntimeException("Expected artifact type is "
                         + type.getName() + ", instead of " + obj.getClass().getName());
@@ -129,6 +175,23 @@ public class ArtifactContainer {
             throw new JabatRuntimeException(type.getName()
                     + " is not a batch artifact type");
         }
+        return createArtifact(name, type);
+    }
+
+    /**
+     * Create a step listener, which can implement any of the step level
+     * listener types.
+     */
+    public Object createStepListener(String name) {
+        Object obj = createArtifact(name, Object.class);
+        if (!ArtifactType.isStepListener(obj)) {
+            throw new JabatRuntimeException("Batch artifact '" + name
+                    + "' is not a step listener");
+        }
+        return obj;
+    }
+
+    private <T> T createArtifact(String name, Class<T> type) {
         Object obj;
         if (factory != null) {
             obj = createFromDiFramework(name, type);
@@ -191,6 +254,9 @@ public class ArtifactContainer {
                 return new ItemCheckpointAlgorithm(step.getCommitInterval());
             case TIME:
                 return new TimeCheckpointAlgorithm(step.getCommitInterval());
+            case ADAPTIVE:
+                return new AdaptiveCheckpointAlgorithm(step.getCommitInterval(), step.getCommitLatency(),
+                                                       step.getCommitBytes());
             case CUSTOM:
                 {
                     String ref = step.getCheckpointAlgo().getRef();
@@ -201,26 +267,72 @@ public class ArtifactContainer {
         }
     }
 
-    public <T> Iterable<T> get(Class<T> type) {
-        List<T> result = new ArrayList<T>();
-        for (Object obj : Iterables.concat(objects, managedObjects)) {
-            if (type.isAssignableFrom(obj.getClass())) {
-                result.add((T) obj);
+    private synchronized void register(Object obj) {
+        for (int index : ArtifactType.getIndexes(obj.getClass())) {
+            TypeSlot slot = slots[index];
+            if (slot == null) {
+                slot = new TypeSlot();
+                slots[index] = slot;
+            }
+            slot.objects.add(obj);
+            slot.snapshot = null;
+        }
+    }
+
+    private Object[] getSnapshot(int index) {
+        TypeSlot slot = slots[index];
+        if (slot == null) {
+            return NO_OBJECTS;
+        }
+        Object[] snapshot = slot.snapshot;
+        if (snapshot == null) {
+            synchronized (this) {
+                snapshot = slot.snapshot;
+                if (snapshot == null) {
+                    snapshot = slot.objects.toArray();
+                    slot.snapshot = snapshot;
+                }
             }
         }
-        return result;
+        return snapshot;
+    }
+
+    /**
+     * Get the artifacts created by the container which implement an artifact
+     * or a step listener type.
+     *
+     * @param type the artifact or step listener type
+     * @return the artifacts, in creation order
+     */
+    public <T> List<T> get(Class<T> type) {
+        int index = ArtifactType.getIndex(type);
+        if (index == -1) {
+            throw new JabatRuntimeException(type.getName()
+                    + " is not a batch artifact or step listener type");
+        }
+        return (List<T>) Collections.unmodifiableList(Arrays.asList(getSnapshot(index)));
     }
 
     public void release() {
-        for (Object obj : managedObjects) {
+        List<Object> objs;
+        List<Object> reusableObjs;
+        synchronized (this) {
+            objs = new ArrayList<Object>(managedObjects);
+            managedObjects.clear();
+            reusableObjs = new ArrayList<Object>(pooledObjects);
+            pooledObjects.clear();
+            slots = new TypeSlot[ArtifactType.getTypeCount()];
+        }
+        for (Object obj : objs) {
             try {
                 factory.destroy(obj);
             } catch (Throwable t) {
                 LOGGER.error(t.toString(), t);
             }
         }
-        objects.clear();
-        managedObjects.clear();
+        for (Object obj : reusableObjs) {
+            pool.release(obj);
+        }
     }
 
 }
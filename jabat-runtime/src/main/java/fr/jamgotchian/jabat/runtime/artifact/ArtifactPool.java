@@ -0,0 +1,264 @@
+/*
+ * Copyright 2013 Geoffroy Jamgotchian <geoffroy.jamgotchian at gmail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.jamgotchian.jabat.runtime.artifact;
+
+import fr.jamgotchian.jabat.runtime.util.JabatRuntimeException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Idle instances of {@link Reusable} artifacts, shared by all the artifact
+ * containers of a job container.
+ *
+ * An instance is taken from the pool by an artifact container and given back
+ * when the container is released, so it is never used by two steps or
+ * partitions at the same time. The number of idle instances kept per artifact
+ * class is configured by the jabat.artifactPool.maxIdle key of
+ * jabat.properties, extra instances are dropped.
+ *
+ * @author Geoffroy Jamgotchian <geoffroy.jamgotchian at gmail.com>
+ */
+public class ArtifactPool {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ArtifactPool.class);
+
+    public static final String MAX_IDLE_KEY = "jabat.artifactPool.maxIdle";
+
+    private static final int DEFAULT_MAX_IDLE = 16;
+
+    private static final ClassValue<Boolean> REUSABLE = new ClassValue<Boolean>() {
+
+        @Override
+        protected Boolean computeValue(Class<?> clazz) {
+            return clazz.isAnnotationPresent(Reusable.class);
+        }
+    };
+
+    /**
+     * Usage statistics of the pool of an artifact class.
+     */
+    public static class Statistics {
+
+        private final String className;
+
+        private final int idleCount;
+
+        private final long hitCount;
+
+        private final long missCount;
+
+        private final long dropCount;
+
+        private Statistics(String className, int idleCount, long hitCount, long missCount, long dropCount) {
+            this.className = className;
+            this.idleCount = idleCount;
+            this.hitCount = hitCount;
+            this.missCount = missCount;
+            this.dropCount = dropCount;
+        }
+
+        public String getClassName() {
+            return className;
+        }
+
+        /**
+         * Get the number of instances currently in the pool.
+         */
+        public int getIdleCount() {
+            return idleCount;
+        }
+
+        /**
+         * Get the number of instances reused.
+         */
+        public long getHitCount() {
+            return hitCount;
+        }
+
+        /**
+         * Get the number of instances created because the pool was empty.
+         */
+        public long getMissCount() {
+            return missCount;
+        }
+
+        /**
+         * Get the number of instances dropped because the pool was full or
+         * because they failed to reset.
+         */
+        public long getDropCount() {
+            return dropCount;
+        }
+
+        public double getHitRate() {
+            long count = hitCount + missCount;
+            return count == 0 ? 0 : (double) hitCount / count;
+        }
+
+        @Override
+        public String toString() {
+            return className + " [idle=" + idleCount + ", hits=" + hitCount + ", misses=" + missCount
+                    + ", drops=" + dropCount + "]";
+        }
+
+    }
+
+    private static class Pool {
+
+        private final Queue<Object> idle = new ConcurrentLinkedQueue<Object>();
+
+        /* the size of a concurrent queue is not a constant time operation */
+        private final AtomicInteger idleCount = new AtomicInteger();
+
+        private final AtomicLong hitCount = new AtomicLong();
+
+        private final AtomicLong missCount = new AtomicLong();
+
+        private final AtomicLong dropCount = new AtomicLong();
+
+    }
+
+    private final ConcurrentMap<Class<?>, Pool> pools = new ConcurrentHashMap<Class<?>, Pool>();
+
+    private volatile int maxIdle = DEFAULT_MAX_IDLE;
+
+    public ArtifactPool() {
+    }
+
+    public void initialize(Properties configuration) {
+        String value = configuration.getProperty(MAX_IDLE_KEY);
+        if (value != null) {
+            int i = Integer.parseInt(value);
+            if (i < 0) {
+                throw new JabatRuntimeException("Artifact pool max idle count is expected to be positive");
+            }
+            maxIdle = i;
+        }
+        LOGGER.debug("Artifact pool max idle count is {}", maxIdle);
+    }
+
+    /**
+     * Check whether the instances of an artifact class can be pooled.
+     */
+    public static boolean isReusable(Class<?> clazz) {
+        return REUSABLE.get(clazz);
+    }
+
+    private Pool getPool(Class<?> clazz) {
+        Pool pool = pools.get(clazz);
+        if (pool == null) {
+            pool = new Pool();
+            Pool previous = pools.putIfAbsent(clazz, pool);
+            if (previous != null) {
+                pool = previous;
+            }
+        }
+        return pool;
+    }
+
+    /**
+     * Take an idle instance of an artifact class.
+     *
+     * @param clazz the artifact class
+     * @return an idle instance, or null if there is none
+     */
+    Object acquire(Class<?> clazz) {
+        Pool pool = getPool(clazz);
+        Object obj = pool.idle.poll();
+        if (obj != null) {
+            pool.idleCount.decrementAndGet();
+            pool.hitCount.incrementAndGet();
+        } else {
+            pool.missCount.incrementAndGet();
+        }
+        return obj;
+    }
+
+    /**
+     * Give back an instance, it is reset first.
+     *
+     * @param obj the artifact instance
+     */
+    void release(Object obj) {
+        Pool pool = getPool(obj.getClass());
+        if (obj instanceof Resettable) {
+            try {
+                ((Resettable) obj).reset();
+            } catch (Throwable t) {
+                LOGGER.error(t.toString(), t);
+                pool.dropCount.incrementAndGet();
+                return;
+            }
+        }
+        if (pool.idleCount.incrementAndGet() > maxIdle) {
+            pool.idleCount.decrementAndGet();
+            pool.dropCount.incrementAndGet();
+        } else {
+            pool.idle.offer(obj);
+        }
+    }
+
+    /**
+     * Get the usage statistics of the pool of an artifact class.
+     *
+     * @param clazz the artifact class
+     * @return the statistics or null if no instance of the class has been
+     *         requested
+     */
+    public Statistics getStatistics(Class<?> clazz) {
+        Pool pool = pools.get(clazz);
+        if (pool == null) {
+            return null;
+        }
+        return new Statistics(clazz.getName(), pool.idleCount.get(), pool.hitCount.get(),
+                              pool.missCount.get(), pool.dropCount.get());
+    }
+
+    /**
+     * Get the usage statistics of the pools of all the artifact classes.
+     */
+    public List<Statistics> getStatistics() {
+        List<Statistics> statistics = new ArrayList<Statistics>();
+        for (Class<?> clazz : pools.keySet()) {
+            Statistics s = getStatistics(clazz);
+            if (s != null) {
+                statistics.add(s);
+            }
+        }
+        return statistics;
+    }
+
+    /**
+     * Drop all the idle instances.
+     */
+    public void clear() {
+        for (Pool pool : pools.values()) {
+            while (pool.idle.poll() != null) {
+                pool.idleCount.decrementAndGet();
+            }
+        }
+    }
+
+}
@@ -15,23 +15,41 @@
  */
 package fr.jamgotchian.jabat.runtime.artifact;
 
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Sets;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import javax.batch.api.Batchlet;
 import javax.batch.api.CheckpointAlgorithm;
+import javax.batch.api.ChunkListener;
 import javax.batch.api.Decider;
+import javax.batch.api.ItemProcessListener;
 import javax.batch.api.ItemProcessor;
+import javax.batch.api.ItemReadListener;
 import javax.batch.api.ItemReader;
+import javax.batch.api.ItemWriteListener;
 import javax.batch.api.ItemWriter;
 import javax.batch.api.JobListener;
 import javax.batch.api.PartitionAnalyzer;
 import javax.batch.api.PartitionCollector;
 import javax.batch.api.PartitionMapper;
 import javax.batch.api.PartitionReducer;
+import javax.batch.api.RetryProcessListener;
+import javax.batch.api.RetryReadListener;
+import javax.batch.api.RetryWriteListener;
+import javax.batch.api.SkipProcessListener;
+import javax.batch.api.SkipReadListener;
+import javax.batch.api.SkipWriteListener;
 import javax.batch.api.StepListener;
 
 /**
+ * The batch artifact types. Each artifact and step listener interface is
+ * given an index, the indexes of the interfaces a class implements are
+ * computed once per class.
  *
  * @author Geoffroy Jamgotchian <geoffroy.jamgotchian at gmail.com>
  */
@@ -51,6 +69,51 @@ public class ArtifactType {
                                                           StepListener.class,
                                                           Decider.class));
 
+    /* the listeners which can be declared at step level */
+    private static final Set<Class<?>> STEP_LISTENER_TYPES
+            = Collections.unmodifiableSet(Sets.newHashSet(StepListener.class,
+                                                          ChunkListener.class,
+                                                          ItemReadListener.class,
+                                                          ItemProcessListener.class,
+                                                          ItemWriteListener.class,
+                                                          SkipReadListener.class,
+                                                          SkipProcessListener.class,
+                                                          SkipWriteListener.class,
+                                                          RetryReadListener.class,
+                                                          RetryProcessListener.class,
+                                                          RetryWriteListener.class));
+
+    /* artifact and step listener types, indexed */
+    private static final List<Class<?>> INDEXED_TYPES
+            = ImmutableList.copyOf(Sets.union(TYPES, STEP_LISTENER_TYPES));
+
+    private static final Map<Class<?>, Integer> INDEXES;
+
+    static {
+        ImmutableMap.Builder<Class<?>, Integer> builder = ImmutableMap.builder();
+        for (int i = 0; i < INDEXED_TYPES.size(); i++) {
+            builder.put(INDEXED_TYPES.get(i), i);
+        }
+        INDEXES = builder.build();
+    }
+
+    private static final int[] NO_INDEXES = new int[0];
+
+    private static final ClassValue<int[]> CLASS_INDEXES = new ClassValue<int[]>() {
+
+        @Override
+        protected int[] computeValue(Class<?> clazz) {
+            int[] indexes = new int[INDEXED_TYPES.size()];
+            int count = 0;
+            for (int i = 0; i < INDEXED_TYPES.size(); i++) {
+                if (INDEXED_TYPES.get(i).isAssignableFrom(clazz)) {
+                    indexes[count++] = i;
+                }
+            }
+            return count == 0 ? NO_INDEXES : Arrays.copyOf(indexes, count);
+        }
+    };
+
     private ArtifactType() {
     }
 
@@ -58,4 +121,43 @@ public class ArtifactType {
         return TYPES.contains(type);
     }
 
+    public static boolean isStepListener(Object obj) {
+        for (Class<?> type : STEP_LISTENER_TYPES) {
+            if (type.isInstance(obj)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Get the number of indexed types.
+     */
+    public static int getTypeCount() {
+        return INDEXED_TYPES.size();
+    }
+
+    /**
+     * Get the index of an artifact or a step listener type.
+     *
+     * @param type the type
+     * @return the index of the type, -1 if it is not an artifact or a step
+     *         listener type
+     */
+    public static int getIndex(Class<?> type) {
+        Integer index = INDEXES.get(type);
+        return index == null ? -1 : index;
+    }
+
+    /**
+     * Get the indexes of the artifact and step listener types implemented by
+     * a class.
+     *
+     * @param clazz the class
+     * @return the type indexes, the array must not be modified
+     */
+    public static int[] getIndexes(Class<?> clazz) {
+        return CLASS_INDEXES.get(clazz);
+    }
+
 }
@@ -17,6 +17,8 @@ package fr.jamgotchian.jabat.runtime.artifact;
 
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 /**
  *
@@ -26,15 +28,38 @@ public class BatchXml {
 
     private final Map<String, String> artifactClasses = new HashMap<String, String>();
 
+    /* classes of the artifacts already loaded */
+    private final ConcurrentMap<String, Class<?>> loadedClasses = new ConcurrentHashMap<String, Class<?>>();
+
     public BatchXml() {
     }
 
     public void addArtifact(String name, String clazz) {
         artifactClasses.put(name, clazz);
+        loadedClasses.remove(name);
     }
 
     public String getArtifactClass(String name) {
         return artifactClasses.get(name);
     }
 
+    /**
+     * Load the class of an artifact, the class is loaded once.
+     *
+     * @param name the artifact name
+     * @return the artifact class or null if the artifact is not declared
+     */
+    public Class<?> loadArtifactClass(String name) throws ClassNotFoundException {
+        Class<?> clazz = loadedClasses.get(name);
+        if (clazz == null) {
+            String className = artifactClasses.get(name);
+            if (className == null) {
+                return null;
+            }
+            clazz = Class.forName(className);
+            loadedClasses.put(name, clazz);
+        }
+        return clazz;
+    }
+
 }
@@ -0,0 +1,33 @@
+/*
+ * Copyright 2013 Geoffroy Jamgotchian <geoffroy.jamgotchian at gmail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.jamgotchian.jabat.runtime.artifact;
+
+/**
+ * Lifecycle callback of a {@link Reusable} artifact.
+ *
+ * @author Geoffroy Jamgotchian <geoffroy.jamgotchian at gmail.com>
+ */
+public interface Resettable {
+
+    /**
+     * Called when the artifact is given back to the pool, to clear the state
+     * left by its last use. An artifact which fails to reset is dropped.
+     *
+     * @throws Exception
+     */
+    void reset() throws Exception;
+
+}
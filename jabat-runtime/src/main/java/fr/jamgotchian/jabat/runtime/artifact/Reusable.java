@@ -0,0 +1,43 @@
+/*
+ * Copyright 2013 Geoffroy Jamgotchian <geoffroy.jamgotchian at gmail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.jamgotchian.jabat.runtime.artifact;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Mark a batch artifact declared in batch.xml as reusable. Instead of being
+ * dropped when the step or the job that created it ends, an instance is kept
+ * in the {@link ArtifactPool} of the container and reused by the next
+ * partitions, steps or executions which need the same artifact class. A
+ * reused instance is injected again with the current contexts and
+ * properties; a property which is not defined for the new use keeps its
+ * previous value, so the artifact has to restore its state by implementing
+ * {@link Resettable}.
+ *
+ * Artifacts created by a dependency injection framework follow the scopes of
+ * the framework and are never pooled.
+ *
+ * @author Geoffroy Jamgotchian <geoffroy.jamgotchian at gmail.com>
+ */
+@Documented
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.TYPE)
+public @interface Reusable {
+}
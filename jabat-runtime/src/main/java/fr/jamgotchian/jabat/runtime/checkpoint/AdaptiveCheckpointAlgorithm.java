@@ -0,0 +1,171 @@
+/*
+ * Copyright 2013 Geoffroy Jamgotchian <geoffroy.jamgotchian at gmail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.jamgotchian.jabat.runtime.checkpoint;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A checkpoint algorithm sizing chunks so that a chunk lasts about a target
+ * latency, without exceeding a maximum number of items, the commit interval,
+ * and a maximum volume of items. The volume is only known for items which are
+ * byte arrays, byte buffers or character sequences, a character counting for
+ * one byte.
+ *
+ * The cost of an item is learnt from the time elapsed between two commits,
+ * as an exponentially weighted moving average, and the chunk size is the
+ * number of items fitting in the target latency, growing at most twice from a
+ * chunk to the next one. A rollback halves the chunk size. A chunk whose items
+ * are slower than expected is checkpointed as soon as the target latency is
+ * reached. All durations are measured with System.nanoTime.
+ *
+ * Methods are synchronized because a pipelined chunk reads items and commits
+ * on different threads.
+ *
+ * @author Geoffroy Jamgotchian <geoffroy.jamgotchian at gmail.com>
+ */
+public class AdaptiveCheckpointAlgorithm extends BuiltInCheckpointAlgorithm {
+
+    /* weight of the last observed item cost in the moving average */
+    private static final double SMOOTHING_FACTOR = 0.25;
+
+    private static final int INITIAL_CHUNK_SIZE = 10;
+
+    private final long targetLatency;
+
+    private final long maxBytes;
+
+    private int chunkSize;
+
+    /* average cost of an item in ns, negative until the first commit */
+    private double itemCost = -1;
+
+    private long chunkStartTime;
+
+    private int chunkItemCount;
+
+    private long chunkByteCount;
+
+    private boolean started = false;
+
+    private long windowStartTime;
+
+    private int windowItemCount;
+
+    /**
+     * @param commitInterval the maximum number of items of a chunk
+     * @param commitLatency the target duration of a chunk in ms
+     * @param commitBytes the maximum volume of items of a chunk in bytes, 0
+     *        meaning no limit
+     */
+    public AdaptiveCheckpointAlgorithm(int commitInterval, long commitLatency, long commitBytes) {
+        super(commitInterval);
+        if (commitLatency < 1) {
+            throw new IllegalArgumentException("Commit latency should be greater or equal than one");
+        }
+        if (commitBytes < 0) {
+            throw new IllegalArgumentException("Commit bytes should be positive");
+        }
+        targetLatency = TimeUnit.MILLISECONDS.toNanos(commitLatency);
+        maxBytes = commitBytes;
+        chunkSize = Math.min(INITIAL_CHUNK_SIZE, commitInterval);
+    }
+
+    /**
+     * Get the number of items of the next chunks.
+     */
+    public synchronized int getChunkSize() {
+        return chunkSize;
+    }
+
+    private static long sizeOf(Object item) {
+        if (item instanceof byte[]) {
+            return ((byte[]) item).length;
+        } else if (item instanceof ByteBuffer) {
+            return ((ByteBuffer) item).remaining();
+        } else if (item instanceof CharSequence) {
+            return ((CharSequence) item).length();
+        }
+        return 0;
+    }
+
+    /**
+     * A chunk being checkpointed once the target latency is reached, the
+     * timeout in seconds of the chunk transaction is raised to the target
+     * latency rounded up, so that a chunk is not timed out before having a
+     * chance to be checkpointed. A timeout of 0, meaning no timeout, is kept.
+     */
+    @Override
+    public int checkpointTimeout(int timeout) throws Exception {
+        if (timeout <= 0) {
+            return timeout;
+        }
+        long latency = TimeUnit.NANOSECONDS.toSeconds(targetLatency + TimeUnit.SECONDS.toNanos(1) - 1);
+        return (int) Math.max(timeout, Math.min(latency, Integer.MAX_VALUE));
+    }
+
+    @Override
+    public synchronized void beginCheckpoint() throws Exception {
+        chunkStartTime = System.nanoTime();
+        chunkItemCount = 0;
+        chunkByteCount = 0;
+        if (!started) {
+            windowStartTime = chunkStartTime;
+            started = true;
+        }
+    }
+
+    @Override
+    public synchronized void itemRead(Object item) {
+        if (maxBytes > 0) {
+            chunkByteCount += sizeOf(item);
+        }
+    }
+
+    @Override
+    public synchronized boolean isReadyToCheckpoint() throws Exception {
+        chunkItemCount++;
+        windowItemCount++;
+        return chunkItemCount >= chunkSize
+                || (maxBytes > 0 && chunkByteCount >= maxBytes)
+                || System.nanoTime() - chunkStartTime >= targetLatency;
+    }
+
+    @Override
+    public void endCheckpoint() throws Exception {
+    }
+
+    @Override
+    public synchronized void committed() {
+        long now = System.nanoTime();
+        if (windowItemCount > 0) {
+            double cost = (double) (now - windowStartTime) / windowItemCount;
+            itemCost = itemCost < 0 ? cost : itemCost + SMOOTHING_FACTOR * (cost - itemCost);
+            long fittingItemCount = (long) (targetLatency / Math.max(itemCost, 1));
+            chunkSize = (int) Math.max(1, Math.min(Math.min(2L * chunkSize, fittingItemCount), commitInterval));
+        }
+        windowStartTime = now;
+        windowItemCount = 0;
+    }
+
+    @Override
+    public synchronized void rolledBack() {
+        chunkSize = Math.max(1, chunkSize / 2);
+        windowStartTime = System.nanoTime();
+        windowItemCount = 0;
+    }
+
+}
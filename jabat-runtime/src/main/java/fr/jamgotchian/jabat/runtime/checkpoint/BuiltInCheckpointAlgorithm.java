@@ -18,6 +18,9 @@ package fr.jamgotchian.jabat.runtime.checkpoint;
 import javax.batch.api.CheckpointAlgorithm;
 
 /**
+ * Base class of the checkpoint algorithms provided by the runtime, which are
+ * also notified by the chunk processor of each item read and of the outcome
+ * of each chunk.
  *
  * @author Geoffroy Jamgotchian <geoffroy.jamgotchian at gmail.com>
  */
@@ -32,4 +35,24 @@ public abstract class BuiltInCheckpointAlgorithm implements CheckpointAlgorithm
         this.commitInterval = commitInterval;
     }
 
+    /**
+     * Called each time an item is read, before isReadyToCheckpoint.
+     *
+     * @param item the item
+     */
+    public void itemRead(Object item) {
+    }
+
+    /**
+     * Called each time a chunk has been committed.
+     */
+    public void committed() {
+    }
+
+    /**
+     * Called each time a chunk has been rolled back.
+     */
+    public void rolledBack() {
+    }
+
 }
@@ -0,0 +1,50 @@
+/*
+ * Copyright 2013 Geoffroy Jamgotchian <geoffroy.jamgotchian at gmail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.jamgotchian.jabat.runtime.checkpoint;
+
+import java.io.Externalizable;
+import java.io.IOException;
+
+/**
+ * Encoding of reader and writer checkpoint data, done at each commit, and
+ * decoding when a reader or a writer is opened.
+ *
+ * Encoded data is stored durably, so it has to be decodable by another
+ * instance of the codec, in another JVM.
+ *
+ * @author Geoffroy Jamgotchian <geoffroy.jamgotchian at gmail.com>
+ */
+public interface CheckpointCodec {
+
+    /**
+     * Encode checkpoint data.
+     *
+     * @param checkpoint the checkpoint data, can be null
+     * @param previousData the data of the previous checkpoint, can be null
+     * @return the encoded data, previousData itself if the encoding has not
+     *         changed, null if checkpoint is null
+     */
+    byte[] encode(Externalizable checkpoint, byte[] previousData) throws IOException;
+
+    /**
+     * Decode checkpoint data.
+     *
+     * @param data the encoded data, can be null
+     * @return the checkpoint data, null if data is null
+     */
+    Externalizable decode(byte[] data) throws IOException, ClassNotFoundException;
+
+}
@@ -0,0 +1,49 @@
+/*
+ * Copyright 2013 Geoffroy Jamgotchian <geoffroy.jamgotchian at gmail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.jamgotchian.jabat.runtime.checkpoint;
+
+/**
+ * The checkpoint data of the last committed chunk of a step execution.
+ *
+ * @author Geoffroy Jamgotchian <geoffroy.jamgotchian at gmail.com>
+ */
+public class CheckpointRecord {
+
+    private final long stepExecutionId;
+
+    private final byte[] readerData;
+
+    private final byte[] writerData;
+
+    public CheckpointRecord(long stepExecutionId, byte[] readerData, byte[] writerData) {
+        this.stepExecutionId = stepExecutionId;
+        this.readerData = readerData;
+        this.writerData = writerData;
+    }
+
+    public long getStepExecutionId() {
+        return stepExecutionId;
+    }
+
+    public byte[] getReaderData() {
+        return readerData;
+    }
+
+    public byte[] getWriterData() {
+        return writerData;
+    }
+
+}
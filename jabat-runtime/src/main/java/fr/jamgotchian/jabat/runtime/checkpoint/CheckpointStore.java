@@ -0,0 +1,59 @@
+/*
+ * Copyright 2013 Geoffroy Jamgotchian <geoffroy.jamgotchian at gmail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.jamgotchian.jabat.runtime.checkpoint;
+
+import java.util.Properties;
+
+/**
+ * Durable storage of the reader and writer checkpoint data of the last
+ * committed chunk of each step execution.
+ *
+ * @author Geoffroy Jamgotchian <geoffroy.jamgotchian at gmail.com>
+ */
+public interface CheckpointStore {
+
+    void initialize(Properties configuration) throws Exception;
+
+    void shutdown() throws Exception;
+
+    /**
+     * Store the checkpoint data of a committed chunk, superseding the
+     * previous checkpoint data of the step execution. The data is durable
+     * once the method returns.
+     *
+     * @param stepExecutionId the step execution id
+     * @param readerData the reader checkpoint data, can be null
+     * @param writerData the writer checkpoint data, can be null
+     */
+    void store(long stepExecutionId, byte[] readerData, byte[] writerData) throws Exception;
+
+    /**
+     * Load the last checkpoint data stored for a step execution.
+     *
+     * @param stepExecutionId the step execution id
+     * @return the checkpoint record or null if nothing has been stored for
+     *         the step execution
+     */
+    CheckpointRecord load(long stepExecutionId) throws Exception;
+
+    /**
+     * Remove the checkpoint data of a step execution, once it has completed.
+     *
+     * @param stepExecutionId the step execution id
+     */
+    void remove(long stepExecutionId) throws Exception;
+
+}
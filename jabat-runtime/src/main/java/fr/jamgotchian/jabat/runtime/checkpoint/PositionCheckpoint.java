@@ -0,0 +1,59 @@
+/*
+ * Copyright 2013 Geoffroy Jamgotchian <geoffroy.jamgotchian at gmail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.jamgotchian.jabat.runtime.checkpoint;
+
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+
+/**
+ * Checkpoint data made of a single position, a line number or an offset for
+ * instance. The default checkpoint codec encodes it on 9 bytes.
+ *
+ * @author Geoffroy Jamgotchian <geoffroy.jamgotchian at gmail.com>
+ */
+public class PositionCheckpoint implements Externalizable {
+
+    private long position;
+
+    public PositionCheckpoint() {
+    }
+
+    public PositionCheckpoint(long position) {
+        this.position = position;
+    }
+
+    public long getPosition() {
+        return position;
+    }
+
+    @Override
+    public void writeExternal(ObjectOutput out) throws IOException {
+        out.writeLong(position);
+    }
+
+    @Override
+    public void readExternal(ObjectInput in) throws IOException, ClassNotFoundException {
+        position = in.readLong();
+    }
+
+    @Override
+    public String toString() {
+        return "PositionCheckpoint(position=" + position + ")";
+    }
+
+}
@@ -15,7 +15,7 @@
  */
 package fr.jamgotchian.jabat.runtime.checkpoint;
 
-import java.util.Date;
+import java.util.concurrent.TimeUnit;
 
 /**
  *
@@ -23,7 +23,7 @@ import java.util.Date;
  */
 public class TimeCheckpointAlgorithm extends BuiltInCheckpointAlgorithm {
 
-    private Date startTime;
+    private long startTime;
 
     public TimeCheckpointAlgorithm(int commitInterval) {
         super(commitInterval);
@@ -37,12 +37,12 @@ public class TimeCheckpointAlgorithm extends BuiltInCheckpointAlgorithm {
 
     @Override
     public void beginCheckpoint() throws Exception {
-        startTime = new Date();
+        startTime = System.nanoTime();
     }
 
     @Override
     public boolean isReadyToCheckpoint() throws Exception {
-        return (new Date().getTime() - startTime.getTime()) > commitInterval * 1000;
+        return System.nanoTime() - startTime > TimeUnit.SECONDS.toNanos(commitInterval);
     }
 
     @Override
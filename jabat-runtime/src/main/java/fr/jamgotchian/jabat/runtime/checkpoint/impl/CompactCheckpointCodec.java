@@ -0,0 +1,296 @@
+/*
+ * Copyright 2013 Geoffroy Jamgotchian <geoffroy.jamgotchian at gmail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.jamgotchian.jabat.runtime.checkpoint.impl;
+
+import fr.jamgotchian.jabat.runtime.checkpoint.CheckpointCodec;
+import fr.jamgotchian.jabat.runtime.checkpoint.PositionCheckpoint;
+import fr.jamgotchian.jabat.runtime.util.Externalizables;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.InvalidClassException;
+import java.io.NotSerializableException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.io.ObjectOutputStream;
+import java.io.StreamCorruptedException;
+import java.lang.reflect.Constructor;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * A checkpoint codec writing the class name of the checkpoint data followed
+ * by what its writeExternal method writes, instead of the stream header and
+ * class descriptors of Java serialization.
+ *
+ * Encoding is done in a buffer reused by each thread and the class table,
+ * encoded class names on one side and constructors on the other, is built once
+ * per class. A {@link PositionCheckpoint} is encoded on 9 bytes, without its
+ * class name. Checkpoint data writing nested objects is encoded with Java
+ * serialization, which is also decoded so that data stored by a previous
+ * version remains readable.
+ *
+ * @author Geoffroy Jamgotchian <geoffroy.jamgotchian at gmail.com>
+ */
+public class CompactCheckpointCodec implements CheckpointCodec {
+
+    /* first byte of the encoded data, a Java serialization stream starts
+       with 0xAC */
+    private static final byte EXTERNAL_FORMAT = 1;
+
+    private static final byte POSITION_FORMAT = 2;
+
+    private static final int SERIALIZATION_FIRST_BYTE = 0xAC;
+
+    /* a buffer which has grown beyond this size is not kept by the thread */
+    private static final int MAX_RETAINED_BUFFER_SIZE = 64 * 1024;
+
+    private static final byte[] NO_DATA = new byte[0];
+
+    /**
+     * Thrown when checkpoint data writes a nested object, that the compact
+     * format does not support.
+     */
+    private static class NestedObjectException extends NotSerializableException {
+
+        private static final long serialVersionUID = 1L;
+
+        private NestedObjectException() {
+            super("Nested objects are not supported by the compact format");
+        }
+    }
+
+    private static class Output extends DataOutputStream implements ObjectOutput {
+
+        private boolean objectWritten;
+
+        private Output(Buffer buffer) {
+            super(buffer);
+        }
+
+        @Override
+        public void writeObject(Object obj) throws IOException {
+            objectWritten = true;
+            throw new NestedObjectException();
+        }
+    }
+
+    private static class Buffer extends ByteArrayOutputStream {
+
+        private Buffer() {
+            super(256);
+        }
+
+        private int capacity() {
+            return buf.length;
+        }
+
+        private boolean contentEquals(byte[] data) {
+            if (data == null || data.length != count) {
+                return false;
+            }
+            for (int i = 0; i < count; i++) {
+                if (data[i] != buf[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    private static class Encoder {
+
+        private final Buffer buffer = new Buffer();
+
+        private final Output output = new Output(buffer);
+    }
+
+    private static class Input extends ByteArrayInputStream {
+
+        private Input() {
+            super(NO_DATA);
+        }
+
+        private void setData(byte[] data) {
+            buf = data;
+            pos = 0;
+            mark = 0;
+            count = data.length;
+        }
+    }
+
+    private static class Decoder extends DataInputStream implements ObjectInput {
+
+        private Decoder() {
+            super(new Input());
+        }
+
+        private void setData(byte[] data) {
+            ((Input) in).setData(data);
+        }
+
+        @Override
+        public Object readObject() throws ClassNotFoundException, IOException {
+            throw new NestedObjectException();
+        }
+    }
+
+    private final ThreadLocal<Encoder> encoders = new ThreadLocal<Encoder>() {
+
+        @Override
+        protected Encoder initialValue() {
+            return new Encoder();
+        }
+    };
+
+    private final ThreadLocal<Decoder> decoders = new ThreadLocal<Decoder>() {
+
+        @Override
+        protected Decoder initialValue() {
+            return new Decoder();
+        }
+    };
+
+    private final ConcurrentMap<Class<?>, byte[]> encodedClassNames
+            = new ConcurrentHashMap<Class<?>, byte[]>();
+
+    private final ConcurrentMap<String, Constructor<? extends Externalizable>> constructors
+            = new ConcurrentHashMap<String, Constructor<? extends Externalizable>>();
+
+    private byte[] getEncodedClassName(Class<?> clazz) throws IOException {
+        byte[] encodedClassName = encodedClassNames.get(clazz);
+        if (encodedClassName == null) {
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            DataOutputStream os = new DataOutputStream(bos);
+            os.writeUTF(clazz.getName());
+            os.close();
+            encodedClassName = bos.toByteArray();
+            encodedClassNames.put(clazz, encodedClassName);
+        }
+        return encodedClassName;
+    }
+
+    private Constructor<? extends Externalizable> getConstructor(String className) throws IOException, ClassNotFoundException {
+        Constructor<? extends Externalizable> constructor = constructors.get(className);
+        if (constructor == null) {
+            ClassLoader classLoader = Thread.currentThread().getContextClassLoader();
+            if (classLoader == null) {
+                classLoader = CompactCheckpointCodec.class.getClassLoader();
+            }
+            Class<?> clazz = Class.forName(className, false, classLoader);
+            if (!Externalizable.class.isAssignableFrom(clazz)) {
+                throw new InvalidClassException(className, "Not externalizable");
+            }
+            try {
+                constructor = clazz.asSubclass(Externalizable.class).getConstructor();
+            } catch (NoSuchMethodException e) {
+                throw new InvalidClassException(className, "No public no-arg constructor");
+            }
+            constructors.put(className, constructor);
+        }
+        return constructor;
+    }
+
+    /**
+     * Encode checkpoint data in the compact format.
+     *
+     * @return false if the checkpoint data cannot be encoded in the compact
+     *         format
+     */
+    private boolean encodeExternal(Externalizable checkpoint, Output output) throws IOException {
+        output.writeByte(EXTERNAL_FORMAT);
+        output.write(getEncodedClassName(checkpoint.getClass()));
+        output.objectWritten = false;
+        try {
+            checkpoint.writeExternal(output);
+        } catch (NestedObjectException e) {
+            return false;
+        }
+        // the exception may have been caught by writeExternal
+        return !output.objectWritten;
+    }
+
+    @Override
+    public byte[] encode(Externalizable checkpoint, byte[] previousData) throws IOException {
+        if (checkpoint == null) {
+            return null;
+        }
+        Encoder encoder = encoders.get();
+        try {
+            if (checkpoint.getClass() == PositionCheckpoint.class) {
+                encoder.output.writeByte(POSITION_FORMAT);
+                encoder.output.writeLong(((PositionCheckpoint) checkpoint).getPosition());
+            } else if (!encodeExternal(checkpoint, encoder.output)) {
+                encoder.buffer.reset();
+                ObjectOutputStream os = new ObjectOutputStream(encoder.buffer);
+                os.writeObject(checkpoint);
+                os.close();
+            }
+            if (encoder.buffer.contentEquals(previousData)) {
+                return previousData;
+            }
+            return encoder.buffer.toByteArray();
+        } finally {
+            encoder.buffer.reset();
+            if (encoder.buffer.capacity() > MAX_RETAINED_BUFFER_SIZE) {
+                encoders.remove();
+            }
+        }
+    }
+
+    @Override
+    public Externalizable decode(byte[] data) throws IOException, ClassNotFoundException {
+        if (data == null) {
+            return null;
+        }
+        if (data.length > 0 && (data[0] & 0xFF) == SERIALIZATION_FIRST_BYTE) {
+            return Externalizables.deserialize(data);
+        }
+        Decoder decoder = decoders.get();
+        decoder.setData(data);
+        try {
+            byte format = decoder.readByte();
+            switch (format) {
+                case POSITION_FORMAT:
+                    return new PositionCheckpoint(decoder.readLong());
+
+                case EXTERNAL_FORMAT: {
+                    String className = decoder.readUTF();
+                    Externalizable checkpoint;
+                    try {
+                        checkpoint = getConstructor(className).newInstance();
+                    } catch (ReflectiveOperationException e) {
+                        InvalidClassException e2 = new InvalidClassException(className, e.toString());
+                        e2.initCause(e);
+                        throw e2;
+                    }
+                    checkpoint.readExternal(decoder);
+                    return checkpoint;
+                }
+
+                default:
+                    throw new StreamCorruptedException("Unknown checkpoint data format " + format);
+            }
+        } finally {
+            // do not retain the data
+            decoder.setData(NO_DATA);
+        }
+    }
+
+}
@@ -0,0 +1,157 @@
+/*
+ * Copyright 2013 Geoffroy Jamgotchian <geoffroy.jamgotchian at gmail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.jamgotchian.jabat.runtime.checkpoint.impl;
+
+import fr.jamgotchian.jabat.runtime.checkpoint.CheckpointRecord;
+import fr.jamgotchian.jabat.runtime.checkpoint.CheckpointStore;
+import fr.jamgotchian.jabat.runtime.util.JabatRuntimeException;
+import fr.jamgotchian.jabat.runtime.util.JdbcUtil;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.Properties;
+
+/**
+ * A checkpoint store keeping the checkpoint data in a database, along with
+ * the job repository when using {@link
+ * fr.jamgotchian.jabat.runtime.repository.impl.JdbcJobRepository}. Each
+ * checkpoint is committed in its own transaction.
+ *
+ * The database is configured as described in {@link JdbcUtil}.
+ *
+ * @author Geoffroy Jamgotchian <geoffroy.jamgotchian at gmail.com>
+ */
+public class JdbcCheckpointStore implements CheckpointStore {
+
+    private Connection connection;
+
+    private PreparedStatement insert;
+
+    private PreparedStatement update;
+
+    private PreparedStatement select;
+
+    private PreparedStatement delete;
+
+    @Override
+    public synchronized void initialize(Properties configuration) throws Exception {
+        connection = JdbcUtil.connect(configuration);
+        boolean committed = false;
+        try {
+            JdbcUtil.createTable(connection, "JABAT_CHECKPOINT",
+                    "CREATE TABLE JABAT_CHECKPOINT (STEP_EXECUTION_ID BIGINT NOT NULL PRIMARY KEY,"
+                    + " READER_DATA BLOB, WRITER_DATA BLOB)");
+            connection.commit();
+            committed = true;
+        } finally {
+            if (!committed) {
+                JdbcUtil.rollback(connection);
+            }
+        }
+        insert = connection.prepareStatement("INSERT INTO JABAT_CHECKPOINT (STEP_EXECUTION_ID, READER_DATA,"
+                + " WRITER_DATA) VALUES (?, ?, ?)");
+        update = connection.prepareStatement("UPDATE JABAT_CHECKPOINT SET READER_DATA = ?, WRITER_DATA = ?"
+                + " WHERE STEP_EXECUTION_ID = ?");
+        select = connection.prepareStatement("SELECT READER_DATA, WRITER_DATA FROM JABAT_CHECKPOINT"
+                + " WHERE STEP_EXECUTION_ID = ?");
+        delete = connection.prepareStatement("DELETE FROM JABAT_CHECKPOINT WHERE STEP_EXECUTION_ID = ?");
+    }
+
+    @Override
+    public synchronized void shutdown() throws Exception {
+        if (connection != null) {
+            insert.close();
+            update.close();
+            select.close();
+            delete.close();
+            JdbcUtil.close(connection);
+            connection = null;
+        }
+    }
+
+    private void checkInitialized() {
+        if (connection == null) {
+            throw new JabatRuntimeException("Checkpoint store is not initialized");
+        }
+    }
+
+    private static void setBytes(PreparedStatement stmt, int index, byte[] bytes) throws SQLException {
+        if (bytes == null) {
+            stmt.setNull(index, Types.BLOB);
+        } else {
+            stmt.setBytes(index, bytes);
+        }
+    }
+
+    @Override
+    public synchronized void store(long stepExecutionId, byte[] readerData, byte[] writerData) throws Exception {
+        checkInitialized();
+        boolean committed = false;
+        try {
+            setBytes(update, 1, readerData);
+            setBytes(update, 2, writerData);
+            update.setLong(3, stepExecutionId);
+            if (update.executeUpdate() == 0) {
+                insert.setLong(1, stepExecutionId);
+                setBytes(insert, 2, readerData);
+                setBytes(insert, 3, writerData);
+                insert.executeUpdate();
+            }
+            connection.commit();
+            committed = true;
+        } finally {
+            if (!committed) {
+                JdbcUtil.rollback(connection);
+            }
+        }
+    }
+
+    @Override
+    public synchronized CheckpointRecord load(long stepExecutionId) throws Exception {
+        checkInitialized();
+        select.setLong(1, stepExecutionId);
+        ResultSet rs = select.executeQuery();
+        try {
+            if (!rs.next()) {
+                return null;
+            }
+            return new CheckpointRecord(stepExecutionId, rs.getBytes(1), rs.getBytes(2));
+        } finally {
+            rs.close();
+            // ends the read transaction
+            connection.commit();
+        }
+    }
+
+    @Override
+    public synchronized void remove(long stepExecutionId) throws Exception {
+        checkInitialized();
+        boolean committed = false;
+        try {
+            delete.setLong(1, stepExecutionId);
+            delete.executeUpdate();
+            connection.commit();
+            committed = true;
+        } finally {
+            if (!committed) {
+                JdbcUtil.rollback(connection);
+            }
+        }
+    }
+
+}
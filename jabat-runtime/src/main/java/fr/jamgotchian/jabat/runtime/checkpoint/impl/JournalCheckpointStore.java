@@ -0,0 +1,430 @@
+/*
+ * Copyright 2013 Geoffroy Jamgotchian <geoffroy.jamgotchian at gmail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.jamgotchian.jabat.runtime.checkpoint.impl;
+
+import fr.jamgotchian.jabat.runtime.checkpoint.CheckpointRecord;
+import fr.jamgotchian.jabat.runtime.checkpoint.CheckpointStore;
+import fr.jamgotchian.jabat.runtime.util.JabatRuntimeException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.zip.CRC32;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A checkpoint store appending checkpoint records to a memory-mapped journal
+ * file.
+ *
+ * Each record is checksummed and the journal is forced to disk each time a
+ * checkpoint is stored, so a record is either entirely recovered after a
+ * crash or ignored, as well as all the following ones. The journal is read
+ * sequentially once at initialization to rebuild an index of the last
+ * checkpoint of each step execution, a lookup does not access the file.
+ * Records superseded by a newer checkpoint or removed are dropped by
+ * compacting the journal once they take more room than the live ones.
+ *
+ * The journal is written in the directory configured by the
+ * jabat.checkpointStore.directory key of jabat.properties, which is required:
+ * a journal belongs to a single container and its records refer to the step
+ * executions of the container job repository, so it is only meaningful along
+ * with a durable job repository whose ids are not reused by another container
+ * or after a restart. Forcing the journal to disk can be disabled with the
+ * jabat.checkpointStore.sync key.
+ *
+ * @author Geoffroy Jamgotchian <geoffroy.jamgotchian at gmail.com>
+ */
+public class JournalCheckpointStore implements CheckpointStore {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(JournalCheckpointStore.class);
+
+    public static final String DIRECTORY_KEY = "jabat.checkpointStore.directory";
+
+    public static final String SYNC_KEY = "jabat.checkpointStore.sync";
+
+    private static final String JOURNAL_FILE_NAME = "checkpoints.journal";
+
+    private static final String COMPACTED_JOURNAL_FILE_NAME = "checkpoints.journal.compacted";
+
+    private static final String LOCK_FILE_NAME = "checkpoints.lock";
+
+    private static final int MAGIC = 0x4a42434a;
+
+    private static final int VERSION = 1;
+
+    private static final int HEADER_SIZE = 8;
+
+    private static final int INITIAL_CAPACITY = 1024 * 1024;
+
+    private static final byte CHECKPOINT_RECORD = 1;
+
+    private static final byte REMOVAL_RECORD = 2;
+
+    /* length, type, step execution id and checksum */
+    private static final int RECORD_OVERHEAD = 4 + 1 + 8 + 4;
+
+    private static class Entry {
+
+        private final byte[] readerData;
+
+        private final byte[] writerData;
+
+        private Entry(byte[] readerData, byte[] writerData) {
+            this.readerData = readerData;
+            this.writerData = writerData;
+        }
+
+        private int getRecordSize() {
+            return getCheckpointRecordSize(readerData, writerData);
+        }
+    }
+
+    private File directory;
+
+    private boolean sync;
+
+    private RandomAccessFile lockFile;
+
+    private FileLock lock;
+
+    private RandomAccessFile journalFile;
+
+    private MappedByteBuffer journal;
+
+    private final Map<Long, Entry> entries = new HashMap<Long, Entry>();
+
+    /* size of the records of the entries */
+    private long liveSize;
+
+    /* reused to encode a record */
+    private ByteBuffer payload = ByteBuffer.allocate(1024);
+
+    private final CRC32 crc = new CRC32();
+
+    public JournalCheckpointStore() {
+    }
+
+    private static int getCheckpointRecordSize(byte[] readerData, byte[] writerData) {
+        return RECORD_OVERHEAD + 4 + (readerData != null ? readerData.length : 0)
+                + 4 + (writerData != null ? writerData.length : 0);
+    }
+
+    private static void putData(ByteBuffer buffer, byte[] data) {
+        if (data == null) {
+            buffer.putInt(-1);
+        } else {
+            buffer.putInt(data.length);
+            buffer.put(data);
+        }
+    }
+
+    private static byte[] getData(ByteBuffer buffer) {
+        int length = buffer.getInt();
+        if (length == -1) {
+            return null;
+        }
+        byte[] data = new byte[length];
+        buffer.get(data);
+        return data;
+    }
+
+    private int checksum(byte[] bytes, int length) {
+        crc.reset();
+        crc.update(bytes, 0, length);
+        return (int) crc.getValue();
+    }
+
+    private File getJournalFile() {
+        return new File(directory, JOURNAL_FILE_NAME);
+    }
+
+    @Override
+    public synchronized void initialize(Properties configuration) throws Exception {
+        String value = configuration.getProperty(DIRECTORY_KEY);
+        if (value == null) {
+            throw new JabatRuntimeException("Checkpoint journal directory is not configured, "
+                    + DIRECTORY_KEY + " is expected");
+        }
+        directory = new File(value);
+        sync = Boolean.valueOf(configuration.getProperty(SYNC_KEY, "true"));
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new JabatRuntimeException("Cannot create checkpoint directory " + directory);
+        }
+
+        // only one container at a time can use a journal
+        lockFile = new RandomAccessFile(new File(directory, LOCK_FILE_NAME), "rw");
+        try {
+            lock = lockFile.getChannel().tryLock();
+        } catch (OverlappingFileLockException e) {
+            lock = null;
+        }
+        if (lock == null) {
+            lockFile.close();
+            throw new JabatRuntimeException("Checkpoint journal of " + directory
+                    + " is already used by another container");
+        }
+
+        // a compaction may have been interrupted before the compacted journal
+        // replaced the journal, in which case the journal is still valid
+        new File(directory, COMPACTED_JOURNAL_FILE_NAME).delete();
+
+        File file = getJournalFile();
+        boolean exists = file.exists() && file.length() > 0;
+        journalFile = new RandomAccessFile(file, "rw");
+        journal = map(Math.max(journalFile.length(), INITIAL_CAPACITY));
+        if (exists) {
+            recover();
+        } else {
+            journal.putInt(MAGIC);
+            journal.putInt(VERSION);
+            journal.force();
+        }
+
+        LOGGER.debug("Checkpoint journal {} opened, {} live checkpoints", file, entries.size());
+
+        if (isCompactionNeeded()) {
+            compact(0);
+        }
+    }
+
+    /**
+     * Compaction is needed when superseded and removed records take more
+     * room than the live ones.
+     */
+    private boolean isCompactionNeeded() {
+        return liveSize < (journal.position() - HEADER_SIZE) / 2;
+    }
+
+    private MappedByteBuffer map(long capacity) throws IOException {
+        if (capacity > Integer.MAX_VALUE) {
+            throw new JabatRuntimeException("Checkpoint journal is too large");
+        }
+        return journalFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+    }
+
+    private void recover() throws IOException {
+        if (journal.getInt() != MAGIC) {
+            throw new JabatRuntimeException(getJournalFile() + " is not a checkpoint journal");
+        }
+        int version = journal.getInt();
+        if (version != VERSION) {
+            throw new JabatRuntimeException("Unsupported checkpoint journal version " + version);
+        }
+        int position = journal.position();
+        boolean torn = false;
+        while (journal.remaining() >= 4) {
+            int length = journal.getInt();
+            if (length == 0) {
+                // end of the journal
+                break;
+            }
+            if (length < 0 || length + 4 > journal.remaining()) {
+                torn = true;
+                break;
+            }
+            byte[] bytes = new byte[length];
+            journal.get(bytes);
+            if (journal.getInt() != checksum(bytes, length)) {
+                torn = true;
+                break;
+            }
+            apply(ByteBuffer.wrap(bytes));
+            position = journal.position();
+        }
+        if (torn) {
+            // the last record has not been entirely written, erase it so that
+            // it cannot be read again after the next records
+            LOGGER.warn("Checkpoint journal {} ends with an incomplete record, ignored", getJournalFile());
+            for (int i = position; i < journal.capacity(); i++) {
+                journal.put(i, (byte) 0);
+            }
+            journal.force();
+        }
+        journal.position(position);
+    }
+
+    private void apply(ByteBuffer record) {
+        byte type = record.get();
+        long stepExecutionId = record.getLong();
+        Entry old;
+        switch (type) {
+            case CHECKPOINT_RECORD:
+                byte[] readerData = getData(record);
+                byte[] writerData = getData(record);
+                Entry entry = new Entry(readerData, writerData);
+                old = entries.put(stepExecutionId, entry);
+                liveSize += entry.getRecordSize();
+                break;
+            case REMOVAL_RECORD:
+                old = entries.remove(stepExecutionId);
+                break;
+            default:
+                throw new JabatRuntimeException("Unknown checkpoint record type " + type);
+        }
+        if (old != null) {
+            liveSize -= old.getRecordSize();
+        }
+    }
+
+    private void write(MappedByteBuffer buffer, byte type, long stepExecutionId,
+                       byte[] readerData, byte[] writerData) {
+        int size = type == CHECKPOINT_RECORD
+                ? getCheckpointRecordSize(readerData, writerData) : RECORD_OVERHEAD;
+        if (payload.capacity() < size) {
+            payload = ByteBuffer.allocate(Math.max(size, payload.capacity() * 2));
+        }
+        payload.clear();
+        payload.put(type);
+        payload.putLong(stepExecutionId);
+        if (type == CHECKPOINT_RECORD) {
+            putData(payload, readerData);
+            putData(payload, writerData);
+        }
+        int length = payload.position();
+        buffer.putInt(length);
+        buffer.put(payload.array(), 0, length);
+        buffer.putInt(checksum(payload.array(), length));
+    }
+
+    /**
+     * Make room for a record, compacting or growing the journal.
+     */
+    private void ensureCapacity(int recordSize) throws IOException {
+        if (journal.remaining() >= recordSize) {
+            return;
+        }
+        if (isCompactionNeeded()) {
+            compact(recordSize);
+        }
+        if (journal.remaining() < recordSize) {
+            int position = journal.position();
+            long capacity = Math.max((long) journal.capacity() * 2, (long) position + recordSize);
+            journal = map(capacity);
+            journal.position(position);
+        }
+    }
+
+    /**
+     * Rewrite the journal with only the last checkpoint of each step
+     * execution. The compacted journal is written aside and then renamed, so
+     * that a crash during the compaction leaves the journal untouched.
+     */
+    private void compact(int extraSize) throws IOException {
+        int oldSize = journal.position();
+        File compactedFile = new File(directory, COMPACTED_JOURNAL_FILE_NAME);
+        RandomAccessFile compacted = new RandomAccessFile(compactedFile, "rw");
+        MappedByteBuffer buffer;
+        try {
+            long capacity = Math.max(INITIAL_CAPACITY, 2 * (HEADER_SIZE + liveSize + extraSize));
+            if (capacity > Integer.MAX_VALUE) {
+                throw new JabatRuntimeException("Checkpoint journal is too large");
+            }
+            buffer = compacted.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+            buffer.putInt(MAGIC);
+            buffer.putInt(VERSION);
+            for (Map.Entry<Long, Entry> e : entries.entrySet()) {
+                write(buffer, CHECKPOINT_RECORD, e.getKey(), e.getValue().readerData, e.getValue().writerData);
+            }
+            buffer.force();
+        } finally {
+            compacted.close();
+        }
+        journalFile.close();
+        if (!compactedFile.renameTo(getJournalFile())) {
+            throw new JabatRuntimeException("Cannot replace checkpoint journal by " + compactedFile);
+        }
+        journalFile = new RandomAccessFile(getJournalFile(), "rw");
+        // the mapping of the compacted file stays valid after the rename
+        journal = buffer;
+        LOGGER.debug("Checkpoint journal compacted from {} to {} bytes", oldSize, journal.position());
+    }
+
+    @Override
+    public synchronized void shutdown() throws Exception {
+        if (journal != null) {
+            journal.force();
+            journal = null;
+        }
+        if (journalFile != null) {
+            journalFile.close();
+            journalFile = null;
+        }
+        if (lock != null) {
+            lock.release();
+            lock = null;
+        }
+        if (lockFile != null) {
+            lockFile.close();
+            lockFile = null;
+        }
+        entries.clear();
+        liveSize = 0;
+    }
+
+    private void checkInitialized() {
+        if (journal == null) {
+            throw new JabatRuntimeException("Checkpoint store is not initialized");
+        }
+    }
+
+    @Override
+    public synchronized void store(long stepExecutionId, byte[] readerData, byte[] writerData) throws Exception {
+        checkInitialized();
+        Entry entry = new Entry(readerData, writerData);
+        ensureCapacity(entry.getRecordSize());
+        write(journal, CHECKPOINT_RECORD, stepExecutionId, readerData, writerData);
+        if (sync) {
+            journal.force();
+        }
+        Entry old = entries.put(stepExecutionId, entry);
+        liveSize += entry.getRecordSize();
+        if (old != null) {
+            liveSize -= old.getRecordSize();
+        }
+    }
+
+    @Override
+    public synchronized CheckpointRecord load(long stepExecutionId) throws Exception {
+        checkInitialized();
+        Entry entry = entries.get(stepExecutionId);
+        if (entry == null) {
+            return null;
+        }
+        return new CheckpointRecord(stepExecutionId, entry.readerData, entry.writerData);
+    }
+
+    @Override
+    public synchronized void remove(long stepExecutionId) throws Exception {
+        checkInitialized();
+        Entry old = entries.remove(stepExecutionId);
+        if (old == null) {
+            return;
+        }
+        liveSize -= old.getRecordSize();
+        // not forced, a checkpoint of a completed step execution is harmless
+        ensureCapacity(RECORD_OVERHEAD);
+        write(journal, REMOVAL_RECORD, stepExecutionId, null, null);
+    }
+
+}
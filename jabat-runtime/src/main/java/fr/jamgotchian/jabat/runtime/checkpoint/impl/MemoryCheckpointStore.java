@@ -0,0 +1,62 @@
+/*
+ * Copyright 2013 Geoffroy Jamgotchian <geoffroy.jamgotchian at gmail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.jamgotchian.jabat.runtime.checkpoint.impl;
+
+import fr.jamgotchian.jabat.runtime.checkpoint.CheckpointRecord;
+import fr.jamgotchian.jabat.runtime.checkpoint.CheckpointStore;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * A checkpoint store keeping the checkpoint data in memory, for as long as
+ * the container runs. It is the default store, its checkpoints have the same
+ * lifetime as the step executions of the default in-memory job repository.
+ *
+ * @author Geoffroy Jamgotchian <geoffroy.jamgotchian at gmail.com>
+ */
+public class MemoryCheckpointStore implements CheckpointStore {
+
+    private final ConcurrentMap<Long, CheckpointRecord> records = new ConcurrentHashMap<Long, CheckpointRecord>();
+
+    public MemoryCheckpointStore() {
+    }
+
+    @Override
+    public void initialize(Properties configuration) throws Exception {
+    }
+
+    @Override
+    public void shutdown() throws Exception {
+        records.clear();
+    }
+
+    @Override
+    public void store(long stepExecutionId, byte[] readerData, byte[] writerData) throws Exception {
+        records.put(stepExecutionId, new CheckpointRecord(stepExecutionId, readerData, writerData));
+    }
+
+    @Override
+    public CheckpointRecord load(long stepExecutionId) throws Exception {
+        return records.get(stepExecutionId);
+    }
+
+    @Override
+    public void remove(long stepExecutionId) throws Exception {
+        records.remove(stepExecutionId);
+    }
+
+}
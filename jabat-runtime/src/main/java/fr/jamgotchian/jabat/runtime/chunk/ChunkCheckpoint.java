@@ -0,0 +1,77 @@
+/*
+ * Copyright 2013 Geoffroy Jamgotchian <geoffroy.jamgotchian at gmail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.jamgotchian.jabat.runtime.chunk;
+
+import fr.jamgotchian.jabat.runtime.checkpoint.CheckpointCodec;
+import fr.jamgotchian.jabat.runtime.checkpoint.CheckpointStore;
+import fr.jamgotchian.jabat.runtime.checkpoint.impl.CompactCheckpointCodec;
+
+/**
+ * Reader and writer checkpoint data of the last committed chunk.
+ *
+ * When a checkpoint store is given, the checkpoint data is made durable
+ * each time it is updated, unless the encoded data of both reader and writer
+ * is the one of the previous checkpoint.
+ *
+ * @author Geoffroy Jamgotchian <geoffroy.jamgotchian at gmail.com>
+ */
+public class ChunkCheckpoint {
+
+    private byte[] readerData;
+
+    private byte[] writerData;
+
+    private final long stepExecutionId;
+
+    private final CheckpointStore store;
+
+    private final CheckpointCodec codec;
+
+    public ChunkCheckpoint() {
+        this(-1, null, new CompactCheckpointCodec());
+    }
+
+    public ChunkCheckpoint(long stepExecutionId, CheckpointStore store, CheckpointCodec codec) {
+        this.stepExecutionId = stepExecutionId;
+        this.store = store;
+        this.codec = codec;
+    }
+
+    public CheckpointCodec getCodec() {
+        return codec;
+    }
+
+    public synchronized byte[] getReaderData() {
+        return readerData;
+    }
+
+    public synchronized byte[] getWriterData() {
+        return writerData;
+    }
+
+    public synchronized void update(byte[] readerData, byte[] writerData) throws Exception {
+        // the codec returns the previous data when the encoding has not changed
+        if (readerData == this.readerData && writerData == this.writerData) {
+            return;
+        }
+        if (store != null) {
+            store.store(stepExecutionId, readerData, writerData);
+        }
+        this.readerData = readerData;
+        this.writerData = writerData;
+    }
+
+}
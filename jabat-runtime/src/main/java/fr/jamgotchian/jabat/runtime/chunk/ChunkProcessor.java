@@ -0,0 +1,391 @@
+/*
+ * Copyright 2013 Geoffroy Jamgotchian <geoffroy.jamgotchian at gmail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.jamgotchian.jabat.runtime.chunk;
+
+import fr.jamgotchian.jabat.jobxml.model.ChunkStep;
+import fr.jamgotchian.jabat.runtime.checkpoint.BuiltInCheckpointAlgorithm;
+import fr.jamgotchian.jabat.runtime.metric.ChunkPhase;
+import fr.jamgotchian.jabat.runtime.metric.StepMetrics.PartitionMetrics;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import javax.batch.api.CheckpointAlgorithm;
+import javax.batch.api.ItemProcessor;
+import javax.batch.api.ItemReader;
+import javax.batch.api.ItemWriter;
+import javax.batch.runtime.Metric.MetricName;
+import javax.batch.runtime.spi.TransactionManagerSPI;
+
+/**
+ * Read, process and write the items of an opened reader and writer, one
+ * transaction per chunk.
+ *
+ * Items for which the processor returns null are filtered, they are not
+ * written. Read, filter, write, skip, commit and rollback counts are
+ * maintained in the metrics of the partition, as well as the latency of each
+ * phase when enabled for the step.
+ *
+ * A read, a process or a write failing with a retryable exception is retried.
+ * Unless the exception is a no-rollback one, the transaction is rolled back
+ * first and the items already written by the chunk are written again from
+ * memory, the reader is not reopened. A read or a process failing with a
+ * skippable exception skips the item. A write failing with a skippable
+ * exception starts a scan of the items of the chunk: they are written again
+ * by halves, down to the items which cannot be written, that are skipped. The
+ * scan is done in the transaction of the chunk, the items written by the
+ * scan are committed with the rest of the chunk and its checkpoint. However
+ * many times a chunk is rolled back to be retried or scanned, it is counted
+ * as one rollback, and the checkpoint algorithm is notified once.
+ *
+ * A stop request is checked after each item: the items read so far are
+ * written and committed with the checkpoint, so that a restart resumes from
+ * there, and the processing ends.
+ *
+ * @author Geoffroy Jamgotchian <geoffroy.jamgotchian at gmail.com>
+ */
+public abstract class ChunkProcessor {
+
+    protected final ChunkStep step;
+
+    protected final ItemReader reader;
+
+    protected final ItemProcessor processor;
+
+    protected final ItemWriter writer;
+
+    protected final CheckpointAlgorithm algorithm;
+
+    protected final TransactionManagerSPI transaction;
+
+    protected final ChunkCheckpoint checkpoint;
+
+    protected final PartitionMetrics metrics;
+
+    protected final SkipRetryHandler skipRetryHandler;
+
+    private final boolean latencyRecorded;
+
+    /* the checkpoint algorithm if it is a built-in one, to be notified of
+       reads, commits and rollbacks */
+    private final BuiltInCheckpointAlgorithm builtInAlgorithm;
+
+    /* items written in the current transaction, written again when it is
+       rolled back to retry a failed operation */
+    private final List<Object> writtenItems = new ArrayList<Object>();
+
+    /* true once the rollback of the current chunk has been counted, a chunk
+       rolled back several times to be retried or scanned counts once */
+    private boolean rollbackCounted = false;
+
+    private volatile boolean stopRequested = false;
+
+    private volatile boolean stopped = false;
+
+    protected ChunkProcessor(ChunkStep step, ItemReader reader, ItemProcessor processor,
+                             ItemWriter writer, CheckpointAlgorithm algorithm,
+                             TransactionManagerSPI transaction, ChunkCheckpoint checkpoint,
+                             PartitionMetrics metrics, SkipRetryHandler skipRetryHandler) {
+        this.step = step;
+        this.reader = reader;
+        this.processor = processor;
+        this.writer = writer;
+        this.algorithm = algorithm;
+        this.transaction = transaction;
+        this.checkpoint = checkpoint;
+        this.metrics = metrics;
+        this.skipRetryHandler = skipRetryHandler;
+        latencyRecorded = metrics.isLatencyRecorded();
+        builtInAlgorithm = algorithm instanceof BuiltInCheckpointAlgorithm
+                ? (BuiltInCheckpointAlgorithm) algorithm : null;
+    }
+
+    private long startTime() {
+        return latencyRecorded ? System.nanoTime() : 0;
+    }
+
+    private void recordLatency(ChunkPhase phase, long startTime) {
+        if (latencyRecorded) {
+            metrics.recordLatency(phase, System.nanoTime() - startTime);
+        }
+    }
+
+    /**
+     * Check whether the transaction can be rolled back and the chunk replayed
+     * from the thread reading and processing items.
+     */
+    protected boolean isReplaySupported() {
+        return true;
+    }
+
+    /**
+     * Roll back the transaction and write again, in a new transaction, the
+     * items already written by the chunk.
+     */
+    private void replay() throws Exception {
+        List<Object> items = new ArrayList<Object>(writtenItems);
+        undo();
+        countRollback();
+        transaction.begin();
+        if (items.size() > 0) {
+            writer.writeItems(Collections.unmodifiableList(items));
+            writtenItems.addAll(items);
+        }
+    }
+
+    /**
+     * Read an item, null meaning the reader is exhausted.
+     */
+    protected Object readItem() throws Exception {
+        int attempt = 0;
+        while (true) {
+            long startTime = startTime();
+            Object item;
+            try {
+                item = reader.readItem();
+            } catch (Exception e) {
+                if (skipRetryHandler.retry(e)) {
+                    skipRetryHandler.onRetryRead(e);
+                    skipRetryHandler.backoff(++attempt);
+                    if (isReplaySupported() && !skipRetryHandler.isNoRollback(e)) {
+                        replay();
+                    }
+                    continue;
+                }
+                if (skipRetryHandler.skip(e)) {
+                    metrics.increment(MetricName.READSKIPCOUNT);
+                    skipRetryHandler.onSkipRead(e);
+                    continue;
+                }
+                throw e;
+            }
+            recordLatency(ChunkPhase.READ, startTime);
+            if (item != null) {
+                metrics.increment(MetricName.READCOUNT);
+                if (builtInAlgorithm != null) {
+                    builtInAlgorithm.itemRead(item);
+                }
+            }
+            return item;
+        }
+    }
+
+    /**
+     * Process an item, a null result meaning the item is filtered or skipped.
+     */
+    protected Object processItem(Object item) throws Exception {
+        return processItem(item, null);
+    }
+
+    /**
+     * Process an item whose processing may have already failed, a null result
+     * meaning the item is filtered or skipped.
+     *
+     * @param item the item
+     * @param failure the exception thrown by a previous processing of the
+     *        item, null if it has not been processed yet
+     */
+    protected Object processItem(Object item, Exception failure) throws Exception {
+        int attempt = 0;
+        while (true) {
+            if (failure != null) {
+                if (skipRetryHandler.retry(failure)) {
+                    skipRetryHandler.onRetryProcess(item, failure);
+                    skipRetryHandler.backoff(++attempt);
+                    if (isReplaySupported() && !skipRetryHandler.isNoRollback(failure)) {
+                        replay();
+                    }
+                    failure = null;
+                } else if (skipRetryHandler.skip(failure)) {
+                    metrics.increment(MetricName.PROCESSSKIPCOUNT);
+                    skipRetryHandler.onSkipProcess(item, failure);
+                    return null;
+                } else {
+                    throw failure;
+                }
+            }
+            long startTime = startTime();
+            Object result;
+            try {
+                result = processor.processItem(item);
+            } catch (Exception e) {
+                failure = e;
+                continue;
+            }
+            recordLatency(ChunkPhase.PROCESS, startTime);
+            if (result == null) {
+                metrics.increment(MetricName.FILTERCOUNT);
+            }
+            return result;
+        }
+    }
+
+    protected void writeItems(List<Object> items) throws Exception {
+        int attempt = 0;
+        while (true) {
+            long startTime = startTime();
+            try {
+                writer.writeItems(Collections.unmodifiableList(items));
+            } catch (Exception e) {
+                if (skipRetryHandler.retry(e)) {
+                    skipRetryHandler.onRetryWrite(Collections.unmodifiableList(items), e);
+                    skipRetryHandler.backoff(++attempt);
+                    if (!skipRetryHandler.isNoRollback(e)) {
+                        replay();
+                    }
+                    continue;
+                }
+                if (skipRetryHandler.isSkippable(e)) {
+                    scan(items);
+                    return;
+                }
+                throw e;
+            }
+            recordLatency(ChunkPhase.WRITE, startTime);
+            metrics.add(MetricName.WRITECOUNT, items.size());
+            writtenItems.addAll(items);
+            return;
+        }
+    }
+
+    /**
+     * Isolate the items of the chunk which cannot be written. The transaction
+     * is rolled back and the items already written by the chunk, and the ones
+     * which have failed, are written again by halves in the transaction of
+     * the chunk, so that they are committed with its checkpoint. A half which
+     * fails is undone by rolling back and writing again the items which have
+     * succeeded so far.
+     */
+    private void scan(List<Object> items) throws Exception {
+        // the items already written by the chunk have already been counted
+        int countedItems = writtenItems.size();
+        List<Object> chunkItems = new ArrayList<Object>(writtenItems);
+        chunkItems.addAll(items);
+        undo();
+        countRollback();
+        transaction.begin();
+        scanItems(chunkItems);
+        metrics.add(MetricName.WRITECOUNT, writtenItems.size() - countedItems);
+    }
+
+    private void scanItems(List<Object> items) throws Exception {
+        try {
+            writer.writeItems(Collections.unmodifiableList(items));
+        } catch (Exception e) {
+            // the rollback is already counted by the scan
+            replay();
+            if (items.size() == 1) {
+                if (!skipRetryHandler.skip(e)) {
+                    throw e;
+                }
+                metrics.increment(MetricName.WRITESKIPCOUNT);
+                skipRetryHandler.onSkipWrite(Collections.unmodifiableList(items), e);
+            } else {
+                int middle = items.size() / 2;
+                scanItems(items.subList(0, middle));
+                scanItems(items.subList(middle, items.size()));
+            }
+            return;
+        }
+        writtenItems.addAll(items);
+    }
+
+    protected byte[] getReaderCheckpointData() throws Exception {
+        long startTime = startTime();
+        byte[] data = checkpoint.getCodec().encode(reader.checkpointInfo(), checkpoint.getReaderData());
+        recordLatency(ChunkPhase.CHECKPOINT, startTime);
+        return data;
+    }
+
+    protected byte[] getWriterCheckpointData() throws Exception {
+        long startTime = startTime();
+        byte[] data = checkpoint.getCodec().encode(writer.checkpointInfo(), checkpoint.getWriterData());
+        recordLatency(ChunkPhase.CHECKPOINT, startTime);
+        return data;
+    }
+
+    protected void commit() throws Exception {
+        long startTime = startTime();
+        transaction.commit();
+        recordLatency(ChunkPhase.COMMIT, startTime);
+        writtenItems.clear();
+        rollbackCounted = false;
+        metrics.increment(MetricName.COMMITCOUNT);
+        if (builtInAlgorithm != null) {
+            builtInAlgorithm.committed();
+        }
+    }
+
+    protected void rollback() throws Exception {
+        undo();
+        countRollback();
+        rollbackCounted = false;
+    }
+
+    /**
+     * Roll back the transaction, without counting it.
+     */
+    private void undo() throws Exception {
+        transaction.rollback();
+        writtenItems.clear();
+    }
+
+    /**
+     * Count the rollback of the current chunk, only once per chunk.
+     */
+    private void countRollback() {
+        if (!rollbackCounted) {
+            rollbackCounted = true;
+            metrics.increment(MetricName.ROLLBACKCOUNT);
+            if (builtInAlgorithm != null) {
+                builtInAlgorithm.rolledBack();
+            }
+        }
+    }
+
+    /**
+     * Request the processing to stop at the next item boundary, can be called
+     * from any thread.
+     */
+    public void stop() {
+        stopRequested = true;
+    }
+
+    protected boolean isStopRequested() {
+        return stopRequested;
+    }
+
+    /**
+     * Check whether the last processing has ended because of a stop request
+     * instead of the exhaustion of the reader.
+     */
+    public boolean isStopped() {
+        return stopped;
+    }
+
+    protected void setStopped() {
+        stopped = true;
+    }
+
+    /**
+     * Process items until the reader is exhausted or a stop is requested. The
+     * checkpoint is updated each time a chunk is committed, the current
+     * transaction is rolled back in case of failure.
+     *
+     * @throws Exception
+     */
+    public abstract void process() throws Exception;
+
+}
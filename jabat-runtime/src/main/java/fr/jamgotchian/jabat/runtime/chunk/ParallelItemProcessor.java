@@ -0,0 +1,160 @@
+/*
+ * Copyright 2013 Geoffroy Jamgotchian <geoffroy.jamgotchian at gmail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.jamgotchian.jabat.runtime.chunk;
+
+import fr.jamgotchian.jabat.runtime.context.JabatJobContext;
+import fr.jamgotchian.jabat.runtime.context.JabatStepContext;
+import fr.jamgotchian.jabat.runtime.context.ThreadContext;
+import fr.jamgotchian.jabat.runtime.metric.ChunkPhase;
+import fr.jamgotchian.jabat.runtime.metric.StepMetrics.PartitionMetrics;
+import fr.jamgotchian.jabat.runtime.task.AbstractTaskResultListener;
+import fr.jamgotchian.jabat.runtime.task.TaskManager;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import javax.batch.api.ItemProcessor;
+
+/**
+ * Process a list of items on a pool of processor instances, one thread per
+ * instance.
+ *
+ * Items are split in contiguous slices, each slice being processed in read
+ * order by its own instance, so results are reassembled in read order. An item
+ * whose processing fails does not stop its slice, the failures are handed, in
+ * read order, to a failure handler on the calling thread.
+ *
+ * @author Geoffroy Jamgotchian <geoffroy.jamgotchian at gmail.com>
+ */
+public class ParallelItemProcessor {
+
+    private final ItemProcessor[] processors;
+
+    private final TaskManager taskManager;
+
+    private final PartitionMetrics metrics;
+
+    /**
+     * Handle the failure of the processing of an item, on the calling thread.
+     */
+    public interface FailureHandler {
+
+        /**
+         * @param item the item
+         * @param failure the exception thrown by the processing of the item
+         * @return the result of the item, null if it is filtered or skipped
+         */
+        Object onFailure(Object item, Exception failure) throws Exception;
+
+    }
+
+    public ParallelItemProcessor(ItemProcessor[] processors, TaskManager taskManager,
+                                 PartitionMetrics metrics) {
+        if (processors.length < 1) {
+            throw new IllegalArgumentException("At least one processor instance is expected");
+        }
+        this.processors = processors;
+        this.taskManager = taskManager;
+        this.metrics = metrics;
+    }
+
+    /**
+     * Process items and append the non null results, in read order.
+     *
+     * @return the number of filtered items, the ones for which a null result
+     *         has been returned, the results of failed items given by the
+     *         failure handler are not counted
+     */
+    public int processItems(final List<Object> items, List<Object> results,
+                            FailureHandler failureHandler) throws Exception {
+        if (items.isEmpty()) {
+            return 0;
+        }
+
+        final JabatJobContext jobContext = ThreadContext.getInstance().getJobContext();
+        final JabatStepContext stepContext = ThreadContext.getInstance().getStepContext();
+
+        int sliceCount = Math.min(processors.length, items.size());
+        final Object[] processed = new Object[items.size()];
+        final Exception[] itemFailures = new Exception[items.size()];
+        final Throwable[] failures = new Throwable[sliceCount];
+
+        List<Callable<Void>> tasks = new ArrayList<Callable<Void>>(sliceCount);
+        for (int i = 0; i < sliceCount; i++) {
+            final int slice = i;
+            final ItemProcessor processor = processors[i];
+            final int from = i * items.size() / sliceCount;
+            final int to = (i + 1) * items.size() / sliceCount;
+
+            tasks.add(new Callable<Void>() {
+
+                @Override
+                public Void call() throws Exception {
+                    // transfer the job and step contexts to the processing thread
+                    ThreadContext.getInstance().setJobContext(jobContext);
+                    ThreadContext.getInstance().setStepContext(stepContext);
+                    try {
+                        boolean latencyRecorded = metrics.isLatencyRecorded();
+                        for (int j = from; j < to; j++) {
+                            long startTime = latencyRecorded ? System.nanoTime() : 0;
+                            try {
+                                processed[j] = processor.processItem(items.get(j));
+                            } catch (Exception e) {
+                                itemFailures[j] = e;
+                                continue;
+                            }
+                            if (latencyRecorded) {
+                                metrics.recordLatency(ChunkPhase.PROCESS, System.nanoTime() - startTime);
+                            }
+                        }
+                    } catch (Throwable t) {
+                        failures[slice] = t;
+                    } finally {
+                        ThreadContext.getInstance().removeStepContext();
+                        ThreadContext.getInstance().removeJobContext();
+                    }
+                    return null;
+                }
+            });
+        }
+
+        taskManager.submitAndWait(tasks, sliceCount, new AbstractTaskResultListener<Void>());
+
+        for (Throwable failure : failures) {
+            if (failure instanceof Exception) {
+                throw (Exception) failure;
+            } else if (failure instanceof Error) {
+                throw (Error) failure;
+            }
+        }
+
+        int filtered = 0;
+        for (int j = 0; j < processed.length; j++) {
+            if (itemFailures[j] != null) {
+                Object result = failureHandler.onFailure(items.get(j), itemFailures[j]);
+                if (result != null) {
+                    results.add(result);
+                }
+            } else if (processed[j] != null) {
+                results.add(processed[j]);
+            } else {
+                filtered++;
+            }
+        }
+        items.clear();
+        return filtered;
+    }
+
+}
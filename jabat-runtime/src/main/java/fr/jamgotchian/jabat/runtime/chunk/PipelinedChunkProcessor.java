@@ -0,0 +1,318 @@
+/*
+ * Copyright 2013 Geoffroy Jamgotchian <geoffroy.jamgotchian at gmail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.jamgotchian.jabat.runtime.chunk;
+
+import fr.jamgotchian.jabat.jobxml.model.ChunkStep;
+import fr.jamgotchian.jabat.runtime.context.JabatJobContext;
+import fr.jamgotchian.jabat.runtime.context.JabatStepContext;
+import fr.jamgotchian.jabat.runtime.context.ThreadContext;
+import fr.jamgotchian.jabat.runtime.metric.StepMetrics.PartitionMetrics;
+import fr.jamgotchian.jabat.runtime.task.TaskManager;
+import fr.jamgotchian.jabat.runtime.task.TaskResultListener;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import javax.batch.api.CheckpointAlgorithm;
+import javax.batch.api.ItemProcessor;
+import javax.batch.api.ItemReader;
+import javax.batch.api.ItemWriter;
+import javax.batch.runtime.spi.TransactionManagerSPI;
+
+/**
+ * Read, process and write items on three threads connected by bounded queues.
+ *
+ * Checkpoint boundaries are decided by the read stage and travel through the
+ * queues as markers carrying the reader checkpoint data, so that the write
+ * stage only commits, and updates the checkpoint, once every item read before
+ * the marker has been written. A stop request is handled by the read stage,
+ * which ends the stream with a last marker.
+ *
+ * @author Geoffroy Jamgotchian <geoffroy.jamgotchian at gmail.com>
+ */
+public class PipelinedChunkProcessor extends ChunkProcessor {
+
+    private static final long POLL_TIMEOUT = 100; // ms
+
+    /* marks the end of the items */
+    private static final Object END_OF_STREAM = new Object();
+
+    private static class CheckpointMarker {
+
+        private final byte[] readerChkptData;
+
+        private CheckpointMarker(byte[] readerChkptData) {
+            this.readerChkptData = readerChkptData;
+        }
+
+    }
+
+    /* thrown by a stage when another stage has failed */
+    private static class PipelineAbortedException extends Exception {
+    }
+
+    private final TaskManager taskManager;
+
+    private volatile boolean aborted;
+
+    public PipelinedChunkProcessor(ChunkStep step, ItemReader reader, ItemProcessor processor,
+                                   ItemWriter writer, CheckpointAlgorithm algorithm,
+                                   TransactionManagerSPI transaction, ChunkCheckpoint checkpoint,
+                                   PartitionMetrics metrics, SkipRetryHandler skipRetryHandler,
+                                   TaskManager taskManager) {
+        super(step, reader, processor, writer, algorithm, transaction, checkpoint, metrics,
+              skipRetryHandler);
+        this.taskManager = taskManager;
+    }
+
+    /**
+     * Items are read and processed on other threads than the one owning the
+     * transaction, so read and process retries are done without rollback.
+     */
+    @Override
+    protected boolean isReplaySupported() {
+        return false;
+    }
+
+    private void put(BlockingQueue<Object> queue, Object obj) throws Exception {
+        try {
+            while (!queue.offer(obj, POLL_TIMEOUT, TimeUnit.MILLISECONDS)) {
+                if (aborted) {
+                    throw new PipelineAbortedException();
+                }
+            }
+        } catch (InterruptedException e) {
+            throw aborted ? new PipelineAbortedException() : e;
+        }
+    }
+
+    private Object take(BlockingQueue<Object> queue) throws Exception {
+        try {
+            Object obj;
+            while ((obj = queue.poll(POLL_TIMEOUT, TimeUnit.MILLISECONDS)) == null) {
+                if (aborted) {
+                    throw new PipelineAbortedException();
+                }
+            }
+            return obj;
+        } catch (InterruptedException e) {
+            // the other stages are cancelled by the task manager on the first
+            // failure
+            throw aborted ? new PipelineAbortedException() : e;
+        }
+    }
+
+    private void readItems(BlockingQueue<Object> out) throws Exception {
+        algorithm.beginCheckpoint();
+        try {
+            Object item;
+            while ((item = readItem()) != null) {
+                put(out, item);
+
+                if (algorithm.isReadyToCheckpoint()) {
+                    algorithm.endCheckpoint();
+                    put(out, new CheckpointMarker(getReaderCheckpointData()));
+                    algorithm.beginCheckpoint();
+                }
+
+                // on stop, the items read so far are committed with the
+                // checkpoint by the write stage
+                if (isStopRequested()) {
+                    setStopped();
+                    put(out, new CheckpointMarker(getReaderCheckpointData()));
+                    break;
+                }
+            }
+        } finally {
+            algorithm.endCheckpoint();
+        }
+        put(out, END_OF_STREAM);
+    }
+
+    private void processItems(BlockingQueue<Object> in, BlockingQueue<Object> out) throws Exception {
+        Object obj;
+        while ((obj = take(in)) != END_OF_STREAM) {
+            if (obj instanceof CheckpointMarker) {
+                put(out, obj);
+            } else {
+                Object result = processItem(obj);
+                if (result != null) {
+                    put(out, result);
+                }
+            }
+        }
+        put(out, END_OF_STREAM);
+    }
+
+    private void flush(List<Object> buffer) throws Exception {
+        if (buffer.size() > 0) {
+            writeItems(buffer);
+            buffer.clear();
+        }
+    }
+
+    private void writeItems(BlockingQueue<Object> in) throws Exception {
+        boolean committed = false;
+        transaction.begin();
+        try {
+            List<Object> buffer = new ArrayList<Object>(step.getBufferSize());
+            Object obj;
+            while ((obj = take(in)) != END_OF_STREAM) {
+                if (obj instanceof CheckpointMarker) {
+                    // all the items read before the marker have to be written
+                    // before committing
+                    flush(buffer);
+                    byte[] writerChkptData = getWriterCheckpointData();
+
+                    commit();
+                    checkpoint.update(((CheckpointMarker) obj).readerChkptData, writerChkptData);
+
+                    transaction.begin();
+                } else {
+                    buffer.add(obj);
+                    if (buffer.size() >= step.getBufferSize()) {
+                        flush(buffer);
+                    }
+                }
+            }
+            // write remaining items
+            flush(buffer);
+            commit();
+            committed = true;
+        } finally {
+            if (!committed) {
+                rollback();
+            }
+        }
+    }
+
+    /**
+     * A stage waits for the other stages during its whole run, so the run is
+     * declared to a fork/join pool as a managed block: the stage does not pin
+     * a thread of the pool the other stages may need to make progress.
+     */
+    private abstract class Stage implements Callable<Void>, ForkJoinPool.ManagedBlocker {
+
+        private final JabatJobContext jobContext;
+
+        private final JabatStepContext stepContext;
+
+        private boolean done = false;
+
+        private Exception failure;
+
+        private Stage() {
+            jobContext = ThreadContext.getInstance().getJobContext();
+            stepContext = ThreadContext.getInstance().getStepContext();
+        }
+
+        protected abstract void run() throws Exception;
+
+        @Override
+        public boolean block() throws InterruptedException {
+            try {
+                run();
+            } catch (Exception e) {
+                failure = e;
+            }
+            done = true;
+            return true;
+        }
+
+        @Override
+        public boolean isReleasable() {
+            return done;
+        }
+
+        @Override
+        public Void call() throws Exception {
+            // transfer the job and step contexts to the stage thread
+            ThreadContext.getInstance().setJobContext(jobContext);
+            ThreadContext.getInstance().setStepContext(stepContext);
+            boolean succeeded = false;
+            try {
+                ForkJoinPool.managedBlock(this);
+                if (failure != null) {
+                    throw failure;
+                }
+                succeeded = true;
+            } finally {
+                if (!succeeded) {
+                    // make the other stages give up
+                    aborted = true;
+                }
+                ThreadContext.getInstance().removeStepContext();
+                ThreadContext.getInstance().removeJobContext();
+            }
+            return null;
+        }
+    }
+
+    @Override
+    public void process() throws Exception {
+        aborted = false;
+
+        final BlockingQueue<Object> readQueue = new ArrayBlockingQueue<Object>(step.getBufferSize());
+        final BlockingQueue<Object> processQueue = new ArrayBlockingQueue<Object>(step.getBufferSize());
+
+        List<Callable<Void>> stages = new ArrayList<Callable<Void>>(3);
+        stages.add(new Stage() {
+            @Override
+            protected void run() throws Exception {
+                readItems(readQueue);
+            }
+        });
+        stages.add(new Stage() {
+            @Override
+            protected void run() throws Exception {
+                processItems(readQueue, processQueue);
+            }
+        });
+        stages.add(new Stage() {
+            @Override
+            protected void run() throws Exception {
+                writeItems(processQueue);
+            }
+        });
+
+        final Throwable[] failure = new Throwable[1];
+
+        taskManager.submitAndWait(stages, stages.size(), new TaskResultListener<Void>() {
+
+            @Override
+            public void onSuccess(Void result) {
+            }
+
+            @Override
+            public void onFailure(Throwable thrown) {
+                // keep the root cause, not the consequences on the other stages
+                if (failure[0] == null || failure[0] instanceof PipelineAbortedException) {
+                    failure[0] = thrown;
+                }
+            }
+        });
+
+        if (failure[0] instanceof Exception) {
+            throw (Exception) failure[0];
+        } else if (failure[0] instanceof Error) {
+            throw (Error) failure[0];
+        }
+    }
+
+}
@@ -0,0 +1,158 @@
+/*
+ * Copyright 2013 Geoffroy Jamgotchian <geoffroy.jamgotchian at gmail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.jamgotchian.jabat.runtime.chunk;
+
+import fr.jamgotchian.jabat.jobxml.model.ChunkStep;
+import fr.jamgotchian.jabat.runtime.metric.StepMetrics.PartitionMetrics;
+import java.util.ArrayList;
+import java.util.List;
+import javax.batch.api.CheckpointAlgorithm;
+import javax.batch.api.ItemProcessor;
+import javax.batch.api.ItemReader;
+import javax.batch.api.ItemWriter;
+import javax.batch.runtime.Metric.MetricName;
+import javax.batch.runtime.spi.TransactionManagerSPI;
+
+/**
+ * Read, process and write items one after another on the calling thread.
+ *
+ * When a parallel item processor is given, read items are accumulated and
+ * processed all together just before the next checkpoint or write.
+ *
+ * @author Geoffroy Jamgotchian <geoffroy.jamgotchian at gmail.com>
+ */
+public class SerialChunkProcessor extends ChunkProcessor {
+
+    private final ParallelItemProcessor parallelProcessor;
+
+    public SerialChunkProcessor(ChunkStep step, ItemReader reader, ItemProcessor processor,
+                                ItemWriter writer, CheckpointAlgorithm algorithm,
+                                TransactionManagerSPI transaction, ChunkCheckpoint checkpoint,
+                                PartitionMetrics metrics, SkipRetryHandler skipRetryHandler) {
+        this(step, reader, processor, writer, algorithm, transaction, checkpoint, metrics,
+             skipRetryHandler, null);
+    }
+
+    public SerialChunkProcessor(ChunkStep step, ItemReader reader, ItemProcessor processor,
+                                ItemWriter writer, CheckpointAlgorithm algorithm,
+                                TransactionManagerSPI transaction, ChunkCheckpoint checkpoint,
+                                PartitionMetrics metrics, SkipRetryHandler skipRetryHandler,
+                                ParallelItemProcessor parallelProcessor) {
+        super(step, reader, processor, writer, algorithm, transaction, checkpoint, metrics,
+              skipRetryHandler);
+        this.parallelProcessor = parallelProcessor;
+    }
+
+    /* failed items are processed again, or skipped, on the chunk thread */
+    private final ParallelItemProcessor.FailureHandler failureHandler
+            = new ParallelItemProcessor.FailureHandler() {
+
+        @Override
+        public Object onFailure(Object item, Exception failure) throws Exception {
+            return processItem(item, failure);
+        }
+    };
+
+    private void processPendingItems(List<Object> items, List<Object> buffer) throws Exception {
+        if (parallelProcessor != null) {
+            metrics.add(MetricName.FILTERCOUNT, parallelProcessor.processItems(items, buffer, failureHandler));
+        }
+    }
+
+    @Override
+    public void process() throws Exception {
+        boolean committed = false;
+        byte[] readerChkptData = null;
+        byte[] writerChkptData = null;
+        transaction.begin();
+        try {
+            algorithm.beginCheckpoint();
+            try {
+                // chunk processing
+                Object item;
+                List<Object> buffer = new ArrayList<Object>(step.getBufferSize());
+                // items read but not yet processed
+                List<Object> items = new ArrayList<Object>(step.getBufferSize());
+                while ((item = readItem()) != null) {
+                    if (parallelProcessor != null) {
+                        items.add(item);
+                    } else {
+                        Object result = processItem(item);
+                        if (result != null) {
+                            buffer.add(result);
+                        }
+                    }
+
+                    if (algorithm.isReadyToCheckpoint()) {
+                        processPendingItems(items, buffer);
+
+                        // all the items of the chunk have to be written
+                        // before committing
+                        if (buffer.size() > 0) {
+                            writeItems(buffer);
+                            buffer.clear();
+                        }
+
+                        readerChkptData = getReaderCheckpointData();
+                        writerChkptData = getWriterCheckpointData();
+
+                        algorithm.endCheckpoint();
+                        commit();
+                        checkpoint.update(readerChkptData, writerChkptData);
+
+                        transaction.begin();
+                        algorithm.beginCheckpoint();
+                    }
+
+                    // write items if buffer size is zero or the buffer reaches
+                    // the maximum size
+                    if (step.getBufferSize() == 0 || buffer.size() + items.size() > step.getBufferSize()) {
+                        processPendingItems(items, buffer);
+                        writeItems(buffer);
+                        buffer.clear();
+                    }
+
+                    if (isStopRequested()) {
+                        setStopped();
+                        break;
+                    }
+                }
+                // write remaining items
+                processPendingItems(items, buffer);
+                if (buffer.size() > 0) {
+                    writeItems(buffer);
+                }
+                // on stop, the step will be resumed from the last item read
+                if (isStopped()) {
+                    readerChkptData = getReaderCheckpointData();
+                    writerChkptData = getWriterCheckpointData();
+                }
+            } finally {
+                algorithm.endCheckpoint();
+            }
+            commit();
+            committed = true;
+            if (isStopped()) {
+                checkpoint.update(readerChkptData, writerChkptData);
+            }
+        } finally {
+            if (!committed) {
+                rollback();
+            }
+        }
+    }
+
+}
@@ -0,0 +1,216 @@
+/*
+ * Copyright 2013 Geoffroy Jamgotchian <geoffroy.jamgotchian at gmail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.jamgotchian.jabat.runtime.chunk;
+
+import com.google.common.collect.Lists;
+import fr.jamgotchian.jabat.jobxml.model.ChunkStep;
+import fr.jamgotchian.jabat.runtime.artifact.ArtifactContainer;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.batch.api.RetryProcessListener;
+import javax.batch.api.RetryReadListener;
+import javax.batch.api.RetryWriteListener;
+import javax.batch.api.SkipProcessListener;
+import javax.batch.api.SkipReadListener;
+import javax.batch.api.SkipWriteListener;
+
+/**
+ * Decide, for an exception thrown while reading, processing or writing an
+ * item, whether the operation is retried or the item skipped, according to the
+ * exception classes and limits of a chunk step, and notify the skip and retry
+ * listeners.
+ *
+ * Retrying takes precedence over skipping. Skip and retry counts are shared by
+ * all the chunks of the step and can be updated by several threads. The
+ * backoff before a retry is declared to a fork/join pool as a managed block so
+ * that it does not pin a thread of the pool.
+ *
+ * @author Geoffroy Jamgotchian <geoffroy.jamgotchian at gmail.com>
+ */
+public class SkipRetryHandler {
+
+    private static final long INITIAL_BACKOFF = TimeUnit.MILLISECONDS.toNanos(10);
+
+    private static final long MAX_BACKOFF = TimeUnit.SECONDS.toNanos(1);
+
+    private static class Sleeper implements ForkJoinPool.ManagedBlocker {
+
+        private final long deadline;
+
+        private Sleeper(long delay) {
+            deadline = System.nanoTime() + delay;
+        }
+
+        @Override
+        public boolean block() throws InterruptedException {
+            long remaining = deadline - System.nanoTime();
+            if (remaining > 0) {
+                TimeUnit.NANOSECONDS.sleep(remaining);
+            }
+            return true;
+        }
+
+        @Override
+        public boolean isReleasable() {
+            return System.nanoTime() >= deadline;
+        }
+    }
+
+    private final ChunkStep step;
+
+    private final AtomicInteger skipCount = new AtomicInteger();
+
+    private final AtomicInteger retryCount = new AtomicInteger();
+
+    private final List<SkipReadListener> skipReadListeners;
+
+    private final List<SkipProcessListener> skipProcessListeners;
+
+    private final List<SkipWriteListener> skipWriteListeners;
+
+    private final List<RetryReadListener> retryReadListeners;
+
+    private final List<RetryProcessListener> retryProcessListeners;
+
+    private final List<RetryWriteListener> retryWriteListeners;
+
+    /**
+     * @param step the chunk step
+     * @param container the artifact container the listeners of the step have
+     *        been created in, null if there is no listener
+     */
+    public SkipRetryHandler(ChunkStep step, ArtifactContainer container) {
+        this.step = step;
+        if (container != null) {
+            skipReadListeners = Lists.newArrayList(container.get(SkipReadListener.class));
+            skipProcessListeners = Lists.newArrayList(container.get(SkipProcessListener.class));
+            skipWriteListeners = Lists.newArrayList(container.get(SkipWriteListener.class));
+            retryReadListeners = Lists.newArrayList(container.get(RetryReadListener.class));
+            retryProcessListeners = Lists.newArrayList(container.get(RetryProcessListener.class));
+            retryWriteListeners = Lists.newArrayList(container.get(RetryWriteListener.class));
+        } else {
+            skipReadListeners = Collections.emptyList();
+            skipProcessListeners = Collections.emptyList();
+            skipWriteListeners = Collections.emptyList();
+            retryReadListeners = Collections.emptyList();
+            retryProcessListeners = Collections.emptyList();
+            retryWriteListeners = Collections.emptyList();
+        }
+    }
+
+    private static boolean acquire(AtomicInteger count, int limit) {
+        if (limit == -1) {
+            count.incrementAndGet();
+            return true;
+        }
+        while (true) {
+            int current = count.get();
+            if (current >= limit) {
+                return false;
+            }
+            if (count.compareAndSet(current, current + 1)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Check that an exception is retryable and that the retry limit has not
+     * been reached, the retry being counted if so.
+     */
+    public boolean retry(Exception e) {
+        return step.getRetryableExceptionClasses().matches(e)
+                && acquire(retryCount, step.getRetryLimit());
+    }
+
+    /**
+     * Check that an exception is skippable and that the skip limit has not
+     * been reached, the skip being counted if so.
+     */
+    public boolean skip(Exception e) {
+        return step.getSkippableExceptionClasses().matches(e)
+                && acquire(skipCount, step.getSkipLimit());
+    }
+
+    public boolean isSkippable(Exception e) {
+        return step.getSkippableExceptionClasses().matches(e);
+    }
+
+    /**
+     * Check whether a retry can be done without rolling back the transaction.
+     */
+    public boolean isNoRollback(Exception e) {
+        return step.getNoRollbackExceptionClasses().matches(e);
+    }
+
+    public int getSkipCount() {
+        return skipCount.get();
+    }
+
+    public int getRetryCount() {
+        return retryCount.get();
+    }
+
+    /**
+     * Wait before a retry, the delay doubling at each attempt.
+     *
+     * @param attempt the number of the attempt, starting at 1
+     */
+    public void backoff(int attempt) throws InterruptedException {
+        long delay = attempt < 8 ? Math.min(INITIAL_BACKOFF << (attempt - 1), MAX_BACKOFF) : MAX_BACKOFF;
+        ForkJoinPool.managedBlock(new Sleeper(delay));
+    }
+
+    public void onSkipRead(Exception e) throws Exception {
+        for (SkipReadListener l : skipReadListeners) {
+            l.onSkipReadItem(e);
+        }
+    }
+
+    public void onSkipProcess(Object item, Exception e) throws Exception {
+        for (SkipProcessListener l : skipProcessListeners) {
+            l.onSkipProcessItem(item, e);
+        }
+    }
+
+    public void onSkipWrite(List<Object> items, Exception e) throws Exception {
+        for (SkipWriteListener l : skipWriteListeners) {
+            l.onSkipWriteItem(items, e);
+        }
+    }
+
+    public void onRetryRead(Exception e) throws Exception {
+        for (RetryReadListener l : retryReadListeners) {
+            l.onRetryReadException(e);
+        }
+    }
+
+    public void onRetryProcess(Object item, Exception e) throws Exception {
+        for (RetryProcessListener l : retryProcessListeners) {
+            l.onRetryProcessException(item, e);
+        }
+    }
+
+    public void onRetryWrite(List<Object> items, Exception e) throws Exception {
+        for (RetryWriteListener l : retryWriteListeners) {
+            l.onRetryWriteException(items, e);
+        }
+    }
+
+}
@@ -0,0 +1,235 @@
+/*
+ * Copyright 2013 Geoffroy Jamgotchian <geoffroy.jamgotchian at gmail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.jamgotchian.jabat.runtime.context;
+
+import fr.jamgotchian.jabat.jobxml.model.Artifact;
+import fr.jamgotchian.jabat.runtime.util.JabatRuntimeException;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import javax.batch.annotation.BatchContext;
+import javax.batch.annotation.BatchProperty;
+import javax.batch.runtime.context.FlowContext;
+import javax.batch.runtime.context.JobContext;
+import javax.batch.runtime.context.SplitContext;
+import javax.batch.runtime.context.StepContext;
+
+/**
+ * How to create an artifact of a given class and inject its
+ * {@link BatchContext} and {@link BatchProperty} fields, including the
+ * inherited ones.
+ *
+ * A plan is computed once per class, the annotated fields and the default
+ * constructor are looked up and made accessible at that time, so creating
+ * and injecting an artifact does not involve any reflective lookup. Plans are
+ * attached to their class and so are dropped with its class loader.
+ *
+ * @author Geoffroy Jamgotchian <geoffroy.jamgotchian at gmail.com>
+ */
+public class InjectionPlan {
+
+    private static final ClassValue<InjectionPlan> PLANS = new ClassValue<InjectionPlan>() {
+
+        @Override
+        protected InjectionPlan computeValue(Class<?> clazz) {
+            return new InjectionPlan(clazz);
+        }
+    };
+
+    public static InjectionPlan get(Class<?> clazz) {
+        return PLANS.get(clazz);
+    }
+
+    private enum ContextType {
+        JOB,
+        STEP,
+        SPLIT,
+        FLOW
+    }
+
+    private static class ContextInjection {
+
+        private final Field field;
+
+        private final ContextType type;
+
+        private ContextInjection(Field field, ContextType type) {
+            this.field = field;
+            this.type = type;
+        }
+    }
+
+    private static class PropertyInjection {
+
+        private final Field field;
+
+        private final String propertyName;
+
+        private PropertyInjection(Field field, String propertyName) {
+            this.field = field;
+            this.propertyName = propertyName;
+        }
+    }
+
+    private final Class<?> clazz;
+
+    /* null if the class cannot be instantiated */
+    private final Constructor<?> constructor;
+
+    private final ContextInjection[] contextInjections;
+
+    private final PropertyInjection[] propertyInjections;
+
+    private InjectionPlan(Class<?> clazz) {
+        this.clazz = clazz;
+        constructor = getDefaultConstructor(clazz);
+        List<ContextInjection> contextInjectionList = new ArrayList<ContextInjection>();
+        List<PropertyInjection> propertyInjectionList = new ArrayList<PropertyInjection>();
+        for (Class<?> c = clazz; c != null && c != Object.class; c = c.getSuperclass()) {
+            for (Field field : c.getDeclaredFields()) {
+                // context injection
+                if (field.isAnnotationPresent(BatchContext.class)) {
+                    field.setAccessible(true);
+                    contextInjectionList.add(new ContextInjection(field, getContextType(field)));
+                }
+                // property injection
+                BatchProperty batchProperty = field.getAnnotation(BatchProperty.class);
+                if (batchProperty != null) {
+                    if (Modifier.isFinal(field.getModifiers())) {
+                        throw new JabatRuntimeException("Field annotated with "
+                                + BatchProperty.class.getName() + " should not be final");
+                    }
+                    if (field.getType() != String.class) {
+                        throw new JabatRuntimeException("Field annotated with "
+                                + BatchProperty.class.getName() + " should be of type "
+                                + String.class.getName());
+                    }
+                    field.setAccessible(true);
+                    String propertyName = batchProperty.name().isEmpty()
+                            ? field.getName() : batchProperty.name();
+                    propertyInjectionList.add(new PropertyInjection(field, propertyName));
+                }
+            }
+        }
+        contextInjections = contextInjectionList.toArray(new ContextInjection[contextInjectionList.size()]);
+        propertyInjections = propertyInjectionList.toArray(new PropertyInjection[propertyInjectionList.size()]);
+    }
+
+    private static Constructor<?> getDefaultConstructor(Class<?> clazz) {
+        if (clazz.isInterface() || Modifier.isAbstract(clazz.getModifiers())) {
+            return null;
+        }
+        try {
+            Constructor<?> constructor = clazz.getConstructor();
+            // the constructor is public but the class may not be
+            constructor.setAccessible(true);
+            return constructor;
+        } catch (NoSuchMethodException e) {
+            return null;
+        }
+    }
+
+    private static ContextType getContextType(Field field) {
+        Class<?> fieldType = field.getType();
+        if (fieldType == JobContext.class) {
+            return ContextType.JOB;
+        } else if (fieldType == StepContext.class) {
+            return ContextType.STEP;
+        } else if (fieldType == SplitContext.class) {
+            return ContextType.SPLIT;
+        } else if (fieldType == FlowContext.class) {
+            return ContextType.FLOW;
+        } else {
+            throw new JabatRuntimeException("Field annotated with "
+                    + BatchContext.class.getName()
+                    + " should have one of the following type: "
+                    + JobContext.class.getName() + ", " + StepContext.class.getName() + ", "
+                    + SplitContext.class.getName() + "or " + FlowContext.class.getName());
+        }
+    }
+
+    /**
+     * Create an instance of the class using its public default constructor.
+     */
+    public Object newInstance() {
+        if (constructor == null) {
+            throw new JabatRuntimeException("Batch artifact class '" + clazz.getName()
+                    + "' cannot be instantiated, a public default constructor is required");
+        }
+        try {
+            return constructor.newInstance();
+        } catch (InvocationTargetException e) {
+            throw new JabatRuntimeException(e.getCause());
+        } catch (ReflectiveOperationException e) {
+            throw new JabatRuntimeException(e);
+        }
+    }
+
+    /**
+     * Inject the contexts of the current thread and the properties of an
+     * artifact into an instance of the class.
+     *
+     * @param instance the instance
+     * @param name the artifact name
+     * @param threadContext the contexts of the current thread
+     */
+    public void inject(Object instance, String name, ThreadContext threadContext) throws IllegalAccessException {
+        for (ContextInjection injection : contextInjections) {
+            Object value;
+            switch (injection.type) {
+                case JOB:
+                    value = threadContext.getJobContext();
+                    break;
+                case STEP:
+                    value = threadContext.getStepContext();
+                    break;
+                case SPLIT:
+                    value = threadContext.getSplitContext();
+                    break;
+                case FLOW:
+                    value = threadContext.getFlowContext();
+                    break;
+                default:
+                    throw new InternalError();
+            }
+            injection.field.set(instance, value);
+        }
+        if (propertyInjections.length > 0) {
+            // get the current artifact, a job level artifact is created
+            // outside of any step
+            JabatBatchContext<?, ?> context = threadContext.getStepContext();
+            if (context == null) {
+                context = threadContext.getJobContext();
+            }
+            if (context == null) {
+                throw new JabatRuntimeException("Step context is not set");
+            }
+            Artifact artifact = context.getNode().getArtifact(name);
+            Map<String, String> properties = context.getResolvedProperties().getArtifactProperties(artifact);
+            for (PropertyInjection injection : propertyInjections) {
+                String value = properties.get(injection.propertyName);
+                if (value != null) {
+                    injection.field.set(instance, value);
+                }
+            }
+        }
+    }
+
+}
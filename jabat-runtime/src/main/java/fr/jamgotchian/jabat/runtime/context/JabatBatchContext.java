@@ -15,6 +15,7 @@
  */
 package fr.jamgotchian.jabat.runtime.context;
 
+import fr.jamgotchian.jabat.jobxml.ResolvedProperties;
 import fr.jamgotchian.jabat.jobxml.model.Node;
 import java.util.List;
 import javax.batch.runtime.context.BatchContext;
@@ -29,6 +30,8 @@ public abstract class JabatBatchContext<N extends Node, T> {
 
     private T transientUserData;
 
+    private ResolvedProperties resolvedProperties = ResolvedProperties.EMPTY;
+
     protected JabatBatchContext(N node) {
         this.node = node;
     }
@@ -49,6 +52,18 @@ public abstract class JabatBatchContext<N extends Node, T> {
         this.transientUserData = data;
     }
 
+    /**
+     * Get the properties of the node and of its artifacts, resolved for this
+     * execution.
+     */
+    public ResolvedProperties getResolvedProperties() {
+        return resolvedProperties;
+    }
+
+    public void setResolvedProperties(ResolvedProperties resolvedProperties) {
+        this.resolvedProperties = resolvedProperties;
+    }
+
     public List<BatchContext<T>> getBatchContexts() {
         throw new UnsupportedOperationException("Not supported yet.");
     }
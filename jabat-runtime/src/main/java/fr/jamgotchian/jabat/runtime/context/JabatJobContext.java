@@ -18,7 +18,9 @@ package fr.jamgotchian.jabat.runtime.context;
 import fr.jamgotchian.jabat.jobxml.model.Job;
 import fr.jamgotchian.jabat.runtime.repository.JabatJobExecution;
 import fr.jamgotchian.jabat.runtime.repository.JabatJobInstance;
+import java.util.HashSet;
 import java.util.Properties;
+import java.util.Set;
 import javax.batch.runtime.context.JobContext;
 
 /**
@@ -31,7 +33,11 @@ public class JabatJobContext extends JabatBatchContext<Job, Object> implements J
 
     private final JabatJobExecution jobExecution;
 
-    private Properties properties;
+    /* the threads running the job, the ones the context is set to */
+    private final Set<Thread> threads = new HashSet<Thread>();
+
+    /* true once the threads have been interrupted */
+    private boolean interrupted = false;
 
     public JabatJobContext(Job job, JabatJobInstance jobInstance, JabatJobExecution jobExecution) {
         super(job);
@@ -51,11 +57,7 @@ public class JabatJobContext extends JabatBatchContext<Job, Object> implements J
 
     @Override
     public Properties getProperties() {
-        return properties;
-    }
-
-    public void setProperties(Properties properties) {
-        this.properties = properties;
+        return getResolvedProperties().toProperties();
     }
 
     @Override
@@ -73,4 +75,29 @@ public class JabatJobContext extends JabatBatchContext<Job, Object> implements J
         jobExecution.setExitStatus(exitStatus);
     }
 
+    synchronized void addThread(Thread thread) {
+        threads.add(thread);
+    }
+
+    synchronized void removeThread(Thread thread) {
+        if (threads.remove(thread) && interrupted) {
+            // the thread goes back to a pool, an interruption aimed at the
+            // job must not affect the next tasks
+            Thread.interrupted();
+        }
+    }
+
+    /**
+     * Interrupt the threads currently running the job.
+     *
+     * @return the number of interrupted threads
+     */
+    public synchronized int interruptThreads() {
+        interrupted = true;
+        for (Thread thread : threads) {
+            thread.interrupt();
+        }
+        return threads.size();
+    }
+
 }
@@ -30,8 +30,6 @@ public class JabatStepContext extends JabatBatchContext<Step, Object> implements
 
     private final JabatStepExecution stepExecution;
 
-    private Properties properties;
-
     private Externalizable persistentUserData;
 
     private String exitStatus;
@@ -48,11 +46,7 @@ public class JabatStepContext extends JabatBatchContext<Step, Object> implements
 
     @Override
     public Properties getProperties() {
-        return properties;
-    }
-
-    public void setProperties(Properties properties) {
-        this.properties = properties;
+        return getResolvedProperties().toProperties();
     }
 
     @Override
@@ -87,7 +81,7 @@ public class JabatStepContext extends JabatBatchContext<Step, Object> implements
 
     @Override
     public Metric[] getMetrics() {
-        throw new UnsupportedOperationException("Not supported yet.");
+        return stepExecution.getMetrics();
     }
 
 }
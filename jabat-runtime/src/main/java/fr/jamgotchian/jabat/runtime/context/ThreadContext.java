@@ -15,7 +15,6 @@
  */
 package fr.jamgotchian.jabat.runtime.context;
 
-import fr.jamgotchian.jabat.jobxml.model.Artifact;
 import fr.jamgotchian.jabat.jobxml.model.Flow;
 import fr.jamgotchian.jabat.jobxml.model.Job;
 import fr.jamgotchian.jabat.jobxml.model.Split;
@@ -23,15 +22,6 @@ import fr.jamgotchian.jabat.jobxml.model.Step;
 import fr.jamgotchian.jabat.runtime.repository.JabatJobExecution;
 import fr.jamgotchian.jabat.runtime.repository.JabatJobInstance;
 import fr.jamgotchian.jabat.runtime.repository.JabatStepExecution;
-import fr.jamgotchian.jabat.runtime.util.JabatRuntimeException;
-import java.lang.reflect.Field;
-import java.lang.reflect.Modifier;
-import javax.batch.annotation.BatchContext;
-import javax.batch.annotation.BatchProperty;
-import javax.batch.runtime.context.FlowContext;
-import javax.batch.runtime.context.JobContext;
-import javax.batch.runtime.context.SplitContext;
-import javax.batch.runtime.context.StepContext;
 
 /**
  *
@@ -63,15 +53,22 @@ public class ThreadContext {
 
     public JabatJobContext createJobContext(Job job, JabatJobInstance jobInstance, JabatJobExecution jobExecution) {
         JabatJobContext context = new JabatJobContext(job, jobInstance, jobExecution);
-        jobContext.set(context);
+        setJobContext(context);
         return context;
     }
 
     public void setJobContext(JabatJobContext jobContext) {
         this.jobContext.set(jobContext);
+        if (jobContext != null) {
+            jobContext.addThread(Thread.currentThread());
+        }
     }
 
     public void removeJobContext() {
+        JabatJobContext context = jobContext.get();
+        if (context != null) {
+            context.removeThread(Thread.currentThread());
+        }
         jobContext.remove();
     }
 
@@ -85,6 +82,10 @@ public class ThreadContext {
         return context;
     }
 
+    public void setStepContext(JabatStepContext stepContext) {
+        this.stepContext.set(stepContext);
+    }
+
     public void removeStepContext() {
         decisionContext.set(stepContext.get());
         stepContext.remove();
@@ -124,62 +125,14 @@ public class ThreadContext {
         return decisionContext.get();
     }
 
+    /**
+     * Inject the contexts of the current thread and the properties of an
+     * artifact into an artifact instance.
+     *
+     * @param instance the artifact instance
+     * @param name the artifact name
+     */
     public void inject(Object instance, String name) throws IllegalAccessException {
-        Class<?> clazz = instance.getClass();
-        for (Field field : clazz.getDeclaredFields()) {
-            // context injection
-            if (field.isAnnotationPresent(BatchContext.class)) {
-                Class<?> fieldType = field.getType();
-                Object fieldValue;
-                if (fieldType == JobContext.class) {
-                    fieldValue = jobContext.get();
-                } else if (fieldType == StepContext.class) {
-                    fieldValue = stepContext.get();
-                } else if (fieldType == SplitContext.class) {
-                    fieldValue = splitContext.get();
-                } else if (fieldType == FlowContext.class) {
-                    fieldValue = flowContext.get();
-                } else {
-                    throw new JabatRuntimeException("Field annotated with "
-                            + BatchContext.class.getName()
-                            + " should have one of the following type: "
-                            + JobContext.class.getName() + ", " + StepContext.class.getName() + ", "
-                            + SplitContext.class.getName() + "or " + FlowContext.class.getName());
-                }
-                if (!field.isAccessible()) {
-                    field.setAccessible(true);
-                }
-                field.set(instance, fieldValue);
-            }
-            // property injection
-            BatchProperty batchProperty = field.getAnnotation(BatchProperty.class);
-            if (batchProperty != null) {
-                if (Modifier.isFinal(field.getModifiers())) {
-                    throw new JabatRuntimeException("Field annotated with "
-                            + BatchProperty.class.getName() + " should not be final");
-                }
-                if (field.getType() == String.class) {
-                    // get the current artifact
-                    JabatStepContext context = stepContext.get();
-                    if (context == null) {
-                        throw new JabatRuntimeException("Step context is not set");
-                    }
-                    Artifact artifact = context.getNode().getArtifact(name);
-                    String propertyName = batchProperty.name().isEmpty()
-                            ? field.getName() : batchProperty.name();
-                    String value = artifact.getSubstitutedProperties().getProperty(propertyName);
-                    if (value != null) {
-                        if (!field.isAccessible()) {
-                            field.setAccessible(true);
-                        }
-                        field.set(instance, value);
-                    }
-                } else {
-                    throw new JabatRuntimeException("Field annotated with "
-                            + BatchProperty.class.getName() + " should be of type "
-                            + String.class.getName());
-                }
-            }
-        }
+        InjectionPlan.get(instance.getClass()).inject(instance, name, this);
     }
 }
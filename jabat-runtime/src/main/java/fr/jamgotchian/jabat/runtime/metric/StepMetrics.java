@@ -0,0 +1,188 @@
+/*
+ * Copyright 2013 Geoffroy Jamgotchian <geoffroy.jamgotchian at gmail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.jamgotchian.jabat.runtime.metric;
+
+import fr.jamgotchian.jabat.runtime.repository.impl.MetricImpl;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+import javax.batch.runtime.Metric.MetricName;
+
+/**
+ * The metrics of a step execution.
+ *
+ * Counters are striped, one cell per partition, and only merged when read:
+ * the threads of a partition never update the same memory as the threads of
+ * another partition, and a reader, the job operator for instance, never
+ * blocks a worker thread. A step which is not partitioned has a single cell.
+ *
+ * When latency recording is enabled, each partition also has one latency
+ * histogram per chunk phase.
+ *
+ * @author Geoffroy Jamgotchian <geoffroy.jamgotchian at gmail.com>
+ */
+public class StepMetrics {
+
+    private static final MetricName[] NAMES = MetricName.values();
+
+    private static final ChunkPhase[] PHASES = ChunkPhase.values();
+
+    private static final Map<MetricName, String> DISPLAY_NAMES
+            = new EnumMap<MetricName, String>(MetricName.class);
+
+    static {
+        DISPLAY_NAMES.put(MetricName.READCOUNT, "readCount");
+        DISPLAY_NAMES.put(MetricName.WRITECOUNT, "writeCount");
+        DISPLAY_NAMES.put(MetricName.COMMITCOUNT, "commitCount");
+        DISPLAY_NAMES.put(MetricName.ROLLBACKCOUNT, "rollbackCount");
+        DISPLAY_NAMES.put(MetricName.READSKIPCOUNT, "readSkipCount");
+        DISPLAY_NAMES.put(MetricName.PROCESSSKIPCOUNT, "processSkipCount");
+        DISPLAY_NAMES.put(MetricName.FILTERCOUNT, "filterCount");
+        DISPLAY_NAMES.put(MetricName.WRITESKIPCOUNT, "writeSkipCount");
+    }
+
+    /**
+     * The counters of one partition.
+     */
+    public static class PartitionMetrics {
+
+        private final AtomicLongArray values = new AtomicLongArray(NAMES.length);
+
+        /* null when latency recording is disabled */
+        private final LatencyHistogram[] latencies;
+
+        private PartitionMetrics(boolean latencyRecorded) {
+            if (latencyRecorded) {
+                latencies = new LatencyHistogram[PHASES.length];
+                for (int i = 0; i < latencies.length; i++) {
+                    latencies[i] = new LatencyHistogram();
+                }
+            } else {
+                latencies = null;
+            }
+        }
+
+        public void increment(MetricName name) {
+            values.incrementAndGet(name.ordinal());
+        }
+
+        public void add(MetricName name, long delta) {
+            if (delta != 0) {
+                values.addAndGet(name.ordinal(), delta);
+            }
+        }
+
+        public long get(MetricName name) {
+            return values.get(name.ordinal());
+        }
+
+        public MetricImpl[] toArray() {
+            MetricImpl[] metrics = new MetricImpl[NAMES.length];
+            for (MetricName name : NAMES) {
+                metrics[name.ordinal()] = new MetricImpl(DISPLAY_NAMES.get(name), get(name));
+            }
+            return metrics;
+        }
+
+        public boolean isLatencyRecorded() {
+            return latencies != null;
+        }
+
+        public void recordLatency(ChunkPhase phase, long nanos) {
+            if (latencies != null) {
+                latencies[phase.ordinal()].record(nanos);
+            }
+        }
+
+        /**
+         * Get the latency histogram of a phase, null if latency recording is
+         * disabled.
+         */
+        public LatencyHistogram getLatency(ChunkPhase phase) {
+            return latencies != null ? latencies[phase.ordinal()] : null;
+        }
+    }
+
+    private final PartitionMetrics[] partitions;
+
+    private final boolean latencyRecorded;
+
+    public StepMetrics() {
+        this(1, false);
+    }
+
+    public StepMetrics(int partitionCount, boolean latencyRecorded) {
+        if (partitionCount < 1) {
+            throw new IllegalArgumentException("At least one partition is expected");
+        }
+        this.latencyRecorded = latencyRecorded;
+        partitions = new PartitionMetrics[partitionCount];
+        for (int i = 0; i < partitions.length; i++) {
+            partitions[i] = new PartitionMetrics(latencyRecorded);
+        }
+    }
+
+    public int getPartitionCount() {
+        return partitions.length;
+    }
+
+    public PartitionMetrics getPartition(int partition) {
+        return partitions[partition];
+    }
+
+    /**
+     * Get the value of a metric, summed over all the partitions.
+     */
+    public long get(MetricName name) {
+        long value = 0;
+        for (PartitionMetrics partition : partitions) {
+            value += partition.get(name);
+        }
+        return value;
+    }
+
+    /**
+     * Get a snapshot of the metrics, summed over all the partitions.
+     */
+    public MetricImpl[] toArray() {
+        MetricImpl[] metrics = new MetricImpl[NAMES.length];
+        for (MetricName name : NAMES) {
+            metrics[name.ordinal()] = new MetricImpl(DISPLAY_NAMES.get(name), get(name));
+        }
+        return metrics;
+    }
+
+    public boolean isLatencyRecorded() {
+        return latencyRecorded;
+    }
+
+    /**
+     * Get the latency histogram of a phase, merged over all the partitions.
+     *
+     * @return a new histogram, null if latency recording is disabled
+     */
+    public LatencyHistogram getLatency(ChunkPhase phase) {
+        if (!latencyRecorded) {
+            return null;
+        }
+        LatencyHistogram merged = new LatencyHistogram();
+        for (PartitionMetrics partition : partitions) {
+            merged.add(partition.getLatency(phase));
+        }
+        return merged;
+    }
+
+}
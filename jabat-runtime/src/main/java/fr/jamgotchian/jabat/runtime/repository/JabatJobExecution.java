@@ -15,6 +15,7 @@
  */
 package fr.jamgotchian.jabat.runtime.repository;
 
+import java.util.Date;
 import java.util.List;
 import javax.batch.runtime.JobExecution;
 
@@ -32,6 +33,20 @@ public interface JabatJobExecution extends JobExecution {
 
     void setExitStatus(String exitStatus);
 
+    void setStartTime(Date startTime);
+
+    void setEndTime(Date endTime);
+
     List<Long> getStepExecutionIds();
 
+    /**
+     * Get the time between the stop request and the end of the execution.
+     *
+     * @return the stop latency in ms, -1 if the execution has not been
+     *         stopped
+     */
+    long getStopLatency();
+
+    void setStopLatency(long stopLatency);
+
 }
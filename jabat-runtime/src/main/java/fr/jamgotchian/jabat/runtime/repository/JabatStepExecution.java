@@ -15,8 +15,10 @@
  */
 package fr.jamgotchian.jabat.runtime.repository;
 
+import fr.jamgotchian.jabat.runtime.metric.StepMetrics;
 import fr.jamgotchian.jabat.runtime.repository.impl.MetricImpl;
 import java.util.Date;
+import java.util.Set;
 import javax.batch.runtime.StepExecution;
 
 /**
@@ -27,6 +29,8 @@ public interface JabatStepExecution extends StepExecution {
 
     long getId();
 
+    String getStepName();
+
     BatchStatus getStatusEnum();
 
     void setStatus(BatchStatus status);
@@ -37,6 +41,23 @@ public interface JabatStepExecution extends StepExecution {
 
     void setUserPersistentData(Object userPersistentData);
 
-    void setMetrics(MetricImpl[] metrics);
+    /**
+     * Get a snapshot of the metrics, summed over all the partitions.
+     */
+    @Override
+    MetricImpl[] getMetrics();
+
+    /**
+     * Get the live metrics of the step execution.
+     */
+    StepMetrics getStepMetrics();
+
+    void setStepMetrics(StepMetrics metrics);
+
+    /**
+     * Get the numbers of the partitions which have completed, so that only
+     * the other ones are run again on restart. The set is synchronized.
+     */
+    Set<Integer> getCompletedPartitions();
 
 }
@@ -0,0 +1,38 @@
+/*
+ * Copyright 2013 Geoffroy Jamgotchian <geoffroy.jamgotchian at gmail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.jamgotchian.jabat.runtime.repository;
+
+import java.util.List;
+
+/**
+ * Notified of the job instances evicted by the retention policy of a job
+ * repository, so that the data kept elsewhere for their executions can be
+ * released.
+ *
+ * @author Geoffroy Jamgotchian <geoffroy.jamgotchian at gmail.com>
+ */
+public interface JobInstanceEvictionListener {
+
+    /**
+     * Called once a job instance has been evicted, with all its executions.
+     *
+     * @param jobInstance the job instance
+     * @param stepExecutionIds the ids of the step executions of all the
+     *        executions of the instance
+     */
+    void jobInstanceEvicted(JabatJobInstance jobInstance, List<Long> stepExecutionIds);
+
+}
@@ -17,6 +17,7 @@ package fr.jamgotchian.jabat.runtime.repository;
 
 import fr.jamgotchian.jabat.jobxml.model.Job;
 import fr.jamgotchian.jabat.jobxml.model.Step;
+import java.util.Date;
 import java.util.List;
 import java.util.Properties;
 import java.util.Set;
@@ -24,12 +25,38 @@ import java.util.Set;
 /**
  * A job repository contains meta data about currently running processes.
  *
+ * Besides the full list of the instances of a job, instances can be queried
+ * by page, by status of their last execution and by creation time, the most
+ * recent first. These queries are served from indexes, so that a page costs
+ * about its size and not the size of the history.
+ *
  * @author Geoffroy Jamgotchian <geoffroy.jamgotchian at gmail.com>
  */
 public interface JobRepository {
 
+    void initialize(Properties configuration) throws Exception;
+
+    void shutdown() throws Exception;
+
+    /**
+     * Set the listener notified of the job instances evicted by the retention
+     * policy of the repository. A repository keeping its whole history never
+     * notifies it.
+     *
+     * @param listener the listener, null for none
+     */
+    void setEvictionListener(JobInstanceEvictionListener listener);
+
     JabatJobInstance createJobInstance(Job job);
 
+    /**
+     * Create a new execution of a job instance.
+     *
+     * @param jobInstance the job instance
+     * @param jobParameters the parameters of the execution
+     * @return the job execution, null if the instance has been evicted from
+     *         the repository by its retention policy
+     */
     JabatJobExecution createJobExecution(JabatJobInstance jobInstance, Properties jobParameters);
 
     JabatStepExecution createStepExecution(Step step, JabatJobExecution jobExecution);
@@ -38,10 +65,65 @@ public interface JobRepository {
 
     List<Long> getJobInstanceIds(String id);
 
+    /**
+     * Get the number of instances of a job.
+     *
+     * @param id the job id
+     * @return the number of instances, -1 if the job is unknown
+     */
+    int getJobInstanceCount(String id);
+
+    /**
+     * Get a page of the instance ids of a job, the most recent first.
+     *
+     * @param id the job id
+     * @param start the position of the first id of the page, 0 being the
+     *        most recent instance
+     * @param count the maximum number of ids
+     * @return the ids, null if the job is unknown
+     */
+    List<Long> getJobInstanceIds(String id, int start, int count);
+
+    /**
+     * Get a page of the ids of the instances of a job whose last execution
+     * has one of the given statuses, the most recent first. An instance
+     * without execution has no status.
+     *
+     * @param id the job id
+     * @param statuses the statuses
+     * @param start the position of the first id of the page
+     * @param count the maximum number of ids
+     * @return the ids, null if the job is unknown
+     */
+    List<Long> getJobInstanceIds(String id, Set<BatchStatus> statuses, int start, int count);
+
+    /**
+     * Get a page of the ids of the instances of a job created during a time
+     * range, the most recent first. The creation time of an instance is the
+     * one of its first execution, an instance without execution is not
+     * listed.
+     *
+     * @param id the job id
+     * @param from the beginning of the range, included, null for no bound
+     * @param to the end of the range, excluded, null for no bound
+     * @param start the position of the first id of the page
+     * @param count the maximum number of ids
+     * @return the ids, null if the job is unknown
+     */
+    List<Long> getJobInstanceIds(String id, Date from, Date to, int start, int count);
+
     JabatJobInstance getJobInstance(long id);
 
     JabatJobExecution getJobExecution(long id);
 
     JabatStepExecution getStepExecution(long id);
 
+    /**
+     * Notify the repository that a job execution has ended. The job execution
+     * and its step executions are not modified anymore.
+     *
+     * @param jobExecution the job execution
+     */
+    void jobExecutionEnded(JabatJobExecution jobExecution);
+
 }
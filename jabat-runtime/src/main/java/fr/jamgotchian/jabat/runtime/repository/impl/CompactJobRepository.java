@@ -0,0 +1,322 @@
+/*
+ * Copyright 2013 Geoffroy Jamgotchian <geoffroy.jamgotchian at gmail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.jamgotchian.jabat.runtime.repository.impl;
+
+import fr.jamgotchian.jabat.jobxml.model.Job;
+import fr.jamgotchian.jabat.jobxml.model.Step;
+import fr.jamgotchian.jabat.runtime.repository.BatchStatus;
+import fr.jamgotchian.jabat.runtime.repository.JabatJobExecution;
+import fr.jamgotchian.jabat.runtime.repository.JabatJobInstance;
+import fr.jamgotchian.jabat.runtime.repository.JabatStepExecution;
+import fr.jamgotchian.jabat.runtime.repository.JobInstanceEvictionListener;
+import fr.jamgotchian.jabat.runtime.repository.JobRepository;
+import fr.jamgotchian.jabat.runtime.util.JabatRuntimeException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * In-memory job repository with a bounded history, for long running
+ * containers.
+ *
+ * Running job executions are kept as objects, like in the
+ * {@link ConcurrentJobRepository}. Once a job execution has ended, it is
+ * moved with its step executions to a compact columnar storage and rebuilt
+ * on each read.
+ *
+ * Job instances are evicted, with all their executions, according to a
+ * retention policy checked each time a job execution ends: the oldest
+ * instances of a job are evicted when the job has more instances than the
+ * jabat.jobRepository.maxInstancesPerJob key of jabat.properties (1000 by
+ * default), or when their last execution has ended for longer than the
+ * jabat.jobRepository.maxAge key, in ms (7 days by default). A negative
+ * value disables a limit. An instance whose last execution is running is
+ * never evicted, nor the instances of the job created after it. The eviction
+ * of an instance and the creation of one of its executions are done under
+ * the lock of the instance, no execution is created for an instance which
+ * has been evicted. The {@link JobInstanceEvictionListener} is notified of
+ * each evicted instance, outside of any lock.
+ *
+ * The repository is selected by setting the jabat.jobRepository key to
+ * the name of this class.
+ *
+ * @author Geoffroy Jamgotchian <geoffroy.jamgotchian at gmail.com>
+ */
+public class CompactJobRepository implements JobRepository {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(CompactJobRepository.class);
+
+    public static final String MAX_INSTANCES_PER_JOB_KEY = "jabat.jobRepository.maxInstancesPerJob";
+
+    public static final String MAX_AGE_KEY = "jabat.jobRepository.maxAge";
+
+    private static final int DEFAULT_MAX_INSTANCES_PER_JOB = 1000;
+
+    private static final long DEFAULT_MAX_AGE = TimeUnit.DAYS.toMillis(7);
+
+    private final ConcurrentMap<String, IdList> jobs = new ConcurrentHashMap<String, IdList>();
+
+    private final ConcurrentMap<Long, JabatJobInstance> jobInstances
+            = new ConcurrentHashMap<Long, JabatJobInstance>();
+
+    /* job executions which have not ended yet, and their instance */
+    private final ConcurrentMap<Long, JabatJobExecution> jobExecutions
+            = new ConcurrentHashMap<Long, JabatJobExecution>();
+
+    private final ConcurrentMap<Long, JabatJobInstance> executionInstances
+            = new ConcurrentHashMap<Long, JabatJobInstance>();
+
+    /* step executions of the job executions which have not ended yet */
+    private final ConcurrentMap<Long, JabatStepExecution> stepExecutions
+            = new ConcurrentHashMap<Long, JabatStepExecution>();
+
+    private final ExecutionHistory history = new ExecutionHistory();
+
+    private final JobInstanceIndex index = new JobInstanceIndex();
+
+    private final AtomicLong nextJobInstanceId = new AtomicLong();
+
+    private final AtomicLong nextJobExecutionId = new AtomicLong();
+
+    private final AtomicLong nextStepExecutionId = new AtomicLong();
+
+    private int maxInstancesPerJob = DEFAULT_MAX_INSTANCES_PER_JOB;
+
+    private long maxAge = DEFAULT_MAX_AGE;
+
+    /* serializes the evictions */
+    private final Object retentionLock = new Object();
+
+    private volatile JobInstanceEvictionListener evictionListener;
+
+    @Override
+    public void initialize(Properties configuration) throws Exception {
+        String value = configuration.getProperty(MAX_INSTANCES_PER_JOB_KEY);
+        if (value != null) {
+            maxInstancesPerJob = Integer.parseInt(value);
+        }
+        value = configuration.getProperty(MAX_AGE_KEY);
+        if (value != null) {
+            maxAge = Long.parseLong(value);
+        }
+        if (maxInstancesPerJob == 0) {
+            throw new JabatRuntimeException("At least one instance per job is expected to be retained");
+        }
+    }
+
+    @Override
+    public void shutdown() throws Exception {
+    }
+
+    @Override
+    public void setEvictionListener(JobInstanceEvictionListener listener) {
+        evictionListener = listener;
+    }
+
+    @Override
+    public JabatJobInstance createJobInstance(Job job) {
+        long jobInstanceId = nextJobInstanceId.getAndIncrement();
+        JabatJobInstance jobInstance = new JabatJobInstanceImpl(job.getId(), jobInstanceId);
+        jobInstances.put(jobInstanceId, jobInstance);
+        IdList instanceIds = jobs.get(job.getId());
+        if (instanceIds == null) {
+            IdList newInstanceIds = new IdList();
+            instanceIds = jobs.putIfAbsent(job.getId(), newInstanceIds);
+            if (instanceIds == null) {
+                instanceIds = newInstanceIds;
+            }
+        }
+        instanceIds.addId(jobInstanceId);
+        return jobInstance;
+    }
+
+    @Override
+    public JabatJobExecution createJobExecution(JabatJobInstance jobInstance, Properties jobParameters) {
+        synchronized (jobInstance) {
+            if (jobInstances.get(jobInstance.getInstanceId()) != jobInstance) {
+                // evicted since it has been read
+                return null;
+            }
+            long jobExecutionId = nextJobExecutionId.getAndIncrement();
+            JabatJobExecution jobExecution = new JabatJobExecutionImpl(jobExecutionId, jobParameters);
+            jobExecutions.put(jobExecutionId, jobExecution);
+            executionInstances.put(jobExecutionId, jobInstance);
+            jobInstance.getExecutionIds().add(jobExecutionId);
+            index.executionCreated(jobInstance.getJobName(), jobInstance.getInstanceId(), jobExecution);
+            return jobExecution;
+        }
+    }
+
+    @Override
+    public JabatStepExecution createStepExecution(Step step, JabatJobExecution jobExecution) {
+        long stepExecutionId = nextStepExecutionId.getAndIncrement();
+        JabatStepExecution stepExecution = new JabatStepExecutionImpl(stepExecutionId, step.getId());
+        stepExecutions.put(stepExecutionId, stepExecution);
+        jobExecution.getStepExecutionIds().add(stepExecutionId);
+        return stepExecution;
+    }
+
+    @Override
+    public Set<String> getJobIds() {
+        return Collections.unmodifiableSet(jobs.keySet());
+    }
+
+    @Override
+    public List<Long> getJobInstanceIds(String id) {
+        IdList ids = jobs.get(id);
+        return ids != null ? ids.snapshot() : null;
+    }
+
+    @Override
+    public int getJobInstanceCount(String id) {
+        IdList ids = jobs.get(id);
+        return ids != null ? ids.size() : -1;
+    }
+
+    @Override
+    public List<Long> getJobInstanceIds(String id, int start, int count) {
+        IdList ids = jobs.get(id);
+        return ids != null ? JobInstanceIndex.getPage(ids.snapshot(), start, count) : null;
+    }
+
+    @Override
+    public List<Long> getJobInstanceIds(String id, Set<BatchStatus> statuses, int start, int count) {
+        return jobs.containsKey(id) ? index.getInstanceIds(id, statuses, start, count) : null;
+    }
+
+    @Override
+    public List<Long> getJobInstanceIds(String id, Date from, Date to, int start, int count) {
+        IdList ids = jobs.get(id);
+        return ids != null ? JobInstanceIndex.getPage(ids.snapshot(), from, to, start, count, this) : null;
+    }
+
+    @Override
+    public JabatJobInstance getJobInstance(long id) {
+        return jobInstances.get(id);
+    }
+
+    @Override
+    public JabatJobExecution getJobExecution(long id) {
+        // an ended execution is stored in the history before being removed
+        // from the running ones
+        JabatJobExecution jobExecution = jobExecutions.get(id);
+        return jobExecution != null ? jobExecution : history.getJobExecution(id);
+    }
+
+    @Override
+    public JabatStepExecution getStepExecution(long id) {
+        JabatStepExecution stepExecution = stepExecutions.get(id);
+        return stepExecution != null ? stepExecution : history.getStepExecution(id);
+    }
+
+    @Override
+    public void jobExecutionEnded(JabatJobExecution jobExecution) {
+        long id = jobExecution.getId();
+        JabatJobInstance jobInstance = executionInstances.get(id);
+        if (jobInstance == null) {
+            throw new JabatRuntimeException("Job execution " + id + " is not running");
+        }
+        List<JabatStepExecution> ended = new ArrayList<JabatStepExecution>();
+        for (long stepExecutionId : jobExecution.getStepExecutionIds()) {
+            ended.add(stepExecutions.get(stepExecutionId));
+        }
+        history.store(jobInstance.getInstanceId(), jobInstance.getJobName(), jobExecution, ended);
+        index.executionEnded(jobExecution);
+        for (JabatStepExecution stepExecution : ended) {
+            stepExecutions.remove(stepExecution.getId());
+        }
+        jobExecutions.remove(id);
+        executionInstances.remove(id);
+
+        applyRetention(System.currentTimeMillis());
+    }
+
+    private boolean isEvictable(JabatJobInstance jobInstance, int instanceCount, long now) {
+        List<Long> executionIds = jobInstance.getExecutionIds();
+        if (executionIds.isEmpty()) {
+            // the first execution is being created
+            return false;
+        }
+        long endTime = history.getEndTime(executionIds.get(executionIds.size() - 1));
+        if (endTime == ExecutionHistory.NO_TIME) {
+            // the last execution is running
+            return false;
+        }
+        return (maxInstancesPerJob > 0 && instanceCount > maxInstancesPerJob)
+                || (maxAge >= 0 && now - endTime > maxAge);
+    }
+
+    private void applyRetention(long now) {
+        List<JabatJobInstance> evictedInstances = new ArrayList<JabatJobInstance>();
+        List<List<Long>> evictedStepExecutionIds = new ArrayList<List<Long>>();
+        synchronized (retentionLock) {
+            for (Map.Entry<String, IdList> e : jobs.entrySet()) {
+                IdList instanceIds = e.getValue();
+                while (instanceIds.size() > 0) {
+                    long instanceId = instanceIds.getFirst();
+                    JabatJobInstance jobInstance = jobInstances.get(instanceId);
+                    // an execution of the instance may be created
+                    // concurrently by a restart
+                    synchronized (jobInstance) {
+                        if (!isEvictable(jobInstance, instanceIds.size(), now)) {
+                            break;
+                        }
+                        jobInstances.remove(instanceId);
+                    }
+                    instanceIds.removeFirst(1);
+                    index.remove(instanceId);
+                    List<Long> stepExecutionIds = new ArrayList<Long>();
+                    for (long executionId : jobInstance.getExecutionIds()) {
+                        long[] ids = history.evict(executionId);
+                        if (ids != null) {
+                            for (long id : ids) {
+                                stepExecutionIds.add(id);
+                            }
+                        }
+                    }
+                    evictedInstances.add(jobInstance);
+                    evictedStepExecutionIds.add(stepExecutionIds);
+                }
+            }
+            if (evictedInstances.size() > 0) {
+                LOGGER.debug("{} job instances evicted, {} job executions and {} step executions retained",
+                             evictedInstances.size(), history.getJobExecutionCount(),
+                             history.getStepExecutionCount());
+            }
+        }
+        JobInstanceEvictionListener listener = evictionListener;
+        if (listener != null) {
+            for (int i = 0; i < evictedInstances.size(); i++) {
+                try {
+                    listener.jobInstanceEvicted(evictedInstances.get(i), evictedStepExecutionIds.get(i));
+                } catch (Throwable t) {
+                    LOGGER.error(t.toString(), t);
+                }
+            }
+        }
+    }
+
+}
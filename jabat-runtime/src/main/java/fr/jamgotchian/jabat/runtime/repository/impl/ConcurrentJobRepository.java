@@ -0,0 +1,177 @@
+/*
+ * Copyright 2013 Geoffroy Jamgotchian <geoffroy.jamgotchian at gmail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.jamgotchian.jabat.runtime.repository.impl;
+
+import fr.jamgotchian.jabat.jobxml.model.Job;
+import fr.jamgotchian.jabat.jobxml.model.Step;
+import fr.jamgotchian.jabat.runtime.repository.BatchStatus;
+import fr.jamgotchian.jabat.runtime.repository.JabatJobExecution;
+import fr.jamgotchian.jabat.runtime.repository.JabatJobInstance;
+import fr.jamgotchian.jabat.runtime.repository.JabatStepExecution;
+import fr.jamgotchian.jabat.runtime.repository.JobInstanceEvictionListener;
+import fr.jamgotchian.jabat.runtime.repository.JobRepository;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In-memory job repository which can be used concurrently by any number of
+ * job executions. Ids are allocated atomically, entities are stored in
+ * concurrent maps and the id lists are append-only lists, so that creations
+ * do not contend on a global lock and listings are immutable snapshots taken
+ * without locking. Instances are also indexed by status of their last
+ * execution in concurrent sorted sets.
+ *
+ * @author Geoffroy Jamgotchian <geoffroy.jamgotchian at gmail.com>
+ */
+public class ConcurrentJobRepository implements JobRepository {
+
+    private final ConcurrentMap<String, IdList> jobs = new ConcurrentHashMap<String, IdList>();
+
+    private final ConcurrentMap<Long, JabatJobInstance> jobInstances
+            = new ConcurrentHashMap<Long, JabatJobInstance>();
+
+    private final ConcurrentMap<Long, JabatJobExecution> jobExecutions
+            = new ConcurrentHashMap<Long, JabatJobExecution>();
+
+    private final ConcurrentMap<String, IdList> steps = new ConcurrentHashMap<String, IdList>();
+
+    private final ConcurrentMap<Long, JabatStepExecution> stepExecutions
+            = new ConcurrentHashMap<Long, JabatStepExecution>();
+
+    private final JobInstanceIndex index = new JobInstanceIndex();
+
+    private final AtomicLong nextJobInstanceId = new AtomicLong();
+
+    private final AtomicLong nextJobExecutionId = new AtomicLong();
+
+    private final AtomicLong nextStepExecutionId = new AtomicLong();
+
+    private static IdList getIdList(ConcurrentMap<String, IdList> map, String key) {
+        IdList ids = map.get(key);
+        if (ids == null) {
+            IdList newIds = new IdList();
+            ids = map.putIfAbsent(key, newIds);
+            if (ids == null) {
+                ids = newIds;
+            }
+        }
+        return ids;
+    }
+
+    @Override
+    public void initialize(Properties configuration) throws Exception {
+    }
+
+    @Override
+    public void shutdown() throws Exception {
+    }
+
+    @Override
+    public void setEvictionListener(JobInstanceEvictionListener listener) {
+        // the whole history is kept
+    }
+
+    @Override
+    public JabatJobInstance createJobInstance(Job job) {
+        long jobInstanceId = nextJobInstanceId.getAndIncrement();
+        JabatJobInstance jobInstance = new JabatJobInstanceImpl(job.getId(), jobInstanceId);
+        jobInstances.put(jobInstanceId, jobInstance);
+        // the instance is listed once it can be retrieved by its id
+        getIdList(jobs, job.getId()).addId(jobInstanceId);
+        return jobInstance;
+    }
+
+    @Override
+    public JabatJobExecution createJobExecution(JabatJobInstance jobInstance, Properties jobParameters) {
+        long jobExecutionId = nextJobExecutionId.getAndIncrement();
+        JabatJobExecution jobExecution = new JabatJobExecutionImpl(jobExecutionId, jobParameters);
+        jobExecutions.put(jobExecutionId, jobExecution);
+        jobInstance.getExecutionIds().add(jobExecutionId);
+        index.executionCreated(jobInstance.getJobName(), jobInstance.getInstanceId(), jobExecution);
+        return jobExecution;
+    }
+
+    @Override
+    public JabatStepExecution createStepExecution(Step step, JabatJobExecution jobExecution) {
+        long stepExecutionId = nextStepExecutionId.getAndIncrement();
+        JabatStepExecution stepExecution = new JabatStepExecutionImpl(stepExecutionId, step.getId());
+        stepExecutions.put(stepExecutionId, stepExecution);
+        getIdList(steps, step.getId()).addId(stepExecutionId);
+        jobExecution.getStepExecutionIds().add(stepExecutionId);
+        return stepExecution;
+    }
+
+    @Override
+    public Set<String> getJobIds() {
+        return Collections.unmodifiableSet(jobs.keySet());
+    }
+
+    @Override
+    public List<Long> getJobInstanceIds(String id) {
+        IdList ids = jobs.get(id);
+        return ids != null ? ids.snapshot() : null;
+    }
+
+    @Override
+    public int getJobInstanceCount(String id) {
+        IdList ids = jobs.get(id);
+        return ids != null ? ids.size() : -1;
+    }
+
+    @Override
+    public List<Long> getJobInstanceIds(String id, int start, int count) {
+        IdList ids = jobs.get(id);
+        return ids != null ? JobInstanceIndex.getPage(ids.snapshot(), start, count) : null;
+    }
+
+    @Override
+    public List<Long> getJobInstanceIds(String id, Set<BatchStatus> statuses, int start, int count) {
+        return jobs.containsKey(id) ? index.getInstanceIds(id, statuses, start, count) : null;
+    }
+
+    @Override
+    public List<Long> getJobInstanceIds(String id, Date from, Date to, int start, int count) {
+        IdList ids = jobs.get(id);
+        return ids != null ? JobInstanceIndex.getPage(ids.snapshot(), from, to, start, count, this) : null;
+    }
+
+    @Override
+    public JabatJobInstance getJobInstance(long id) {
+        return jobInstances.get(id);
+    }
+
+    @Override
+    public JabatJobExecution getJobExecution(long id) {
+        return jobExecutions.get(id);
+    }
+
+    @Override
+    public JabatStepExecution getStepExecution(long id) {
+        return stepExecutions.get(id);
+    }
+
+    @Override
+    public void jobExecutionEnded(JabatJobExecution jobExecution) {
+        index.executionEnded(jobExecution);
+    }
+
+}
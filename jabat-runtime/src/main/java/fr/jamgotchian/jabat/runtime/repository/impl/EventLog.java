@@ -0,0 +1,585 @@
+/*
+ * Copyright 2013 Geoffroy Jamgotchian <geoffroy.jamgotchian at gmail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.jamgotchian.jabat.runtime.repository.impl;
+
+import fr.jamgotchian.jabat.runtime.util.JabatRuntimeException;
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Append-only log of checksummed records, split into segment files.
+ *
+ * A record is located by the number of its file and its position in the
+ * file, packed in a long. Records are appended to the active segment, a new
+ * one is started once it is full, and the previous ones are sealed. Sealed
+ * segments are only read, until they are released once their records have
+ * been copied elsewhere. Snapshot files can be registered to be read the same
+ * way, files of both kinds are numbered by the log.
+ *
+ * Appends only reach the file system, {@link #sync()} makes them durable.
+ * Concurrent syncs are grouped: the thread forcing the segment to disk makes
+ * durable the records appended by the threads waiting for it.
+ *
+ * @author Geoffroy Jamgotchian <geoffroy.jamgotchian at gmail.com>
+ */
+final class EventLog {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(EventLog.class);
+
+    interface RecordHandler {
+
+        void record(long locator, ByteBuffer payload) throws IOException;
+
+    }
+
+    private static final String SEGMENT_SUFFIX = ".log";
+
+    private static final String SNAPSHOT_SUFFIX = ".snapshot";
+
+    private static final String TEMPORARY_SUFFIX = ".tmp";
+
+    private static final String LOCK_FILE_NAME = "repository.lock";
+
+    private static final int MAGIC = 0x4a42454c;
+
+    private static final int VERSION = 1;
+
+    static final int HEADER_SIZE = 8;
+
+    /* length and checksum */
+    static final int RECORD_OVERHEAD = 4 + 4;
+
+    private static final int POSITION_BITS = 40;
+
+    private static final long POSITION_MASK = (1L << POSITION_BITS) - 1;
+
+    private static final class Segment {
+
+        private final int number;
+
+        private final RandomAccessFile file;
+
+        private long size;
+
+        private Segment(int number, RandomAccessFile file, long size) {
+            this.number = number;
+            this.file = file;
+            this.size = size;
+        }
+    }
+
+    private final File directory;
+
+    private final long segmentSize;
+
+    private final boolean sync;
+
+    private RandomAccessFile lockFile;
+
+    private FileLock lock;
+
+    private final List<Integer> snapshotNumbers = new ArrayList<Integer>();
+
+    private final List<Integer> segmentNumbers = new ArrayList<Integer>();
+
+    private int nextFileNumber = 0;
+
+    /* files which can be read, they are only closed under the write lock */
+    private final ConcurrentMap<Integer, FileChannel> channels = new ConcurrentHashMap<Integer, FileChannel>();
+
+    private final ReadWriteLock fileLock = new ReentrantReadWriteLock();
+
+    /* the segments below are guarded by the log */
+
+    private Segment active;
+
+    private final List<Segment> sealed = new ArrayList<Segment>();
+
+    private long appendCount = 0;
+
+    /* reused to frame a record */
+    private ByteBuffer frame = ByteBuffer.allocate(1024);
+
+    private final CRC32 crc = new CRC32();
+
+    /* group commit */
+
+    private final Lock syncLock = new ReentrantLock();
+
+    private final Condition syncDone = syncLock.newCondition();
+
+    private boolean syncing = false;
+
+    private long syncCount = 0;
+
+    EventLog(File directory, long segmentSize, boolean sync) {
+        if (segmentSize > Integer.MAX_VALUE) {
+            throw new JabatRuntimeException("Segment size is expected to be less than 2 GB");
+        }
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.sync = sync;
+    }
+
+    static long locator(int fileNumber, long position) {
+        return ((long) fileNumber << POSITION_BITS) | position;
+    }
+
+    static int fileNumber(long locator) {
+        return (int) (locator >>> POSITION_BITS);
+    }
+
+    static long position(long locator) {
+        return locator & POSITION_MASK;
+    }
+
+    private static int checksum(CRC32 crc, ByteBuffer buffer, int position, int length) {
+        crc.reset();
+        if (buffer.hasArray()) {
+            crc.update(buffer.array(), buffer.arrayOffset() + position, length);
+        } else {
+            for (int i = position; i < position + length; i++) {
+                crc.update(buffer.get(i));
+            }
+        }
+        return (int) crc.getValue();
+    }
+
+    private static int parseNumber(String name, String suffix) {
+        if (!name.endsWith(suffix)) {
+            return -1;
+        }
+        try {
+            return Integer.parseInt(name.substring(0, name.length() - suffix.length()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private File getFile(int number, String suffix) {
+        return new File(directory, String.format("%08d%s", number, suffix));
+    }
+
+    File getSnapshotFile(int number) {
+        return getFile(number, SNAPSHOT_SUFFIX);
+    }
+
+    File getTemporaryFile(int number) {
+        return getFile(number, TEMPORARY_SUFFIX);
+    }
+
+    /**
+     * Lock the directory for this container and list its files.
+     */
+    void open() throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new JabatRuntimeException("Cannot create job repository directory " + directory);
+        }
+
+        // only one container at a time can use a log
+        lockFile = new RandomAccessFile(new File(directory, LOCK_FILE_NAME), "rw");
+        try {
+            lock = lockFile.getChannel().tryLock();
+        } catch (OverlappingFileLockException e) {
+            lock = null;
+        }
+        if (lock == null) {
+            lockFile.close();
+            throw new JabatRuntimeException("Job repository " + directory + " is already used by another container");
+        }
+
+        File[] files = directory.listFiles(new FilenameFilter() {
+
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.endsWith(SEGMENT_SUFFIX) || name.endsWith(SNAPSHOT_SUFFIX)
+                        || name.endsWith(TEMPORARY_SUFFIX);
+            }
+        });
+        for (File file : files) {
+            String name = file.getName();
+            int number;
+            if ((number = parseNumber(name, SEGMENT_SUFFIX)) != -1) {
+                segmentNumbers.add(number);
+            } else if ((number = parseNumber(name, SNAPSHOT_SUFFIX)) != -1) {
+                snapshotNumbers.add(number);
+            } else if ((number = parseNumber(name, TEMPORARY_SUFFIX)) != -1) {
+                // a snapshot interrupted before being complete
+                file.delete();
+            }
+            nextFileNumber = Math.max(nextFileNumber, number + 1);
+        }
+        Collections.sort(segmentNumbers);
+        Collections.sort(snapshotNumbers);
+    }
+
+    /**
+     * Get the numbers of the snapshots found in the directory, in ascending
+     * order.
+     */
+    List<Integer> getSnapshotNumbers() {
+        return snapshotNumbers;
+    }
+
+    synchronized int newFileNumber() {
+        return nextFileNumber++;
+    }
+
+    void register(int number, FileChannel channel) {
+        channels.put(number, channel);
+    }
+
+    void unregister(int number) {
+        channels.remove(number);
+    }
+
+    /**
+     * Replay the segments following a snapshot and start a new active
+     * segment. The segments whose records are in the snapshot are deleted.
+     * A segment ending with an incomplete record is truncated.
+     *
+     * @param foldedUpTo the number of the last segment in the snapshot
+     * @param handler the handler of the records
+     */
+    void recover(int foldedUpTo, RecordHandler handler) throws IOException {
+        for (int number : segmentNumbers) {
+            if (number <= foldedUpTo) {
+                getFile(number, SEGMENT_SUFFIX).delete();
+                continue;
+            }
+            RandomAccessFile file = new RandomAccessFile(getFile(number, SEGMENT_SUFFIX), "rw");
+            long size = replay(number, file, handler);
+            if (size <= HEADER_SIZE) {
+                // no record has been written in the segment
+                file.close();
+                getFile(number, SEGMENT_SUFFIX).delete();
+                continue;
+            }
+            if (size < file.length()) {
+                LOGGER.warn("Segment {} ends with an incomplete record, truncated", getFile(number, SEGMENT_SUFFIX));
+                file.getChannel().truncate(size);
+                file.getChannel().force(true);
+            }
+            channels.put(number, file.getChannel());
+            synchronized (this) {
+                sealed.add(new Segment(number, file, size));
+            }
+        }
+        segmentNumbers.clear();
+        synchronized (this) {
+            active = newSegment();
+        }
+    }
+
+    /**
+     * Read the records of a segment.
+     *
+     * @return the size of the valid part of the segment
+     */
+    private long replay(int number, RandomAccessFile file, RecordHandler handler) throws IOException {
+        long length = file.length();
+        if (length < HEADER_SIZE) {
+            return 0;
+        }
+        MappedByteBuffer buffer = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, length);
+        if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+            throw new JabatRuntimeException(getFile(number, SEGMENT_SUFFIX) + " is not a job repository segment");
+        }
+        CRC32 scanCrc = new CRC32();
+        int position = HEADER_SIZE;
+        while (buffer.remaining() >= RECORD_OVERHEAD) {
+            int recordLength = buffer.getInt();
+            if (recordLength <= 0 || recordLength + 4 > buffer.remaining()) {
+                break;
+            }
+            int payloadPosition = buffer.position();
+            if (buffer.getInt(payloadPosition + recordLength) != checksum(scanCrc, buffer, payloadPosition, recordLength)) {
+                break;
+            }
+            ByteBuffer payload = buffer.slice();
+            payload.limit(recordLength);
+            handler.record(locator(number, position), payload);
+            buffer.position(payloadPosition + recordLength + 4);
+            position = buffer.position();
+        }
+        return position;
+    }
+
+    /**
+     * Read the records of a sealed segment.
+     */
+    void scan(int number, RecordHandler handler) throws IOException {
+        replay(number, getSealed(number).file, handler);
+    }
+
+    private synchronized Segment getSealed(int number) {
+        for (Segment segment : sealed) {
+            if (segment.number == number) {
+                return segment;
+            }
+        }
+        throw new JabatRuntimeException("Segment " + number + " is not sealed");
+    }
+
+    private Segment newSegment() throws IOException {
+        int number = nextFileNumber++;
+        RandomAccessFile file = new RandomAccessFile(getFile(number, SEGMENT_SUFFIX), "rw");
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(MAGIC);
+        header.putInt(VERSION);
+        header.flip();
+        write(file.getChannel(), header, 0);
+        if (sync) {
+            file.getChannel().force(true);
+        }
+        channels.put(number, file.getChannel());
+        return new Segment(number, file, HEADER_SIZE);
+    }
+
+    private static void write(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+
+    private static void read(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int count = channel.read(buffer, position);
+            if (count < 0) {
+                throw new JabatRuntimeException("Unexpected end of file");
+            }
+            position += count;
+        }
+    }
+
+    /**
+     * Append a record to the active segment.
+     *
+     * @param payload the record
+     * @return the locator of the record
+     */
+    synchronized long append(ByteBuffer payload) throws IOException {
+        if (active == null) {
+            throw new JabatRuntimeException("Job repository log is closed");
+        }
+        int length = payload.remaining();
+        int size = RECORD_OVERHEAD + length;
+        if (active.size + size > segmentSize && active.size > HEADER_SIZE) {
+            // the sealed segment is forced, a sync only has to force the
+            // active one
+            if (sync) {
+                active.file.getChannel().force(false);
+            }
+            sealed.add(active);
+            active = newSegment();
+        }
+        if (frame.capacity() < size) {
+            frame = ByteBuffer.allocate(Math.max(size, frame.capacity() * 2));
+        }
+        frame.clear();
+        frame.putInt(length);
+        frame.put(payload);
+        frame.putInt(checksum(crc, frame, 4, length));
+        frame.flip();
+        long position = active.size;
+        write(active.file.getChannel(), frame, position);
+        active.size += size;
+        appendCount++;
+        return locator(active.number, position);
+    }
+
+    /**
+     * Make the records appended so far durable. A thread finding another one
+     * forcing the segment waits for it, and forces the segment again only if
+     * its records were appended after the force began.
+     */
+    void sync() throws IOException {
+        if (!sync) {
+            return;
+        }
+        long target;
+        synchronized (this) {
+            target = appendCount;
+        }
+        syncLock.lock();
+        try {
+            while (syncCount < target) {
+                if (syncing) {
+                    syncDone.awaitUninterruptibly();
+                    continue;
+                }
+                syncing = true;
+                long count = 0;
+                boolean forced = false;
+                syncLock.unlock();
+                try {
+                    count = force();
+                    forced = true;
+                } finally {
+                    syncLock.lock();
+                    syncing = false;
+                    if (forced) {
+                        syncCount = Math.max(syncCount, count);
+                    }
+                    syncDone.signalAll();
+                }
+            }
+        } finally {
+            syncLock.unlock();
+        }
+    }
+
+    /**
+     * Force the active segment to disk.
+     *
+     * @return the number of records appended before the force
+     */
+    long force() throws IOException {
+        long count;
+        FileChannel channel;
+        synchronized (this) {
+            if (active == null) {
+                return appendCount;
+            }
+            count = appendCount;
+            channel = active.file.getChannel();
+        }
+        channel.force(false);
+        return count;
+    }
+
+    /**
+     * Read the payload of a record. The read lock has to be held, unless the
+     * file cannot be released concurrently.
+     */
+    ByteBuffer read(long locator) throws IOException {
+        ByteBuffer frame = readFrame(locator);
+        frame.position(4);
+        frame.limit(frame.capacity() - 4);
+        return frame.slice();
+    }
+
+    /**
+     * Read a record with its length and checksum.
+     */
+    ByteBuffer readFrame(long locator) throws IOException {
+        FileChannel channel = channels.get(fileNumber(locator));
+        if (channel == null) {
+            throw new JabatRuntimeException("Record " + Long.toHexString(locator) + " is not readable");
+        }
+        long position = position(locator);
+        ByteBuffer header = ByteBuffer.allocate(4);
+        read(channel, header, position);
+        int length = header.getInt(0);
+        ByteBuffer frame = ByteBuffer.allocate(RECORD_OVERHEAD + length);
+        read(channel, frame, position);
+        if (frame.getInt(4 + length) != checksum(new CRC32(), frame, 4, length)) {
+            throw new JabatRuntimeException("Record " + Long.toHexString(locator) + " is corrupted");
+        }
+        frame.rewind();
+        return frame;
+    }
+
+    /**
+     * Get the numbers of the sealed segments, in ascending order.
+     */
+    synchronized List<Integer> getSealedSegments() {
+        List<Integer> numbers = new ArrayList<Integer>(sealed.size());
+        for (Segment segment : sealed) {
+            numbers.add(segment.number);
+        }
+        return numbers;
+    }
+
+    synchronized long getSealedSize() {
+        long size = 0;
+        for (Segment segment : sealed) {
+            size += segment.size;
+        }
+        return size;
+    }
+
+    ReadWriteLock getFileLock() {
+        return fileLock;
+    }
+
+    /**
+     * Close and delete sealed segments. The write lock has to be held.
+     *
+     * @param numbers the numbers of the segments
+     */
+    void release(Collection<Integer> numbers) throws IOException {
+        for (int number : numbers) {
+            Segment segment = getSealed(number);
+            synchronized (this) {
+                sealed.remove(segment);
+            }
+            channels.remove(number);
+            segment.file.close();
+            if (!getFile(number, SEGMENT_SUFFIX).delete()) {
+                LOGGER.warn("Cannot delete segment {}", getFile(number, SEGMENT_SUFFIX));
+            }
+        }
+    }
+
+    /**
+     * Force and close the segments, and unlock the directory.
+     */
+    void close() throws IOException {
+        synchronized (this) {
+            if (active != null) {
+                active.file.getChannel().force(true);
+                active.file.close();
+                active = null;
+            }
+            for (Segment segment : sealed) {
+                segment.file.close();
+            }
+            sealed.clear();
+        }
+        channels.clear();
+        if (lock != null) {
+            lock.release();
+            lock = null;
+        }
+        if (lockFile != null) {
+            lockFile.close();
+            lockFile = null;
+        }
+    }
+
+}
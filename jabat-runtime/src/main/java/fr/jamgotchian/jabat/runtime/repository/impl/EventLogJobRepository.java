@@ -0,0 +1,1304 @@
+/*
+ * Copyright 2013 Geoffroy Jamgotchian <geoffroy.jamgotchian at gmail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.jamgotchian.jabat.runtime.repository.impl;
+
+import fr.jamgotchian.jabat.jobxml.model.Job;
+import fr.jamgotchian.jabat.jobxml.model.Step;
+import fr.jamgotchian.jabat.runtime.metric.StepMetrics;
+import fr.jamgotchian.jabat.runtime.repository.BatchStatus;
+import fr.jamgotchian.jabat.runtime.repository.JabatJobExecution;
+import fr.jamgotchian.jabat.runtime.repository.JabatJobInstance;
+import fr.jamgotchian.jabat.runtime.repository.JabatStepExecution;
+import fr.jamgotchian.jabat.runtime.repository.JobInstanceEvictionListener;
+import fr.jamgotchian.jabat.runtime.repository.JobRepository;
+import fr.jamgotchian.jabat.runtime.util.Externalizables;
+import fr.jamgotchian.jabat.runtime.util.JabatRuntimeException;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.Externalizable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import javax.batch.runtime.Metric.MetricName;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import static fr.jamgotchian.jabat.runtime.repository.impl.EventLogSnapshot.JOB_EXECUTIONS;
+import static fr.jamgotchian.jabat.runtime.repository.impl.EventLogSnapshot.JOB_INSTANCES;
+import static fr.jamgotchian.jabat.runtime.repository.impl.EventLogSnapshot.STEP_EXECUTIONS;
+import static fr.jamgotchian.jabat.runtime.repository.impl.EventLogSnapshot.TYPE_COUNT;
+
+/**
+ * Job repository persisted in an append-only log of files, without
+ * database.
+ *
+ * Each change of a job instance, job execution or step execution appends a
+ * binary record of its new state to the log. Creations and terminal
+ * statuses are made durable before returning, the threads doing so at the
+ * same time share the same force of the log to disk. The other changes,
+ * status changes of running steps and metrics for instance, are coalesced
+ * and appended every jabat.jobRepository.flushInterval ms (500 by default).
+ * The reader and writer checkpoint data stays in the checkpoint store.
+ *
+ * The log is split into segments of jabat.jobRepository.segmentSize bytes
+ * (16 MB by default). Once the full segments take more than
+ * jabat.jobRepository.compactionThreshold bytes (64 MB by default), a
+ * background thread folds them, with the previous snapshot, into a new
+ * snapshot keeping only the last record of each id, indexed by a memory
+ * mapped index. At startup only the segments following the snapshot are
+ * read, so the startup time does not depend on the size of the history.
+ *
+ * Running executions are served from memory, the other ones are read from
+ * the log. The snapshot also indexes the instances of each job by status of
+ * their last execution, the instances changed since are indexed in
+ * memory.
+ *
+ * The log is written in the directory configured by the
+ * jabat.jobRepository.directory key, $HOME/.jabat/repository by default,
+ * and forcing it to disk can be disabled with the jabat.jobRepository.sync
+ * key. The repository is selected by setting the jabat.jobRepository key
+ * to the name of this class.
+ *
+ * @author Geoffroy Jamgotchian <geoffroy.jamgotchian at gmail.com>
+ */
+public class EventLogJobRepository implements JobRepository {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(EventLogJobRepository.class);
+
+    public static final String DIRECTORY_KEY = "jabat.jobRepository.directory";
+
+    public static final String SYNC_KEY = "jabat.jobRepository.sync";
+
+    public static final String FLUSH_INTERVAL_KEY = "jabat.jobRepository.flushInterval";
+
+    public static final String SEGMENT_SIZE_KEY = "jabat.jobRepository.segmentSize";
+
+    public static final String COMPACTION_THRESHOLD_KEY = "jabat.jobRepository.compactionThreshold";
+
+    private static final long DEFAULT_FLUSH_INTERVAL = 500; // ms
+
+    private static final long DEFAULT_SEGMENT_SIZE = 16 * 1024 * 1024;
+
+    private static final long DEFAULT_COMPACTION_THRESHOLD = 64 * 1024 * 1024;
+
+    private static final long NO_TIME = Long.MIN_VALUE;
+
+    private static final MetricName[] METRIC_NAMES = MetricName.values();
+
+    private static final BatchStatus[] STATUSES = BatchStatus.values();
+
+    /* offsets of the job instance id and of the status in the record of a
+       job execution */
+
+    private static final int INSTANCE_ID_OFFSET = 9;
+
+    private static final int STATUS_OFFSET = 17;
+
+    /**
+     * Buffer of the record being encoded.
+     */
+    private static final class RecordBuffer extends ByteArrayOutputStream {
+
+        private ByteBuffer toByteBuffer() {
+            return ByteBuffer.wrap(buf, 0, count);
+        }
+    }
+
+    /**
+     * The instance ids of a job: the ones of the snapshot followed by the
+     * ones appended since, in creation order.
+     */
+    private static final class JobEntry {
+
+        private List<Long> snapshotIds;
+
+        private final IdList appendedIds = new IdList();
+
+        private JobEntry(List<Long> snapshotIds) {
+            this.snapshotIds = snapshotIds;
+        }
+
+        private synchronized List<Long> getInstanceIds() {
+            return new ConcatList(snapshotIds, appendedIds.snapshot());
+        }
+
+        /**
+         * Switch to the ids of a new snapshot, which contains the first
+         * appended ids.
+         */
+        private synchronized void fold(List<Long> snapshotIds, int count) {
+            this.snapshotIds = snapshotIds;
+            appendedIds.removeFirst(count);
+        }
+    }
+
+    private static final class ConcatList extends AbstractList<Long> {
+
+        private final List<Long> first;
+
+        private final List<Long> second;
+
+        private ConcatList(List<Long> first, List<Long> second) {
+            this.first = first;
+            this.second = second;
+        }
+
+        @Override
+        public Long get(int index) {
+            int firstSize = first.size();
+            return index < firstSize ? first.get(index) : second.get(index - firstSize);
+        }
+
+        @Override
+        public int size() {
+            return first.size() + second.size();
+        }
+    }
+
+    /**
+     * Iterate the ids of a snapshot list from the most recent, skipping the
+     * instances indexed in memory.
+     */
+    private final class SnapshotIterator implements Iterator<Long> {
+
+        private final List<Long> ids;
+
+        private int position;
+
+        private long next;
+
+        private SnapshotIterator(List<Long> ids) {
+            this.ids = ids;
+            position = ids.size();
+            advance();
+        }
+
+        private void advance() {
+            next = -1;
+            while (position > 0) {
+                long id = ids.get(--position);
+                if (!index.contains(id)) {
+                    next = id;
+                    break;
+                }
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return next != -1;
+        }
+
+        @Override
+        public Long next() {
+            if (next == -1) {
+                throw new NoSuchElementException();
+            }
+            long id = next;
+            advance();
+            return id;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    private final class LogJobExecution extends JabatJobExecutionImpl {
+
+        private final long jobInstanceId;
+
+        private LogJobExecution(long id, long jobInstanceId, Properties jobParameters) {
+            super(id, jobParameters);
+            this.jobInstanceId = jobInstanceId;
+        }
+
+        private LogJobExecution(long id, long jobInstanceId, Properties jobParameters, BatchStatus status,
+                                String exitStatus, Date createTime, Date startTime, Date endTime,
+                                Date lastUpdatedTime, long stopLatency, List<Long> stepExecutionIds) {
+            super(id, jobParameters, status, exitStatus, createTime, startTime, endTime, lastUpdatedTime,
+                  stopLatency, stepExecutionIds);
+            this.jobInstanceId = jobInstanceId;
+        }
+
+        @Override
+        public void setStatus(BatchStatus status) {
+            super.setStatus(status);
+            updated(this, isTerminal(status));
+        }
+
+        @Override
+        public void setExitStatus(String exitStatus) {
+            super.setExitStatus(exitStatus);
+            updated(this, false);
+        }
+
+        @Override
+        public void setStartTime(Date startTime) {
+            super.setStartTime(startTime);
+            updated(this, false);
+        }
+
+        @Override
+        public void setEndTime(Date endTime) {
+            super.setEndTime(endTime);
+            updated(this, false);
+        }
+
+        @Override
+        public void setStopLatency(long stopLatency) {
+            super.setStopLatency(stopLatency);
+            updated(this, false);
+        }
+    }
+
+    private final class LogStepExecution extends JabatStepExecutionImpl {
+
+        private final long jobExecutionId;
+
+        /* metrics and completed partition count of the last appended record,
+           guarded by the append lock */
+
+        private long[] appendedMetrics = new long[METRIC_NAMES.length];
+
+        private int appendedPartitionCount = 0;
+
+        private LogStepExecution(long id, String stepName, long jobExecutionId) {
+            super(id, stepName);
+            this.jobExecutionId = jobExecutionId;
+        }
+
+        private LogStepExecution(long id, String stepName, long jobExecutionId, BatchStatus status,
+                                 Date startTime, Date endTime, String exitStatus, Object userPersistentData,
+                                 StepMetrics metrics, long[] metricValues, Set<Integer> completedPartitions) {
+            super(id, stepName, status, startTime, endTime, exitStatus, userPersistentData, metrics,
+                  completedPartitions);
+            this.jobExecutionId = jobExecutionId;
+            appendedMetrics = metricValues;
+            appendedPartitionCount = completedPartitions.size();
+        }
+
+        @Override
+        public void setStatus(BatchStatus status) {
+            super.setStatus(status);
+            updated(this, isTerminal(status));
+        }
+
+        @Override
+        public void setEndTime(Date endTime) {
+            super.setEndTime(endTime);
+            updated(this, false);
+        }
+
+        @Override
+        public void setExitStatus(String exitStatus) {
+            super.setExitStatus(exitStatus);
+            updated(this, false);
+        }
+
+        @Override
+        public void setUserPersistentData(Object userPersistentData) {
+            super.setUserPersistentData(userPersistentData);
+            updated(this, false);
+        }
+
+        @Override
+        public void setStepMetrics(StepMetrics metrics) {
+            super.setStepMetrics(metrics);
+            updated(this, false);
+        }
+
+        private boolean isChangedSinceAppended() {
+            StepMetrics metrics = getStepMetrics();
+            for (MetricName name : METRIC_NAMES) {
+                if (metrics.get(name) != appendedMetrics[name.ordinal()]) {
+                    return true;
+                }
+            }
+            return getCompletedPartitions().size() != appendedPartitionCount;
+        }
+    }
+
+    private long flushInterval = DEFAULT_FLUSH_INTERVAL;
+
+    private long compactionThreshold = DEFAULT_COMPACTION_THRESHOLD;
+
+    private EventLog log;
+
+    /* swapped under the write lock of the log files */
+    private volatile EventLogSnapshot snapshot = EventLogSnapshot.EMPTY;
+
+    /* locators of the last records appended since the snapshot, by type */
+    @SuppressWarnings("unchecked")
+    private final ConcurrentMap<Long, Long>[] locators = new ConcurrentMap[TYPE_COUNT];
+
+    private final AtomicLong[] nextIds = new AtomicLong[TYPE_COUNT];
+
+    private final ConcurrentMap<String, JobEntry> jobs = new ConcurrentHashMap<String, JobEntry>();
+
+    /* instances whose last execution is running or has changed since the
+       snapshot, and the id of this execution */
+
+    private final JobInstanceIndex index = new JobInstanceIndex();
+
+    private final ConcurrentMap<Long, Long> indexedExecutions = new ConcurrentHashMap<Long, Long>();
+
+    /* orders the appends, guards the record buffer and the appended state of
+       the step executions */
+    private final Lock lock = new ReentrantLock();
+
+    private final RecordBuffer recordBuffer = new RecordBuffer();
+
+    private final DataOutputStream record = new DataOutputStream(recordBuffer);
+
+    private ScheduledExecutorService writer;
+
+    private final ConcurrentMap<Long, LogJobExecution> runningJobExecutions
+            = new ConcurrentHashMap<Long, LogJobExecution>();
+
+    private final ConcurrentMap<Long, LogStepExecution> runningStepExecutions
+            = new ConcurrentHashMap<Long, LogStepExecution>();
+
+    /* changes not appended yet */
+
+    private final ConcurrentMap<Long, LogJobExecution> dirtyJobExecutions
+            = new ConcurrentHashMap<Long, LogJobExecution>();
+
+    private final ConcurrentMap<Long, LogStepExecution> dirtyStepExecutions
+            = new ConcurrentHashMap<Long, LogStepExecution>();
+
+    public EventLogJobRepository() {
+        for (int type = 0; type < TYPE_COUNT; type++) {
+            locators[type] = new ConcurrentHashMap<Long, Long>();
+            nextIds[type] = new AtomicLong();
+        }
+    }
+
+    private static boolean isTerminal(BatchStatus status) {
+        switch (status) {
+            case STOPPED:
+            case FAILED:
+            case COMPLETED:
+            case ABANDONED:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    @Override
+    public void initialize(Properties configuration) throws Exception {
+        String value = configuration.getProperty(DIRECTORY_KEY);
+        File directory = value != null ? new File(value)
+                : new File(new File(System.getProperty("user.home"), ".jabat"), "repository");
+        boolean sync = Boolean.valueOf(configuration.getProperty(SYNC_KEY, "true"));
+        long segmentSize = DEFAULT_SEGMENT_SIZE;
+        value = configuration.getProperty(SEGMENT_SIZE_KEY);
+        if (value != null) {
+            segmentSize = Long.parseLong(value);
+        }
+        value = configuration.getProperty(FLUSH_INTERVAL_KEY);
+        if (value != null) {
+            flushInterval = Long.parseLong(value);
+        }
+        value = configuration.getProperty(COMPACTION_THRESHOLD_KEY);
+        if (value != null) {
+            compactionThreshold = Long.parseLong(value);
+        }
+        if (segmentSize <= EventLog.HEADER_SIZE || flushInterval <= 0 || compactionThreshold <= 0) {
+            throw new JabatRuntimeException("Segment size, flush interval and compaction threshold are expected"
+                    + " to be strictly positive");
+        }
+
+        long startTime = System.currentTimeMillis();
+        log = new EventLog(directory, segmentSize, sync);
+        log.open();
+        recover();
+        LOGGER.debug("Job repository {} recovered in {} ms", directory, System.currentTimeMillis() - startTime);
+
+        writer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "JABAT-repository-writer");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        writer.scheduleWithFixedDelay(new Runnable() {
+
+            @Override
+            public void run() {
+                try {
+                    flush();
+                    if (log.getSealedSize() >= compactionThreshold) {
+                        compact();
+                    }
+                } catch (Throwable t) {
+                    LOGGER.error(t.toString(), t);
+                }
+            }
+        }, flushInterval, flushInterval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Open the last snapshot and replay the segments following it.
+     */
+    private void recover() throws IOException {
+        List<Integer> snapshotNumbers = log.getSnapshotNumbers();
+        if (snapshotNumbers.size() > 0) {
+            int number = snapshotNumbers.get(snapshotNumbers.size() - 1);
+            snapshot = EventLogSnapshot.open(number, log.getSnapshotFile(number));
+            log.register(number, snapshot.getChannel());
+            for (int i = 0; i < snapshotNumbers.size() - 1; i++) {
+                // replaced by a compaction interrupted before removing it
+                log.getSnapshotFile(snapshotNumbers.get(i)).delete();
+            }
+        }
+        for (Map.Entry<String, List<Long>> e : snapshot.getJobs().entrySet()) {
+            jobs.put(e.getKey(), new JobEntry(e.getValue()));
+        }
+        for (int type = 0; type < TYPE_COUNT; type++) {
+            nextIds[type].set(snapshot.getNextId(type));
+        }
+        // id and status of the last execution of each instance changed since
+        // the snapshot
+        final Map<Long, long[]> lastExecutions = new HashMap<Long, long[]>();
+        log.recover(snapshot.getFoldedUpTo(), new EventLog.RecordHandler() {
+
+            @Override
+            public void record(long locator, ByteBuffer payload) throws IOException {
+                int type = payload.get(0);
+                long id = payload.getLong(1);
+                if (type == JOB_INSTANCES && locators[type].get(id) == null
+                        && snapshot.getLocator(type, id) == 0) {
+                    getJobEntry(readJobName(payload)).appendedIds.addId(id);
+                }
+                if (type == JOB_EXECUTIONS) {
+                    long jobInstanceId = payload.getLong(INSTANCE_ID_OFFSET);
+                    long[] lastExecution = lastExecutions.get(jobInstanceId);
+                    if (lastExecution == null || id >= lastExecution[0]) {
+                        lastExecutions.put(jobInstanceId, new long[] {id, payload.get(STATUS_OFFSET)});
+                    }
+                }
+                locators[type].put(id, locator);
+                if (id >= nextIds[type].get()) {
+                    nextIds[type].set(id + 1);
+                }
+            }
+        });
+        for (Map.Entry<Long, long[]> e : lastExecutions.entrySet()) {
+            DataInputStream in = read(JOB_INSTANCES, e.getKey());
+            if (in == null) {
+                continue;
+            }
+            String jobName = in.readUTF();
+            List<Long> executionIds = readIds(in);
+            long executionId = e.getValue()[0];
+            // an execution whose instance record has not been appended is not
+            // the last one yet
+            if (executionIds.size() > 0 && executionIds.get(executionIds.size() - 1) == executionId) {
+                index.put(jobName, e.getKey(), STATUSES[(int) e.getValue()[1]]);
+                indexedExecutions.put(e.getKey(), executionId);
+            }
+        }
+    }
+
+    @Override
+    public void shutdown() throws Exception {
+        if (writer != null) {
+            writer.shutdown();
+            writer.awaitTermination(1, TimeUnit.MINUTES);
+            writer = null;
+        }
+        if (log != null) {
+            try {
+                flush();
+            } finally {
+                log.close();
+                log = null;
+                snapshot.close();
+                snapshot = EventLogSnapshot.EMPTY;
+                for (int type = 0; type < TYPE_COUNT; type++) {
+                    locators[type].clear();
+                    nextIds[type].set(0);
+                }
+                jobs.clear();
+                index.clear();
+                indexedExecutions.clear();
+                runningJobExecutions.clear();
+                runningStepExecutions.clear();
+                dirtyJobExecutions.clear();
+                dirtyStepExecutions.clear();
+            }
+        }
+    }
+
+    @Override
+    public void setEvictionListener(JobInstanceEvictionListener listener) {
+        // the whole history is kept
+    }
+
+    private JobEntry getJobEntry(String name) {
+        JobEntry entry = jobs.get(name);
+        if (entry == null) {
+            JobEntry newEntry = new JobEntry(Collections.<Long>emptyList());
+            entry = jobs.putIfAbsent(name, newEntry);
+            if (entry == null) {
+                entry = newEntry;
+            }
+        }
+        return entry;
+    }
+
+    /* encoding, the append lock has to be held */
+
+    private void writeString(String s) throws IOException {
+        record.writeBoolean(s != null);
+        if (s != null) {
+            record.writeUTF(s);
+        }
+    }
+
+    private void writeTime(Date time) throws IOException {
+        record.writeLong(time != null ? time.getTime() : NO_TIME);
+    }
+
+    private void writeIds(List<Long> ids) throws IOException {
+        List<Long> snapshot = ids instanceof IdList ? ((IdList) ids).snapshot() : ids;
+        record.writeInt(snapshot.size());
+        for (long id : snapshot) {
+            record.writeLong(id);
+        }
+    }
+
+    private long appendRecord() throws IOException {
+        record.flush();
+        long locator = log.append(recordBuffer.toByteBuffer());
+        recordBuffer.reset();
+        return locator;
+    }
+
+    private void append(JabatJobInstance jobInstance) throws IOException {
+        recordBuffer.reset();
+        record.writeByte(JOB_INSTANCES);
+        record.writeLong(jobInstance.getInstanceId());
+        record.writeUTF(jobInstance.getJobName());
+        writeIds(jobInstance.getExecutionIds());
+        locators[JOB_INSTANCES].put(jobInstance.getInstanceId(), appendRecord());
+    }
+
+    private void append(LogJobExecution jobExecution) throws IOException {
+        recordBuffer.reset();
+        record.writeByte(JOB_EXECUTIONS);
+        record.writeLong(jobExecution.getId());
+        record.writeLong(jobExecution.jobInstanceId);
+        record.writeByte(jobExecution.getStatusEnum().ordinal());
+        writeString(jobExecution.getExitStatus());
+        writeTime(jobExecution.getCreateTime());
+        writeTime(jobExecution.getStartTime());
+        writeTime(jobExecution.getEndTime());
+        writeTime(jobExecution.getLastUpdatedTime());
+        record.writeLong(jobExecution.getStopLatency());
+        Properties jobParameters = jobExecution.getJobParameters();
+        if (jobParameters == null) {
+            record.writeInt(-1);
+        } else {
+            Set<String> names = jobParameters.stringPropertyNames();
+            record.writeInt(names.size());
+            for (String name : names) {
+                record.writeUTF(name);
+                writeString(jobParameters.getProperty(name));
+            }
+        }
+        writeIds(jobExecution.getStepExecutionIds());
+        locators[JOB_EXECUTIONS].put(jobExecution.getId(), appendRecord());
+    }
+
+    private void append(LogStepExecution stepExecution) throws IOException {
+        recordBuffer.reset();
+        record.writeByte(STEP_EXECUTIONS);
+        record.writeLong(stepExecution.getId());
+        record.writeLong(stepExecution.jobExecutionId);
+        record.writeUTF(stepExecution.getStepName());
+        record.writeByte(stepExecution.getStatusEnum().ordinal());
+        writeString(stepExecution.getExitStatus());
+        writeTime(stepExecution.getStartTime());
+        writeTime(stepExecution.getEndTime());
+        byte[] data = serialize(stepExecution);
+        if (data == null) {
+            record.writeInt(-1);
+        } else {
+            record.writeInt(data.length);
+            record.write(data);
+        }
+        StepMetrics stepMetrics = stepExecution.getStepMetrics();
+        long[] metrics = new long[METRIC_NAMES.length];
+        record.writeInt(metrics.length);
+        for (MetricName name : METRIC_NAMES) {
+            metrics[name.ordinal()] = stepMetrics.get(name);
+            record.writeLong(metrics[name.ordinal()]);
+        }
+        Set<Integer> completedPartitions = stepExecution.getCompletedPartitions();
+        List<Integer> partitions;
+        synchronized (completedPartitions) {
+            partitions = new ArrayList<Integer>(completedPartitions);
+        }
+        record.writeInt(partitions.size());
+        for (int partition : partitions) {
+            record.writeInt(partition);
+        }
+        locators[STEP_EXECUTIONS].put(stepExecution.getId(), appendRecord());
+        stepExecution.appendedMetrics = metrics;
+        stepExecution.appendedPartitionCount = partitions.size();
+    }
+
+    private static byte[] serialize(JabatStepExecution stepExecution) throws IOException {
+        Object data = stepExecution.getUserPersistentData();
+        if (data != null && !(data instanceof Externalizable)) {
+            LOGGER.warn("Persistent user data of step execution {} is not externalizable, not persisted",
+                        stepExecution.getId());
+            return null;
+        }
+        return Externalizables.serialize((Externalizable) data);
+    }
+
+    /* decoding */
+
+    private static DataInputStream input(ByteBuffer payload) {
+        byte[] bytes;
+        int offset;
+        if (payload.hasArray()) {
+            bytes = payload.array();
+            offset = payload.arrayOffset() + payload.position();
+        } else {
+            bytes = new byte[payload.remaining()];
+            payload.duplicate().get(bytes);
+            offset = 0;
+        }
+        return new DataInputStream(new ByteArrayInputStream(bytes, offset, payload.remaining()));
+    }
+
+    private static String readJobName(ByteBuffer payload) throws IOException {
+        DataInputStream in = input(payload);
+        in.readByte();
+        in.readLong();
+        return in.readUTF();
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    private static Date readTime(DataInputStream in) throws IOException {
+        long time = in.readLong();
+        return time != NO_TIME ? new Date(time) : null;
+    }
+
+    private static List<Long> readIds(DataInputStream in) throws IOException {
+        int count = in.readInt();
+        List<Long> ids = new ArrayList<Long>(count);
+        for (int i = 0; i < count; i++) {
+            ids.add(in.readLong());
+        }
+        return ids;
+    }
+
+    /**
+     * Read the last record of an id.
+     *
+     * @return the record or null if the id has not been appended
+     */
+    private DataInputStream read(int type, long id) {
+        Lock readLock = log.getFileLock().readLock();
+        readLock.lock();
+        try {
+            Long appendedLocator = locators[type].get(id);
+            long locator = appendedLocator != null ? appendedLocator : snapshot.getLocator(type, id);
+            if (locator == 0) {
+                return null;
+            }
+            DataInputStream in = input(log.read(locator));
+            in.readByte();
+            in.readLong();
+            return in;
+        } catch (IOException e) {
+            throw new JabatRuntimeException(e);
+        } finally {
+            readLock.unlock();
+        }
+    }
+
+    /* changes */
+
+    private void updated(LogJobExecution jobExecution, boolean terminal) {
+        if (!terminal) {
+            dirtyJobExecutions.put(jobExecution.getId(), jobExecution);
+            return;
+        }
+        dirtyJobExecutions.remove(jobExecution.getId(), jobExecution);
+        try {
+            lock.lock();
+            try {
+                append(jobExecution);
+            } finally {
+                lock.unlock();
+            }
+            log.sync();
+        } catch (IOException e) {
+            // appended again by the next flush
+            LOGGER.error(e.toString(), e);
+            dirtyJobExecutions.put(jobExecution.getId(), jobExecution);
+        }
+    }
+
+    private void updated(LogStepExecution stepExecution, boolean terminal) {
+        if (!terminal) {
+            dirtyStepExecutions.put(stepExecution.getId(), stepExecution);
+            return;
+        }
+        dirtyStepExecutions.remove(stepExecution.getId(), stepExecution);
+        try {
+            lock.lock();
+            try {
+                append(stepExecution);
+            } finally {
+                lock.unlock();
+            }
+            log.sync();
+        } catch (IOException e) {
+            // appended again by the next flush
+            LOGGER.error(e.toString(), e);
+            dirtyStepExecutions.put(stepExecution.getId(), stepExecution);
+        }
+    }
+
+    private static <E> List<E> drain(ConcurrentMap<Long, E> map) {
+        List<E> drained = new ArrayList<E>(map.size());
+        for (Map.Entry<Long, E> e : map.entrySet()) {
+            // removed before being appended, so that a concurrent change is
+            // appended by the next flush
+            if (map.remove(e.getKey(), e.getValue())) {
+                drained.add(e.getValue());
+            }
+        }
+        return drained;
+    }
+
+    /**
+     * Append the coalesced changes and the metrics of the running step
+     * executions, and make them durable.
+     */
+    private void flush() throws IOException {
+        if (log == null) {
+            return;
+        }
+        List<LogJobExecution> jobExecutions = drain(dirtyJobExecutions);
+        List<LogStepExecution> stepExecutions = drain(dirtyStepExecutions);
+        boolean appended = false;
+        lock.lock();
+        try {
+            for (LogJobExecution jobExecution : jobExecutions) {
+                append(jobExecution);
+            }
+            Set<Long> ids = new HashSet<Long>();
+            for (LogStepExecution stepExecution : stepExecutions) {
+                append(stepExecution);
+                ids.add(stepExecution.getId());
+            }
+            for (LogStepExecution stepExecution : runningStepExecutions.values()) {
+                if (!ids.contains(stepExecution.getId()) && stepExecution.isChangedSinceAppended()) {
+                    append(stepExecution);
+                }
+            }
+            appended = true;
+        } finally {
+            lock.unlock();
+            if (!appended) {
+                for (LogJobExecution jobExecution : jobExecutions) {
+                    dirtyJobExecutions.putIfAbsent(jobExecution.getId(), jobExecution);
+                }
+                for (LogStepExecution stepExecution : stepExecutions) {
+                    dirtyStepExecutions.putIfAbsent(stepExecution.getId(), stepExecution);
+                }
+            }
+        }
+        log.sync();
+    }
+
+    /**
+     * Fold the sealed segments and the current snapshot into a new snapshot,
+     * and release them. Appends and reads go on during the compaction,
+     * except while switching to the new snapshot.
+     */
+    synchronized void compact() throws IOException {
+        long startTime = System.currentTimeMillis();
+        final EventLogSnapshot oldSnapshot = snapshot;
+        List<Integer> folded = log.getSealedSegments();
+        if (folded.isEmpty()) {
+            return;
+        }
+
+        // last record of each id in the folded segments, and the instances
+        // created by these segments
+        final List<Map<Long, Long>> foldedLocators = new ArrayList<Map<Long, Long>>(TYPE_COUNT);
+        final long[] foldedNextIds = new long[TYPE_COUNT];
+        for (int type = 0; type < TYPE_COUNT; type++) {
+            foldedLocators.add(new HashMap<Long, Long>());
+            foldedNextIds[type] = oldSnapshot.getNextId(type);
+        }
+        final Map<String, List<Long>> createdInstanceIds = new LinkedHashMap<String, List<Long>>();
+        for (int number : folded) {
+            log.scan(number, new EventLog.RecordHandler() {
+
+                @Override
+                public void record(long locator, ByteBuffer payload) throws IOException {
+                    int type = payload.get(0);
+                    long id = payload.getLong(1);
+                    Map<Long, Long> typeLocators = foldedLocators.get(type);
+                    if (type == JOB_INSTANCES && !typeLocators.containsKey(id)
+                            && oldSnapshot.getLocator(type, id) == 0) {
+                        String jobName = readJobName(payload);
+                        List<Long> ids = createdInstanceIds.get(jobName);
+                        if (ids == null) {
+                            ids = new ArrayList<Long>();
+                            createdInstanceIds.put(jobName, ids);
+                        }
+                        ids.add(id);
+                    }
+                    typeLocators.put(id, locator);
+                    foldedNextIds[type] = Math.max(foldedNextIds[type], id + 1);
+                }
+            });
+        }
+
+        int number = log.newFileNumber();
+        File file = log.getSnapshotFile(number);
+        EventLogSnapshot.Writer snapshotWriter
+                = new EventLogSnapshot.Writer(file, log.getTemporaryFile(number), foldedNextIds);
+        boolean written = false;
+        try {
+            // the executions are written first, so that the instances are
+            // indexed by the status of their last execution
+            byte[] executionStatuses = new byte[(int) foldedNextIds[JOB_EXECUTIONS]];
+            Map<String, List<List<Long>>> statusInstanceIds = new HashMap<String, List<List<Long>>>();
+            for (int type : new int[] {JOB_EXECUTIONS, JOB_INSTANCES, STEP_EXECUTIONS}) {
+                Map<Long, Long> typeLocators = foldedLocators.get(type);
+                for (long id = 0; id < foldedNextIds[type]; id++) {
+                    Long foldedLocator = typeLocators.get(id);
+                    long locator = foldedLocator != null ? foldedLocator : oldSnapshot.getLocator(type, id);
+                    if (locator != 0) {
+                        ByteBuffer frame = log.readFrame(locator);
+                        ByteBuffer payload = frame.duplicate();
+                        payload.position(frame.position() + 4);
+                        payload.limit(frame.limit() - 4);
+                        payload = payload.slice();
+                        if (type == JOB_EXECUTIONS) {
+                            // shifted so that 0 means no record
+                            executionStatuses[(int) id] = (byte) (payload.get(STATUS_OFFSET) + 1);
+                        } else if (type == JOB_INSTANCES) {
+                            indexInstance(id, payload, executionStatuses, statusInstanceIds);
+                        }
+                        snapshotWriter.write(type, id, frame);
+                    }
+                }
+            }
+            Set<String> jobNames = new HashSet<String>(oldSnapshot.getJobs().keySet());
+            jobNames.addAll(createdInstanceIds.keySet());
+            for (String jobName : jobNames) {
+                List<Long> oldIds = oldSnapshot.getJobs().get(jobName);
+                List<Long> createdIds = createdInstanceIds.get(jobName);
+                List<List<Long>> statusIds = statusInstanceIds.get(jobName);
+                snapshotWriter.addJob(jobName, new ConcatList(oldIds != null ? oldIds : Collections.<Long>emptyList(),
+                                                              createdIds != null ? createdIds : Collections.<Long>emptyList()),
+                                      statusIds != null ? statusIds : Collections.<List<Long>>emptyList());
+            }
+            snapshotWriter.finish(folded.get(folded.size() - 1));
+            written = true;
+        } finally {
+            if (!written) {
+                snapshotWriter.abort();
+            }
+        }
+
+        EventLogSnapshot newSnapshot = EventLogSnapshot.open(number, file);
+        log.register(number, newSnapshot.getChannel());
+        Lock writeLock = log.getFileLock().writeLock();
+        // appends wait, so that the in-memory index is pruned consistently
+        lock.lock();
+        writeLock.lock();
+        try {
+            snapshot = newSnapshot;
+            // the records appended during the compaction stay in the
+            // segments
+            for (int type = 0; type < TYPE_COUNT; type++) {
+                for (Map.Entry<Long, Long> e : foldedLocators.get(type).entrySet()) {
+                    locators[type].remove(e.getKey(), e.getValue());
+                }
+            }
+            for (Map.Entry<String, List<Long>> e : newSnapshot.getJobs().entrySet()) {
+                List<Long> createdIds = createdInstanceIds.get(e.getKey());
+                getJobEntry(e.getKey()).fold(e.getValue(), createdIds != null ? createdIds.size() : 0);
+            }
+            // the instances whose last execution has been folded are indexed by
+            // the snapshot
+            for (Map.Entry<Long, Long> e : indexedExecutions.entrySet()) {
+                long executionId = e.getValue();
+                if (!locators[JOB_EXECUTIONS].containsKey(executionId)
+                        && !locators[JOB_INSTANCES].containsKey(e.getKey())
+                        && !runningJobExecutions.containsKey(executionId)
+                        && !dirtyJobExecutions.containsKey(executionId)) {
+                    index.remove(e.getKey());
+                    indexedExecutions.remove(e.getKey(), executionId);
+                }
+            }
+            log.release(folded);
+            if (oldSnapshot != EventLogSnapshot.EMPTY) {
+                log.unregister(oldSnapshot.getNumber());
+                oldSnapshot.close();
+                log.getSnapshotFile(oldSnapshot.getNumber()).delete();
+            }
+        } finally {
+            writeLock.unlock();
+            lock.unlock();
+        }
+        LOGGER.debug("Job repository segments {} compacted in {} ms", folded, System.currentTimeMillis() - startTime);
+    }
+
+    /**
+     * Add an instance of a snapshot being written to the lists of the status
+     * of its last execution.
+     */
+    private static void indexInstance(long id, ByteBuffer payload, byte[] executionStatuses,
+                                      Map<String, List<List<Long>>> statusInstanceIds) throws IOException {
+        DataInputStream in = input(payload);
+        in.readByte();
+        in.readLong();
+        String jobName = in.readUTF();
+        List<Long> executionIds = readIds(in);
+        if (executionIds.isEmpty()) {
+            return;
+        }
+        long executionId = executionIds.get(executionIds.size() - 1);
+        if (executionId >= executionStatuses.length || executionStatuses[(int) executionId] == 0) {
+            return;
+        }
+        List<List<Long>> statusIds = statusInstanceIds.get(jobName);
+        if (statusIds == null) {
+            statusIds = new ArrayList<List<Long>>(STATUSES.length);
+            for (int i = 0; i < STATUSES.length; i++) {
+                statusIds.add(new IdList());
+            }
+            statusInstanceIds.put(jobName, statusIds);
+        }
+        ((IdList) statusIds.get(executionStatuses[(int) executionId] - 1)).addId(id);
+    }
+
+    @Override
+    public JabatJobInstance createJobInstance(Job job) {
+        long id = nextIds[JOB_INSTANCES].getAndIncrement();
+        JabatJobInstance jobInstance = new JabatJobInstanceImpl(job.getId(), id);
+        try {
+            lock.lock();
+            try {
+                append(jobInstance);
+                // in the order of the log, as rebuilt by a recovery
+                getJobEntry(job.getId()).appendedIds.addId(id);
+            } finally {
+                lock.unlock();
+            }
+            log.sync();
+        } catch (IOException e) {
+            throw new JabatRuntimeException(e);
+        }
+        return jobInstance;
+    }
+
+    @Override
+    public JabatJobExecution createJobExecution(JabatJobInstance jobInstance, Properties jobParameters) {
+        long id = nextIds[JOB_EXECUTIONS].getAndIncrement();
+        LogJobExecution jobExecution = new LogJobExecution(id, jobInstance.getInstanceId(), jobParameters);
+        runningJobExecutions.put(id, jobExecution);
+        jobInstance.getExecutionIds().add(id);
+        try {
+            lock.lock();
+            try {
+                append(jobExecution);
+                append(jobInstance);
+                index.executionCreated(jobInstance.getJobName(), jobInstance.getInstanceId(), jobExecution);
+                indexedExecutions.put(jobInstance.getInstanceId(), id);
+            } finally {
+                lock.unlock();
+            }
+            log.sync();
+        } catch (IOException e) {
+            throw new JabatRuntimeException(e);
+        }
+        return jobExecution;
+    }
+
+    @Override
+    public JabatStepExecution createStepExecution(Step step, JabatJobExecution jobExecution) {
+        long id = nextIds[STEP_EXECUTIONS].getAndIncrement();
+        LogStepExecution stepExecution = new LogStepExecution(id, step.getId(), jobExecution.getId());
+        runningStepExecutions.put(id, stepExecution);
+        jobExecution.getStepExecutionIds().add(id);
+        try {
+            lock.lock();
+            try {
+                append(stepExecution);
+                if (jobExecution instanceof LogJobExecution) {
+                    append((LogJobExecution) jobExecution);
+                }
+            } finally {
+                lock.unlock();
+            }
+        } catch (IOException e) {
+            throw new JabatRuntimeException(e);
+        }
+        return stepExecution;
+    }
+
+    @Override
+    public Set<String> getJobIds() {
+        return Collections.unmodifiableSet(jobs.keySet());
+    }
+
+    @Override
+    public List<Long> getJobInstanceIds(String id) {
+        JobEntry entry = jobs.get(id);
+        return entry != null ? entry.getInstanceIds() : null;
+    }
+
+    @Override
+    public int getJobInstanceCount(String id) {
+        JobEntry entry = jobs.get(id);
+        return entry != null ? entry.getInstanceIds().size() : -1;
+    }
+
+    @Override
+    public List<Long> getJobInstanceIds(String id, int start, int count) {
+        JobEntry entry = jobs.get(id);
+        return entry != null ? JobInstanceIndex.getPage(entry.getInstanceIds(), start, count) : null;
+    }
+
+    @Override
+    public List<Long> getJobInstanceIds(String id, Set<BatchStatus> statuses, int start, int count) {
+        if (!jobs.containsKey(id)) {
+            return null;
+        }
+        // the snapshot and the in-memory index are switched together under
+        // the write lock
+        Lock readLock = log.getFileLock().readLock();
+        readLock.lock();
+        try {
+            List<Iterator<Long>> iterators = index.iterators(id, statuses);
+            for (BatchStatus status : statuses) {
+                List<Long> ids = snapshot.getInstanceIds(id, status);
+                if (ids.size() > 0) {
+                    iterators.add(new SnapshotIterator(ids));
+                }
+            }
+            return JobInstanceIndex.merge(iterators, start, count);
+        } finally {
+            readLock.unlock();
+        }
+    }
+
+    @Override
+    public List<Long> getJobInstanceIds(String id, Date from, Date to, int start, int count) {
+        JobEntry entry = jobs.get(id);
+        return entry != null ? JobInstanceIndex.getPage(entry.getInstanceIds(), from, to, start, count, this) : null;
+    }
+
+    @Override
+    public JabatJobInstance getJobInstance(long id) {
+        DataInputStream in = read(JOB_INSTANCES, id);
+        if (in == null) {
+            return null;
+        }
+        try {
+            JabatJobInstance jobInstance = new JabatJobInstanceImpl(in.readUTF(), id);
+            jobInstance.getExecutionIds().addAll(readIds(in));
+            return jobInstance;
+        } catch (IOException e) {
+            throw new JabatRuntimeException(e);
+        }
+    }
+
+    @Override
+    public JabatJobExecution getJobExecution(long id) {
+        JabatJobExecution jobExecution = runningJobExecutions.get(id);
+        if (jobExecution == null) {
+            // ended but not appended yet
+            jobExecution = dirtyJobExecutions.get(id);
+        }
+        if (jobExecution != null) {
+            return jobExecution;
+        }
+        DataInputStream in = read(JOB_EXECUTIONS, id);
+        if (in == null) {
+            return null;
+        }
+        try {
+            long jobInstanceId = in.readLong();
+            BatchStatus status = STATUSES[in.readByte()];
+            String exitStatus = readString(in);
+            Date createTime = readTime(in);
+            Date startTime = readTime(in);
+            Date endTime = readTime(in);
+            Date lastUpdatedTime = readTime(in);
+            long stopLatency = in.readLong();
+            Properties jobParameters = null;
+            int parameterCount = in.readInt();
+            if (parameterCount >= 0) {
+                jobParameters = new Properties();
+                for (int i = 0; i < parameterCount; i++) {
+                    String name = in.readUTF();
+                    String value = readString(in);
+                    if (value != null) {
+                        jobParameters.setProperty(name, value);
+                    }
+                }
+            }
+            return new LogJobExecution(id, jobInstanceId, jobParameters, status, exitStatus, createTime, startTime,
+                                       endTime, lastUpdatedTime, stopLatency, readIds(in));
+        } catch (IOException e) {
+            throw new JabatRuntimeException(e);
+        }
+    }
+
+    @Override
+    public JabatStepExecution getStepExecution(long id) {
+        JabatStepExecution stepExecution = runningStepExecutions.get(id);
+        if (stepExecution == null) {
+            // ended but not appended yet
+            stepExecution = dirtyStepExecutions.get(id);
+        }
+        if (stepExecution != null) {
+            return stepExecution;
+        }
+        DataInputStream in = read(STEP_EXECUTIONS, id);
+        if (in == null) {
+            return null;
+        }
+        try {
+            long jobExecutionId = in.readLong();
+            String stepName = in.readUTF();
+            BatchStatus status = STATUSES[in.readByte()];
+            String exitStatus = readString(in);
+            Date startTime = readTime(in);
+            Date endTime = readTime(in);
+            Object userPersistentData = null;
+            int length = in.readInt();
+            if (length >= 0) {
+                byte[] data = new byte[length];
+                in.readFully(data);
+                userPersistentData = Externalizables.deserialize(data);
+            }
+            StepMetrics metrics = new StepMetrics();
+            long[] metricValues = new long[METRIC_NAMES.length];
+            int metricCount = in.readInt();
+            for (int i = 0; i < metricCount; i++) {
+                long value = in.readLong();
+                if (i < METRIC_NAMES.length) {
+                    metricValues[i] = value;
+                    metrics.getPartition(0).add(METRIC_NAMES[i], value);
+                }
+            }
+            int partitionCount = in.readInt();
+            Set<Integer> completedPartitions = new HashSet<Integer>(partitionCount);
+            for (int i = 0; i < partitionCount; i++) {
+                completedPartitions.add(in.readInt());
+            }
+            return new LogStepExecution(id, stepName, jobExecutionId, status, startTime, endTime, exitStatus,
+                                        userPersistentData, metrics, metricValues, completedPartitions);
+        } catch (IOException e) {
+            throw new JabatRuntimeException(e);
+        } catch (ClassNotFoundException e) {
+            throw new JabatRuntimeException(e);
+        }
+    }
+
+    @Override
+    public void jobExecutionEnded(JabatJobExecution jobExecution) {
+        // the final state of the execution is made durable before it is read
+        // from the log
+        List<LogStepExecution> stepExecutions = new ArrayList<LogStepExecution>();
+        for (long stepExecutionId : jobExecution.getStepExecutionIds()) {
+            LogStepExecution stepExecution = runningStepExecutions.get(stepExecutionId);
+            if (stepExecution != null) {
+                stepExecutions.add(stepExecution);
+            }
+        }
+        try {
+            lock.lock();
+            try {
+                if (jobExecution instanceof LogJobExecution) {
+                    dirtyJobExecutions.remove(jobExecution.getId(), jobExecution);
+                    append((LogJobExecution) jobExecution);
+                }
+                for (LogStepExecution stepExecution : stepExecutions) {
+                    dirtyStepExecutions.remove(stepExecution.getId(), stepExecution);
+                    append(stepExecution);
+                }
+            } finally {
+                lock.unlock();
+            }
+            log.sync();
+        } catch (IOException e) {
+            // appended by the next flush
+            LOGGER.error(e.toString(), e);
+            if (jobExecution instanceof LogJobExecution) {
+                dirtyJobExecutions.put(jobExecution.getId(), (LogJobExecution) jobExecution);
+            }
+            for (LogStepExecution stepExecution : stepExecutions) {
+                dirtyStepExecutions.put(stepExecution.getId(), stepExecution);
+            }
+        }
+        index.executionEnded(jobExecution);
+        runningJobExecutions.remove(jobExecution.getId());
+        for (LogStepExecution stepExecution : stepExecutions) {
+            runningStepExecutions.remove(stepExecution.getId());
+        }
+    }
+
+}
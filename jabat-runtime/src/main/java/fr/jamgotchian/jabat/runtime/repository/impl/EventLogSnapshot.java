@@ -0,0 +1,382 @@
+/*
+ * Copyright 2013 Geoffroy Jamgotchian <geoffroy.jamgotchian at gmail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.jamgotchian.jabat.runtime.repository.impl;
+
+import fr.jamgotchian.jabat.runtime.repository.BatchStatus;
+import fr.jamgotchian.jabat.runtime.util.JabatRuntimeException;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Snapshot of the job repository log, the last record of each job instance,
+ * job execution and step execution up to a segment.
+ *
+ * The records are followed by an index, mapped in memory, giving the
+ * position of the record of each id, and by the instance ids of each job,
+ * all of them and by status of their last execution.
+ * Opening a snapshot only reads its header and the names of the jobs, so it
+ * takes the same time whatever the number of records.
+ *
+ * @author Geoffroy Jamgotchian <geoffroy.jamgotchian at gmail.com>
+ */
+final class EventLogSnapshot {
+
+    static final int JOB_INSTANCES = 0;
+
+    static final int JOB_EXECUTIONS = 1;
+
+    static final int STEP_EXECUTIONS = 2;
+
+    static final int TYPE_COUNT = 3;
+
+    private static final int MAGIC = 0x4a424553;
+
+    private static final int VERSION = 2;
+
+    private static final int STATUS_COUNT = BatchStatus.values().length;
+
+    /* magic, version, folded segment, next ids, index position, index sizes
+       and job table position */
+    private static final int HEADER_SIZE = 4 + 4 + 4 + TYPE_COUNT * 8 + 8 + TYPE_COUNT * 8 + 8;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    static final EventLogSnapshot EMPTY = new EventLogSnapshot();
+
+    /**
+     * Immutable view of the instance ids of a job.
+     */
+    private static final class IdBuffer extends AbstractList<Long> {
+
+        private final LongBuffer ids;
+
+        private IdBuffer(LongBuffer ids) {
+            this.ids = ids;
+        }
+
+        @Override
+        public Long get(int index) {
+            return ids.get(index);
+        }
+
+        @Override
+        public int size() {
+            return ids.limit();
+        }
+    }
+
+    private final int number;
+
+    private final int foldedUpTo;
+
+    private final long[] nextIds;
+
+    private final RandomAccessFile file;
+
+    private final LongBuffer[] indexes;
+
+    private final Map<String, List<Long>> jobs;
+
+    /* instance ids of each job by status of their last execution */
+    private final Map<String, List<List<Long>>> jobStatuses;
+
+    private EventLogSnapshot() {
+        number = -1;
+        foldedUpTo = -1;
+        nextIds = new long[TYPE_COUNT];
+        file = null;
+        indexes = new LongBuffer[TYPE_COUNT];
+        for (int type = 0; type < TYPE_COUNT; type++) {
+            indexes[type] = LongBuffer.allocate(0);
+        }
+        jobs = Collections.emptyMap();
+        jobStatuses = Collections.emptyMap();
+    }
+
+    private EventLogSnapshot(int number, File path) throws IOException {
+        this.number = number;
+        file = new RandomAccessFile(path, "r");
+        FileChannel channel = file.getChannel();
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        while (header.hasRemaining()) {
+            if (channel.read(header, header.position()) < 0) {
+                throw new JabatRuntimeException(path + " is not a job repository snapshot");
+            }
+        }
+        header.flip();
+        if (header.getInt() != MAGIC || header.getInt() != VERSION) {
+            throw new JabatRuntimeException(path + " is not a job repository snapshot");
+        }
+        foldedUpTo = header.getInt();
+        nextIds = new long[TYPE_COUNT];
+        for (int type = 0; type < TYPE_COUNT; type++) {
+            nextIds[type] = header.getLong();
+        }
+        long indexPosition = header.getLong();
+        long[] indexSizes = new long[TYPE_COUNT];
+        for (int type = 0; type < TYPE_COUNT; type++) {
+            indexSizes[type] = header.getLong();
+        }
+        long jobTablePosition = header.getLong();
+
+        // the index and the job table are mapped at once, the records are read
+        // through the channel
+        MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, indexPosition,
+                                              channel.size() - indexPosition);
+        indexes = new LongBuffer[TYPE_COUNT];
+        int position = 0;
+        for (int type = 0; type < TYPE_COUNT; type++) {
+            indexes[type] = slice(mapped, position, (int) indexSizes[type]);
+            position += indexSizes[type] * 8;
+        }
+        mapped.position((int) (jobTablePosition - indexPosition));
+        int jobCount = mapped.getInt();
+        jobs = new LinkedHashMap<String, List<Long>>(jobCount);
+        jobStatuses = new LinkedHashMap<String, List<List<Long>>>(jobCount);
+        for (int i = 0; i < jobCount; i++) {
+            byte[] bytes = new byte[mapped.getShort() & 0xffff];
+            mapped.get(bytes);
+            String name = new String(bytes, UTF8);
+            jobs.put(name, readIds(mapped));
+            int statusCount = mapped.getInt();
+            List<List<Long>> statusIds = new ArrayList<List<Long>>(statusCount);
+            for (int j = 0; j < statusCount; j++) {
+                statusIds.add(readIds(mapped));
+            }
+            jobStatuses.put(name, statusIds);
+        }
+    }
+
+    private static LongBuffer slice(ByteBuffer buffer, int position, int count) {
+        ByteBuffer view = buffer.duplicate();
+        view.position(position);
+        view.limit(position + count * 8);
+        return view.slice().asLongBuffer();
+    }
+
+    private static List<Long> readIds(ByteBuffer buffer) {
+        int count = buffer.getInt();
+        List<Long> ids = new IdBuffer(slice(buffer, buffer.position(), count));
+        buffer.position(buffer.position() + count * 8);
+        return ids;
+    }
+
+    static EventLogSnapshot open(int number, File path) throws IOException {
+        return new EventLogSnapshot(number, path);
+    }
+
+    int getNumber() {
+        return number;
+    }
+
+    /**
+     * Get the number of the last segment whose records are in the snapshot.
+     */
+    int getFoldedUpTo() {
+        return foldedUpTo;
+    }
+
+    long getNextId(int type) {
+        return nextIds[type];
+    }
+
+    /**
+     * Get the locator of the record of an id, 0 if the snapshot does not
+     * contain it.
+     */
+    long getLocator(int type, long id) {
+        LongBuffer index = indexes[type];
+        if (id < 0 || id >= index.limit()) {
+            return 0;
+        }
+        long position = index.get((int) id);
+        return position == 0 ? 0 : EventLog.locator(number, position);
+    }
+
+    /**
+     * Get the instance ids of each job, in creation order.
+     */
+    Map<String, List<Long>> getJobs() {
+        return jobs;
+    }
+
+    /**
+     * Get the instance ids of a job whose last execution had a status, in
+     * creation order.
+     */
+    List<Long> getInstanceIds(String jobName, BatchStatus status) {
+        List<List<Long>> statusIds = jobStatuses.get(jobName);
+        if (statusIds == null || status.ordinal() >= statusIds.size()) {
+            return Collections.emptyList();
+        }
+        return statusIds.get(status.ordinal());
+    }
+
+    FileChannel getChannel() {
+        return file != null ? file.getChannel() : null;
+    }
+
+    void close() throws IOException {
+        if (file != null) {
+            file.close();
+        }
+    }
+
+    /**
+     * Write a snapshot to a temporary file, renamed once complete so that an
+     * interrupted write does not leave an invalid snapshot.
+     */
+    static final class Writer {
+
+        private final File path;
+
+        private final File temporaryPath;
+
+        private final FileOutputStream fos;
+
+        private final DataOutputStream os;
+
+        private long position = HEADER_SIZE;
+
+        private final long[][] positions = new long[TYPE_COUNT][];
+
+        private final Map<String, List<Long>> jobs = new LinkedHashMap<String, List<Long>>();
+
+        private final Map<String, List<List<Long>>> jobStatuses = new LinkedHashMap<String, List<List<Long>>>();
+
+        Writer(File path, File temporaryPath, long[] nextIds) throws IOException {
+            this.path = path;
+            this.temporaryPath = temporaryPath;
+            for (int type = 0; type < TYPE_COUNT; type++) {
+                if (nextIds[type] > Integer.MAX_VALUE) {
+                    throw new JabatRuntimeException("Too many records for a snapshot");
+                }
+                positions[type] = new long[(int) nextIds[type]];
+            }
+            fos = new FileOutputStream(temporaryPath);
+            os = new DataOutputStream(new BufferedOutputStream(fos, 64 * 1024));
+            os.write(new byte[HEADER_SIZE]);
+        }
+
+        /**
+         * Write the record of an id, with its length and checksum.
+         */
+        void write(int type, long id, ByteBuffer frame) throws IOException {
+            positions[type][(int) id] = position;
+            int length = frame.remaining();
+            os.write(frame.array(), frame.arrayOffset() + frame.position(), length);
+            position += length;
+        }
+
+        /**
+         * Add a job, with its instance ids and the ones of each status, by
+         * ordinal, in creation order.
+         */
+        void addJob(String name, List<Long> instanceIds, List<List<Long>> statusInstanceIds) {
+            jobs.put(name, instanceIds);
+            jobStatuses.put(name, statusInstanceIds);
+        }
+
+        private void writeIds(List<Long> ids) throws IOException {
+            os.writeInt(ids.size());
+            for (long id : ids) {
+                os.writeLong(id);
+            }
+        }
+
+        void finish(int foldedUpTo) throws IOException {
+            boolean finished = false;
+            try {
+                long indexPosition = position;
+                for (int type = 0; type < TYPE_COUNT; type++) {
+                    for (long p : positions[type]) {
+                        os.writeLong(p);
+                    }
+                }
+                long jobTablePosition = indexPosition;
+                for (int type = 0; type < TYPE_COUNT; type++) {
+                    jobTablePosition += positions[type].length * 8L;
+                }
+                os.writeInt(jobs.size());
+                for (Map.Entry<String, List<Long>> e : jobs.entrySet()) {
+                    byte[] name = e.getKey().getBytes(UTF8);
+                    os.writeShort(name.length);
+                    os.write(name);
+                    writeIds(e.getValue());
+                    List<List<Long>> statusIds = jobStatuses.get(e.getKey());
+                    os.writeInt(STATUS_COUNT);
+                    for (int i = 0; i < STATUS_COUNT; i++) {
+                        writeIds(i < statusIds.size() ? statusIds.get(i) : Collections.<Long>emptyList());
+                    }
+                }
+                os.flush();
+
+                ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+                header.putInt(MAGIC);
+                header.putInt(VERSION);
+                header.putInt(foldedUpTo);
+                for (int type = 0; type < TYPE_COUNT; type++) {
+                    header.putLong(positions[type].length);
+                }
+                header.putLong(indexPosition);
+                for (int type = 0; type < TYPE_COUNT; type++) {
+                    header.putLong(positions[type].length);
+                }
+                header.putLong(jobTablePosition);
+                header.flip();
+                FileChannel channel = fos.getChannel();
+                while (header.hasRemaining()) {
+                    channel.write(header, header.position());
+                }
+                channel.force(true);
+                finished = true;
+            } finally {
+                os.close();
+                if (!finished) {
+                    temporaryPath.delete();
+                }
+            }
+            if (!temporaryPath.renameTo(path)) {
+                throw new JabatRuntimeException("Cannot rename " + temporaryPath + " to " + path);
+            }
+        }
+
+        void abort() {
+            try {
+                os.close();
+            } catch (IOException e) {
+                // already failed
+            }
+            temporaryPath.delete();
+        }
+    }
+
+}
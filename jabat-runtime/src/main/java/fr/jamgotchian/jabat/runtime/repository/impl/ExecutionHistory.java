@@ -0,0 +1,773 @@
+/*
+ * Copyright 2013 Geoffroy Jamgotchian <geoffroy.jamgotchian at gmail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.jamgotchian.jabat.runtime.repository.impl;
+
+import fr.jamgotchian.jabat.runtime.metric.StepMetrics;
+import fr.jamgotchian.jabat.runtime.metric.StepMetrics.PartitionMetrics;
+import fr.jamgotchian.jabat.runtime.repository.BatchStatus;
+import fr.jamgotchian.jabat.runtime.repository.JabatJobExecution;
+import fr.jamgotchian.jabat.runtime.repository.JabatStepExecution;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import javax.batch.runtime.Metric.MetricName;
+
+/**
+ * Compact storage of the job executions which have ended and of their step
+ * executions.
+ *
+ * Records are stored in columns of primitive arrays, grouped by segments of
+ * consecutive ids, so that a record takes a few tens of bytes instead of a
+ * graph of objects. Job names, step names and exit statuses are interned and
+ * released with the last record using them, dates are stored as epoch
+ * milliseconds and job parameters are encoded. A segment is dropped once all
+ * its records have been evicted. Job and step executions are rebuilt from
+ * their record on each read, as immutable objects.
+ *
+ * @author Geoffroy Jamgotchian <geoffroy.jamgotchian at gmail.com>
+ */
+final class ExecutionHistory {
+
+    private static final int SEGMENT_BITS = 10;
+
+    private static final int SEGMENT_SIZE = 1 << SEGMENT_BITS;
+
+    private static final int SEGMENT_MASK = SEGMENT_SIZE - 1;
+
+    /* the state of a record */
+    private static final byte ABSENT = 0;
+
+    private static final byte STORED = 1;
+
+    private static final byte EVICTED = 2;
+
+    /* a null date */
+    static final long NO_TIME = Long.MIN_VALUE;
+
+    /* a null string */
+    private static final int NO_STRING = -1;
+
+    private static final BatchStatus[] STATUSES = BatchStatus.values();
+
+    private static final MetricName[] METRIC_NAMES = MetricName.values();
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /**
+     * Interned strings, counting the records which use them.
+     */
+    private static final class StringTable {
+
+        private final Map<String, Integer> indexes = new HashMap<String, Integer>();
+
+        private String[] strings = new String[16];
+
+        private int[] useCounts = new int[16];
+
+        private int[] freeIndexes = new int[16];
+
+        private int freeCount = 0;
+
+        private int size = 0;
+
+        private int intern(String s) {
+            if (s == null) {
+                return NO_STRING;
+            }
+            Integer index = indexes.get(s);
+            int i;
+            if (index != null) {
+                i = index;
+            } else {
+                if (freeCount > 0) {
+                    i = freeIndexes[--freeCount];
+                } else {
+                    if (size == strings.length) {
+                        strings = Arrays.copyOf(strings, size * 2);
+                        useCounts = Arrays.copyOf(useCounts, size * 2);
+                    }
+                    i = size++;
+                }
+                strings[i] = s;
+                indexes.put(s, i);
+            }
+            useCounts[i]++;
+            return i;
+        }
+
+        private String get(int i) {
+            return i == NO_STRING ? null : strings[i];
+        }
+
+        private void release(int i) {
+            if (i == NO_STRING) {
+                return;
+            }
+            if (--useCounts[i] == 0) {
+                indexes.remove(strings[i]);
+                strings[i] = null;
+                if (freeCount == freeIndexes.length) {
+                    freeIndexes = Arrays.copyOf(freeIndexes, freeCount * 2);
+                }
+                freeIndexes[freeCount++] = i;
+            }
+        }
+    }
+
+    private static final class ExecutionSegment {
+
+        private final byte[] states = new byte[SEGMENT_SIZE];
+
+        private final long[] instanceIds = new long[SEGMENT_SIZE];
+
+        private final int[] jobNames = new int[SEGMENT_SIZE];
+
+        private final byte[] statuses = new byte[SEGMENT_SIZE];
+
+        private final int[] exitStatuses = new int[SEGMENT_SIZE];
+
+        private final long[] createTimes = new long[SEGMENT_SIZE];
+
+        private final long[] startTimes = new long[SEGMENT_SIZE];
+
+        private final long[] endTimes = new long[SEGMENT_SIZE];
+
+        private final long[] lastUpdatedTimes = new long[SEGMENT_SIZE];
+
+        private final long[] stopLatencies = new long[SEGMENT_SIZE];
+
+        private final long[][] stepExecutionIds = new long[SEGMENT_SIZE][];
+
+        private final byte[][] jobParameters = new byte[SEGMENT_SIZE][];
+
+        private int evictedCount = 0;
+    }
+
+    private static final class StepSegment {
+
+        private final byte[] states = new byte[SEGMENT_SIZE];
+
+        private final int[] stepNames = new int[SEGMENT_SIZE];
+
+        private final byte[] statuses = new byte[SEGMENT_SIZE];
+
+        private final int[] exitStatuses = new int[SEGMENT_SIZE];
+
+        private final long[] startTimes = new long[SEGMENT_SIZE];
+
+        private final long[] endTimes = new long[SEGMENT_SIZE];
+
+        /* the metric values of a record are contiguous */
+        private final long[] metrics = new long[SEGMENT_SIZE * METRIC_NAMES.length];
+
+        private final Object[] userPersistentData = new Object[SEGMENT_SIZE];
+
+        private final int[][] completedPartitions = new int[SEGMENT_SIZE][];
+
+        private int evictedCount = 0;
+    }
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    private final StringTable strings = new StringTable();
+
+    private final Map<Long, ExecutionSegment> executionSegments = new HashMap<Long, ExecutionSegment>();
+
+    private final Map<Long, StepSegment> stepSegments = new HashMap<Long, StepSegment>();
+
+    private int executionCount = 0;
+
+    private int stepExecutionCount = 0;
+
+    private static long toTime(Date date) {
+        return date != null ? date.getTime() : NO_TIME;
+    }
+
+    private static Date toDate(long time) {
+        return time != NO_TIME ? new Date(time) : null;
+    }
+
+    private static byte[] encode(Properties properties) {
+        if (properties == null || properties.isEmpty()) {
+            return null;
+        }
+        List<byte[]> strings = new ArrayList<byte[]>();
+        int size = 4;
+        for (String name : properties.stringPropertyNames()) {
+            byte[] bytes1 = name.getBytes(UTF8);
+            byte[] bytes2 = properties.getProperty(name).getBytes(UTF8);
+            strings.add(bytes1);
+            strings.add(bytes2);
+            size += 4 + bytes1.length + 4 + bytes2.length;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        buffer.putInt(strings.size() / 2);
+        for (byte[] bytes : strings) {
+            buffer.putInt(bytes.length);
+            buffer.put(bytes);
+        }
+        return buffer.array();
+    }
+
+    private static String getString(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.getInt()];
+        buffer.get(bytes);
+        return new String(bytes, UTF8);
+    }
+
+    private static Properties decode(byte[] data) {
+        Properties properties = new Properties();
+        if (data != null) {
+            ByteBuffer buffer = ByteBuffer.wrap(data);
+            int count = buffer.getInt();
+            for (int i = 0; i < count; i++) {
+                String name = getString(buffer);
+                properties.setProperty(name, getString(buffer));
+            }
+        }
+        return properties;
+    }
+
+    private static int[] toArray(Set<Integer> set) {
+        if (set.isEmpty()) {
+            return null;
+        }
+        synchronized (set) {
+            int[] array = new int[set.size()];
+            int i = 0;
+            for (int value : set) {
+                array[i++] = value;
+            }
+            return array;
+        }
+    }
+
+    private ExecutionSegment getExecutionSegment(long id, boolean create) {
+        Long key = id >>> SEGMENT_BITS;
+        ExecutionSegment segment = executionSegments.get(key);
+        if (segment == null && create) {
+            segment = new ExecutionSegment();
+            executionSegments.put(key, segment);
+        }
+        return segment;
+    }
+
+    private StepSegment getStepSegment(long id, boolean create) {
+        Long key = id >>> SEGMENT_BITS;
+        StepSegment segment = stepSegments.get(key);
+        if (segment == null && create) {
+            segment = new StepSegment();
+            stepSegments.put(key, segment);
+        }
+        return segment;
+    }
+
+    /**
+     * Store a job execution which has ended and its step executions.
+     */
+    void store(long instanceId, String jobName, JabatJobExecution jobExecution,
+               List<JabatStepExecution> stepExecutions) {
+        byte[] jobParameters = encode(jobExecution.getJobParameters());
+        lock.writeLock().lock();
+        try {
+            long id = jobExecution.getId();
+            ExecutionSegment segment = getExecutionSegment(id, true);
+            int i = (int) (id & SEGMENT_MASK);
+            if (segment.states[i] != ABSENT) {
+                throw new IllegalStateException("Job execution " + id + " already stored");
+            }
+
+            long[] stepExecutionIds = new long[stepExecutions.size()];
+            for (int j = 0; j < stepExecutionIds.length; j++) {
+                JabatStepExecution stepExecution = stepExecutions.get(j);
+                stepExecutionIds[j] = stepExecution.getId();
+                storeStep(stepExecution);
+            }
+
+            segment.states[i] = STORED;
+            segment.instanceIds[i] = instanceId;
+            segment.jobNames[i] = strings.intern(jobName);
+            segment.statuses[i] = (byte) jobExecution.getStatusEnum().ordinal();
+            segment.exitStatuses[i] = strings.intern(jobExecution.getExitStatus());
+            segment.createTimes[i] = toTime(jobExecution.getCreateTime());
+            segment.startTimes[i] = toTime(jobExecution.getStartTime());
+            segment.endTimes[i] = toTime(jobExecution.getEndTime());
+            segment.lastUpdatedTimes[i] = toTime(jobExecution.getLastUpdatedTime());
+            segment.stopLatencies[i] = jobExecution.getStopLatency();
+            segment.stepExecutionIds[i] = stepExecutionIds;
+            segment.jobParameters[i] = jobParameters;
+            executionCount++;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void storeStep(JabatStepExecution stepExecution) {
+        long id = stepExecution.getId();
+        StepSegment segment = getStepSegment(id, true);
+        int i = (int) (id & SEGMENT_MASK);
+        if (segment.states[i] != ABSENT) {
+            throw new IllegalStateException("Step execution " + id + " already stored");
+        }
+        segment.states[i] = STORED;
+        segment.stepNames[i] = strings.intern(stepExecution.getStepName());
+        segment.statuses[i] = (byte) stepExecution.getStatusEnum().ordinal();
+        segment.exitStatuses[i] = strings.intern(stepExecution.getExitStatus());
+        segment.startTimes[i] = toTime(stepExecution.getStartTime());
+        segment.endTimes[i] = toTime(stepExecution.getEndTime());
+        StepMetrics metrics = stepExecution.getStepMetrics();
+        for (MetricName name : METRIC_NAMES) {
+            segment.metrics[i * METRIC_NAMES.length + name.ordinal()] = metrics.get(name);
+        }
+        segment.userPersistentData[i] = stepExecution.getUserPersistentData();
+        segment.completedPartitions[i] = toArray(stepExecution.getCompletedPartitions());
+        stepExecutionCount++;
+    }
+
+    /**
+     * Evict a job execution and its step executions.
+     *
+     * @return the ids of the evicted step executions, null if the job
+     *         execution is not stored
+     */
+    long[] evict(long id) {
+        lock.writeLock().lock();
+        try {
+            ExecutionSegment segment = getExecutionSegment(id, false);
+            int i = (int) (id & SEGMENT_MASK);
+            if (segment == null || segment.states[i] != STORED) {
+                return null;
+            }
+            long[] stepExecutionIds = segment.stepExecutionIds[i];
+            for (long stepExecutionId : stepExecutionIds) {
+                evictStep(stepExecutionId);
+            }
+            segment.states[i] = EVICTED;
+            strings.release(segment.jobNames[i]);
+            strings.release(segment.exitStatuses[i]);
+            segment.stepExecutionIds[i] = null;
+            segment.jobParameters[i] = null;
+            executionCount--;
+            if (++segment.evictedCount == SEGMENT_SIZE) {
+                executionSegments.remove(id >>> SEGMENT_BITS);
+            }
+            return stepExecutionIds;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void evictStep(long id) {
+        StepSegment segment = getStepSegment(id, false);
+        int i = (int) (id & SEGMENT_MASK);
+        if (segment == null || segment.states[i] != STORED) {
+            return;
+        }
+        segment.states[i] = EVICTED;
+        strings.release(segment.stepNames[i]);
+        strings.release(segment.exitStatuses[i]);
+        segment.userPersistentData[i] = null;
+        segment.completedPartitions[i] = null;
+        stepExecutionCount--;
+        if (++segment.evictedCount == SEGMENT_SIZE) {
+            stepSegments.remove(id >>> SEGMENT_BITS);
+        }
+    }
+
+    /**
+     * Get the end time of a stored job execution.
+     *
+     * @return the end time in ms since the epoch, {@link #NO_TIME} if the job
+     *         execution is not stored
+     */
+    long getEndTime(long id) {
+        lock.readLock().lock();
+        try {
+            ExecutionSegment segment = getExecutionSegment(id, false);
+            int i = (int) (id & SEGMENT_MASK);
+            if (segment == null || segment.states[i] != STORED) {
+                return NO_TIME;
+            }
+            return segment.endTimes[i] != NO_TIME ? segment.endTimes[i] : segment.lastUpdatedTimes[i];
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Rebuild a stored job execution.
+     *
+     * @return the job execution, null if it is not stored
+     */
+    JabatJobExecution getJobExecution(long id) {
+        lock.readLock().lock();
+        try {
+            ExecutionSegment segment = getExecutionSegment(id, false);
+            int i = (int) (id & SEGMENT_MASK);
+            if (segment == null || segment.states[i] != STORED) {
+                return null;
+            }
+            return new JobExecutionRecord(id, STATUSES[segment.statuses[i]],
+                                          strings.get(segment.exitStatuses[i]),
+                                          segment.createTimes[i], segment.startTimes[i],
+                                          segment.endTimes[i], segment.lastUpdatedTimes[i],
+                                          segment.stopLatencies[i], segment.stepExecutionIds[i],
+                                          segment.jobParameters[i]);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Rebuild a stored step execution.
+     *
+     * @return the step execution, null if it is not stored
+     */
+    JabatStepExecution getStepExecution(long id) {
+        lock.readLock().lock();
+        try {
+            StepSegment segment = getStepSegment(id, false);
+            int i = (int) (id & SEGMENT_MASK);
+            if (segment == null || segment.states[i] != STORED) {
+                return null;
+            }
+            long[] metrics = Arrays.copyOfRange(segment.metrics, i * METRIC_NAMES.length,
+                                                (i + 1) * METRIC_NAMES.length);
+            return new StepExecutionRecord(id, strings.get(segment.stepNames[i]),
+                                           STATUSES[segment.statuses[i]],
+                                           strings.get(segment.exitStatuses[i]),
+                                           segment.startTimes[i], segment.endTimes[i], metrics,
+                                           segment.userPersistentData[i],
+                                           segment.completedPartitions[i]);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Get the number of job executions stored.
+     */
+    int getJobExecutionCount() {
+        lock.readLock().lock();
+        try {
+            return executionCount;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Get the number of step executions stored.
+     */
+    int getStepExecutionCount() {
+        lock.readLock().lock();
+        try {
+            return stepExecutionCount;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Get the number of interned strings.
+     */
+    int getStringCount() {
+        lock.readLock().lock();
+        try {
+            return strings.indexes.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Get the number of job and step execution segments allocated.
+     */
+    int getSegmentCount() {
+        lock.readLock().lock();
+        try {
+            return executionSegments.size() + stepSegments.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private static UnsupportedOperationException ended(String what, long id) {
+        return new UnsupportedOperationException(what + " " + id + " has ended");
+    }
+
+    private static final class JobExecutionRecord implements JabatJobExecution {
+
+        private final long id;
+
+        private final BatchStatus status;
+
+        private final String exitStatus;
+
+        private final long createTime;
+
+        private final long startTime;
+
+        private final long endTime;
+
+        private final long lastUpdatedTime;
+
+        private final long stopLatency;
+
+        private final long[] stepExecutionIds;
+
+        private final byte[] jobParameters;
+
+        private JobExecutionRecord(long id, BatchStatus status, String exitStatus, long createTime,
+                                   long startTime, long endTime, long lastUpdatedTime,
+                                   long stopLatency, long[] stepExecutionIds, byte[] jobParameters) {
+            this.id = id;
+            this.status = status;
+            this.exitStatus = exitStatus;
+            this.createTime = createTime;
+            this.startTime = startTime;
+            this.endTime = endTime;
+            this.lastUpdatedTime = lastUpdatedTime;
+            this.stopLatency = stopLatency;
+            this.stepExecutionIds = stepExecutionIds;
+            this.jobParameters = jobParameters;
+        }
+
+        @Override
+        public long getId() {
+            return id;
+        }
+
+        @Override
+        public String getStatus() {
+            return status.name();
+        }
+
+        @Override
+        public BatchStatus getStatusEnum() {
+            return status;
+        }
+
+        @Override
+        public void setStatus(BatchStatus status) {
+            throw ended("Job execution", id);
+        }
+
+        @Override
+        public Date getStartTime() {
+            return toDate(startTime);
+        }
+
+        @Override
+        public void setStartTime(Date startTime) {
+            throw ended("Job execution", id);
+        }
+
+        @Override
+        public Date getEndTime() {
+            return toDate(endTime);
+        }
+
+        @Override
+        public void setEndTime(Date endTime) {
+            throw ended("Job execution", id);
+        }
+
+        @Override
+        public String getExitStatus() {
+            return exitStatus;
+        }
+
+        @Override
+        public void setExitStatus(String exitStatus) {
+            throw ended("Job execution", id);
+        }
+
+        @Override
+        public Date getCreateTime() {
+            return toDate(createTime);
+        }
+
+        @Override
+        public Date getLastUpdatedTime() {
+            return toDate(lastUpdatedTime);
+        }
+
+        @Override
+        public Properties getJobParameters() {
+            // decoded on each call, the record stays immutable
+            return decode(jobParameters);
+        }
+
+        @Override
+        public List<Long> getStepExecutionIds() {
+            List<Long> ids = new ArrayList<Long>(stepExecutionIds.length);
+            for (long stepExecutionId : stepExecutionIds) {
+                ids.add(stepExecutionId);
+            }
+            return Collections.unmodifiableList(ids);
+        }
+
+        @Override
+        public long getStopLatency() {
+            return stopLatency;
+        }
+
+        @Override
+        public void setStopLatency(long stopLatency) {
+            throw ended("Job execution", id);
+        }
+    }
+
+    private static final class StepExecutionRecord implements JabatStepExecution {
+
+        private final long id;
+
+        private final String stepName;
+
+        private final BatchStatus status;
+
+        private final String exitStatus;
+
+        private final long startTime;
+
+        private final long endTime;
+
+        private final long[] metrics;
+
+        private final Object userPersistentData;
+
+        private final int[] completedPartitions;
+
+        private StepExecutionRecord(long id, String stepName, BatchStatus status, String exitStatus,
+                                    long startTime, long endTime, long[] metrics,
+                                    Object userPersistentData, int[] completedPartitions) {
+            this.id = id;
+            this.stepName = stepName;
+            this.status = status;
+            this.exitStatus = exitStatus;
+            this.startTime = startTime;
+            this.endTime = endTime;
+            this.metrics = metrics;
+            this.userPersistentData = userPersistentData;
+            this.completedPartitions = completedPartitions;
+        }
+
+        @Override
+        public long getId() {
+            return id;
+        }
+
+        @Override
+        public String getStepName() {
+            return stepName;
+        }
+
+        @Override
+        public String getStatus() {
+            return status.name();
+        }
+
+        @Override
+        public BatchStatus getStatusEnum() {
+            return status;
+        }
+
+        @Override
+        public void setStatus(BatchStatus status) {
+            throw ended("Step execution", id);
+        }
+
+        @Override
+        public Date getStartTime() {
+            return toDate(startTime);
+        }
+
+        @Override
+        public Date getEndTime() {
+            return toDate(endTime);
+        }
+
+        @Override
+        public void setEndTime(Date endTime) {
+            throw ended("Step execution", id);
+        }
+
+        @Override
+        public String getExitStatus() {
+            return exitStatus;
+        }
+
+        @Override
+        public void setExitStatus(String exitStatus) {
+            throw ended("Step execution", id);
+        }
+
+        @Override
+        public Object getUserPersistentData() {
+            return userPersistentData;
+        }
+
+        @Override
+        public void setUserPersistentData(Object userPersistentData) {
+            throw ended("Step execution", id);
+        }
+
+        @Override
+        public MetricImpl[] getMetrics() {
+            return getStepMetrics().toArray();
+        }
+
+        @Override
+        public StepMetrics getStepMetrics() {
+            // the metrics of the partitions are merged in a single cell
+            StepMetrics stepMetrics = new StepMetrics();
+            PartitionMetrics partitionMetrics = stepMetrics.getPartition(0);
+            for (MetricName name : METRIC_NAMES) {
+                partitionMetrics.add(name, metrics[name.ordinal()]);
+            }
+            return stepMetrics;
+        }
+
+        @Override
+        public void setStepMetrics(StepMetrics metrics) {
+            throw ended("Step execution", id);
+        }
+
+        @Override
+        public Set<Integer> getCompletedPartitions() {
+            Set<Integer> partitions = new HashSet<Integer>();
+            if (completedPartitions != null) {
+                for (int partition : completedPartitions) {
+                    partitions.add(partition);
+                }
+            }
+            return Collections.synchronizedSet(Collections.unmodifiableSet(partitions));
+        }
+    }
+
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright 2013 Geoffroy Jamgotchian <geoffroy.jamgotchian at gmail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.jamgotchian.jabat.runtime.repository.impl;
+
+import java.util.AbstractList;
+import java.util.List;
+
+/**
+ * List of ids, appended at the end and removed from the front. Updates are
+ * serialized on the list, reads are lock free and see a consistent range of
+ * the ids. Iterating the list never fails because of a concurrent append,
+ * snapshots are immutable and taken in constant time. The ids are stored
+ * unboxed.
+ *
+ * @author Geoffroy Jamgotchian <geoffroy.jamgotchian at gmail.com>
+ */
+final class IdList extends AbstractList<Long> {
+
+    private static final class Snapshot extends AbstractList<Long> {
+
+        /* ids beyond offset + size may be written by later appends, the ones
+           of the range are never modified */
+        private final long[] ids;
+
+        private final int offset;
+
+        private final int size;
+
+        private Snapshot(long[] ids, int offset, int size) {
+            this.ids = ids;
+            this.offset = offset;
+            this.size = size;
+        }
+
+        @Override
+        public Long get(int index) {
+            if (index < 0 || index >= size) {
+                throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+            }
+            return ids[offset + index];
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+    }
+
+    private static final Snapshot EMPTY = new Snapshot(new long[0], 0, 0);
+
+    private volatile Snapshot snapshot = EMPTY;
+
+    IdList() {
+    }
+
+    synchronized void addId(long id) {
+        Snapshot s = snapshot;
+        long[] ids = s.ids;
+        int offset = s.offset;
+        if (offset + s.size == ids.length) {
+            // drop the removed ids while growing
+            long[] newIds = new long[Math.max(4, s.size * 2)];
+            System.arraycopy(ids, offset, newIds, 0, s.size);
+            ids = newIds;
+            offset = 0;
+        }
+        ids[offset + s.size] = id;
+        // the volatile write publishes the id written above
+        snapshot = new Snapshot(ids, offset, s.size + 1);
+    }
+
+    @Override
+    public boolean add(Long id) {
+        addId(id);
+        return true;
+    }
+
+    /**
+     * Remove the first ids of the list.
+     *
+     * @param count the number of ids to remove
+     */
+    synchronized void removeFirst(int count) {
+        Snapshot s = snapshot;
+        if (count > s.size) {
+            throw new IndexOutOfBoundsException("Count: " + count + ", Size: " + s.size);
+        }
+        snapshot = s.size == count ? EMPTY : new Snapshot(s.ids, s.offset + count, s.size - count);
+    }
+
+    /**
+     * Get an immutable view of the ids of the list.
+     */
+    List<Long> snapshot() {
+        return snapshot;
+    }
+
+    long getFirst() {
+        Snapshot s = snapshot;
+        if (s.size == 0) {
+            throw new IndexOutOfBoundsException("Empty list");
+        }
+        return s.ids[s.offset];
+    }
+
+    long getLast() {
+        Snapshot s = snapshot;
+        if (s.size == 0) {
+            throw new IndexOutOfBoundsException("Empty list");
+        }
+        return s.ids[s.offset + s.size - 1];
+    }
+
+    @Override
+    public Long get(int index) {
+        return snapshot.get(index);
+    }
+
+    @Override
+    public int size() {
+        return snapshot.size;
+    }
+
+}
@@ -17,7 +17,6 @@ package fr.jamgotchian.jabat.runtime.repository.impl;
 
 import fr.jamgotchian.jabat.runtime.repository.BatchStatus;
 import fr.jamgotchian.jabat.runtime.repository.JabatJobExecution;
-import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
 import java.util.Properties;
@@ -34,16 +33,45 @@ public class JabatJobExecutionImpl implements JabatJobExecution {
 
     private volatile BatchStatus status = BatchStatus.STARTING;
 
-    private String exitStatus;
+    private volatile String exitStatus;
 
     private final Date createTime;
 
-    private final List<Long> stepExecutionIds = new ArrayList<Long>();
+    private volatile Date startTime;
+
+    private volatile Date endTime;
+
+    private volatile Date lastUpdatedTime;
+
+    private final IdList stepExecutionIds = new IdList();
+
+    private volatile long stopLatency = -1;
 
     public JabatJobExecutionImpl(long id, Properties jobParameters) {
         this.id = id;
         this.jobParameters = jobParameters;
         createTime = new Date();
+        lastUpdatedTime = createTime;
+    }
+
+    /**
+     * Restore a job execution which has been persisted.
+     */
+    JabatJobExecutionImpl(long id, Properties jobParameters, BatchStatus status, String exitStatus,
+                          Date createTime, Date startTime, Date endTime, Date lastUpdatedTime,
+                          long stopLatency, List<Long> stepExecutionIds) {
+        this.id = id;
+        this.jobParameters = jobParameters;
+        this.status = status;
+        this.exitStatus = exitStatus;
+        this.createTime = createTime;
+        this.startTime = startTime;
+        this.endTime = endTime;
+        this.lastUpdatedTime = lastUpdatedTime;
+        this.stopLatency = stopLatency;
+        for (long stepExecutionId : stepExecutionIds) {
+            this.stepExecutionIds.addId(stepExecutionId);
+        }
     }
 
     @Override
@@ -64,16 +92,28 @@ public class JabatJobExecutionImpl implements JabatJobExecution {
     @Override
     public void setStatus(BatchStatus status) {
         this.status = status;
+        lastUpdatedTime = new Date();
     }
 
     @Override
     public Date getStartTime() {
-        throw new UnsupportedOperationException("Not supported yet.");
+        return startTime;
+    }
+
+    @Override
+    public void setStartTime(Date startTime) {
+        this.startTime = startTime;
     }
 
     @Override
     public Date getEndTime() {
-        throw new UnsupportedOperationException("Not supported yet.");
+        return endTime;
+    }
+
+    @Override
+    public void setEndTime(Date endTime) {
+        this.endTime = endTime;
+        lastUpdatedTime = endTime;
     }
 
     @Override
@@ -84,6 +124,7 @@ public class JabatJobExecutionImpl implements JabatJobExecution {
     @Override
     public void setExitStatus(String exitStatus) {
         this.exitStatus = exitStatus;
+        lastUpdatedTime = new Date();
     }
 
     @Override
@@ -93,7 +134,7 @@ public class JabatJobExecutionImpl implements JabatJobExecution {
 
     @Override
     public Date getLastUpdatedTime() {
-        throw new UnsupportedOperationException("Not supported yet.");
+        return lastUpdatedTime;
     }
 
     @Override
@@ -106,4 +147,14 @@ public class JabatJobExecutionImpl implements JabatJobExecution {
         return stepExecutionIds;
     }
 
+    @Override
+    public long getStopLatency() {
+        return stopLatency;
+    }
+
+    @Override
+    public void setStopLatency(long stopLatency) {
+        this.stopLatency = stopLatency;
+    }
+
 }
@@ -16,7 +16,6 @@
 package fr.jamgotchian.jabat.runtime.repository.impl;
 
 import fr.jamgotchian.jabat.runtime.repository.JabatJobInstance;
-import java.util.ArrayList;
 import java.util.List;
 
 /**
@@ -29,7 +28,7 @@ public class JabatJobInstanceImpl implements JabatJobInstance {
 
     private final long id;
 
-    private final List<Long> executionIds = new ArrayList<Long>();
+    private final IdList executionIds = new IdList();
 
     public JabatJobInstanceImpl(String jobId, long id) {
         this.jobId = jobId;
@@ -53,6 +52,6 @@ public class JabatJobInstanceImpl implements JabatJobInstance {
 
     @Override
     public long getLastExecutionId() {
-        return executionIds.get(executionIds.size()-1);
+        return executionIds.getLast();
     }
 }
@@ -15,9 +15,13 @@
  */
 package fr.jamgotchian.jabat.runtime.repository.impl;
 
+import fr.jamgotchian.jabat.runtime.metric.StepMetrics;
 import fr.jamgotchian.jabat.runtime.repository.BatchStatus;
 import fr.jamgotchian.jabat.runtime.repository.JabatStepExecution;
+import java.util.Collections;
 import java.util.Date;
+import java.util.HashSet;
+import java.util.Set;
 
 /**
  *
@@ -27,28 +31,56 @@ public class JabatStepExecutionImpl implements JabatStepExecution {
 
     private final long id;
 
+    private final String stepName;
+
     private volatile BatchStatus status = BatchStatus.STARTING;
 
     private final Date startTime;
 
-    private Date endTime;
+    private volatile Date endTime;
+
+    private volatile String exitStatus;
 
-    private String exitStatus;
+    private volatile Object userPersistentData;
 
-    private Object userPersistentData;
+    private volatile StepMetrics metrics = new StepMetrics();
 
-    private MetricImpl[] metrics;
+    private final Set<Integer> completedPartitions
+            = Collections.synchronizedSet(new HashSet<Integer>());
 
-    public JabatStepExecutionImpl(long id) {
+    public JabatStepExecutionImpl(long id, String stepName) {
         this.id = id;
+        this.stepName = stepName;
         this.startTime = new Date();
     }
 
+    /**
+     * Restore a step execution which has been persisted.
+     */
+    JabatStepExecutionImpl(long id, String stepName, BatchStatus status, Date startTime, Date endTime,
+                           String exitStatus, Object userPersistentData, StepMetrics metrics,
+                           Set<Integer> completedPartitions) {
+        this.id = id;
+        this.stepName = stepName;
+        this.status = status;
+        this.startTime = startTime;
+        this.endTime = endTime;
+        this.exitStatus = exitStatus;
+        this.userPersistentData = userPersistentData;
+        this.metrics = metrics;
+        this.completedPartitions.addAll(completedPartitions);
+    }
+
     @Override
     public long getId() {
         return id;
     }
 
+    @Override
+    public String getStepName() {
+        return stepName;
+    }
+
     @Override
     public String getStatus() {
         return status.name();
@@ -101,12 +133,22 @@ public class JabatStepExecutionImpl implements JabatStepExecution {
 
     @Override
     public MetricImpl[] getMetrics() {
+        return metrics.toArray();
+    }
+
+    @Override
+    public StepMetrics getStepMetrics() {
         return metrics;
     }
 
     @Override
-    public void setMetrics(MetricImpl[] metrics) {
+    public void setStepMetrics(StepMetrics metrics) {
         this.metrics = metrics;
     }
 
+    @Override
+    public Set<Integer> getCompletedPartitions() {
+        return completedPartitions;
+    }
+
 }
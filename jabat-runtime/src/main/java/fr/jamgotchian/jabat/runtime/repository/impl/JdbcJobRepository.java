@@ -0,0 +1,1146 @@
+/*
+ * Copyright 2013 Geoffroy Jamgotchian <geoffroy.jamgotchian at gmail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.jamgotchian.jabat.runtime.repository.impl;
+
+import fr.jamgotchian.jabat.jobxml.model.Job;
+import fr.jamgotchian.jabat.jobxml.model.Step;
+import fr.jamgotchian.jabat.runtime.metric.StepMetrics;
+import fr.jamgotchian.jabat.runtime.repository.BatchStatus;
+import fr.jamgotchian.jabat.runtime.repository.JabatJobExecution;
+import fr.jamgotchian.jabat.runtime.repository.JabatJobInstance;
+import fr.jamgotchian.jabat.runtime.repository.JabatStepExecution;
+import fr.jamgotchian.jabat.runtime.repository.JobInstanceEvictionListener;
+import fr.jamgotchian.jabat.runtime.repository.JobRepository;
+import fr.jamgotchian.jabat.runtime.util.Externalizables;
+import fr.jamgotchian.jabat.runtime.util.JabatRuntimeException;
+import fr.jamgotchian.jabat.runtime.util.JdbcUtil;
+import java.io.Externalizable;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import javax.batch.runtime.Metric.MetricName;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Job repository persisted in a database, so that job executions survive
+ * the container and can be followed by other processes. The database is
+ * configured as described in {@link JdbcUtil}, its tables are created at
+ * initialization if they do not exist yet.
+ *
+ * Job instances and job executions are inserted when they are created. The
+ * other changes, status changes of running steps and metrics for instance,
+ * are written by a background thread every jabat.jobRepository.flushInterval
+ * ms (500 by default): several changes of an execution are coalesced into a
+ * single write, and the writes of a flush are batched in one transaction. A
+ * terminal status, completed, failed, stopped or abandoned, and the end of a
+ * job execution are flushed synchronously by the thread making the change.
+ *
+ * Running executions are served from memory, the other ones are read from
+ * the database. Ids are allocated by blocks from a sequence table, several
+ * containers can share a database.
+ *
+ * The creation time of each instance and the status of its last execution
+ * are copied to the instance table, indexed with the job name, so that
+ * instance queries read a page of an index. A running status change not
+ * written yet is not seen by these queries.
+ *
+ * The repository is selected by setting the jabat.jobRepository key to
+ * the name of this class.
+ *
+ * @author Geoffroy Jamgotchian <geoffroy.jamgotchian at gmail.com>
+ */
+public class JdbcJobRepository implements JobRepository {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(JdbcJobRepository.class);
+
+    public static final String FLUSH_INTERVAL_KEY = "jabat.jobRepository.flushInterval";
+
+    private static final long DEFAULT_FLUSH_INTERVAL = 500; // ms
+
+    private static final int ID_BLOCK_SIZE = 100;
+
+    private static final MetricName[] METRIC_NAMES = MetricName.values();
+
+    private static final String[][] TABLES = {
+        {"JABAT_SEQUENCE",
+         "CREATE TABLE JABAT_SEQUENCE (NAME VARCHAR(32) NOT NULL PRIMARY KEY, NEXT_ID BIGINT NOT NULL)"},
+        {"JABAT_JOB_INSTANCE",
+         "CREATE TABLE JABAT_JOB_INSTANCE (ID BIGINT NOT NULL PRIMARY KEY, JOB_NAME VARCHAR(255) NOT NULL,"
+                + " CREATE_TIME TIMESTAMP, LAST_EXECUTION_ID BIGINT, STATUS VARCHAR(16))",
+         "CREATE INDEX JABAT_JOB_INSTANCE_NAME ON JABAT_JOB_INSTANCE (JOB_NAME, ID)",
+         "CREATE INDEX JABAT_JOB_INSTANCE_STATUS ON JABAT_JOB_INSTANCE (JOB_NAME, STATUS, ID)",
+         "CREATE INDEX JABAT_JOB_INSTANCE_TIME ON JABAT_JOB_INSTANCE (JOB_NAME, CREATE_TIME, ID)"},
+        {"JABAT_JOB_EXECUTION",
+         "CREATE TABLE JABAT_JOB_EXECUTION (ID BIGINT NOT NULL PRIMARY KEY, JOB_INSTANCE_ID BIGINT NOT NULL,"
+                + " STATUS VARCHAR(16) NOT NULL, EXIT_STATUS VARCHAR(255), CREATE_TIME TIMESTAMP,"
+                + " START_TIME TIMESTAMP, END_TIME TIMESTAMP, LAST_UPDATED_TIME TIMESTAMP,"
+                + " STOP_LATENCY BIGINT NOT NULL)",
+         "CREATE INDEX JABAT_JOB_EXECUTION_INSTANCE ON JABAT_JOB_EXECUTION (JOB_INSTANCE_ID)"},
+        {"JABAT_JOB_PARAMETER",
+         "CREATE TABLE JABAT_JOB_PARAMETER (JOB_EXECUTION_ID BIGINT NOT NULL, PARAMETER_NAME VARCHAR(255) NOT NULL,"
+                + " PARAMETER_VALUE VARCHAR(4000), PRIMARY KEY (JOB_EXECUTION_ID, PARAMETER_NAME))"},
+        {"JABAT_STEP_EXECUTION",
+         "CREATE TABLE JABAT_STEP_EXECUTION (ID BIGINT NOT NULL PRIMARY KEY, JOB_EXECUTION_ID BIGINT NOT NULL,"
+                + " STEP_NAME VARCHAR(255) NOT NULL, STATUS VARCHAR(16) NOT NULL, EXIT_STATUS VARCHAR(255),"
+                + " START_TIME TIMESTAMP, END_TIME TIMESTAMP, PERSISTENT_USER_DATA BLOB)",
+         "CREATE INDEX JABAT_STEP_EXECUTION_JOB ON JABAT_STEP_EXECUTION (JOB_EXECUTION_ID)"},
+        {"JABAT_STEP_METRIC",
+         "CREATE TABLE JABAT_STEP_METRIC (STEP_EXECUTION_ID BIGINT NOT NULL, METRIC_NAME VARCHAR(32) NOT NULL,"
+                + " METRIC_VALUE BIGINT NOT NULL, PRIMARY KEY (STEP_EXECUTION_ID, METRIC_NAME))"},
+        {"JABAT_COMPLETED_PARTITION",
+         "CREATE TABLE JABAT_COMPLETED_PARTITION (STEP_EXECUTION_ID BIGINT NOT NULL,"
+                + " PARTITION_NUMBER INTEGER NOT NULL, PRIMARY KEY (STEP_EXECUTION_ID, PARTITION_NUMBER))"}
+    };
+
+    /**
+     * Ids allocated by blocks, a block is reserved in the sequence table.
+     */
+    private final class IdSequence {
+
+        private final String name;
+
+        private long nextId = 0;
+
+        private long limit = 0;
+
+        private IdSequence(String name) {
+            this.name = name;
+        }
+
+        private synchronized long next() {
+            if (nextId == limit) {
+                nextId = reserveIds(name);
+                limit = nextId + ID_BLOCK_SIZE;
+            }
+            return nextId++;
+        }
+    }
+
+    private final class JdbcJobExecution extends JabatJobExecutionImpl {
+
+        private final long jobInstanceId;
+
+        private JdbcJobExecution(long id, long jobInstanceId, Properties jobParameters) {
+            super(id, jobParameters);
+            this.jobInstanceId = jobInstanceId;
+        }
+
+        private JdbcJobExecution(long id, long jobInstanceId, Properties jobParameters, BatchStatus status,
+                                 String exitStatus, Date createTime, Date startTime, Date endTime,
+                                 Date lastUpdatedTime, long stopLatency, List<Long> stepExecutionIds) {
+            super(id, jobParameters, status, exitStatus, createTime, startTime, endTime, lastUpdatedTime,
+                  stopLatency, stepExecutionIds);
+            this.jobInstanceId = jobInstanceId;
+        }
+
+        @Override
+        public void setStatus(BatchStatus status) {
+            super.setStatus(status);
+            updated(this, isTerminal(status));
+        }
+
+        @Override
+        public void setExitStatus(String exitStatus) {
+            super.setExitStatus(exitStatus);
+            updated(this, false);
+        }
+
+        @Override
+        public void setStartTime(Date startTime) {
+            super.setStartTime(startTime);
+            updated(this, false);
+        }
+
+        @Override
+        public void setEndTime(Date endTime) {
+            super.setEndTime(endTime);
+            updated(this, false);
+        }
+
+        @Override
+        public void setStopLatency(long stopLatency) {
+            super.setStopLatency(stopLatency);
+            updated(this, false);
+        }
+    }
+
+    private final class JdbcStepExecution extends JabatStepExecutionImpl {
+
+        private final long jobExecutionId;
+
+        /* the state written to the database, only accessed by the thread
+           flushing the changes */
+
+        private boolean inserted = false;
+
+        private long[] writtenMetrics = new long[METRIC_NAMES.length];
+
+        private final Set<Integer> writtenPartitions = new HashSet<Integer>();
+
+        private JdbcStepExecution(long id, String stepName, long jobExecutionId) {
+            super(id, stepName);
+            this.jobExecutionId = jobExecutionId;
+        }
+
+        private JdbcStepExecution(long id, String stepName, long jobExecutionId, BatchStatus status,
+                                  Date startTime, Date endTime, String exitStatus, Object userPersistentData,
+                                  StepMetrics metrics, long[] metricValues, Set<Integer> completedPartitions) {
+            super(id, stepName, status, startTime, endTime, exitStatus, userPersistentData, metrics,
+                  completedPartitions);
+            this.jobExecutionId = jobExecutionId;
+            inserted = true;
+            writtenMetrics = metricValues;
+            writtenPartitions.addAll(completedPartitions);
+        }
+
+        @Override
+        public void setStatus(BatchStatus status) {
+            super.setStatus(status);
+            updated(this, isTerminal(status));
+        }
+
+        @Override
+        public void setEndTime(Date endTime) {
+            super.setEndTime(endTime);
+            updated(this, false);
+        }
+
+        @Override
+        public void setExitStatus(String exitStatus) {
+            super.setExitStatus(exitStatus);
+            updated(this, false);
+        }
+
+        @Override
+        public void setUserPersistentData(Object userPersistentData) {
+            super.setUserPersistentData(userPersistentData);
+            updated(this, false);
+        }
+
+        @Override
+        public void setStepMetrics(StepMetrics metrics) {
+            super.setStepMetrics(metrics);
+            updated(this, false);
+        }
+    }
+
+    /**
+     * The write of a step execution, applied to the step execution once
+     * committed.
+     */
+    private static final class StepWrite {
+
+        private final JdbcStepExecution stepExecution;
+
+        private final long[] metrics;
+
+        private final List<Integer> partitions;
+
+        private StepWrite(JdbcStepExecution stepExecution, long[] metrics, List<Integer> partitions) {
+            this.stepExecution = stepExecution;
+            this.metrics = metrics;
+            this.partitions = partitions;
+        }
+    }
+
+    private long flushInterval = DEFAULT_FLUSH_INTERVAL;
+
+    /* guards the connection and its statements */
+    private final Lock lock = new ReentrantLock();
+
+    private Connection connection;
+
+    private final Map<String, PreparedStatement> statements = new HashMap<String, PreparedStatement>();
+
+    private ScheduledExecutorService writer;
+
+    private final IdSequence jobInstanceIds = new IdSequence("JOB_INSTANCE");
+
+    private final IdSequence jobExecutionIds = new IdSequence("JOB_EXECUTION");
+
+    private final IdSequence stepExecutionIds = new IdSequence("STEP_EXECUTION");
+
+    private final ConcurrentMap<Long, JdbcJobExecution> runningJobExecutions
+            = new ConcurrentHashMap<Long, JdbcJobExecution>();
+
+    private final ConcurrentMap<Long, JdbcStepExecution> runningStepExecutions
+            = new ConcurrentHashMap<Long, JdbcStepExecution>();
+
+    /* changes not written yet */
+
+    private final ConcurrentMap<Long, JdbcJobExecution> dirtyJobExecutions
+            = new ConcurrentHashMap<Long, JdbcJobExecution>();
+
+    private final ConcurrentMap<Long, JdbcStepExecution> dirtyStepExecutions
+            = new ConcurrentHashMap<Long, JdbcStepExecution>();
+
+    private static boolean isTerminal(BatchStatus status) {
+        switch (status) {
+            case STOPPED:
+            case FAILED:
+            case COMPLETED:
+            case ABANDONED:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    @Override
+    public void initialize(Properties configuration) throws Exception {
+        String value = configuration.getProperty(FLUSH_INTERVAL_KEY);
+        if (value != null) {
+            flushInterval = Long.parseLong(value);
+            if (flushInterval <= 0) {
+                throw new JabatRuntimeException("Flush interval is expected to be strictly positive");
+            }
+        }
+        lock.lock();
+        try {
+            connection = JdbcUtil.connect(configuration);
+            boolean committed = false;
+            try {
+                for (String[] table : TABLES) {
+                    JdbcUtil.createTable(connection, table[0], Arrays.copyOfRange(table, 1, table.length));
+                }
+                connection.commit();
+                committed = true;
+            } finally {
+                if (!committed) {
+                    JdbcUtil.rollback(connection);
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+        writer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "JABAT-repository-writer");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        writer.scheduleWithFixedDelay(new Runnable() {
+
+            @Override
+            public void run() {
+                try {
+                    flush();
+                } catch (Throwable t) {
+                    LOGGER.error(t.toString(), t);
+                }
+            }
+        }, flushInterval, flushInterval, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void shutdown() throws Exception {
+        if (writer != null) {
+            writer.shutdown();
+            writer.awaitTermination(flushInterval * 10, TimeUnit.MILLISECONDS);
+            writer = null;
+        }
+        lock.lock();
+        try {
+            if (connection != null) {
+                try {
+                    flush();
+                } finally {
+                    for (PreparedStatement stmt : statements.values()) {
+                        stmt.close();
+                    }
+                    statements.clear();
+                    JdbcUtil.close(connection);
+                    connection = null;
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void setEvictionListener(JobInstanceEvictionListener listener) {
+        // the whole history is kept
+    }
+
+    /**
+     * Get a prepared statement, the lock has to be held.
+     */
+    private PreparedStatement prepare(String sql) throws SQLException {
+        if (connection == null) {
+            throw new JabatRuntimeException("Job repository is not initialized");
+        }
+        PreparedStatement stmt = statements.get(sql);
+        if (stmt == null) {
+            stmt = connection.prepareStatement(sql);
+            statements.put(sql, stmt);
+        }
+        return stmt;
+    }
+
+    /**
+     * End the transaction of a read, so that it does not hold locks, the lock
+     * has to be held.
+     */
+    private void endRead() {
+        if (connection != null) {
+            try {
+                connection.commit();
+            } catch (SQLException e) {
+                LOGGER.warn(e.toString(), e);
+            }
+        }
+    }
+
+    private long reserveIds(String name) {
+        lock.lock();
+        try {
+            // optimistic reservation, retried if another container has
+            // reserved the same block
+            while (true) {
+                boolean committed = false;
+                try {
+                    PreparedStatement select = prepare("SELECT NEXT_ID FROM JABAT_SEQUENCE WHERE NAME = ?");
+                    select.setString(1, name);
+                    ResultSet rs = select.executeQuery();
+                    Long nextId;
+                    try {
+                        nextId = rs.next() ? rs.getLong(1) : null;
+                    } finally {
+                        rs.close();
+                    }
+                    int count;
+                    if (nextId == null) {
+                        nextId = 0L;
+                        PreparedStatement insert = prepare("INSERT INTO JABAT_SEQUENCE (NAME, NEXT_ID) VALUES (?, ?)");
+                        insert.setString(1, name);
+                        insert.setLong(2, ID_BLOCK_SIZE);
+                        count = insert.executeUpdate();
+                    } else {
+                        PreparedStatement update = prepare("UPDATE JABAT_SEQUENCE SET NEXT_ID = ? WHERE NAME = ? AND NEXT_ID = ?");
+                        update.setLong(1, nextId + ID_BLOCK_SIZE);
+                        update.setString(2, name);
+                        update.setLong(3, nextId);
+                        count = update.executeUpdate();
+                    }
+                    if (count == 1) {
+                        connection.commit();
+                        committed = true;
+                        return nextId;
+                    }
+                } catch (SQLException e) {
+                    // the sequence has been created concurrently
+                    LOGGER.debug(e.toString(), e);
+                } finally {
+                    if (!committed) {
+                        JdbcUtil.rollback(connection);
+                    }
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void updated(JdbcJobExecution jobExecution, boolean flush) {
+        dirtyJobExecutions.put(jobExecution.getId(), jobExecution);
+        if (flush) {
+            flushQuietly();
+        }
+    }
+
+    private void updated(JdbcStepExecution stepExecution, boolean flush) {
+        dirtyStepExecutions.put(stepExecution.getId(), stepExecution);
+        if (flush) {
+            flushQuietly();
+        }
+    }
+
+    /**
+     * Flush the changes on the calling thread. A failure is logged instead of
+     * failing the job, the changes are written again by the next flush.
+     */
+    private void flushQuietly() {
+        try {
+            flush();
+        } catch (Exception e) {
+            LOGGER.error(e.toString(), e);
+        }
+    }
+
+    private static <E> List<E> drain(ConcurrentMap<Long, E> map) {
+        List<E> drained = new ArrayList<E>(map.size());
+        for (Map.Entry<Long, E> e : map.entrySet()) {
+            // removed before being written, so that a concurrent change is
+            // written by the next flush
+            if (map.remove(e.getKey(), e.getValue())) {
+                drained.add(e.getValue());
+            }
+        }
+        return drained;
+    }
+
+    /**
+     * Write the changes to the database, in a single transaction.
+     */
+    private void flush() throws SQLException, IOException {
+        lock.lock();
+        try {
+            if (connection == null) {
+                return;
+            }
+            List<JdbcJobExecution> jobExecutions = drain(dirtyJobExecutions);
+            List<JdbcStepExecution> stepExecutions = drain(dirtyStepExecutions);
+            if (jobExecutions.isEmpty() && stepExecutions.isEmpty() && runningStepExecutions.isEmpty()) {
+                return;
+            }
+            boolean committed = false;
+            try {
+                writeJobExecutions(jobExecutions);
+                List<StepWrite> stepWrites = writeStepExecutions(stepExecutions);
+                connection.commit();
+                committed = true;
+                for (StepWrite stepWrite : stepWrites) {
+                    stepWrite.stepExecution.inserted = true;
+                    stepWrite.stepExecution.writtenMetrics = stepWrite.metrics;
+                    stepWrite.stepExecution.writtenPartitions.addAll(stepWrite.partitions);
+                }
+            } finally {
+                if (!committed) {
+                    JdbcUtil.rollback(connection);
+                    for (JdbcJobExecution jobExecution : jobExecutions) {
+                        dirtyJobExecutions.putIfAbsent(jobExecution.getId(), jobExecution);
+                    }
+                    for (JdbcStepExecution stepExecution : stepExecutions) {
+                        dirtyStepExecutions.putIfAbsent(stepExecution.getId(), stepExecution);
+                    }
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void writeJobExecutions(List<JdbcJobExecution> jobExecutions) throws SQLException {
+        if (jobExecutions.isEmpty()) {
+            return;
+        }
+        PreparedStatement update = prepare("UPDATE JABAT_JOB_EXECUTION SET STATUS = ?, EXIT_STATUS = ?, START_TIME = ?,"
+                + " END_TIME = ?, LAST_UPDATED_TIME = ?, STOP_LATENCY = ? WHERE ID = ?");
+        for (JdbcJobExecution jobExecution : jobExecutions) {
+            update.setString(1, jobExecution.getStatusEnum().name());
+            update.setString(2, jobExecution.getExitStatus());
+            update.setTimestamp(3, JdbcUtil.toTimestamp(jobExecution.getStartTime()));
+            update.setTimestamp(4, JdbcUtil.toTimestamp(jobExecution.getEndTime()));
+            update.setTimestamp(5, JdbcUtil.toTimestamp(jobExecution.getLastUpdatedTime()));
+            update.setLong(6, jobExecution.getStopLatency());
+            update.setLong(7, jobExecution.getId());
+            update.addBatch();
+        }
+        update.executeBatch();
+        // an execution which is not the last one of its instance anymore
+        // does not change the status of the instance
+        PreparedStatement updateInstance = prepare("UPDATE JABAT_JOB_INSTANCE SET STATUS = ?"
+                + " WHERE ID = ? AND LAST_EXECUTION_ID = ?");
+        for (JdbcJobExecution jobExecution : jobExecutions) {
+            updateInstance.setString(1, jobExecution.getStatusEnum().name());
+            updateInstance.setLong(2, jobExecution.jobInstanceId);
+            updateInstance.setLong(3, jobExecution.getId());
+            updateInstance.addBatch();
+        }
+        updateInstance.executeBatch();
+    }
+
+    private static byte[] serialize(JabatStepExecution stepExecution) throws IOException {
+        Object data = stepExecution.getUserPersistentData();
+        if (data != null && !(data instanceof Externalizable)) {
+            LOGGER.warn("Persistent user data of step execution {} is not externalizable, not persisted",
+                        stepExecution.getId());
+            return null;
+        }
+        return Externalizables.serialize((Externalizable) data);
+    }
+
+    private static void setBytes(PreparedStatement stmt, int index, byte[] bytes) throws SQLException {
+        if (bytes == null) {
+            stmt.setNull(index, Types.BLOB);
+        } else {
+            stmt.setBytes(index, bytes);
+        }
+    }
+
+    private List<StepWrite> writeStepExecutions(List<JdbcStepExecution> stepExecutions) throws SQLException, IOException {
+        // the changed step executions and the running ones, whose metrics may
+        // have changed
+        Map<Long, JdbcStepExecution> all = new LinkedHashMap<Long, JdbcStepExecution>();
+        for (JdbcStepExecution stepExecution : stepExecutions) {
+            all.put(stepExecution.getId(), stepExecution);
+        }
+        for (JdbcStepExecution stepExecution : runningStepExecutions.values()) {
+            // a step execution created during the flush is inserted by the
+            // next one
+            if (stepExecution.inserted && !all.containsKey(stepExecution.getId())) {
+                all.put(stepExecution.getId(), stepExecution);
+            }
+        }
+        if (all.isEmpty()) {
+            return Collections.emptyList();
+        }
+
+        PreparedStatement insert = prepare("INSERT INTO JABAT_STEP_EXECUTION (ID, JOB_EXECUTION_ID, STEP_NAME, STATUS,"
+                + " EXIT_STATUS, START_TIME, END_TIME, PERSISTENT_USER_DATA) VALUES (?, ?, ?, ?, ?, ?, ?, ?)");
+        PreparedStatement update = prepare("UPDATE JABAT_STEP_EXECUTION SET STATUS = ?, EXIT_STATUS = ?, END_TIME = ?,"
+                + " PERSISTENT_USER_DATA = ? WHERE ID = ?");
+        PreparedStatement insertMetric = prepare("INSERT INTO JABAT_STEP_METRIC (STEP_EXECUTION_ID, METRIC_NAME,"
+                + " METRIC_VALUE) VALUES (?, ?, ?)");
+        PreparedStatement updateMetric = prepare("UPDATE JABAT_STEP_METRIC SET METRIC_VALUE = ?"
+                + " WHERE STEP_EXECUTION_ID = ? AND METRIC_NAME = ?");
+        PreparedStatement insertPartition = prepare("INSERT INTO JABAT_COMPLETED_PARTITION (STEP_EXECUTION_ID,"
+                + " PARTITION_NUMBER) VALUES (?, ?)");
+        int inserts = 0;
+        int updates = 0;
+        int metricInserts = 0;
+        int metricUpdates = 0;
+        int partitionInserts = 0;
+
+        Set<Long> changed = new HashSet<Long>();
+        for (JdbcStepExecution stepExecution : stepExecutions) {
+            changed.add(stepExecution.getId());
+        }
+
+        List<StepWrite> stepWrites = new ArrayList<StepWrite>(all.size());
+        for (JdbcStepExecution stepExecution : all.values()) {
+            long id = stepExecution.getId();
+            if (!stepExecution.inserted) {
+                insert.setLong(1, id);
+                insert.setLong(2, stepExecution.jobExecutionId);
+                insert.setString(3, stepExecution.getStepName());
+                insert.setString(4, stepExecution.getStatusEnum().name());
+                insert.setString(5, stepExecution.getExitStatus());
+                insert.setTimestamp(6, JdbcUtil.toTimestamp(stepExecution.getStartTime()));
+                insert.setTimestamp(7, JdbcUtil.toTimestamp(stepExecution.getEndTime()));
+                setBytes(insert, 8, serialize(stepExecution));
+                insert.addBatch();
+                inserts++;
+            } else if (changed.contains(id)) {
+                update.setString(1, stepExecution.getStatusEnum().name());
+                update.setString(2, stepExecution.getExitStatus());
+                update.setTimestamp(3, JdbcUtil.toTimestamp(stepExecution.getEndTime()));
+                setBytes(update, 4, serialize(stepExecution));
+                update.setLong(5, id);
+                update.addBatch();
+                updates++;
+            }
+
+            StepMetrics stepMetrics = stepExecution.getStepMetrics();
+            long[] metrics = new long[METRIC_NAMES.length];
+            for (MetricName name : METRIC_NAMES) {
+                long value = stepMetrics.get(name);
+                metrics[name.ordinal()] = value;
+                if (!stepExecution.inserted) {
+                    insertMetric.setLong(1, id);
+                    insertMetric.setString(2, name.name());
+                    insertMetric.setLong(3, value);
+                    insertMetric.addBatch();
+                    metricInserts++;
+                } else if (value != stepExecution.writtenMetrics[name.ordinal()]) {
+                    updateMetric.setLong(1, value);
+                    updateMetric.setLong(2, id);
+                    updateMetric.setString(3, name.name());
+                    updateMetric.addBatch();
+                    metricUpdates++;
+                }
+            }
+
+            List<Integer> partitions = new ArrayList<Integer>();
+            Set<Integer> completedPartitions = stepExecution.getCompletedPartitions();
+            synchronized (completedPartitions) {
+                for (int partition : completedPartitions) {
+                    if (!stepExecution.writtenPartitions.contains(partition)) {
+                        partitions.add(partition);
+                    }
+                }
+            }
+            for (int partition : partitions) {
+                insertPartition.setLong(1, id);
+                insertPartition.setInt(2, partition);
+                insertPartition.addBatch();
+                partitionInserts++;
+            }
+
+            stepWrites.add(new StepWrite(stepExecution, metrics, partitions));
+        }
+
+        // parents first
+        if (inserts > 0) {
+            insert.executeBatch();
+        }
+        if (updates > 0) {
+            update.executeBatch();
+        }
+        if (metricInserts > 0) {
+            insertMetric.executeBatch();
+        }
+        if (metricUpdates > 0) {
+            updateMetric.executeBatch();
+        }
+        if (partitionInserts > 0) {
+            insertPartition.executeBatch();
+        }
+        return stepWrites;
+    }
+
+    @Override
+    public JabatJobInstance createJobInstance(Job job) {
+        long id = jobInstanceIds.next();
+        lock.lock();
+        try {
+            boolean committed = false;
+            try {
+                PreparedStatement insert = prepare("INSERT INTO JABAT_JOB_INSTANCE (ID, JOB_NAME) VALUES (?, ?)");
+                insert.setLong(1, id);
+                insert.setString(2, job.getId());
+                insert.executeUpdate();
+                connection.commit();
+                committed = true;
+            } finally {
+                if (!committed) {
+                    JdbcUtil.rollback(connection);
+                }
+            }
+        } catch (SQLException e) {
+            throw new JabatRuntimeException(e);
+        } finally {
+            lock.unlock();
+        }
+        return new JabatJobInstanceImpl(job.getId(), id);
+    }
+
+    @Override
+    public JabatJobExecution createJobExecution(JabatJobInstance jobInstance, Properties jobParameters) {
+        long id = jobExecutionIds.next();
+        JdbcJobExecution jobExecution = new JdbcJobExecution(id, jobInstance.getInstanceId(), jobParameters);
+        lock.lock();
+        try {
+            boolean committed = false;
+            try {
+                PreparedStatement insert = prepare("INSERT INTO JABAT_JOB_EXECUTION (ID, JOB_INSTANCE_ID, STATUS,"
+                        + " EXIT_STATUS, CREATE_TIME, START_TIME, END_TIME, LAST_UPDATED_TIME, STOP_LATENCY)"
+                        + " VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?)");
+                insert.setLong(1, id);
+                insert.setLong(2, jobInstance.getInstanceId());
+                insert.setString(3, jobExecution.getStatusEnum().name());
+                insert.setString(4, jobExecution.getExitStatus());
+                insert.setTimestamp(5, JdbcUtil.toTimestamp(jobExecution.getCreateTime()));
+                insert.setTimestamp(6, JdbcUtil.toTimestamp(jobExecution.getStartTime()));
+                insert.setTimestamp(7, JdbcUtil.toTimestamp(jobExecution.getEndTime()));
+                insert.setTimestamp(8, JdbcUtil.toTimestamp(jobExecution.getLastUpdatedTime()));
+                insert.setLong(9, jobExecution.getStopLatency());
+                insert.executeUpdate();
+                PreparedStatement updateInstance = prepare("UPDATE JABAT_JOB_INSTANCE SET LAST_EXECUTION_ID = ?,"
+                        + " STATUS = ?, CREATE_TIME = COALESCE(CREATE_TIME, ?) WHERE ID = ?");
+                updateInstance.setLong(1, id);
+                updateInstance.setString(2, jobExecution.getStatusEnum().name());
+                updateInstance.setTimestamp(3, JdbcUtil.toTimestamp(jobExecution.getCreateTime()));
+                updateInstance.setLong(4, jobInstance.getInstanceId());
+                updateInstance.executeUpdate();
+                if (jobParameters != null && !jobParameters.isEmpty()) {
+                    PreparedStatement insertParameter = prepare("INSERT INTO JABAT_JOB_PARAMETER (JOB_EXECUTION_ID,"
+                            + " PARAMETER_NAME, PARAMETER_VALUE) VALUES (?, ?, ?)");
+                    for (String name : jobParameters.stringPropertyNames()) {
+                        insertParameter.setLong(1, id);
+                        insertParameter.setString(2, name);
+                        insertParameter.setString(3, jobParameters.getProperty(name));
+                        insertParameter.addBatch();
+                    }
+                    insertParameter.executeBatch();
+                }
+                connection.commit();
+                committed = true;
+            } finally {
+                if (!committed) {
+                    JdbcUtil.rollback(connection);
+                }
+            }
+        } catch (SQLException e) {
+            throw new JabatRuntimeException(e);
+        } finally {
+            lock.unlock();
+        }
+        runningJobExecutions.put(id, jobExecution);
+        jobInstance.getExecutionIds().add(id);
+        return jobExecution;
+    }
+
+    @Override
+    public JabatStepExecution createStepExecution(Step step, JabatJobExecution jobExecution) {
+        long id = stepExecutionIds.next();
+        JdbcStepExecution stepExecution = new JdbcStepExecution(id, step.getId(), jobExecution.getId());
+        runningStepExecutions.put(id, stepExecution);
+        // inserted by the next flush
+        dirtyStepExecutions.put(id, stepExecution);
+        jobExecution.getStepExecutionIds().add(id);
+        return stepExecution;
+    }
+
+    private List<Long> queryIds(String sql, Object key) throws SQLException {
+        PreparedStatement select = prepare(sql);
+        select.setObject(1, key);
+        ResultSet rs = select.executeQuery();
+        try {
+            List<Long> ids = new ArrayList<Long>();
+            while (rs.next()) {
+                ids.add(rs.getLong(1));
+            }
+            return ids;
+        } finally {
+            rs.close();
+        }
+    }
+
+    /**
+     * Query a page of ids, the lock has to be held. The rows before the page
+     * are skipped, the ones after are not fetched.
+     */
+    private List<Long> queryPage(String sql, List<Object> parameters, int start, int count) throws SQLException {
+        PreparedStatement select = prepare(sql);
+        for (int i = 0; i < parameters.size(); i++) {
+            select.setObject(i + 1, parameters.get(i));
+        }
+        select.setMaxRows((int) Math.min((long) start + count, Integer.MAX_VALUE));
+        ResultSet rs = select.executeQuery();
+        try {
+            List<Long> ids = new ArrayList<Long>();
+            int position = 0;
+            while (rs.next()) {
+                if (position++ >= start) {
+                    ids.add(rs.getLong(1));
+                }
+            }
+            return ids;
+        } finally {
+            rs.close();
+        }
+    }
+
+    /**
+     * Query a page of the instance ids of a job, null if the job is unknown.
+     */
+    private List<Long> queryInstancePage(String sql, List<Object> parameters, int start, int count) {
+        lock.lock();
+        try {
+            List<Long> ids = count > 0 ? queryPage(sql, parameters, start, count) : Collections.<Long>emptyList();
+            if (ids.isEmpty() && queryPage("SELECT ID FROM JABAT_JOB_INSTANCE WHERE JOB_NAME = ?",
+                                           parameters.subList(0, 1), 0, 1).isEmpty()) {
+                return null;
+            }
+            return Collections.unmodifiableList(ids);
+        } catch (SQLException e) {
+            throw new JabatRuntimeException(e);
+        } finally {
+            endRead();
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public Set<String> getJobIds() {
+        lock.lock();
+        try {
+            ResultSet rs = prepare("SELECT DISTINCT JOB_NAME FROM JABAT_JOB_INSTANCE").executeQuery();
+            try {
+                Set<String> jobIds = new LinkedHashSet<String>();
+                while (rs.next()) {
+                    jobIds.add(rs.getString(1));
+                }
+                return Collections.unmodifiableSet(jobIds);
+            } finally {
+                rs.close();
+            }
+        } catch (SQLException e) {
+            throw new JabatRuntimeException(e);
+        } finally {
+            endRead();
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public List<Long> getJobInstanceIds(String id) {
+        lock.lock();
+        try {
+            List<Long> ids = queryIds("SELECT ID FROM JABAT_JOB_INSTANCE WHERE JOB_NAME = ? ORDER BY ID", id);
+            return ids.isEmpty() ? null : Collections.unmodifiableList(ids);
+        } catch (SQLException e) {
+            throw new JabatRuntimeException(e);
+        } finally {
+            endRead();
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int getJobInstanceCount(String id) {
+        lock.lock();
+        try {
+            PreparedStatement select = prepare("SELECT COUNT(*) FROM JABAT_JOB_INSTANCE WHERE JOB_NAME = ?");
+            select.setString(1, id);
+            ResultSet rs = select.executeQuery();
+            try {
+                rs.next();
+                int count = rs.getInt(1);
+                return count > 0 ? count : -1;
+            } finally {
+                rs.close();
+            }
+        } catch (SQLException e) {
+            throw new JabatRuntimeException(e);
+        } finally {
+            endRead();
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public List<Long> getJobInstanceIds(String id, int start, int count) {
+        return queryInstancePage("SELECT ID FROM JABAT_JOB_INSTANCE WHERE JOB_NAME = ? ORDER BY ID DESC",
+                                 Collections.<Object>singletonList(id), start, count);
+    }
+
+    @Override
+    public List<Long> getJobInstanceIds(String id, Set<BatchStatus> statuses, int start, int count) {
+        if (statuses.isEmpty()) {
+            return getJobInstanceIds(id, start, 0);
+        }
+        StringBuilder sql = new StringBuilder("SELECT ID FROM JABAT_JOB_INSTANCE WHERE JOB_NAME = ? AND STATUS IN (");
+        List<Object> parameters = new ArrayList<Object>(statuses.size() + 1);
+        parameters.add(id);
+        // statuses in a stable order, so that the statement is reused
+        for (BatchStatus status : BatchStatus.values()) {
+            if (statuses.contains(status)) {
+                sql.append(parameters.size() > 1 ? ", ?" : "?");
+                parameters.add(status.name());
+            }
+        }
+        sql.append(") ORDER BY ID DESC");
+        return queryInstancePage(sql.toString(), parameters, start, count);
+    }
+
+    @Override
+    public List<Long> getJobInstanceIds(String id, Date from, Date to, int start, int count) {
+        StringBuilder sql = new StringBuilder("SELECT ID FROM JABAT_JOB_INSTANCE WHERE JOB_NAME = ?");
+        List<Object> parameters = new ArrayList<Object>(3);
+        parameters.add(id);
+        if (from != null) {
+            sql.append(" AND CREATE_TIME >= ?");
+            parameters.add(JdbcUtil.toTimestamp(from));
+        }
+        if (to != null) {
+            sql.append(" AND CREATE_TIME < ?");
+            parameters.add(JdbcUtil.toTimestamp(to));
+        }
+        if (from == null && to == null) {
+            sql.append(" AND CREATE_TIME IS NOT NULL");
+        }
+        sql.append(" ORDER BY CREATE_TIME DESC, ID DESC");
+        return queryInstancePage(sql.toString(), parameters, start, count);
+    }
+
+    @Override
+    public JabatJobInstance getJobInstance(long id) {
+        lock.lock();
+        try {
+            PreparedStatement select = prepare("SELECT JOB_NAME FROM JABAT_JOB_INSTANCE WHERE ID = ?");
+            select.setLong(1, id);
+            String jobName;
+            ResultSet rs = select.executeQuery();
+            try {
+                if (!rs.next()) {
+                    return null;
+                }
+                jobName = rs.getString(1);
+            } finally {
+                rs.close();
+            }
+            JabatJobInstance jobInstance = new JabatJobInstanceImpl(jobName, id);
+            jobInstance.getExecutionIds().addAll(queryIds("SELECT ID FROM JABAT_JOB_EXECUTION"
+                    + " WHERE JOB_INSTANCE_ID = ? ORDER BY ID", id));
+            return jobInstance;
+        } catch (SQLException e) {
+            throw new JabatRuntimeException(e);
+        } finally {
+            endRead();
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public JabatJobExecution getJobExecution(long id) {
+        JabatJobExecution jobExecution = runningJobExecutions.get(id);
+        if (jobExecution == null) {
+            // ended but not written yet
+            jobExecution = dirtyJobExecutions.get(id);
+        }
+        if (jobExecution != null) {
+            return jobExecution;
+        }
+        lock.lock();
+        try {
+            PreparedStatement select = prepare("SELECT JOB_INSTANCE_ID, STATUS, EXIT_STATUS, CREATE_TIME, START_TIME,"
+                    + " END_TIME, LAST_UPDATED_TIME, STOP_LATENCY FROM JABAT_JOB_EXECUTION WHERE ID = ?");
+            select.setLong(1, id);
+            ResultSet rs = select.executeQuery();
+            try {
+                if (!rs.next()) {
+                    return null;
+                }
+                Properties jobParameters = new Properties();
+                PreparedStatement selectParameters = prepare("SELECT PARAMETER_NAME, PARAMETER_VALUE"
+                        + " FROM JABAT_JOB_PARAMETER WHERE JOB_EXECUTION_ID = ?");
+                selectParameters.setLong(1, id);
+                ResultSet rs2 = selectParameters.executeQuery();
+                try {
+                    while (rs2.next()) {
+                        jobParameters.setProperty(rs2.getString(1), rs2.getString(2));
+                    }
+                } finally {
+                    rs2.close();
+                }
+                List<Long> ids = queryIds("SELECT ID FROM JABAT_STEP_EXECUTION WHERE JOB_EXECUTION_ID = ? ORDER BY ID", id);
+                return new JdbcJobExecution(id, rs.getLong(1), jobParameters, BatchStatus.valueOf(rs.getString(2)),
+                                            rs.getString(3), JdbcUtil.toDate(rs.getTimestamp(4)),
+                                            JdbcUtil.toDate(rs.getTimestamp(5)), JdbcUtil.toDate(rs.getTimestamp(6)),
+                                            JdbcUtil.toDate(rs.getTimestamp(7)), rs.getLong(8), ids);
+            } finally {
+                rs.close();
+            }
+        } catch (SQLException e) {
+            throw new JabatRuntimeException(e);
+        } finally {
+            endRead();
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public JabatStepExecution getStepExecution(long id) {
+        JabatStepExecution stepExecution = runningStepExecutions.get(id);
+        if (stepExecution == null) {
+            // ended but not written yet
+            stepExecution = dirtyStepExecutions.get(id);
+        }
+        if (stepExecution != null) {
+            return stepExecution;
+        }
+        lock.lock();
+        try {
+            PreparedStatement select = prepare("SELECT JOB_EXECUTION_ID, STEP_NAME, STATUS, EXIT_STATUS, START_TIME,"
+                    + " END_TIME, PERSISTENT_USER_DATA FROM JABAT_STEP_EXECUTION WHERE ID = ?");
+            select.setLong(1, id);
+            ResultSet rs = select.executeQuery();
+            try {
+                if (!rs.next()) {
+                    return null;
+                }
+                StepMetrics metrics = new StepMetrics();
+                long[] metricValues = new long[METRIC_NAMES.length];
+                PreparedStatement selectMetrics = prepare("SELECT METRIC_NAME, METRIC_VALUE FROM JABAT_STEP_METRIC"
+                        + " WHERE STEP_EXECUTION_ID = ?");
+                selectMetrics.setLong(1, id);
+                ResultSet rs2 = selectMetrics.executeQuery();
+                try {
+                    while (rs2.next()) {
+                        MetricName name = MetricName.valueOf(rs2.getString(1));
+                        metricValues[name.ordinal()] = rs2.getLong(2);
+                        metrics.getPartition(0).add(name, rs2.getLong(2));
+                    }
+                } finally {
+                    rs2.close();
+                }
+                Set<Integer> completedPartitions = new HashSet<Integer>();
+                PreparedStatement selectPartitions = prepare("SELECT PARTITION_NUMBER FROM JABAT_COMPLETED_PARTITION"
+                        + " WHERE STEP_EXECUTION_ID = ?");
+                selectPartitions.setLong(1, id);
+                ResultSet rs3 = selectPartitions.executeQuery();
+                try {
+                    while (rs3.next()) {
+                        completedPartitions.add(rs3.getInt(1));
+                    }
+                } finally {
+                    rs3.close();
+                }
+                Object userPersistentData;
+                try {
+                    userPersistentData = Externalizables.deserialize(rs.getBytes(7));
+                } catch (IOException e) {
+                    throw new JabatRuntimeException(e);
+                } catch (ClassNotFoundException e) {
+                    throw new JabatRuntimeException(e);
+                }
+                return new JdbcStepExecution(id, rs.getString(2), rs.getLong(1), BatchStatus.valueOf(rs.getString(3)),
+                                             JdbcUtil.toDate(rs.getTimestamp(5)), JdbcUtil.toDate(rs.getTimestamp(6)),
+                                             rs.getString(4), userPersistentData, metrics, metricValues,
+                                             completedPartitions);
+            } finally {
+                rs.close();
+            }
+        } catch (SQLException e) {
+            throw new JabatRuntimeException(e);
+        } finally {
+            endRead();
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void jobExecutionEnded(JabatJobExecution jobExecution) {
+        // the final state of the execution is made durable before it is
+        // served from the database
+        flushQuietly();
+        runningJobExecutions.remove(jobExecution.getId());
+        for (long stepExecutionId : jobExecution.getStepExecutionIds()) {
+            runningStepExecutions.remove(stepExecutionId);
+        }
+    }
+
+}
@@ -0,0 +1,349 @@
+/*
+ * Copyright 2013 Geoffroy Jamgotchian <geoffroy.jamgotchian at gmail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.jamgotchian.jabat.runtime.repository.impl;
+
+import fr.jamgotchian.jabat.runtime.repository.BatchStatus;
+import fr.jamgotchian.jabat.runtime.repository.JabatJobExecution;
+import fr.jamgotchian.jabat.runtime.repository.JabatJobInstance;
+import fr.jamgotchian.jabat.runtime.repository.JobRepository;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+/**
+ * Secondary index of the job instances of a repository by job name and by
+ * status of their last execution.
+ *
+ * The instances whose last execution is running are indexed with the
+ * execution, whose status is checked at each query. The other ones are
+ * indexed by the status their last execution had when it ended, in sorted
+ * sets, so that a page of the most recent ones is read without going
+ * through the older ones.
+ *
+ * The static methods page the instance ids of a job, listed in creation
+ * order, without copying the list.
+ *
+ * @author Geoffroy Jamgotchian <geoffroy.jamgotchian at gmail.com>
+ */
+final class JobInstanceIndex {
+
+    private static final long NO_TIME = Long.MIN_VALUE;
+
+    private static final class RunningExecution {
+
+        private final String jobName;
+
+        private final long instanceId;
+
+        private final JabatJobExecution jobExecution;
+
+        private RunningExecution(String jobName, long instanceId, JabatJobExecution jobExecution) {
+            this.jobName = jobName;
+            this.instanceId = instanceId;
+            this.jobExecution = jobExecution;
+        }
+    }
+
+    private static final class IndexedStatus {
+
+        private final String jobName;
+
+        private final BatchStatus status;
+
+        private IndexedStatus(String jobName, BatchStatus status) {
+            this.jobName = jobName;
+            this.status = status;
+        }
+    }
+
+    /* last executions which have not ended yet, by execution id and by
+       instance id */
+
+    private final ConcurrentMap<Long, RunningExecution> runningExecutions
+            = new ConcurrentHashMap<Long, RunningExecution>();
+
+    private final ConcurrentMap<Long, RunningExecution> runningInstances
+            = new ConcurrentHashMap<Long, RunningExecution>();
+
+    /* status of the last execution of the other instances */
+    private final ConcurrentMap<Long, IndexedStatus> statuses = new ConcurrentHashMap<Long, IndexedStatus>();
+
+    /* the other instances by job name and status, the most recent first */
+    private final ConcurrentMap<String, ConcurrentMap<BatchStatus, Set<Long>>> jobs
+            = new ConcurrentHashMap<String, ConcurrentMap<BatchStatus, Set<Long>>>();
+
+    private Set<Long> getInstanceIds(String jobName, BatchStatus status, boolean create) {
+        ConcurrentMap<BatchStatus, Set<Long>> jobStatuses = jobs.get(jobName);
+        if (jobStatuses == null) {
+            if (!create) {
+                return null;
+            }
+            ConcurrentMap<BatchStatus, Set<Long>> newJobStatuses = new ConcurrentHashMap<BatchStatus, Set<Long>>();
+            jobStatuses = jobs.putIfAbsent(jobName, newJobStatuses);
+            if (jobStatuses == null) {
+                jobStatuses = newJobStatuses;
+            }
+        }
+        Set<Long> ids = jobStatuses.get(status);
+        if (ids == null && create) {
+            Set<Long> newIds = new ConcurrentSkipListSet<Long>(Collections.reverseOrder());
+            ids = jobStatuses.putIfAbsent(status, newIds);
+            if (ids == null) {
+                ids = newIds;
+            }
+        }
+        return ids;
+    }
+
+    /**
+     * Index a new execution of an instance, which becomes its last one.
+     */
+    void executionCreated(String jobName, long instanceId, JabatJobExecution jobExecution) {
+        RunningExecution runningExecution = new RunningExecution(jobName, instanceId, jobExecution);
+        runningInstances.put(instanceId, runningExecution);
+        runningExecutions.put(jobExecution.getId(), runningExecution);
+        remove(instanceId);
+    }
+
+    /**
+     * Index the final status of an execution which has ended.
+     */
+    void executionEnded(JabatJobExecution jobExecution) {
+        RunningExecution runningExecution = runningExecutions.get(jobExecution.getId());
+        if (runningExecution == null) {
+            return;
+        }
+        // indexed with its status before it stops being running, a query may
+        // see it twice but does not miss it
+        put(runningExecution.jobName, runningExecution.instanceId, jobExecution.getStatusEnum());
+        runningInstances.remove(runningExecution.instanceId, runningExecution);
+        runningExecutions.remove(jobExecution.getId());
+    }
+
+    /**
+     * Index the status of the last execution of an instance, which is not
+     * running.
+     */
+    void put(String jobName, long instanceId, BatchStatus status) {
+        IndexedStatus oldStatus = statuses.put(instanceId, new IndexedStatus(jobName, status));
+        if (oldStatus != null && oldStatus.status != status) {
+            getInstanceIds(jobName, oldStatus.status, true).remove(instanceId);
+        }
+        getInstanceIds(jobName, status, true).add(instanceId);
+    }
+
+    /**
+     * Remove an instance which is not running from the index.
+     */
+    void remove(long instanceId) {
+        IndexedStatus oldStatus = statuses.remove(instanceId);
+        if (oldStatus != null) {
+            getInstanceIds(oldStatus.jobName, oldStatus.status, true).remove(instanceId);
+        }
+    }
+
+    void clear() {
+        runningExecutions.clear();
+        runningInstances.clear();
+        statuses.clear();
+        jobs.clear();
+    }
+
+    /**
+     * Check whether an instance is indexed.
+     */
+    boolean contains(long instanceId) {
+        return runningInstances.containsKey(instanceId) || statuses.containsKey(instanceId);
+    }
+
+    /**
+     * Get iterators on the ids of the indexed instances of a job whose last
+     * execution has one of the statuses, the most recent first.
+     */
+    List<Iterator<Long>> iterators(String jobName, Set<BatchStatus> statuses) {
+        List<Iterator<Long>> iterators = new ArrayList<Iterator<Long>>(statuses.size() + 1);
+        List<Long> running = new ArrayList<Long>();
+        for (RunningExecution runningExecution : runningExecutions.values()) {
+            if (runningExecution.jobName.equals(jobName)
+                    && statuses.contains(runningExecution.jobExecution.getStatusEnum())) {
+                running.add(runningExecution.instanceId);
+            }
+        }
+        if (running.size() > 0) {
+            Collections.sort(running, Collections.reverseOrder());
+            iterators.add(running.iterator());
+        }
+        for (BatchStatus status : statuses) {
+            Set<Long> ids = getInstanceIds(jobName, status, false);
+            if (ids != null) {
+                iterators.add(ids.iterator());
+            }
+        }
+        return iterators;
+    }
+
+    /**
+     * Get a page of the ids of the instances of a job whose last execution
+     * has one of the statuses, the most recent first.
+     */
+    List<Long> getInstanceIds(String jobName, Set<BatchStatus> statuses, int start, int count) {
+        return merge(iterators(jobName, statuses), start, count);
+    }
+
+    /**
+     * Merge iterators on ids sorted from the most recent and get a page of
+     * the result, an id given by several iterators is kept once.
+     */
+    static List<Long> merge(List<Iterator<Long>> iterators, int start, int count) {
+        int size = iterators.size();
+        long[] heads = new long[size];
+        boolean[] ended = new boolean[size];
+        for (int i = 0; i < size; i++) {
+            ended[i] = !iterators.get(i).hasNext();
+            if (!ended[i]) {
+                heads[i] = iterators.get(i).next();
+            }
+        }
+        List<Long> page = new ArrayList<Long>(Math.min(count, 64));
+        long last = -1;
+        int skipped = 0;
+        while (page.size() < count) {
+            int max = -1;
+            for (int i = 0; i < size; i++) {
+                if (!ended[i] && (max == -1 || heads[i] > heads[max])) {
+                    max = i;
+                }
+            }
+            if (max == -1) {
+                break;
+            }
+            long id = heads[max];
+            ended[max] = !iterators.get(max).hasNext();
+            if (!ended[max]) {
+                heads[max] = iterators.get(max).next();
+            }
+            if (id == last) {
+                continue;
+            }
+            last = id;
+            if (skipped < start) {
+                skipped++;
+            } else {
+                page.add(id);
+            }
+        }
+        return page;
+    }
+
+    /**
+     * Get a page of the ids of the instances of a job, the most recent first.
+     *
+     * @param instanceIds the instance ids of the job, in creation order
+     */
+    static List<Long> getPage(List<Long> instanceIds, int start, int count) {
+        int size = instanceIds.size();
+        int last = size - 1 - start;
+        int first = (int) Math.max(0, (long) size - start - count);
+        List<Long> page = new ArrayList<Long>(Math.max(last - first + 1, 0));
+        for (int i = last; i >= first; i--) {
+            page.add(instanceIds.get(i));
+        }
+        return page;
+    }
+
+    /**
+     * Get the creation time of an instance, which is the one of its first
+     * execution, created with the instance.
+     *
+     * @return the time in ms or {@link #NO_TIME} if the first execution is
+     *         not known
+     */
+    private static long getCreateTime(JobRepository repository, long instanceId) {
+        JabatJobInstance jobInstance = repository.getJobInstance(instanceId);
+        if (jobInstance == null || jobInstance.getExecutionIds().isEmpty()) {
+            return NO_TIME;
+        }
+        JabatJobExecution jobExecution = repository.getJobExecution(jobInstance.getExecutionIds().get(0));
+        if (jobExecution == null || jobExecution.getCreateTime() == null) {
+            return NO_TIME;
+        }
+        return jobExecution.getCreateTime().getTime();
+    }
+
+    /**
+     * Get the index of the first instance created at or after a time, by a
+     * binary search as the instances are listed in creation order.
+     */
+    private static int search(List<Long> instanceIds, long time, JobRepository repository) {
+        int low = 0;
+        int high = instanceIds.size();
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            // an instance without execution has no creation time, it is
+            // skipped to bisect but is never listed
+            int probe = middle;
+            long createTime = NO_TIME;
+            while (probe < high && (createTime = getCreateTime(repository, instanceIds.get(probe))) == NO_TIME) {
+                probe++;
+            }
+            if (probe == high) {
+                high = middle;
+            } else if (createTime < time) {
+                low = probe + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Get a page of the ids of the instances of a job created during a time
+     * range, the most recent first. An instance without execution has no
+     * creation time and is not listed, even without bound.
+     *
+     * @param instanceIds the instance ids of the job, in creation order
+     * @param from the beginning of the range, included, null for no bound
+     * @param to the end of the range, excluded, null for no bound
+     * @param repository the repository the instances are read from
+     */
+    static List<Long> getPage(List<Long> instanceIds, Date from, Date to, int start, int count,
+                              JobRepository repository) {
+        int fromIndex = from != null ? search(instanceIds, from.getTime(), repository) : 0;
+        int toIndex = to != null ? search(instanceIds, to.getTime(), repository) : instanceIds.size();
+        List<Long> page = new ArrayList<Long>(Math.min(count, 64));
+        int skipped = 0;
+        for (int i = toIndex - 1; i >= fromIndex && page.size() < count; i--) {
+            long instanceId = instanceIds.get(i);
+            if (getCreateTime(repository, instanceId) == NO_TIME) {
+                continue;
+            }
+            if (skipped < start) {
+                skipped++;
+            } else {
+                page.add(instanceId);
+            }
+        }
+        return page;
+    }
+
+}
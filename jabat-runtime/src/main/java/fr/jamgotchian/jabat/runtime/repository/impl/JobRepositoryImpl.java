@@ -17,11 +17,14 @@ package fr.jamgotchian.jabat.runtime.repository.impl;
 
 import fr.jamgotchian.jabat.jobxml.model.Job;
 import fr.jamgotchian.jabat.jobxml.model.Step;
+import fr.jamgotchian.jabat.runtime.repository.BatchStatus;
 import fr.jamgotchian.jabat.runtime.repository.JabatJobExecution;
 import fr.jamgotchian.jabat.runtime.repository.JabatJobInstance;
 import fr.jamgotchian.jabat.runtime.repository.JabatStepExecution;
+import fr.jamgotchian.jabat.runtime.repository.JobInstanceEvictionListener;
 import fr.jamgotchian.jabat.runtime.repository.JobRepository;
 import java.util.ArrayList;
+import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -29,6 +32,8 @@ import java.util.Properties;
 import java.util.Set;
 
 /**
+ * In-memory job repository which is not thread safe, executions running
+ * concurrently need a {@link ConcurrentJobRepository}.
  *
  * @author Geoffroy Jamgotchian <geoffroy.jamgotchian at gmail.com>
  */
@@ -44,12 +49,27 @@ public class JobRepositoryImpl implements JobRepository {
 
     private final Map<Long, JabatStepExecution> stepExecutions = new HashMap<Long, JabatStepExecution>();
 
+    private final JobInstanceIndex index = new JobInstanceIndex();
+
     private long nextJobInstanceId = 0;
 
     private long nextJobExecutionId = 0;
 
     private long nextStepExecutionId = 0;
 
+    @Override
+    public void initialize(Properties configuration) throws Exception {
+    }
+
+    @Override
+    public void shutdown() throws Exception {
+    }
+
+    @Override
+    public void setEvictionListener(JobInstanceEvictionListener listener) {
+        // the whole history is kept
+    }
+
     @Override
     public JabatJobInstance createJobInstance(Job job) {
         long jobInstanceId = nextJobInstanceId++;
@@ -70,13 +90,14 @@ public class JobRepositoryImpl implements JobRepository {
         JabatJobExecution jobExecution = new JabatJobExecutionImpl(jobExecutionId, jobParameters);
         jobExecutions.put(jobExecutionId, jobExecution);
         jobInstance.getExecutionIds().add(jobExecutionId);
+        index.executionCreated(jobInstance.getJobName(), jobInstance.getInstanceId(), jobExecution);
         return jobExecution;
     }
 
     @Override
     public JabatStepExecution createStepExecution(Step step, JabatJobExecution jobExecution) {
         long stepExecutionId = nextStepExecutionId++;
-        JabatStepExecution stepExecution = new JabatStepExecutionImpl(stepExecutionId);
+        JabatStepExecution stepExecution = new JabatStepExecutionImpl(stepExecutionId, step.getId());
         stepExecutions.put(stepExecutionId, stepExecution);
         List<Long> stepExecutionIds = steps.get(step.getId());
         if (stepExecutionIds == null) {
@@ -98,6 +119,29 @@ public class JobRepositoryImpl implements JobRepository {
         return jobs.get(id);
     }
 
+    @Override
+    public int getJobInstanceCount(String id) {
+        List<Long> ids = jobs.get(id);
+        return ids != null ? ids.size() : -1;
+    }
+
+    @Override
+    public List<Long> getJobInstanceIds(String id, int start, int count) {
+        List<Long> ids = jobs.get(id);
+        return ids != null ? JobInstanceIndex.getPage(ids, start, count) : null;
+    }
+
+    @Override
+    public List<Long> getJobInstanceIds(String id, Set<BatchStatus> statuses, int start, int count) {
+        return jobs.containsKey(id) ? index.getInstanceIds(id, statuses, start, count) : null;
+    }
+
+    @Override
+    public List<Long> getJobInstanceIds(String id, Date from, Date to, int start, int count) {
+        List<Long> ids = jobs.get(id);
+        return ids != null ? JobInstanceIndex.getPage(ids, from, to, start, count, this) : null;
+    }
+
     @Override
     public JabatJobInstance getJobInstance(long id) {
         return jobInstances.get(id);
@@ -113,4 +157,9 @@ public class JobRepositoryImpl implements JobRepository {
         return stepExecutions.get(id);
     }
 
+    @Override
+    public void jobExecutionEnded(JabatJobExecution jobExecution) {
+        index.executionEnded(jobExecution);
+    }
+
 }
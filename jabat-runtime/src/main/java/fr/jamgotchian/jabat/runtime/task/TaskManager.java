@@ -16,6 +16,7 @@
 package fr.jamgotchian.jabat.runtime.task;
 
 import java.util.Collection;
+import java.util.Properties;
 import java.util.concurrent.Callable;
 
 /**
@@ -34,6 +35,12 @@ public interface TaskManager {
     /**
      * Submit a list of task and wait until all tasks complete.
      *
+     * The listener is notified on the calling thread as soon as a task
+     * completes, in completion order. The first failure, or the first
+     * exception thrown by the listener, cancels the remaining tasks: tasks not
+     * yet started are skipped, running tasks are interrupted. An exception
+     * thrown by the listener is rethrown once the running tasks have completed.
+     *
      * @param <V>
      * @param tasks list of task to run
      * @param threads number of thread
@@ -45,9 +52,10 @@ public interface TaskManager {
     /**
      * Initialize the task manager, should be called before submiting a task.
      *
+     * @param configuration the container configuration
      * @throws Exception
      */
-    void initialize() throws Exception;
+    void initialize(Properties configuration) throws Exception;
 
     /**
      * Shutdown the task manager.
@@ -19,12 +19,10 @@ import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import fr.jamgotchian.jabat.runtime.task.TaskManager;
 import fr.jamgotchian.jabat.runtime.task.TaskResultListener;
 import java.util.Collection;
-import java.util.List;
+import java.util.Properties;
 import java.util.concurrent.Callable;
-import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
 import java.util.concurrent.ThreadFactory;
 
 /**
@@ -55,22 +53,14 @@ public class ExecutorServiceTaskManager implements TaskManager {
     public <V> void submitAndWait(Collection<Callable<V>> tasks, int threads, TaskResultListener<V> listener) throws InterruptedException {
         ExecutorService executorService = Executors.newFixedThreadPool(threads, threadFactory);
         try {
-            List<Future<V>> futures = executorService.invokeAll(tasks);
-            for (Future<V> future : futures) {
-                try {
-                    V result = future.get();
-                    listener.onSuccess(result);
-                } catch (ExecutionException e) {
-                    listener.onFailure(e.getCause());
-                }
-            }
+            new TaskGroup<V>(executorService, tasks).runAndWait(threads, listener);
         } finally {
             executorService.shutdown();
         }
     }
 
     @Override
-    public void initialize() throws Exception {
+    public void initialize(Properties configuration) throws Exception {
     }
 
     @Override
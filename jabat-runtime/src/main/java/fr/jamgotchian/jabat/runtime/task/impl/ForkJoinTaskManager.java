@@ -0,0 +1,170 @@
+/*
+ * Copyright 2013 Geoffroy Jamgotchian <geoffroy.jamgotchian at gmail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.jamgotchian.jabat.runtime.task.impl;
+
+import fr.jamgotchian.jabat.runtime.task.TaskManager;
+import fr.jamgotchian.jabat.runtime.task.TaskResultListener;
+import fr.jamgotchian.jabat.runtime.util.JabatRuntimeException;
+import java.util.Collection;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A task manager running all the tasks of the container on a single bounded
+ * work-stealing pool.
+ *
+ * A thread waiting for a group of tasks does not pin a pool thread: the wait
+ * is declared to the pool as a managed block so that the pool can compensate
+ * with a spare thread, consequently nested splits and partitions cannot
+ * deadlock. Results are notified in completion order and the first failure
+ * cancels the rest of the group.
+ *
+ * The pool size is configured by the jabat.taskManager.parallelism key of
+ * jabat.properties and defaults to the number of available processors.
+ *
+ * @author Geoffroy Jamgotchian <geoffroy.jamgotchian at gmail.com>
+ */
+public class ForkJoinTaskManager implements TaskManager {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ForkJoinTaskManager.class);
+
+    public static final String PARALLELISM_KEY = "jabat.taskManager.parallelism";
+
+    private final AtomicInteger threadCount = new AtomicInteger();
+
+    private final ForkJoinPool.ForkJoinWorkerThreadFactory threadFactory
+            = new ForkJoinPool.ForkJoinWorkerThreadFactory() {
+
+        @Override
+        public ForkJoinWorkerThread newThread(ForkJoinPool pool) {
+            ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+            thread.setName("JABAT-" + threadCount.getAndIncrement());
+            return thread;
+        }
+    };
+
+    private final AtomicLong queuedTaskCount = new AtomicLong();
+
+    private final AtomicLong activeTaskCount = new AtomicLong();
+
+    private final AtomicLong completedTaskCount = new AtomicLong();
+
+    private volatile ForkJoinPool pool;
+
+    public ForkJoinTaskManager() {
+    }
+
+    private ForkJoinPool getPool() {
+        ForkJoinPool p = pool;
+        if (p == null) {
+            throw new JabatRuntimeException("Task manager is not initialized");
+        }
+        return p;
+    }
+
+    private abstract class CountedTask implements Runnable {
+
+        protected abstract void execute();
+
+        @Override
+        public void run() {
+            queuedTaskCount.decrementAndGet();
+            activeTaskCount.incrementAndGet();
+            try {
+                execute();
+            } finally {
+                activeTaskCount.decrementAndGet();
+                completedTaskCount.incrementAndGet();
+            }
+        }
+    }
+
+    private final Executor executor = new Executor() {
+
+        @Override
+        public void execute(final Runnable task) {
+            submit(task);
+        }
+    };
+
+    @Override
+    public void submit(final Runnable task) {
+        ForkJoinPool p = getPool();
+        queuedTaskCount.incrementAndGet();
+        p.execute(new CountedTask() {
+            @Override
+            protected void execute() {
+                task.run();
+            }
+        });
+    }
+
+    @Override
+    public <V> void submitAndWait(Collection<Callable<V>> tasks, int threads, TaskResultListener<V> listener) throws InterruptedException {
+        new TaskGroup<V>(executor, tasks).runAndWait(threads, listener);
+    }
+
+    @Override
+    public void initialize(Properties configuration) throws Exception {
+        int parallelism = Runtime.getRuntime().availableProcessors();
+        String value = configuration.getProperty(PARALLELISM_KEY);
+        if (value != null) {
+            parallelism = Integer.parseInt(value);
+            if (parallelism < 1) {
+                throw new JabatRuntimeException("Task manager parallelism is expected to be greater than 0");
+            }
+        }
+        LOGGER.debug("Task manager parallelism is {}", parallelism);
+        pool = new ForkJoinPool(parallelism, threadFactory, null, true);
+    }
+
+    @Override
+    public void shutdown() throws Exception {
+        if (pool != null) {
+            pool.shutdown();
+            pool = null;
+        }
+    }
+
+    /**
+     * Get the number of tasks submitted but not yet started.
+     */
+    public long getQueuedTaskCount() {
+        return queuedTaskCount.get();
+    }
+
+    /**
+     * Get the number of running tasks.
+     */
+    public long getActiveTaskCount() {
+        return activeTaskCount.get();
+    }
+
+    /**
+     * Get the number of tasks that have completed, successfully or not.
+     */
+    public long getCompletedTaskCount() {
+        return completedTaskCount.get();
+    }
+
+}
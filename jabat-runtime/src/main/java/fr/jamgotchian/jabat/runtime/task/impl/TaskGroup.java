@@ -0,0 +1,276 @@
+/*
+ * Copyright 2013 Geoffroy Jamgotchian <geoffroy.jamgotchian at gmail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.jamgotchian.jabat.runtime.task.impl;
+
+import fr.jamgotchian.jabat.runtime.task.TaskResultListener;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A group of tasks run on an executor with a maximum number of concurrent
+ * tasks, a new task of the group being submitted each time one completes.
+ *
+ * The listener is notified on the waiting thread, in completion order. The
+ * first failure, or the first exception thrown by the listener, cancels the
+ * group: tasks not yet started are skipped and are not notified, running tasks
+ * are interrupted and their outcome is still notified. A task the executor
+ * fails to accept is notified as a failure. The wait always ends once the
+ * running tasks have completed, even when the waiting thread is interrupted:
+ * the group is then cancelled and the outcomes of the running tasks are
+ * awaited, without being notified, before the interruption is rethrown.
+ *
+ * @author Geoffroy Jamgotchian <geoffroy.jamgotchian at gmail.com>
+ */
+class TaskGroup<V> {
+
+    private static class Outcome<V> {
+
+        private final V result;
+
+        private final Throwable failure;
+
+        private final boolean skipped;
+
+        private Outcome(V result, Throwable failure, boolean skipped) {
+            this.result = result;
+            this.failure = failure;
+            this.skipped = skipped;
+        }
+    }
+
+    /**
+     * Take the next outcome, letting a fork/join pool compensate if the
+     * waiting thread is one of its threads.
+     */
+    private class OutcomeTaker implements ForkJoinPool.ManagedBlocker {
+
+        private Outcome<V> outcome;
+
+        @Override
+        public boolean block() throws InterruptedException {
+            if (outcome == null) {
+                outcome = outcomes.take();
+            }
+            return true;
+        }
+
+        @Override
+        public boolean isReleasable() {
+            return outcome != null || (outcome = outcomes.poll()) != null;
+        }
+    }
+
+    private class Slot implements Runnable {
+
+        private final int index;
+
+        private Slot(int index) {
+            this.index = index;
+        }
+
+        @Override
+        public void run() {
+            synchronized (lock) {
+                if (cancelled) {
+                    outcomes.add(new Outcome<V>(null, null, true));
+                    return;
+                }
+                runners[index] = Thread.currentThread();
+            }
+            Outcome<V> outcome;
+            try {
+                outcome = new Outcome<V>(tasks.get(index).call(), null, false);
+            } catch (Throwable t) {
+                outcome = new Outcome<V>(null, t, false);
+            } finally {
+                synchronized (lock) {
+                    runners[index] = null;
+                }
+                // the thread may have been interrupted by a cancellation, the
+                // interruption must not leak to the next task run by this thread
+                Thread.interrupted();
+            }
+            if (outcome.failure != null) {
+                // fail fast, without waiting for the waiting thread to be
+                // notified. The failure is published before the running
+                // tasks are interrupted so that it is notified before their
+                // outcomes
+                synchronized (lock) {
+                    cancelled = true;
+                }
+                outcomes.add(outcome);
+                cancel();
+                return;
+            }
+            // reserve the next task before publishing the outcome so that the
+            // waiting thread always knows how many outcomes are still expected
+            int nextIndex = reserveNext();
+            outcomes.add(outcome);
+            if (nextIndex != -1) {
+                execute(nextIndex);
+            }
+        }
+    }
+
+    private final Executor executor;
+
+    private final List<Callable<V>> tasks;
+
+    private final Thread[] runners;
+
+    private final Object lock = new Object();
+
+    private boolean cancelled = false;
+
+    private final AtomicInteger next = new AtomicInteger();
+
+    private final AtomicInteger submitted = new AtomicInteger();
+
+    private final BlockingQueue<Outcome<V>> outcomes = new LinkedBlockingQueue<Outcome<V>>();
+
+    TaskGroup(Executor executor, Collection<Callable<V>> tasks) {
+        this.executor = executor;
+        this.tasks = new ArrayList<Callable<V>>(tasks);
+        runners = new Thread[tasks.size()];
+    }
+
+    /**
+     * Reserve the next task to run, -1 if there is none or if the group is
+     * cancelled. A reserved task is always expected to publish an outcome.
+     */
+    private int reserveNext() {
+        synchronized (lock) {
+            if (cancelled) {
+                return -1;
+            }
+        }
+        int i = next.getAndIncrement();
+        if (i < tasks.size()) {
+            submitted.incrementAndGet();
+            return i;
+        }
+        return -1;
+    }
+
+    /**
+     * Execute a reserved task, a failure to submit it, a rejection by the
+     * executor for instance, is published as the outcome of the task.
+     */
+    private void execute(int index) {
+        try {
+            executor.execute(new Slot(index));
+        } catch (Throwable t) {
+            outcomes.add(new Outcome<V>(null, t, false));
+        }
+    }
+
+    private void submitNext() {
+        int i = reserveNext();
+        if (i != -1) {
+            execute(i);
+        }
+    }
+
+    private void cancel() {
+        synchronized (lock) {
+            cancelled = true;
+            for (Thread runner : runners) {
+                if (runner != null) {
+                    runner.interrupt();
+                }
+            }
+        }
+    }
+
+    private Outcome<V> take() throws InterruptedException {
+        OutcomeTaker taker = new OutcomeTaker();
+        ForkJoinPool.managedBlock(taker);
+        return taker.outcome;
+    }
+
+    /**
+     * Wait, ignoring interruptions, for the outcomes still expected after the
+     * group has been cancelled. They are not notified.
+     */
+    private void awaitUninterruptibly(int received) {
+        while (received < submitted.get()) {
+            try {
+                take();
+                received++;
+            } catch (InterruptedException e) {
+                // already reported by the rethrown interruption
+            }
+        }
+    }
+
+    void runAndWait(int threads, TaskResultListener<V> listener) throws InterruptedException {
+        int concurrency = threads > 0 ? Math.min(threads, tasks.size()) : tasks.size();
+        for (int i = 0; i < concurrency; i++) {
+            submitNext();
+        }
+        RuntimeException listenerException = null;
+        Error listenerError = null;
+        int received = 0;
+        try {
+            while (received < submitted.get()) {
+                Outcome<V> outcome = take();
+                received++;
+                if (outcome.skipped) {
+                    continue;
+                }
+                if (outcome.failure != null) {
+                    // fail fast
+                    cancel();
+                }
+                if (listenerException != null || listenerError != null) {
+                    // the listener has already given up
+                    continue;
+                }
+                try {
+                    if (outcome.failure != null) {
+                        listener.onFailure(outcome.failure);
+                    } else {
+                        listener.onSuccess(outcome.result);
+                    }
+                } catch (RuntimeException e) {
+                    cancel();
+                    listenerException = e;
+                } catch (Error e) {
+                    cancel();
+                    listenerError = e;
+                }
+            }
+        } catch (InterruptedException e) {
+            cancel();
+            awaitUninterruptibly(received);
+            throw e;
+        }
+        if (listenerException != null) {
+            throw listenerException;
+        }
+        if (listenerError != null) {
+            throw listenerError;
+        }
+    }
+
+}
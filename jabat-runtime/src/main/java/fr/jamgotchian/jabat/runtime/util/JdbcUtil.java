@@ -0,0 +1,147 @@
+/*
+ * Copyright 2013 Geoffroy Jamgotchian <geoffroy.jamgotchian at gmail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.jamgotchian.jabat.runtime.util;
+
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.util.Date;
+import java.util.Properties;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Access to the database of the JDBC job repository and checkpoint store.
+ *
+ * The database is configured by the jabat.jdbc.url, jabat.jdbc.user and
+ * jabat.jdbc.password keys of jabat.properties. The driver of the database
+ * has to be on the class path, it is loaded beforehand if the
+ * jabat.jdbc.driver key is set.
+ *
+ * @author Geoffroy Jamgotchian <geoffroy.jamgotchian at gmail.com>
+ */
+public class JdbcUtil {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(JdbcUtil.class);
+
+    public static final String URL_KEY = "jabat.jdbc.url";
+
+    public static final String USER_KEY = "jabat.jdbc.user";
+
+    public static final String PASSWORD_KEY = "jabat.jdbc.password";
+
+    public static final String DRIVER_KEY = "jabat.jdbc.driver";
+
+    private JdbcUtil() {
+    }
+
+    /**
+     * Open a connection to the database, not in auto-commit mode.
+     *
+     * @param configuration the container configuration
+     * @return the connection
+     */
+    public static Connection connect(Properties configuration) throws SQLException {
+        String url = configuration.getProperty(URL_KEY);
+        if (url == null) {
+            throw new JabatRuntimeException(URL_KEY + " is not configured");
+        }
+        String driver = configuration.getProperty(DRIVER_KEY);
+        if (driver != null) {
+            try {
+                Class.forName(driver);
+            } catch (ClassNotFoundException e) {
+                throw new JabatRuntimeException(e);
+            }
+        }
+        Connection connection = DriverManager.getConnection(url, configuration.getProperty(USER_KEY),
+                                                            configuration.getProperty(PASSWORD_KEY));
+        connection.setAutoCommit(false);
+        return connection;
+    }
+
+    private static boolean tableExists(Connection connection, String table) throws SQLException {
+        DatabaseMetaData metaData = connection.getMetaData();
+        // unquoted identifiers may be stored in upper or lower case
+        for (String name : new String[] {table, table.toUpperCase(), table.toLowerCase()}) {
+            ResultSet rs = metaData.getTables(null, null, name, null);
+            try {
+                if (rs.next()) {
+                    return true;
+                }
+            } finally {
+                rs.close();
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Create a table if it does not exist yet. The transaction is not
+     * committed.
+     *
+     * @param connection the connection
+     * @param table the name of the table
+     * @param statements the statements creating the table and its indexes
+     * @return true if the table has been created
+     */
+    public static boolean createTable(Connection connection, String table, String... statements) throws SQLException {
+        if (tableExists(connection, table)) {
+            return false;
+        }
+        LOGGER.info("Create table {}", table);
+        Statement stmt = connection.createStatement();
+        try {
+            for (String statement : statements) {
+                stmt.executeUpdate(statement);
+            }
+        } finally {
+            stmt.close();
+        }
+        return true;
+    }
+
+    public static Timestamp toTimestamp(Date date) {
+        return date != null ? new Timestamp(date.getTime()) : null;
+    }
+
+    public static Date toDate(Timestamp timestamp) {
+        return timestamp != null ? new Date(timestamp.getTime()) : null;
+    }
+
+    public static void rollback(Connection connection) {
+        try {
+            connection.rollback();
+        } catch (SQLException e) {
+            LOGGER.error(e.toString(), e);
+        }
+    }
+
+    public static void close(Connection connection) {
+        if (connection != null) {
+            try {
+                connection.close();
+            } catch (SQLException e) {
+                LOGGER.error(e.toString(), e);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,709 @@
+/*
+ * Copyright 2013 Geoffroy Jamgotchian <geoffroy.jamgotchian at gmail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.jamgotchian.jabat.runtime;
+
+import fr.jamgotchian.jabat.jobxml.model.ArtifactBuilder;
+import fr.jamgotchian.jabat.jobxml.model.BatchletStepBuilder;
+import fr.jamgotchian.jabat.jobxml.model.CheckpointPolicy;
+import fr.jamgotchian.jabat.jobxml.model.ChunkStepBuilder;
+import fr.jamgotchian.jabat.jobxml.model.Job;
+import fr.jamgotchian.jabat.jobxml.model.JobBuilder;
+import fr.jamgotchian.jabat.jobxml.model.PartitionPlanBuilder;
+import fr.jamgotchian.jabat.runtime.artifact.BatchXml;
+import fr.jamgotchian.jabat.runtime.checkpoint.CheckpointStore;
+import fr.jamgotchian.jabat.runtime.checkpoint.PositionCheckpoint;
+import fr.jamgotchian.jabat.runtime.checkpoint.impl.CompactCheckpointCodec;
+import fr.jamgotchian.jabat.runtime.checkpoint.impl.JournalCheckpointStore;
+import fr.jamgotchian.jabat.runtime.checkpoint.impl.MemoryCheckpointStore;
+import fr.jamgotchian.jabat.runtime.context.JabatStepContext;
+import fr.jamgotchian.jabat.runtime.context.ThreadContext;
+import fr.jamgotchian.jabat.runtime.repository.BatchStatus;
+import fr.jamgotchian.jabat.runtime.repository.JabatJobExecution;
+import fr.jamgotchian.jabat.runtime.repository.JabatJobInstance;
+import fr.jamgotchian.jabat.runtime.repository.JobRepository;
+import fr.jamgotchian.jabat.runtime.repository.impl.CompactJobRepository;
+import fr.jamgotchian.jabat.runtime.repository.impl.ConcurrentJobRepository;
+import fr.jamgotchian.jabat.runtime.task.impl.ForkJoinTaskManager;
+import java.io.Externalizable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.batch.api.AbstractBatchlet;
+import javax.batch.api.AbstractItemReader;
+import javax.batch.api.AbstractItemWriter;
+import javax.batch.api.ItemProcessor;
+import javax.batch.runtime.JobExecutionNotRunningException;
+import javax.batch.runtime.JobInstanceAlreadyCompleteException;
+import javax.batch.runtime.JobRestartException;
+import org.junit.After;
+import static org.junit.Assert.*;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ *
+ * @author Geoffroy Jamgotchian <geoffroy.jamgotchian at gmail.com>
+ */
+public class JobContainerTest {
+
+    private static final int ITEM_COUNT = 10;
+
+    /* position at which the reader fails, -1 for no failure */
+    private static volatile int failingPosition;
+
+    /* checkpoint the last reader has been opened with */
+    private static volatile PositionCheckpoint openCheckpoint;
+
+    /* step persistent user data the last reader has been opened with */
+    private static volatile PositionCheckpoint openUserData;
+
+    /* released to let the readers open, null to open immediately */
+    private static volatile CountDownLatch openLatch;
+
+    private static final AtomicInteger readerOpenCount = new AtomicInteger();
+
+    private static final AtomicInteger batchletRunCount = new AtomicInteger();
+
+    /* partition at which the batchlet fails, -1 for no failure */
+    private static volatile int failingPartition;
+
+    private static final Set<Integer> runPartitions = Collections.synchronizedSet(new TreeSet<Integer>());
+
+    /* position the reader blocks at, once, or -1 */
+    private static volatile int blockingPosition;
+
+    /* counted down when the reader or the batchlet is blocked */
+    private static volatile CountDownLatch blockedLatch;
+
+    /* awaited by the blocked reader or batchlet */
+    private static volatile CountDownLatch unblockLatch;
+
+    /* true if the batchlet does not unblock when asked to stop */
+    private static volatile boolean stopIgnored;
+
+    private static volatile boolean interrupted;
+
+    public static class Reader extends AbstractItemReader<Integer> {
+
+        private int position;
+
+        @Override
+        public void open(Externalizable checkpoint) throws Exception {
+            CountDownLatch latch = openLatch;
+            if (latch != null) {
+                latch.await();
+            }
+            readerOpenCount.incrementAndGet();
+            openCheckpoint = (PositionCheckpoint) checkpoint;
+            position = checkpoint != null ? (int) openCheckpoint.getPosition() : 0;
+
+            // the user data counts the executions of the step
+            JabatStepContext stepContext = ThreadContext.getInstance().getStepContext();
+            openUserData = (PositionCheckpoint) stepContext.getPersistentUserData();
+            long count = openUserData != null ? openUserData.getPosition() : 0;
+            stepContext.setPersistentUserData(new PositionCheckpoint(count + 1));
+        }
+
+        @Override
+        public Integer readItem() throws Exception {
+            if (position >= ITEM_COUNT) {
+                return null;
+            }
+            if (position == failingPosition) {
+                throw new IllegalStateException("Read failure at " + position);
+            }
+            if (position == blockingPosition) {
+                blockingPosition = -1;
+                block();
+            }
+            return position++;
+        }
+
+        @Override
+        public Externalizable checkpointInfo() throws Exception {
+            return new PositionCheckpoint(position);
+        }
+    }
+
+    public static class Processor implements ItemProcessor<Integer, Integer> {
+
+        @Override
+        public Integer processItem(Integer item) throws Exception {
+            return item;
+        }
+    }
+
+    public static class Writer extends AbstractItemWriter<Integer> {
+
+        @Override
+        public void writeItems(List<Integer> items) throws Exception {
+        }
+    }
+
+    public static class CountingBatchlet extends AbstractBatchlet {
+
+        @Override
+        public String process() throws Exception {
+            batchletRunCount.incrementAndGet();
+            return null;
+        }
+    }
+
+    public static class BlockingBatchlet extends AbstractBatchlet {
+
+        @Override
+        public String process() throws Exception {
+            block();
+            return null;
+        }
+
+        @Override
+        public void stop() throws Exception {
+            if (!stopIgnored) {
+                unblockLatch.countDown();
+            }
+        }
+    }
+
+    public static class PartitionBatchlet extends AbstractBatchlet {
+
+        @Override
+        public String process() throws Exception {
+            Properties properties = ThreadContext.getInstance().getStepContext().getProperties();
+            int partition = Integer.parseInt(properties.getProperty("partition"));
+            if (partition == failingPartition) {
+                throw new IllegalStateException("Failure of partition " + partition);
+            }
+            runPartitions.add(partition);
+            return null;
+        }
+    }
+
+    private static void block() throws InterruptedException {
+        blockedLatch.countDown();
+        try {
+            unblockLatch.await();
+        } catch (InterruptedException e) {
+            interrupted = true;
+            throw e;
+        }
+    }
+
+    /**
+     * A container whose jobs are built by the test instead of being read
+     * from META-INF.
+     */
+    private static class TestJobContainer extends JobContainer {
+
+        private final Map<String, Job> jobs = new HashMap<String, Job>();
+
+        private TestJobContainer(BatchXml batchXml, JobRepository repository, CheckpointStore checkpointStore,
+                                 Properties configuration) {
+            super(batchXml, null, new ForkJoinTaskManager(), repository,
+                  checkpointStore, new CompactCheckpointCodec(), configuration);
+        }
+
+        private void addJob(Job job) {
+            jobs.put(job.getId(), job);
+        }
+
+        @Override
+        Job getJob(String id) {
+            return jobs.get(id);
+        }
+    }
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private BatchXml batchXml;
+
+    private final List<JobContainer> containers = new ArrayList<JobContainer>();
+
+    public JobContainerTest() {
+    }
+
+    @Before
+    public void setUp() {
+        batchXml = new BatchXml();
+        batchXml.addArtifact("reader", Reader.class.getName());
+        batchXml.addArtifact("processor", Processor.class.getName());
+        batchXml.addArtifact("writer", Writer.class.getName());
+        batchXml.addArtifact("batchlet", CountingBatchlet.class.getName());
+        batchXml.addArtifact("partitionBatchlet", PartitionBatchlet.class.getName());
+        batchXml.addArtifact("blockingBatchlet", BlockingBatchlet.class.getName());
+        failingPosition = -1;
+        openCheckpoint = null;
+        openUserData = null;
+        openLatch = null;
+        readerOpenCount.set(0);
+        batchletRunCount.set(0);
+        failingPartition = -1;
+        runPartitions.clear();
+        blockingPosition = -1;
+        blockedLatch = new CountDownLatch(1);
+        unblockLatch = new CountDownLatch(1);
+        stopIgnored = false;
+        interrupted = false;
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        for (JobContainer container : containers) {
+            container.shutdown();
+        }
+    }
+
+    private TestJobContainer createContainer(JobRepository repository, CheckpointStore checkpointStore,
+                                             Properties configuration) throws Exception {
+        TestJobContainer container = new TestJobContainer(batchXml, repository, checkpointStore, configuration);
+        container.initialize();
+        containers.add(container);
+        return container;
+    }
+
+    private TestJobContainer createContainer(CheckpointStore checkpointStore, Properties configuration)
+            throws Exception {
+        return createContainer(new ConcurrentJobRepository(), checkpointStore, configuration);
+    }
+
+    private void shutdown(JobContainer container) throws Exception {
+        containers.remove(container);
+        container.shutdown();
+    }
+
+    private static ChunkStepBuilder createChunkStep() {
+        return new ChunkStepBuilder()
+                .setId("chunk")
+                .setReader(new ArtifactBuilder().setRef("reader").build())
+                .setProcessor(new ArtifactBuilder().setRef("processor").build())
+                .setWriter(new ArtifactBuilder().setRef("writer").build())
+                .setCheckpointPolicy(CheckpointPolicy.ITEM)
+                .setCommitInterval(5);
+    }
+
+    private static Job createChunkJob(String id) {
+        return new JobBuilder()
+                .setId(id)
+                .addStep(createChunkStep().build())
+                .build();
+    }
+
+    /**
+     * Wait for the last execution of a job instance to end.
+     */
+    private static JabatJobExecution waitForEnd(JobContainer container, long instanceId) throws InterruptedException {
+        JobRepository repository = container.getRepository();
+        while (true) {
+            long executionId = repository.getJobInstance(instanceId).getLastExecutionId();
+            JabatJobExecution execution = repository.getJobExecution(executionId);
+            if (execution.getEndTime() != null) {
+                return execution;
+            }
+            Thread.sleep(10);
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void testRestartDoesNotResumeFromAnotherContainerCheckpoint() throws Exception {
+        Properties configuration = new Properties();
+        configuration.setProperty(JournalCheckpointStore.DIRECTORY_KEY, folder.getRoot().getPath());
+
+        // a first container leaves a checkpoint in the journal, its job
+        // having failed after a commit
+        TestJobContainer container = createContainer(new JournalCheckpointStore(), configuration);
+        container.addJob(createChunkJob("first"));
+        failingPosition = 7;
+        long instanceId = container.start("first", new Properties());
+        JabatJobExecution execution = waitForEnd(container, instanceId);
+        assertEquals(BatchStatus.FAILED, execution.getStatusEnum());
+        long stepExecutionId = execution.getStepExecutionIds().get(0);
+        shutdown(container);
+
+        // a second container with a new in-memory repository, whose ids
+        // restart at 0, reuses the journal
+        container = createContainer(new JournalCheckpointStore(), configuration);
+        container.addJob(createChunkJob("second"));
+        failingPosition = 0;
+        instanceId = container.start("second", new Properties());
+        execution = waitForEnd(container, instanceId);
+        assertEquals(BatchStatus.FAILED, execution.getStatusEnum());
+        assertEquals(stepExecutionId, (long) execution.getStepExecutionIds().get(0));
+
+        // nothing has been committed by the second job, which is resumed
+        // from the beginning and not from the checkpoint of the first one
+        failingPosition = -1;
+        container.restart(instanceId, new Properties());
+        execution = waitForEnd(container, instanceId);
+        assertEquals(BatchStatus.COMPLETED, execution.getStatusEnum());
+        assertNull(openCheckpoint);
+    }
+
+    private static Job createBatchletJob(String id) {
+        return new JobBuilder()
+                .setId(id)
+                .addStep(new BatchletStepBuilder()
+                        .setId("batchlet")
+                        .setArtifact(new ArtifactBuilder().setRef("blockingBatchlet").build())
+                        .build())
+                .build();
+    }
+
+    private static Properties createStopTimeoutConfiguration(long stopTimeout) {
+        Properties configuration = new Properties();
+        configuration.setProperty(JobContainer.STOP_TIMEOUT_KEY, Long.toString(stopTimeout));
+        return configuration;
+    }
+
+    private static BatchStatus getStepStatus(JobContainer container, JabatJobExecution execution) {
+        long stepExecutionId = execution.getStepExecutionIds().get(0);
+        return container.getRepository().getStepExecution(stepExecutionId).getStatusEnum();
+    }
+
+    @Test(timeout = 10000)
+    public void testStopBatchlet() throws Exception {
+        TestJobContainer container = createContainer(new MemoryCheckpointStore(), new Properties());
+        container.addJob(createBatchletJob("job"));
+        long instanceId = container.start("job", new Properties());
+        blockedLatch.await();
+        container.stop(instanceId);
+        JabatJobExecution execution = waitForEnd(container, instanceId);
+        // stopped through the stop method of the batchlet
+        assertEquals(BatchStatus.STOPPED, execution.getStatusEnum());
+        assertEquals(BatchStatus.STOPPED, getStepStatus(container, execution));
+        assertFalse(interrupted);
+    }
+
+    @Test(timeout = 10000)
+    public void testStopTimeoutInterruptsBatchlet() throws Exception {
+        TestJobContainer container = createContainer(new MemoryCheckpointStore(), createStopTimeoutConfiguration(200));
+        container.addJob(createBatchletJob("job"));
+        stopIgnored = true;
+        long instanceId = container.start("job", new Properties());
+        blockedLatch.await();
+        container.stop(instanceId);
+        // the execution is stopping until the batchlet is interrupted
+        long executionId = container.getRepository().getJobInstance(instanceId).getLastExecutionId();
+        assertEquals(BatchStatus.STOPPING, container.getRepository().getJobExecution(executionId).getStatusEnum());
+        JabatJobExecution execution = waitForEnd(container, instanceId);
+        assertTrue(interrupted);
+        // interrupted after the stop timeout, the step is stopped, not failed
+        assertEquals(BatchStatus.STOPPED, execution.getStatusEnum());
+        assertEquals(BatchStatus.STOPPED, getStepStatus(container, execution));
+        assertTrue(execution.getStopLatency() >= 200);
+    }
+
+    @Test(timeout = 10000)
+    public void testStopChunk() throws Exception {
+        TestJobContainer container = createContainer(new MemoryCheckpointStore(), new Properties());
+        container.addJob(createChunkJob("job"));
+        blockingPosition = 7;
+        long instanceId = container.start("job", new Properties());
+        blockedLatch.await();
+        container.stop(instanceId);
+        unblockLatch.countDown();
+        JabatJobExecution execution = waitForEnd(container, instanceId);
+        assertEquals(BatchStatus.STOPPED, execution.getStatusEnum());
+        assertEquals(BatchStatus.STOPPED, getStepStatus(container, execution));
+        assertFalse(interrupted);
+
+        // the items read before the stop have been committed with the
+        // checkpoint
+        container.restart(instanceId, new Properties());
+        assertEquals(BatchStatus.COMPLETED, waitForEnd(container, instanceId).getStatusEnum());
+        assertEquals(8, openCheckpoint.getPosition());
+    }
+
+    @Test(timeout = 10000)
+    public void testStopTimeoutInterruptsChunk() throws Exception {
+        TestJobContainer container = createContainer(new MemoryCheckpointStore(), createStopTimeoutConfiguration(200));
+        container.addJob(createChunkJob("job"));
+        blockingPosition = 7;
+        long instanceId = container.start("job", new Properties());
+        blockedLatch.await();
+        container.stop(instanceId);
+        JabatJobExecution execution = waitForEnd(container, instanceId);
+        assertTrue(interrupted);
+        assertEquals(BatchStatus.STOPPED, execution.getStatusEnum());
+        assertEquals(BatchStatus.STOPPED, getStepStatus(container, execution));
+        assertTrue(execution.getStopLatency() >= 200);
+
+        // the interrupted chunk has been rolled back, the step is resumed
+        // from the last committed checkpoint
+        container.restart(instanceId, new Properties());
+        assertEquals(BatchStatus.COMPLETED, waitForEnd(container, instanceId).getStatusEnum());
+        assertEquals(5, openCheckpoint.getPosition());
+    }
+
+    @Test(timeout = 10000)
+    public void testStopNotRunning() throws Exception {
+        TestJobContainer container = createContainer(new MemoryCheckpointStore(), new Properties());
+        container.addJob(createChunkJob("job"));
+        long instanceId = container.start("job", new Properties());
+        assertEquals(BatchStatus.COMPLETED, waitForEnd(container, instanceId).getStatusEnum());
+        try {
+            container.stop(instanceId);
+            fail();
+        } catch (JobExecutionNotRunningException e) {
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void testRestartResumesFromLastCheckpoint() throws Exception {
+        TestJobContainer container = createContainer(new MemoryCheckpointStore(), new Properties());
+        container.addJob(createChunkJob("job"));
+        failingPosition = 7;
+        long instanceId = container.start("job", new Properties());
+        assertEquals(BatchStatus.FAILED, waitForEnd(container, instanceId).getStatusEnum());
+
+        failingPosition = -1;
+        container.restart(instanceId, new Properties());
+        assertEquals(BatchStatus.COMPLETED, waitForEnd(container, instanceId).getStatusEnum());
+        assertEquals(5, openCheckpoint.getPosition());
+    }
+
+    @Test(timeout = 10000)
+    public void testRestartSkipsCompletedSteps() throws Exception {
+        TestJobContainer container = createContainer(new MemoryCheckpointStore(), new Properties());
+        container.addJob(new JobBuilder()
+                .setId("job")
+                .addStep(new BatchletStepBuilder()
+                        .setId("batchlet")
+                        .setNext("chunk")
+                        .setArtifact(new ArtifactBuilder().setRef("batchlet").build())
+                        .build())
+                .addStep(createChunkStep().build())
+                .build());
+        failingPosition = 7;
+        long instanceId = container.start("job", new Properties());
+        assertEquals(BatchStatus.FAILED, waitForEnd(container, instanceId).getStatusEnum());
+        assertEquals(1, batchletRunCount.get());
+
+        failingPosition = -1;
+        container.restart(instanceId, new Properties());
+        JabatJobExecution execution = waitForEnd(container, instanceId);
+        assertEquals(BatchStatus.COMPLETED, execution.getStatusEnum());
+        // only the chunk step has been run again
+        assertEquals(1, batchletRunCount.get());
+        assertEquals(1, execution.getStepExecutionIds().size());
+        assertEquals(5, openCheckpoint.getPosition());
+
+        try {
+            container.restart(instanceId, new Properties());
+            fail();
+        } catch (JobInstanceAlreadyCompleteException e) {
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void testStartLimit() throws Exception {
+        TestJobContainer container = createContainer(new MemoryCheckpointStore(), new Properties());
+        container.addJob(new JobBuilder()
+                .setId("job")
+                .addStep(createChunkStep().setStartLimit(2).build())
+                .build());
+        failingPosition = 0;
+        long instanceId = container.start("job", new Properties());
+        assertEquals(BatchStatus.FAILED, waitForEnd(container, instanceId).getStatusEnum());
+        container.restart(instanceId, new Properties());
+        assertEquals(BatchStatus.FAILED, waitForEnd(container, instanceId).getStatusEnum());
+        assertEquals(2, readerOpenCount.get());
+
+        // the step has been started as many times as its limit
+        failingPosition = -1;
+        container.restart(instanceId, new Properties());
+        JabatJobExecution execution = waitForEnd(container, instanceId);
+        assertEquals(BatchStatus.FAILED, execution.getStatusEnum());
+        assertEquals(2, readerOpenCount.get());
+        assertTrue(execution.getStepExecutionIds().isEmpty());
+    }
+
+    @Test(timeout = 10000)
+    public void testRestartRunsOnlyIncompletePartitions() throws Exception {
+        PartitionPlanBuilder plan = new PartitionPlanBuilder()
+                .setPartitionCount(4)
+                .setThreadCount(1);
+        for (int i = 0; i < 4; i++) {
+            Properties properties = new Properties();
+            properties.setProperty("partition", Integer.toString(i));
+            plan.addProperties(i, properties);
+        }
+        TestJobContainer container = createContainer(new MemoryCheckpointStore(), new Properties());
+        container.addJob(new JobBuilder()
+                .setId("job")
+                .addStep(new BatchletStepBuilder()
+                        .setId("partitioned")
+                        .setArtifact(new ArtifactBuilder().setRef("partitionBatchlet").build())
+                        .setPartitionPlan(plan.build())
+                        .build())
+                .build());
+        // partitions are run one after the other, the last one fails
+        failingPartition = 3;
+        long instanceId = container.start("job", new Properties());
+        JabatJobExecution execution = waitForEnd(container, instanceId);
+        assertEquals(BatchStatus.FAILED, execution.getStatusEnum());
+        assertEquals(new TreeSet<Integer>(Arrays.asList(0, 1, 2)), runPartitions);
+        long stepExecutionId = execution.getStepExecutionIds().get(0);
+        assertEquals(runPartitions, container.getRepository().getStepExecution(stepExecutionId).getCompletedPartitions());
+
+        failingPartition = -1;
+        runPartitions.clear();
+        container.restart(instanceId, new Properties());
+        execution = waitForEnd(container, instanceId);
+        assertEquals(BatchStatus.COMPLETED, execution.getStatusEnum());
+        assertEquals(Collections.singleton(3), runPartitions);
+        stepExecutionId = execution.getStepExecutionIds().get(0);
+        assertEquals(4, container.getRepository().getStepExecution(stepExecutionId).getCompletedPartitions().size());
+    }
+
+    @Test(timeout = 10000)
+    public void testRestartRestoresPersistentUserData() throws Exception {
+        TestJobContainer container = createContainer(new MemoryCheckpointStore(), new Properties());
+        container.addJob(createChunkJob("job"));
+        failingPosition = 7;
+        long instanceId = container.start("job", new Properties());
+        assertEquals(BatchStatus.FAILED, waitForEnd(container, instanceId).getStatusEnum());
+        assertNull(openUserData);
+
+        container.restart(instanceId, new Properties());
+        assertEquals(BatchStatus.FAILED, waitForEnd(container, instanceId).getStatusEnum());
+        assertEquals(1, openUserData.getPosition());
+
+        failingPosition = -1;
+        container.restart(instanceId, new Properties());
+        assertEquals(BatchStatus.COMPLETED, waitForEnd(container, instanceId).getStatusEnum());
+        assertEquals(2, openUserData.getPosition());
+    }
+
+    @Test(timeout = 10000)
+    public void testConcurrentRestarts() throws Exception {
+        // a slow creation of the execution lets the other restarts check
+        // the last execution in the meantime
+        JobRepository repository = new ConcurrentJobRepository() {
+
+            @Override
+            public JabatJobExecution createJobExecution(JabatJobInstance jobInstance, Properties jobParameters) {
+                try {
+                    Thread.sleep(50);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return super.createJobExecution(jobInstance, jobParameters);
+            }
+        };
+        final TestJobContainer container = createContainer(repository, new MemoryCheckpointStore(), new Properties());
+        container.addJob(createChunkJob("job"));
+        failingPosition = 0;
+        final long instanceId = container.start("job", new Properties());
+        assertEquals(BatchStatus.FAILED, waitForEnd(container, instanceId).getStatusEnum());
+
+        // the restarted execution does not end before every restart has
+        // been tried
+        openLatch = new CountDownLatch(1);
+        final CountDownLatch startSignal = new CountDownLatch(1);
+        List<Future<Boolean>> futures = new ArrayList<Future<Boolean>>();
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            for (int i = 0; i < 8; i++) {
+                futures.add(executor.submit(new Callable<Boolean>() {
+
+                    @Override
+                    public Boolean call() throws Exception {
+                        startSignal.await();
+                        try {
+                            container.restart(instanceId, new Properties());
+                            return true;
+                        } catch (JobRestartException e) {
+                            return false;
+                        }
+                    }
+                }));
+            }
+            startSignal.countDown();
+            int restarts = 0;
+            for (Future<Boolean> future : futures) {
+                if (future.get()) {
+                    restarts++;
+                }
+            }
+            assertEquals(1, restarts);
+        } finally {
+            executor.shutdown();
+            openLatch.countDown();
+        }
+        waitForEnd(container, instanceId);
+        assertEquals(2, container.getJobExecutions(instanceId).size());
+    }
+
+    @Test(timeout = 10000)
+    public void testEvictionRemovesCheckpoints() throws Exception {
+        Properties configuration = new Properties();
+        configuration.setProperty(CompactJobRepository.MAX_INSTANCES_PER_JOB_KEY, "1");
+        CheckpointStore checkpointStore = new MemoryCheckpointStore();
+        TestJobContainer container = createContainer(new CompactJobRepository(), checkpointStore, configuration);
+        container.addJob(createChunkJob("job"));
+        failingPosition = 7;
+        long instanceId1 = container.start("job", new Properties());
+        JabatJobExecution execution = waitForEnd(container, instanceId1);
+        assertEquals(BatchStatus.FAILED, execution.getStatusEnum());
+        long stepExecutionId = execution.getStepExecutionIds().get(0);
+        // kept for a restart
+        assertNotNull(checkpointStore.load(stepExecutionId));
+
+        // the end of a second instance evicts the first one
+        failingPosition = -1;
+        long instanceId2 = container.start("job", new Properties());
+        waitForEnd(container, instanceId2);
+        while (checkpointStore.load(stepExecutionId) != null) {
+            Thread.sleep(10);
+        }
+        assertNull(container.getRepository().getJobInstance(instanceId1));
+        try {
+            container.restart(instanceId1, new Properties());
+            fail();
+        } catch (JobRestartException e) {
+        }
+    }
+
+    @Test
+    public void testRestartWithoutExecution() throws Exception {
+        TestJobContainer container = createContainer(new MemoryCheckpointStore(), new Properties());
+        Job job = createChunkJob("job");
+        container.addJob(job);
+        // an instance whose first execution is not created yet
+        long instanceId = container.getRepository().createJobInstance(job).getInstanceId();
+        try {
+            container.restart(instanceId, new Properties());
+            fail();
+        } catch (JobRestartException e) {
+        }
+    }
+
+}
@@ -0,0 +1,253 @@
+/*
+ * Copyright 2013 Geoffroy Jamgotchian <geoffroy.jamgotchian at gmail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.jamgotchian.jabat.runtime.artifact;
+
+import fr.jamgotchian.jabat.runtime.util.JabatRuntimeException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import javax.batch.api.AbstractItemReadListener;
+import javax.batch.api.AbstractItemReader;
+import javax.batch.api.AbstractItemWriter;
+import javax.batch.api.Batchlet;
+import javax.batch.api.ChunkListener;
+import javax.batch.api.ItemReadListener;
+import javax.batch.api.ItemReader;
+import javax.batch.api.ItemWriter;
+import javax.batch.api.StepListener;
+import org.junit.After;
+import static org.junit.Assert.*;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ *
+ * @author Geoffroy Jamgotchian <geoffroy.jamgotchian at gmail.com>
+ */
+public class ArtifactContainerTest {
+
+    public static class Reader extends AbstractItemReader<Object> {
+
+        @Override
+        public Object readItem() throws Exception {
+            return null;
+        }
+    }
+
+    /* a reader which is also a read listener */
+    public static class ListeningReader extends Reader implements ItemReadListener<Object> {
+
+        @Override
+        public void beforeRead() throws Exception {
+        }
+
+        @Override
+        public void afterRead(Object item) throws Exception {
+        }
+
+        @Override
+        public void onReadError(Exception ex) throws Exception {
+        }
+    }
+
+    public static class Writer extends AbstractItemWriter<Object> {
+
+        @Override
+        public void writeItems(List<Object> items) throws Exception {
+        }
+    }
+
+    public static class ReadListener extends AbstractItemReadListener<Object> {
+    }
+
+    public static class TestBatchlet implements Batchlet {
+
+        @Override
+        public String process() throws Exception {
+            return null;
+        }
+
+        @Override
+        public void stop() throws Exception {
+        }
+    }
+
+    private BatchXml batchXml;
+
+    private ArtifactContainer container;
+
+    public ArtifactContainerTest() {
+    }
+
+    @Before
+    public void setUp() {
+        batchXml = new BatchXml();
+        batchXml.addArtifact("reader", Reader.class.getName());
+        batchXml.addArtifact("listeningReader", ListeningReader.class.getName());
+        batchXml.addArtifact("writer", Writer.class.getName());
+        batchXml.addArtifact("readListener", ReadListener.class.getName());
+        batchXml.addArtifact("batchlet", TestBatchlet.class.getName());
+        container = new ArtifactContainer(batchXml, null, Collections.synchronizedSet(new HashSet<Batchlet>()));
+    }
+
+    @After
+    public void tearDown() {
+        container.release();
+    }
+
+    @Test
+    public void testGetByType() {
+        ItemReader reader = container.create("reader", ItemReader.class);
+        ItemReader listeningReader = container.create("listeningReader", ItemReader.class);
+        Object readListener = container.createStepListener("readListener");
+        ItemWriter writer = container.create("writer", ItemWriter.class);
+
+        // in creation order
+        assertEquals(Arrays.asList(reader, listeningReader), container.get(ItemReader.class));
+        assertEquals(Arrays.asList(writer), container.get(ItemWriter.class));
+        // an artifact is indexed by all the types it implements
+        assertEquals(Arrays.asList(listeningReader, readListener), container.get(ItemReadListener.class));
+        // no artifact of a type
+        assertTrue(container.get(StepListener.class).isEmpty());
+        assertTrue(container.get(ChunkListener.class).isEmpty());
+    }
+
+    @Test
+    public void testSnapshotIsUpdated() {
+        List<ItemReader> readers = container.get(ItemReader.class);
+        assertTrue(readers.isEmpty());
+        ItemReader reader1 = container.create("reader", ItemReader.class);
+        List<ItemReader> readers1 = container.get(ItemReader.class);
+        assertEquals(Arrays.asList(reader1), readers1);
+        // unchanged until an artifact of the type is created
+        container.create("writer", ItemWriter.class);
+        assertEquals(readers1, container.get(ItemReader.class));
+        ItemReader reader2 = container.create("reader", ItemReader.class);
+        assertEquals(Arrays.asList(reader1, reader2), container.get(ItemReader.class));
+        // a previous list is not modified
+        assertEquals(Arrays.asList(reader1), readers1);
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void testUnmodifiableList() {
+        container.create("reader", ItemReader.class);
+        container.get(ItemReader.class).clear();
+    }
+
+    @Test
+    public void testBatchletIsIndexedUnwrapped() {
+        Batchlet batchlet = container.create("batchlet", Batchlet.class);
+        // the created batchlet is monitored, the indexed one is the artifact
+        assertFalse(batchlet instanceof TestBatchlet);
+        List<Batchlet> batchlets = container.get(Batchlet.class);
+        assertEquals(1, batchlets.size());
+        assertTrue(batchlets.get(0) instanceof TestBatchlet);
+    }
+
+    @Test
+    public void testRelease() {
+        container.create("reader", ItemReader.class);
+        container.createStepListener("readListener");
+        container.release();
+        assertTrue(container.get(ItemReader.class).isEmpty());
+        assertTrue(container.get(ItemReadListener.class).isEmpty());
+    }
+
+    @Test
+    public void testConcurrentCreation() throws Exception {
+        final int threadCount = 8;
+        final int artifactCount = 100;
+        final CountDownLatch startLatch = new CountDownLatch(1);
+        final List<Object> created = Collections.synchronizedList(new ArrayList<Object>());
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < threadCount; i++) {
+            Thread thread = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        startLatch.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (int j = 0; j < artifactCount; j++) {
+                        created.add(container.create("listeningReader", ItemReader.class));
+                        // lookups concurrent with creations
+                        container.get(ItemReadListener.class);
+                    }
+                }
+            };
+            thread.start();
+            threads.add(thread);
+        }
+        startLatch.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(threadCount * artifactCount, created.size());
+        Set<Object> readers = new HashSet<Object>(container.get(ItemReader.class));
+        assertEquals(new HashSet<Object>(created), readers);
+        assertEquals(readers, new HashSet<Object>(container.get(ItemReadListener.class)));
+    }
+
+    @Test
+    public void testFactoryArtifactsAreIndexed() {
+        final Writer managedWriter = new Writer();
+        final List<Object> destroyed = new ArrayList<Object>();
+        ArtifactContainer factoryContainer = new ArtifactContainer(batchXml, new ArtifactFactory() {
+
+            @Override
+            public Object create(String name) {
+                return "managedWriter".equals(name) ? managedWriter : null;
+            }
+
+            @Override
+            public void destroy(Object instance) {
+                destroyed.add(instance);
+            }
+        }, null);
+        ItemWriter writer = factoryContainer.create("writer", ItemWriter.class);
+        assertSame(managedWriter, factoryContainer.create("managedWriter", ItemWriter.class));
+        assertEquals(Arrays.asList(writer, managedWriter), factoryContainer.get(ItemWriter.class));
+        factoryContainer.release();
+        // only the artifacts of the factory are destroyed
+        assertEquals(Arrays.<Object>asList(managedWriter), destroyed);
+    }
+
+    @Test(expected = JabatRuntimeException.class)
+    public void testGetNotAnArtifactType() {
+        container.get(String.class);
+    }
+
+    @Test(expected = JabatRuntimeException.class)
+    public void testCreateWrongType() {
+        container.create("reader", ItemWriter.class);
+    }
+
+    @Test(expected = JabatRuntimeException.class)
+    public void testCreateNotAStepListener() {
+        container.createStepListener("reader");
+    }
+
+    @Test(expected = JabatRuntimeException.class)
+    public void testCreateUnknownArtifact() {
+        container.create("unknown", ItemReader.class);
+    }
+
+}
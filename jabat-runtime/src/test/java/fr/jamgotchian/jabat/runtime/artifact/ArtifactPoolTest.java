@@ -0,0 +1,208 @@
+/*
+ * Copyright 2013 Geoffroy Jamgotchian <geoffroy.jamgotchian at gmail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.jamgotchian.jabat.runtime.artifact;
+
+import fr.jamgotchian.jabat.runtime.util.JabatRuntimeException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+import javax.batch.api.AbstractItemWriter;
+import javax.batch.api.ItemWriter;
+import org.junit.After;
+import static org.junit.Assert.*;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ *
+ * @author Geoffroy Jamgotchian <geoffroy.jamgotchian at gmail.com>
+ */
+public class ArtifactPoolTest {
+
+    @Reusable
+    public static class ReusableWriter extends AbstractItemWriter<Object> implements Resettable {
+
+        private int writeCount = 0;
+
+        private int resetCount = 0;
+
+        @Override
+        public void writeItems(List<Object> items) throws Exception {
+            writeCount += items.size();
+        }
+
+        @Override
+        public void reset() throws Exception {
+            writeCount = 0;
+            resetCount++;
+        }
+    }
+
+    @Reusable
+    public static class FailingResetWriter extends ReusableWriter {
+
+        @Override
+        public void reset() throws Exception {
+            throw new IllegalStateException("Cannot reset");
+        }
+    }
+
+    /* reusable, but with no state to reset */
+    @Reusable
+    public static class StatelessWriter extends AbstractItemWriter<Object> {
+
+        @Override
+        public void writeItems(List<Object> items) throws Exception {
+        }
+    }
+
+    public static class NotReusableWriter extends AbstractItemWriter<Object> {
+
+        @Override
+        public void writeItems(List<Object> items) throws Exception {
+        }
+    }
+
+    private ArtifactPool pool;
+
+    private BatchXml batchXml;
+
+    public ArtifactPoolTest() {
+    }
+
+    @Before
+    public void setUp() {
+        pool = new ArtifactPool();
+        batchXml = new BatchXml();
+        batchXml.addArtifact("reusable", ReusableWriter.class.getName());
+        batchXml.addArtifact("notReusable", NotReusableWriter.class.getName());
+    }
+
+    @After
+    public void tearDown() {
+        pool.clear();
+    }
+
+    @Test
+    public void testIsReusable() {
+        assertTrue(ArtifactPool.isReusable(ReusableWriter.class));
+        assertTrue(ArtifactPool.isReusable(StatelessWriter.class));
+        assertFalse(ArtifactPool.isReusable(NotReusableWriter.class));
+    }
+
+    @Test
+    public void testAcquireAndRelease() {
+        assertNull(pool.getStatistics(ReusableWriter.class));
+        assertNull(pool.acquire(ReusableWriter.class));
+        ReusableWriter writer = new ReusableWriter();
+        writer.writeCount = 3;
+        pool.release(writer);
+        // reset when given back
+        assertEquals(0, writer.writeCount);
+        assertEquals(1, writer.resetCount);
+        assertSame(writer, pool.acquire(ReusableWriter.class));
+        assertNull(pool.acquire(ReusableWriter.class));
+
+        ArtifactPool.Statistics statistics = pool.getStatistics(ReusableWriter.class);
+        assertEquals(ReusableWriter.class.getName(), statistics.getClassName());
+        assertEquals(0, statistics.getIdleCount());
+        assertEquals(1, statistics.getHitCount());
+        assertEquals(2, statistics.getMissCount());
+        assertEquals(0, statistics.getDropCount());
+        assertEquals(1. / 3, statistics.getHitRate(), 0.0001);
+    }
+
+    @Test
+    public void testReleaseWithoutReset() {
+        StatelessWriter writer = new StatelessWriter();
+        pool.release(writer);
+        assertSame(writer, pool.acquire(StatelessWriter.class));
+    }
+
+    @Test
+    public void testFailedResetIsDropped() {
+        pool.release(new FailingResetWriter());
+        assertNull(pool.acquire(FailingResetWriter.class));
+        ArtifactPool.Statistics statistics = pool.getStatistics(FailingResetWriter.class);
+        assertEquals(1, statistics.getDropCount());
+        assertEquals(0, statistics.getIdleCount());
+    }
+
+    @Test
+    public void testMaxIdle() {
+        Properties configuration = new Properties();
+        configuration.setProperty(ArtifactPool.MAX_IDLE_KEY, "2");
+        pool.initialize(configuration);
+        for (int i = 0; i < 3; i++) {
+            pool.release(new ReusableWriter());
+        }
+        ArtifactPool.Statistics statistics = pool.getStatistics(ReusableWriter.class);
+        assertEquals(2, statistics.getIdleCount());
+        assertEquals(1, statistics.getDropCount());
+        // pools are per class
+        pool.release(new StatelessWriter());
+        assertEquals(1, pool.getStatistics(StatelessWriter.class).getIdleCount());
+        assertEquals(2, pool.getStatistics().size());
+        pool.clear();
+        assertEquals(0, pool.getStatistics(ReusableWriter.class).getIdleCount());
+        assertNull(pool.acquire(ReusableWriter.class));
+    }
+
+    @Test(expected = JabatRuntimeException.class)
+    public void testNegativeMaxIdle() {
+        Properties configuration = new Properties();
+        configuration.setProperty(ArtifactPool.MAX_IDLE_KEY, "-1");
+        pool.initialize(configuration);
+    }
+
+    @Test
+    public void testReuseAcrossContainers() throws Exception {
+        ArtifactContainer container1 = new ArtifactContainer(batchXml, null, null, pool);
+        ItemWriter writer1 = container1.create("reusable", ItemWriter.class);
+        ItemWriter other1 = container1.create("notReusable", ItemWriter.class);
+        // never shared by two containers at the same time
+        ArtifactContainer container2 = new ArtifactContainer(batchXml, null, null, pool);
+        ItemWriter writer2 = container2.create("reusable", ItemWriter.class);
+        assertNotSame(writer1, writer2);
+        writer1.writeItems(Arrays.<Object>asList(1, 2));
+        container1.release();
+        assertEquals(0, ((ReusableWriter) writer1).writeCount);
+        assertEquals(1, ((ReusableWriter) writer1).resetCount);
+        // the released instance is reused, the not reusable one is not pooled
+        ArtifactContainer container3 = new ArtifactContainer(batchXml, null, null, pool);
+        assertSame(writer1, container3.create("reusable", ItemWriter.class));
+        assertNotSame(other1, container3.create("notReusable", ItemWriter.class));
+        assertNull(pool.getStatistics(NotReusableWriter.class));
+        container2.release();
+        container3.release();
+        ArtifactPool.Statistics statistics = pool.getStatistics(ReusableWriter.class);
+        assertEquals(2, statistics.getIdleCount());
+        assertEquals(1, statistics.getHitCount());
+        assertEquals(2, statistics.getMissCount());
+    }
+
+    @Test
+    public void testNoReuseWithoutPool() {
+        ArtifactContainer container1 = new ArtifactContainer(batchXml, null, null);
+        ItemWriter writer1 = container1.create("reusable", ItemWriter.class);
+        container1.release();
+        ArtifactContainer container2 = new ArtifactContainer(batchXml, null, null);
+        assertNotSame(writer1, container2.create("reusable", ItemWriter.class));
+        assertEquals(0, ((ReusableWriter) writer1).resetCount);
+        container2.release();
+    }
+
+}
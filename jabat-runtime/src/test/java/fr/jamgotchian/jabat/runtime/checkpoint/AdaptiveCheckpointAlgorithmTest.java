@@ -0,0 +1,143 @@
+/*
+ * Copyright 2013 Geoffroy Jamgotchian <geoffroy.jamgotchian at gmail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.jamgotchian.jabat.runtime.checkpoint;
+
+import org.junit.After;
+import static org.junit.Assert.*;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ *
+ * @author Geoffroy Jamgotchian <geoffroy.jamgotchian at gmail.com>
+ */
+public class AdaptiveCheckpointAlgorithmTest {
+
+    public AdaptiveCheckpointAlgorithmTest() {
+    }
+
+    @Before
+    public void setUp() {
+    }
+
+    @After
+    public void tearDown() {
+    }
+
+    /**
+     * Read items until the algorithm is ready to checkpoint, each item lasting
+     * at least itemDuration ms, then commit.
+     *
+     * @return the number of items of the chunk
+     */
+    private static int commitChunk(AdaptiveCheckpointAlgorithm algorithm, Object item, long itemDuration)
+            throws Exception {
+        algorithm.beginCheckpoint();
+        int count = 0;
+        boolean ready;
+        do {
+            if (itemDuration > 0) {
+                Thread.sleep(itemDuration);
+            }
+            algorithm.itemRead(item);
+            count++;
+            ready = algorithm.isReadyToCheckpoint();
+        } while (!ready);
+        algorithm.endCheckpoint();
+        algorithm.committed();
+        return count;
+    }
+
+    @Test
+    public void testInitialChunkSize() throws Exception {
+        assertEquals(10, new AdaptiveCheckpointAlgorithm(100, 1000, 0).getChunkSize());
+        assertEquals(3, new AdaptiveCheckpointAlgorithm(3, 1000, 0).getChunkSize());
+    }
+
+    @Test
+    public void testGrowthIsAtMostDoubled() throws Exception {
+        // items are almost free compared to the target latency
+        AdaptiveCheckpointAlgorithm algorithm = new AdaptiveCheckpointAlgorithm(100, 60000, 0);
+        assertEquals(10, commitChunk(algorithm, "item", 0));
+        assertEquals(20, algorithm.getChunkSize());
+        assertEquals(20, commitChunk(algorithm, "item", 0));
+        assertEquals(40, algorithm.getChunkSize());
+        assertEquals(40, commitChunk(algorithm, "item", 0));
+        assertEquals(80, algorithm.getChunkSize());
+        // capped by the commit interval
+        assertEquals(80, commitChunk(algorithm, "item", 0));
+        assertEquals(100, algorithm.getChunkSize());
+        assertEquals(100, commitChunk(algorithm, "item", 0));
+        assertEquals(100, algorithm.getChunkSize());
+    }
+
+    @Test
+    public void testLearnFromCommitDuration() throws Exception {
+        // items lasting at least 20 ms, so that at most 2 items fit in 50 ms
+        AdaptiveCheckpointAlgorithm algorithm = new AdaptiveCheckpointAlgorithm(1000, 50, 0);
+        int count = commitChunk(algorithm, "item", 20);
+        // checkpointed on latency before reaching the initial chunk size
+        assertTrue(count < 10);
+        int chunkSize = algorithm.getChunkSize();
+        assertTrue(chunkSize >= 1 && chunkSize <= 2);
+        assertTrue(commitChunk(algorithm, "item", 20) <= 3);
+        chunkSize = algorithm.getChunkSize();
+        assertTrue(chunkSize >= 1 && chunkSize <= 2);
+    }
+
+    @Test
+    public void testRollbackHalvesChunkSize() throws Exception {
+        AdaptiveCheckpointAlgorithm algorithm = new AdaptiveCheckpointAlgorithm(100, 60000, 0);
+        algorithm.beginCheckpoint();
+        algorithm.rolledBack();
+        assertEquals(5, algorithm.getChunkSize());
+        algorithm.rolledBack();
+        assertEquals(2, algorithm.getChunkSize());
+        algorithm.rolledBack();
+        assertEquals(1, algorithm.getChunkSize());
+        algorithm.rolledBack();
+        assertEquals(1, algorithm.getChunkSize());
+        // growth restarts from the halved size
+        assertEquals(1, commitChunk(algorithm, "item", 0));
+        assertEquals(2, algorithm.getChunkSize());
+    }
+
+    @Test
+    public void testByteLimit() throws Exception {
+        AdaptiveCheckpointAlgorithm algorithm = new AdaptiveCheckpointAlgorithm(100, 60000, 10);
+        assertEquals(3, commitChunk(algorithm, "abcd", 0));
+        assertEquals(2, commitChunk(algorithm, new byte[6], 0));
+        // items of unknown volume are not limited
+        assertEquals(algorithm.getChunkSize(), commitChunk(algorithm, new Object(), 0));
+    }
+
+    @Test
+    public void testCheckpointTimeout() throws Exception {
+        AdaptiveCheckpointAlgorithm algorithm = new AdaptiveCheckpointAlgorithm(100, 2500, 0);
+        // raised to the target latency rounded up
+        assertEquals(3, algorithm.checkpointTimeout(1));
+        assertEquals(10, algorithm.checkpointTimeout(10));
+        // no timeout is kept
+        assertEquals(0, algorithm.checkpointTimeout(0));
+        assertEquals(1, new AdaptiveCheckpointAlgorithm(100, 1, 0).checkpointTimeout(1));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidCommitLatency() throws Exception {
+        new AdaptiveCheckpointAlgorithm(100, 0, 0);
+    }
+
+}
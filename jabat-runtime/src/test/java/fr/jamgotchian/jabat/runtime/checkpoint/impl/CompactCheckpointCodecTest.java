@@ -0,0 +1,203 @@
+/*
+ * Copyright 2013 Geoffroy Jamgotchian <geoffroy.jamgotchian at gmail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.jamgotchian.jabat.runtime.checkpoint.impl;
+
+import fr.jamgotchian.jabat.runtime.checkpoint.PositionCheckpoint;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.InvalidClassException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.io.ObjectOutputStream;
+import java.io.StreamCorruptedException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import static org.junit.Assert.*;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ *
+ * @author Geoffroy Jamgotchian <geoffroy.jamgotchian at gmail.com>
+ */
+public class CompactCheckpointCodecTest {
+
+    /**
+     * Checkpoint data writing only primitive values.
+     */
+    public static class FileCheckpoint implements Externalizable {
+
+        private String fileName;
+
+        private long offset;
+
+        public FileCheckpoint() {
+        }
+
+        public FileCheckpoint(String fileName, long offset) {
+            this.fileName = fileName;
+            this.offset = offset;
+        }
+
+        @Override
+        public void writeExternal(ObjectOutput out) throws IOException {
+            out.writeUTF(fileName);
+            out.writeLong(offset);
+        }
+
+        @Override
+        public void readExternal(ObjectInput in) throws IOException, ClassNotFoundException {
+            fileName = in.readUTF();
+            offset = in.readLong();
+        }
+    }
+
+    /**
+     * Checkpoint data writing a nested object.
+     */
+    public static class ListCheckpoint implements Externalizable {
+
+        private List<String> keys;
+
+        public ListCheckpoint() {
+        }
+
+        public ListCheckpoint(List<String> keys) {
+            this.keys = keys;
+        }
+
+        @Override
+        public void writeExternal(ObjectOutput out) throws IOException {
+            out.writeObject(keys);
+        }
+
+        @Override
+        public void readExternal(ObjectInput in) throws IOException, ClassNotFoundException {
+            keys = (List<String>) in.readObject();
+        }
+    }
+
+    private CompactCheckpointCodec codec;
+
+    public CompactCheckpointCodecTest() {
+    }
+
+    @Before
+    public void setUp() {
+        codec = new CompactCheckpointCodec();
+    }
+
+    @Test
+    public void testNull() throws Exception {
+        assertNull(codec.encode(null, new byte[] {1}));
+        assertNull(codec.decode(null));
+    }
+
+    @Test
+    public void testPosition() throws Exception {
+        byte[] data = codec.encode(new PositionCheckpoint(Long.MAX_VALUE - 1), null);
+        // the format and the position, without class name
+        assertEquals(9, data.length);
+        assertEquals(Long.MAX_VALUE - 1, ((PositionCheckpoint) new CompactCheckpointCodec().decode(data)).getPosition());
+    }
+
+    @Test
+    public void testExternal() throws Exception {
+        byte[] data = codec.encode(new FileCheckpoint("items.csv", 42), null);
+
+        // the class name is written once, followed by the external data
+        DataInputStream is = new DataInputStream(new ByteArrayInputStream(data));
+        assertEquals(1, is.readByte());
+        assertEquals(FileCheckpoint.class.getName(), is.readUTF());
+        assertEquals("items.csv", is.readUTF());
+        assertEquals(42, is.readLong());
+        assertEquals(-1, is.read());
+
+        // the class table of a codec is not needed to decode
+        FileCheckpoint checkpoint = (FileCheckpoint) new CompactCheckpointCodec().decode(data);
+        assertEquals("items.csv", checkpoint.fileName);
+        assertEquals(42, checkpoint.offset);
+
+        // and is reused by the next encodings
+        byte[] data2 = codec.encode(new FileCheckpoint("items.csv", 43), data);
+        assertEquals(data.length, data2.length);
+        assertEquals(43, ((FileCheckpoint) codec.decode(data2)).offset);
+        assertEquals(42, ((FileCheckpoint) codec.decode(data)).offset);
+    }
+
+    @Test
+    public void testSerializationFallback() throws Exception {
+        List<String> keys = new ArrayList<String>(Arrays.asList("a", "b"));
+        byte[] data = codec.encode(new ListCheckpoint(keys), null);
+
+        // a nested object is written with Java serialization
+        assertEquals(0xAC, data[0] & 0xFF);
+        assertEquals(keys, ((ListCheckpoint) new CompactCheckpointCodec().decode(data)).keys);
+
+        // the codec is still usable by the thread
+        byte[] data2 = codec.encode(new FileCheckpoint("items.csv", 1), null);
+        assertEquals(1, data2[0]);
+    }
+
+    @Test
+    public void testDecodeSerializedData() throws Exception {
+        // data stored before the compact format
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        ObjectOutputStream os = new ObjectOutputStream(bos);
+        os.writeObject(new FileCheckpoint("items.csv", 7));
+        os.close();
+
+        FileCheckpoint checkpoint = (FileCheckpoint) codec.decode(bos.toByteArray());
+        assertEquals("items.csv", checkpoint.fileName);
+        assertEquals(7, checkpoint.offset);
+    }
+
+    @Test
+    public void testUnchangedData() throws Exception {
+        byte[] data = codec.encode(new PositionCheckpoint(3), null);
+
+        // the same encoding gives back the previous data, not a copy
+        assertSame(data, codec.encode(new PositionCheckpoint(3), data));
+        byte[] data2 = codec.encode(new PositionCheckpoint(4), data);
+        assertNotSame(data, data2);
+        assertEquals(4, ((PositionCheckpoint) codec.decode(data2)).getPosition());
+
+        byte[] data3 = codec.encode(new FileCheckpoint("items.csv", 5), null);
+        assertSame(data3, codec.encode(new FileCheckpoint("items.csv", 5), data3));
+        assertNotSame(data3, codec.encode(new FileCheckpoint("items.csv", 6), data3));
+    }
+
+    @Test(expected = StreamCorruptedException.class)
+    public void testUnknownFormat() throws Exception {
+        codec.decode(new byte[] {9});
+    }
+
+    @Test(expected = InvalidClassException.class)
+    public void testNotExternalizable() throws Exception {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        DataOutputStream os = new DataOutputStream(bos);
+        os.writeByte(1);
+        os.writeUTF(String.class.getName());
+        os.close();
+        codec.decode(bos.toByteArray());
+    }
+
+}
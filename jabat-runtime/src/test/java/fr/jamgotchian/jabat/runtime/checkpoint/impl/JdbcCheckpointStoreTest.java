@@ -0,0 +1,77 @@
+/*
+ * Copyright 2013 Geoffroy Jamgotchian <geoffroy.jamgotchian at gmail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.jamgotchian.jabat.runtime.checkpoint.impl;
+
+import fr.jamgotchian.jabat.runtime.checkpoint.CheckpointRecord;
+import fr.jamgotchian.jabat.runtime.util.JdbcUtil;
+import java.util.Properties;
+import org.junit.After;
+import static org.junit.Assert.*;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ *
+ * @author Geoffroy Jamgotchian <geoffroy.jamgotchian at gmail.com>
+ */
+public class JdbcCheckpointStoreTest {
+
+    private Properties configuration;
+
+    private JdbcCheckpointStore store;
+
+    public JdbcCheckpointStoreTest() {
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        configuration = new Properties();
+        configuration.setProperty(JdbcUtil.URL_KEY, "jdbc:h2:mem:checkpoints;DB_CLOSE_DELAY=-1");
+        store = new JdbcCheckpointStore();
+        store.initialize(configuration);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        store.shutdown();
+    }
+
+    @Test
+    public void testStoreLoadRemove() throws Exception {
+        assertNull(store.load(1));
+        store.store(1, new byte[] {1, 2}, null);
+        store.store(1, new byte[] {3}, new byte[] {4});
+        store.store(2, null, null);
+
+        // the data survives the store
+        store.shutdown();
+        store = new JdbcCheckpointStore();
+        store.initialize(configuration);
+
+        CheckpointRecord record = store.load(1);
+        assertEquals(1, record.getStepExecutionId());
+        assertArrayEquals(new byte[] {3}, record.getReaderData());
+        assertArrayEquals(new byte[] {4}, record.getWriterData());
+        record = store.load(2);
+        assertNull(record.getReaderData());
+        assertNull(record.getWriterData());
+
+        store.remove(1);
+        assertNull(store.load(1));
+        assertNotNull(store.load(2));
+    }
+
+}
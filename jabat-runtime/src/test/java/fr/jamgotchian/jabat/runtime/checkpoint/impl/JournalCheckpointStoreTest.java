@@ -0,0 +1,241 @@
+/*
+ * Copyright 2013 Geoffroy Jamgotchian <geoffroy.jamgotchian at gmail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.jamgotchian.jabat.runtime.checkpoint.impl;
+
+import fr.jamgotchian.jabat.runtime.checkpoint.CheckpointRecord;
+import fr.jamgotchian.jabat.runtime.util.JabatRuntimeException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Properties;
+import org.junit.After;
+import static org.junit.Assert.*;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ *
+ * @author Geoffroy Jamgotchian <geoffroy.jamgotchian at gmail.com>
+ */
+public class JournalCheckpointStoreTest {
+
+    private static final String JOURNAL_FILE_NAME = "checkpoints.journal";
+
+    /* magic number and version */
+    private static final int HEADER_SIZE = 8;
+
+    private static final int INITIAL_CAPACITY = 1024 * 1024;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File directory;
+
+    private JournalCheckpointStore store;
+
+    public JournalCheckpointStoreTest() {
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        directory = folder.newFolder("journal");
+        store = open(directory);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        store.shutdown();
+    }
+
+    private static JournalCheckpointStore open(File directory) throws Exception {
+        Properties configuration = new Properties();
+        configuration.setProperty(JournalCheckpointStore.DIRECTORY_KEY, directory.getPath());
+        JournalCheckpointStore store = new JournalCheckpointStore();
+        store.initialize(configuration);
+        return store;
+    }
+
+    private void reopen() throws Exception {
+        store.shutdown();
+        store = open(directory);
+    }
+
+    /**
+     * Copy the journal of a store which has not been shut down, as it would
+     * be found after a crash, into a new directory.
+     */
+    private File copyJournal(long length) throws IOException {
+        File copy = folder.newFolder();
+        FileInputStream is = new FileInputStream(new File(directory, JOURNAL_FILE_NAME));
+        try {
+            FileOutputStream os = new FileOutputStream(new File(copy, JOURNAL_FILE_NAME));
+            try {
+                byte[] buffer = new byte[(int) length];
+                int read = 0;
+                while (read < length) {
+                    read += is.read(buffer, read, buffer.length - read);
+                }
+                os.write(buffer);
+            } finally {
+                os.close();
+            }
+        } finally {
+            is.close();
+        }
+        return copy;
+    }
+
+    private static int getRecordSize(byte[] readerData, byte[] writerData) {
+        // length, type, step execution id, data lengths and checksum
+        return 4 + 1 + 8 + 4 + readerData.length + 4 + writerData.length + 4;
+    }
+
+    @Test
+    public void testStoreLoadRemove() throws Exception {
+        assertNull(store.load(1));
+        store.store(1, new byte[] {1, 2}, null);
+        store.store(1, new byte[] {3}, new byte[] {4});
+        store.store(2, null, null);
+        store.store(3, new byte[] {5}, null);
+        store.remove(3);
+
+        reopen();
+
+        CheckpointRecord record = store.load(1);
+        assertEquals(1, record.getStepExecutionId());
+        assertArrayEquals(new byte[] {3}, record.getReaderData());
+        assertArrayEquals(new byte[] {4}, record.getWriterData());
+        record = store.load(2);
+        assertNull(record.getReaderData());
+        assertNull(record.getWriterData());
+        assertNull(store.load(3));
+    }
+
+    @Test
+    public void testRecoveryAfterUncleanShutdown() throws Exception {
+        store.store(1, new byte[] {1}, new byte[] {2});
+        store.store(2, new byte[] {3}, new byte[] {4});
+        store.store(1, new byte[] {5}, new byte[] {6});
+        store.remove(2);
+
+        // the journal is read as it is while the store is still running
+        JournalCheckpointStore recovered = open(copyJournal(INITIAL_CAPACITY));
+        try {
+            CheckpointRecord record = recovered.load(1);
+            assertArrayEquals(new byte[] {5}, record.getReaderData());
+            assertArrayEquals(new byte[] {6}, record.getWriterData());
+            assertNull(recovered.load(2));
+        } finally {
+            recovered.shutdown();
+        }
+    }
+
+    @Test
+    public void testTruncatedTailRecord() throws Exception {
+        byte[] data = new byte[] {1, 2, 3};
+        store.store(1, data, data);
+        store.store(2, data, data);
+
+        // the second record has not been entirely written
+        int recordSize = getRecordSize(data, data);
+        File copy = copyJournal(HEADER_SIZE + recordSize + recordSize / 2);
+
+        JournalCheckpointStore recovered = open(copy);
+        try {
+            assertArrayEquals(data, recovered.load(1).getReaderData());
+            assertNull(recovered.load(2));
+
+            // the incomplete record is erased, so that it is not read again
+            // after the next records
+            recovered.store(3, data, data);
+        } finally {
+            recovered.shutdown();
+        }
+        recovered = open(copy);
+        try {
+            assertNotNull(recovered.load(1));
+            assertNull(recovered.load(2));
+            assertArrayEquals(data, recovered.load(3).getWriterData());
+        } finally {
+            recovered.shutdown();
+        }
+    }
+
+    @Test
+    public void testCompaction() throws Exception {
+        // superseded records take many times the initial capacity of the
+        // journal, which is compacted instead of growing
+        byte[] data = new byte[4096];
+        for (int i = 0; i < 1000; i++) {
+            Arrays.fill(data, (byte) i);
+            store.store(i % 4, data, null);
+        }
+        assertEquals(INITIAL_CAPACITY, new File(directory, JOURNAL_FILE_NAME).length());
+
+        reopen();
+
+        for (int i = 996; i < 1000; i++) {
+            Arrays.fill(data, (byte) i);
+            assertArrayEquals(data, store.load(i % 4).getReaderData());
+        }
+    }
+
+    @Test
+    public void testCompactionOnOpen() throws Exception {
+        byte[] data = new byte[1024];
+        for (int i = 0; i < 100; i++) {
+            store.store(1, data, data);
+        }
+        store.remove(1);
+        store.store(2, data, null);
+
+        reopen();
+
+        // only the live record is left once the journal is opened
+        RandomAccessFile file = new RandomAccessFile(new File(directory, JOURNAL_FILE_NAME), "r");
+        try {
+            file.seek(HEADER_SIZE);
+            // length of the record of the second step execution
+            assertEquals(getRecordSize(data, new byte[0]) - 8, file.readInt());
+        } finally {
+            file.close();
+        }
+        assertNull(store.load(1));
+        assertArrayEquals(data, store.load(2).getReaderData());
+    }
+
+    @Test(expected = JabatRuntimeException.class)
+    public void testDirectoryNotConfigured() throws Exception {
+        new JournalCheckpointStore().initialize(new Properties());
+    }
+
+    @Test
+    public void testJournalUsedByAnotherContainer() throws Exception {
+        try {
+            open(directory);
+            fail();
+        } catch (JabatRuntimeException e) {
+        }
+        // the journal can be reused once the store is shut down
+        reopen();
+    }
+
+}
@@ -0,0 +1,176 @@
+/*
+ * Copyright 2013 Geoffroy Jamgotchian <geoffroy.jamgotchian at gmail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.jamgotchian.jabat.runtime.chunk;
+
+import fr.jamgotchian.jabat.jobxml.model.ArtifactBuilder;
+import fr.jamgotchian.jabat.jobxml.model.ChunkStep;
+import fr.jamgotchian.jabat.jobxml.model.ChunkStepBuilder;
+import fr.jamgotchian.jabat.runtime.checkpoint.ItemCheckpointAlgorithm;
+import fr.jamgotchian.jabat.runtime.metric.ChunkPhase;
+import fr.jamgotchian.jabat.runtime.metric.StepMetrics;
+import fr.jamgotchian.jabat.runtime.metric.StepMetrics.PartitionMetrics;
+import fr.jamgotchian.jabat.runtime.task.impl.ForkJoinTaskManager;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import javax.batch.api.ItemProcessor;
+import javax.batch.runtime.Metric.MetricName;
+import org.junit.After;
+import static org.junit.Assert.*;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ *
+ * @author Geoffroy Jamgotchian <geoffroy.jamgotchian at gmail.com>
+ */
+public class ParallelItemProcessorTest {
+
+    /* filters the multiples of 5, fails on 33 and 66 */
+    private static class RecordingItemProcessor implements ItemProcessor<Integer, Integer> {
+
+        private final List<Integer> items = Collections.synchronizedList(new ArrayList<Integer>());
+
+        @Override
+        public Integer processItem(Integer item) throws Exception {
+            items.add(item);
+            if (item == 33 || item == 66) {
+                throw new IllegalStateException();
+            }
+            return item % 5 == 0 ? null : item;
+        }
+    }
+
+    private ForkJoinTaskManager taskManager;
+
+    private PartitionMetrics metrics;
+
+    private RecordingItemProcessor[] processors;
+
+    public ParallelItemProcessorTest() {
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        taskManager = new ForkJoinTaskManager();
+        taskManager.initialize(new Properties());
+        metrics = new StepMetrics(1, true).getPartition(0);
+        processors = new RecordingItemProcessor[4];
+        for (int i = 0; i < processors.length; i++) {
+            processors[i] = new RecordingItemProcessor();
+        }
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        taskManager.shutdown();
+    }
+
+    private static List<Object> range(int from, int to) {
+        List<Object> items = new ArrayList<Object>();
+        for (int i = from; i < to; i++) {
+            items.add(i);
+        }
+        return items;
+    }
+
+    @Test(timeout = 10000)
+    public void testProcessItems() throws Exception {
+        ParallelItemProcessor parallelProcessor = new ParallelItemProcessor(processors, taskManager, metrics);
+        final List<Object> failedItems = new ArrayList<Object>();
+        ParallelItemProcessor.FailureHandler failureHandler = new ParallelItemProcessor.FailureHandler() {
+            @Override
+            public Object onFailure(Object item, Exception failure) throws Exception {
+                assertTrue(failure instanceof IllegalStateException);
+                failedItems.add(item);
+                return -(Integer) item;
+            }
+        };
+        List<Object> items = range(0, 100);
+        List<Object> results = new ArrayList<Object>();
+        assertEquals(20, parallelProcessor.processItems(items, results, failureHandler));
+        assertTrue(items.isEmpty());
+
+        // results in read order, failures handled in read order
+        List<Object> expectedResults = new ArrayList<Object>();
+        for (int i = 0; i < 100; i++) {
+            if (i == 33 || i == 66) {
+                expectedResults.add(-i);
+            } else if (i % 5 != 0) {
+                expectedResults.add(i);
+            }
+        }
+        assertEquals(expectedResults, results);
+        assertEquals(range(33, 34), failedItems.subList(0, 1));
+        assertEquals(range(66, 67), failedItems.subList(1, 2));
+
+        // each instance processes a contiguous slice, in read order
+        for (int i = 0; i < processors.length; i++) {
+            assertEquals(range(i * 25, (i + 1) * 25), new ArrayList<Object>(processors[i].items));
+        }
+        assertEquals(98, metrics.getLatency(ChunkPhase.PROCESS).getCount());
+    }
+
+    @Test(timeout = 10000)
+    public void testFewerItemsThanInstances() throws Exception {
+        ParallelItemProcessor parallelProcessor = new ParallelItemProcessor(processors, taskManager, metrics);
+        List<Object> results = new ArrayList<Object>();
+        assertEquals(0, parallelProcessor.processItems(range(1, 3), results, null));
+        assertEquals(range(1, 3), results);
+        assertEquals(0, parallelProcessor.processItems(new ArrayList<Object>(), results, null));
+        assertTrue(processors[2].items.isEmpty());
+        assertTrue(processors[3].items.isEmpty());
+    }
+
+    @Test(timeout = 10000)
+    public void testChunkWithProcessorThreads() throws Exception {
+        ChunkStep step = new ChunkStepBuilder()
+                .setId("chunk")
+                .setReader(new ArtifactBuilder().setRef("reader").build())
+                .setProcessor(new ArtifactBuilder().setRef("processor").build())
+                .setWriter(new ArtifactBuilder().setRef("writer").build())
+                .setCommitInterval(10)
+                .setProcessorThreads(processors.length)
+                .includeSkippableException(IllegalStateException.class)
+                .build();
+        TestTransactionManager transaction = new TestTransactionManager();
+        TestCheckpointStore store = new TestCheckpointStore(transaction);
+        ParallelItemProcessor parallelProcessor = new ParallelItemProcessor(processors, taskManager, metrics);
+        SerialChunkProcessor chunkProcessor
+                = new SerialChunkProcessor(step, new TestItemReader(95), processors[0],
+                                           new TestItemWriter(transaction), new ItemCheckpointAlgorithm(10),
+                                           transaction, store.newChunkCheckpoint(), metrics,
+                                           new SkipRetryHandler(step, null), parallelProcessor);
+        chunkProcessor.process();
+
+        // failed items are processed again on the chunk thread, then skipped
+        List<Object> expectedItems = new ArrayList<Object>();
+        for (int i = 0; i < 95; i++) {
+            if (i % 5 != 0 && i != 33 && i != 66) {
+                expectedItems.add(i);
+            }
+        }
+        assertEquals(expectedItems, transaction.getCommittedItems());
+        assertEquals(95, metrics.get(MetricName.READCOUNT));
+        assertEquals(19, metrics.get(MetricName.FILTERCOUNT));
+        assertEquals(2, metrics.get(MetricName.PROCESSSKIPCOUNT));
+        assertEquals(74, metrics.get(MetricName.WRITECOUNT));
+        assertEquals(9, store.getCheckpoints().size());
+        assertEquals(90, store.getLastCheckpoint().readerPosition);
+    }
+
+}
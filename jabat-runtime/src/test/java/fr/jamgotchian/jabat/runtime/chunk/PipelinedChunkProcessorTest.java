@@ -0,0 +1,212 @@
+/*
+ * Copyright 2013 Geoffroy Jamgotchian <geoffroy.jamgotchian at gmail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.jamgotchian.jabat.runtime.chunk;
+
+import fr.jamgotchian.jabat.jobxml.model.ArtifactBuilder;
+import fr.jamgotchian.jabat.jobxml.model.ChunkStep;
+import fr.jamgotchian.jabat.jobxml.model.ChunkStepBuilder;
+import fr.jamgotchian.jabat.runtime.checkpoint.ItemCheckpointAlgorithm;
+import fr.jamgotchian.jabat.runtime.metric.StepMetrics;
+import fr.jamgotchian.jabat.runtime.metric.StepMetrics.PartitionMetrics;
+import fr.jamgotchian.jabat.runtime.task.impl.ForkJoinTaskManager;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import javax.batch.api.ItemProcessor;
+import javax.batch.runtime.Metric.MetricName;
+import org.junit.After;
+import static org.junit.Assert.*;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ *
+ * @author Geoffroy Jamgotchian <geoffroy.jamgotchian at gmail.com>
+ */
+public class PipelinedChunkProcessorTest {
+
+    /* filters the multiples of 7 */
+    private static class FilteringItemProcessor implements ItemProcessor<Integer, Integer> {
+
+        @Override
+        public Integer processItem(Integer item) throws Exception {
+            return item % 7 == 0 ? null : item;
+        }
+    }
+
+    private ChunkStep step;
+
+    private ForkJoinTaskManager taskManager;
+
+    private TestTransactionManager transaction;
+
+    private TestCheckpointStore store;
+
+    private PartitionMetrics metrics;
+
+    public PipelinedChunkProcessorTest() {
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        step = new ChunkStepBuilder()
+                .setId("chunk")
+                .setReader(new ArtifactBuilder().setRef("reader").build())
+                .setProcessor(new ArtifactBuilder().setRef("processor").build())
+                .setWriter(new ArtifactBuilder().setRef("writer").build())
+                .setCommitInterval(10)
+                .setBufferSize(3)
+                .setPipelined(true)
+                .build();
+        // a pool smaller than the number of stages
+        taskManager = new ForkJoinTaskManager();
+        Properties configuration = new Properties();
+        configuration.setProperty(ForkJoinTaskManager.PARALLELISM_KEY, "2");
+        taskManager.initialize(configuration);
+        transaction = new TestTransactionManager();
+        store = new TestCheckpointStore(transaction);
+        metrics = new StepMetrics(1, false).getPartition(0);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        taskManager.shutdown();
+    }
+
+    private PipelinedChunkProcessor newChunkProcessor(TestItemReader reader, ItemProcessor processor,
+                                                      TestItemWriter writer) {
+        return new PipelinedChunkProcessor(step, reader, processor, writer,
+                                           new ItemCheckpointAlgorithm(step.getCommitInterval()),
+                                           transaction, store.newChunkCheckpoint(), metrics,
+                                           new SkipRetryHandler(step, null), taskManager);
+    }
+
+    /**
+     * Get the items written for the items read before a position.
+     */
+    private static List<Object> getExpectedItems(int position) {
+        List<Object> items = new ArrayList<Object>();
+        for (int i = 0; i < position; i++) {
+            if (i % 7 != 0) {
+                items.add(i);
+            }
+        }
+        return items;
+    }
+
+    @Test(timeout = 10000)
+    public void testCheckpointOrdering() throws Exception {
+        PipelinedChunkProcessor chunkProcessor
+                = newChunkProcessor(new TestItemReader(100), new FilteringItemProcessor(),
+                                    new TestItemWriter(transaction));
+        chunkProcessor.process();
+        assertFalse(chunkProcessor.isStopped());
+
+        // a checkpoint is stored after each marker, once all the items read
+        // before it have been written and committed
+        List<TestCheckpointStore.Checkpoint> checkpoints = store.getCheckpoints();
+        assertEquals(10, checkpoints.size());
+        for (int i = 0; i < checkpoints.size(); i++) {
+            TestCheckpointStore.Checkpoint checkpoint = checkpoints.get(i);
+            assertEquals((i + 1) * 10, checkpoint.readerPosition);
+            int expectedCount = getExpectedItems((i + 1) * 10).size();
+            assertEquals(expectedCount, checkpoint.writerPosition);
+            assertEquals(expectedCount, checkpoint.committedCount);
+        }
+        assertEquals(getExpectedItems(100), transaction.getCommittedItems());
+        assertEquals(11, transaction.getCommitCount());
+        assertEquals(0, transaction.getRollbackCount());
+        assertEquals(100, metrics.get(MetricName.READCOUNT));
+        assertEquals(15, metrics.get(MetricName.FILTERCOUNT));
+        assertEquals(85, metrics.get(MetricName.WRITECOUNT));
+    }
+
+    @Test(timeout = 10000)
+    public void testWriteFailureAbortsStages() throws Exception {
+        final Exception failure = new IllegalStateException();
+        TestItemReader reader = new TestItemReader(Integer.MAX_VALUE);
+        TestItemWriter writer = new TestItemWriter(transaction) {
+            @Override
+            protected void beforeWrite(List<Object> items) throws Exception {
+                if (items.contains(55)) {
+                    throw failure;
+                }
+            }
+        };
+        try {
+            newChunkProcessor(reader, new FilteringItemProcessor(), writer).process();
+            fail();
+        } catch (Exception e) {
+            // the root cause, not the abortion of the other stages
+            assertSame(failure, e);
+        }
+        // the read stage has given up and the chunk has been rolled back
+        assertTrue(reader.getPosition() < Integer.MAX_VALUE);
+        assertEquals(getExpectedItems(50), transaction.getCommittedItems());
+        assertEquals(1, transaction.getRollbackCount());
+        assertEquals(50, store.getLastCheckpoint().readerPosition);
+    }
+
+    @Test(timeout = 10000)
+    public void testProcessFailureAbortsStages() throws Exception {
+        final Exception failure = new IllegalStateException();
+        TestItemReader reader = new TestItemReader(Integer.MAX_VALUE);
+        ItemProcessor<Integer, Integer> processor = new FilteringItemProcessor() {
+            @Override
+            public Integer processItem(Integer item) throws Exception {
+                if (item == 35) {
+                    throw failure;
+                }
+                return super.processItem(item);
+            }
+        };
+        try {
+            newChunkProcessor(reader, processor, new TestItemWriter(transaction)).process();
+            fail();
+        } catch (Exception e) {
+            assertSame(failure, e);
+        }
+        assertTrue(reader.getPosition() < Integer.MAX_VALUE);
+        assertEquals(getExpectedItems(30), transaction.getCommittedItems());
+        assertEquals(30, store.getLastCheckpoint().readerPosition);
+    }
+
+    @Test(timeout = 10000)
+    public void testStop() throws Exception {
+        final PipelinedChunkProcessor[] chunkProcessor = new PipelinedChunkProcessor[1];
+        TestItemReader reader = new TestItemReader(Integer.MAX_VALUE) {
+            @Override
+            protected void beforeRead(int item) throws Exception {
+                if (item == 25) {
+                    chunkProcessor[0].stop();
+                }
+            }
+        };
+        chunkProcessor[0] = newChunkProcessor(reader, new FilteringItemProcessor(),
+                                              new TestItemWriter(transaction));
+        chunkProcessor[0].process();
+        assertTrue(chunkProcessor[0].isStopped());
+
+        // the items read before the stop are committed with their checkpoint
+        assertEquals(26, reader.getPosition());
+        assertEquals(getExpectedItems(26), transaction.getCommittedItems());
+        TestCheckpointStore.Checkpoint checkpoint = store.getLastCheckpoint();
+        assertEquals(26, checkpoint.readerPosition);
+        assertEquals(getExpectedItems(26).size(), checkpoint.committedCount);
+        assertEquals(0, transaction.getRollbackCount());
+    }
+
+}
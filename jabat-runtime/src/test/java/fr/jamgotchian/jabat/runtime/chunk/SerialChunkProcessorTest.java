@@ -0,0 +1,215 @@
+/*
+ * Copyright 2013 Geoffroy Jamgotchian <geoffroy.jamgotchian at gmail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.jamgotchian.jabat.runtime.chunk;
+
+import fr.jamgotchian.jabat.jobxml.model.ArtifactBuilder;
+import fr.jamgotchian.jabat.jobxml.model.ChunkStep;
+import fr.jamgotchian.jabat.jobxml.model.ChunkStepBuilder;
+import fr.jamgotchian.jabat.runtime.checkpoint.AdaptiveCheckpointAlgorithm;
+import fr.jamgotchian.jabat.runtime.checkpoint.BuiltInCheckpointAlgorithm;
+import fr.jamgotchian.jabat.runtime.checkpoint.ItemCheckpointAlgorithm;
+import fr.jamgotchian.jabat.runtime.metric.StepMetrics;
+import fr.jamgotchian.jabat.runtime.metric.StepMetrics.PartitionMetrics;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import javax.batch.api.ItemProcessor;
+import javax.batch.runtime.Metric.MetricName;
+import static org.junit.Assert.*;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ *
+ * @author Geoffroy Jamgotchian <geoffroy.jamgotchian at gmail.com>
+ */
+public class SerialChunkProcessorTest {
+
+    private static class IdentityItemProcessor implements ItemProcessor<Integer, Integer> {
+
+        @Override
+        public Integer processItem(Integer item) throws Exception {
+            return item;
+        }
+    }
+
+    /* fails to write a list containing 13 */
+    private static class FailingItemWriter extends TestItemWriter {
+
+        private FailingItemWriter(TestTransactionManager transaction) {
+            super(transaction);
+        }
+
+        @Override
+        protected void beforeWrite(List<Object> items) throws Exception {
+            if (items.contains(13)) {
+                throw new IllegalArgumentException("Cannot write 13");
+            }
+        }
+    }
+
+    private ChunkStep step;
+
+    private TestTransactionManager transaction;
+
+    private TestCheckpointStore store;
+
+    private PartitionMetrics metrics;
+
+    private SkipRetryHandlerTest.RecordingListener listener;
+
+    public SerialChunkProcessorTest() {
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        step = new ChunkStepBuilder()
+                .setId("chunk")
+                .setReader(new ArtifactBuilder().setRef("reader").build())
+                .setProcessor(new ArtifactBuilder().setRef("processor").build())
+                .setWriter(new ArtifactBuilder().setRef("writer").build())
+                .setCommitInterval(10)
+                .setBufferSize(3)
+                .includeSkippableException(IllegalArgumentException.class)
+                .setSkipLimit(5)
+                .build();
+        transaction = new TestTransactionManager();
+        store = new TestCheckpointStore(transaction);
+        metrics = new StepMetrics(1, false).getPartition(0);
+        listener = new SkipRetryHandlerTest.RecordingListener();
+    }
+
+    private SerialChunkProcessor newChunkProcessor(TestItemReader reader, TestItemWriter writer) {
+        return newChunkProcessor(reader, writer, new ItemCheckpointAlgorithm(step.getCommitInterval()));
+    }
+
+    private SerialChunkProcessor newChunkProcessor(TestItemReader reader, TestItemWriter writer,
+                                                   BuiltInCheckpointAlgorithm algorithm) {
+        return new SerialChunkProcessor(step, reader, new IdentityItemProcessor(), writer,
+                                        algorithm, transaction, store.newChunkCheckpoint(), metrics,
+                                        new SkipRetryHandler(step, SkipRetryHandlerTest.createContainer(listener)));
+    }
+
+    private static List<Object> getItems(int count, int skippedItem) {
+        List<Object> items = new ArrayList<Object>();
+        for (int i = 0; i < count; i++) {
+            if (i != skippedItem) {
+                items.add(i);
+            }
+        }
+        return items;
+    }
+
+    @Test
+    public void testWriteScanSkipsFailingItem() throws Exception {
+        newChunkProcessor(new TestItemReader(30), new FailingItemWriter(transaction)).process();
+
+        // only the failing item is skipped, the others are written in order
+        assertEquals(getItems(30, 13), transaction.getCommittedItems());
+        assertEquals(1, metrics.get(MetricName.WRITESKIPCOUNT));
+        assertEquals(29, metrics.get(MetricName.WRITECOUNT));
+        assertEquals(Arrays.asList("skipWrite [13] Cannot write 13"), listener.getNotifications());
+        // the scan costs a single rollback
+        assertEquals(1, metrics.get(MetricName.ROLLBACKCOUNT));
+
+        // the items written by the scan are committed with the chunk and
+        // its checkpoint
+        assertEquals(4, transaction.getCommitCount());
+        List<TestCheckpointStore.Checkpoint> checkpoints = store.getCheckpoints();
+        assertEquals(3, checkpoints.size());
+        assertEquals(20, checkpoints.get(1).readerPosition);
+        assertEquals(19, checkpoints.get(1).writerPosition);
+        assertEquals(19, checkpoints.get(1).committedCount);
+    }
+
+    @Test
+    public void testScanRolledBackWithChunk() throws Exception {
+        TestItemReader reader = new TestItemReader(30) {
+
+            @Override
+            protected void beforeRead(int item) throws Exception {
+                if (item == 17) {
+                    throw new IllegalStateException();
+                }
+            }
+        };
+        try {
+            newChunkProcessor(reader, new FailingItemWriter(transaction)).process();
+            fail();
+        } catch (IllegalStateException e) {
+        }
+
+        // the scan has skipped 13, but nothing after the first chunk has
+        // been committed
+        assertEquals(1, metrics.get(MetricName.WRITESKIPCOUNT));
+        assertEquals(getItems(10, -1), transaction.getCommittedItems());
+        assertEquals(1, transaction.getCommitCount());
+        assertEquals(1, store.getCheckpoints().size());
+        assertEquals(10, store.getLastCheckpoint().committedCount);
+        // the chunk rolled back by the scan and then by the failure counts
+        // once
+        assertEquals(1, metrics.get(MetricName.ROLLBACKCOUNT));
+    }
+
+    @Test
+    public void testScanHalvesAdaptiveChunkSizeOnce() throws Exception {
+        final List<Integer> rolledBackChunkSizes = new ArrayList<Integer>();
+        AdaptiveCheckpointAlgorithm algorithm = new AdaptiveCheckpointAlgorithm(100, 60000, 0) {
+
+            @Override
+            public synchronized void rolledBack() {
+                super.rolledBack();
+                rolledBackChunkSizes.add(getChunkSize());
+            }
+        };
+        // chunks of 10 then 20 items, 13 is in the second one
+        newChunkProcessor(new TestItemReader(30), new FailingItemWriter(transaction), algorithm).process();
+
+        assertEquals(getItems(30, 13), transaction.getCommittedItems());
+        assertEquals(1, metrics.get(MetricName.WRITESKIPCOUNT));
+        assertEquals(1, metrics.get(MetricName.ROLLBACKCOUNT));
+        // the chunk size is halved once by the scan, from 20 to 10, then
+        // doubled by the commits of the chunks of 10 items 10 to 19 and 20
+        // to 29
+        assertEquals(Arrays.asList(10), rolledBackChunkSizes);
+        assertEquals(40, algorithm.getChunkSize());
+    }
+
+    @Test
+    public void testSkipLimitReachedByScan() throws Exception {
+        // each item of the second chunk fails
+        TestItemWriter writer = new TestItemWriter(transaction) {
+
+            @Override
+            protected void beforeWrite(List<Object> items) throws Exception {
+                for (Object item : items) {
+                    if ((Integer) item >= 10) {
+                        throw new IllegalArgumentException("Cannot write " + item);
+                    }
+                }
+            }
+        };
+        try {
+            newChunkProcessor(new TestItemReader(30), writer).process();
+            fail();
+        } catch (IllegalArgumentException e) {
+        }
+        assertEquals(5, metrics.get(MetricName.WRITESKIPCOUNT));
+        assertEquals(5, listener.getNotifications().size());
+        assertEquals(getItems(10, -1), transaction.getCommittedItems());
+    }
+
+}
@@ -0,0 +1,261 @@
+/*
+ * Copyright 2013 Geoffroy Jamgotchian <geoffroy.jamgotchian at gmail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.jamgotchian.jabat.runtime.chunk;
+
+import fr.jamgotchian.jabat.jobxml.model.ArtifactBuilder;
+import fr.jamgotchian.jabat.jobxml.model.ChunkStep;
+import fr.jamgotchian.jabat.jobxml.model.ChunkStepBuilder;
+import fr.jamgotchian.jabat.runtime.artifact.ArtifactContainer;
+import fr.jamgotchian.jabat.runtime.artifact.ArtifactFactory;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import javax.batch.api.RetryProcessListener;
+import javax.batch.api.RetryReadListener;
+import javax.batch.api.RetryWriteListener;
+import javax.batch.api.SkipProcessListener;
+import javax.batch.api.SkipReadListener;
+import javax.batch.api.SkipWriteListener;
+import org.junit.After;
+import static org.junit.Assert.*;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ *
+ * @author Geoffroy Jamgotchian <geoffroy.jamgotchian at gmail.com>
+ */
+public class SkipRetryHandlerTest {
+
+    private static final int THREADS = 8;
+
+    /**
+     * A listener of skips and retries recording the notifications.
+     */
+    static class RecordingListener implements SkipReadListener, SkipProcessListener, SkipWriteListener,
+                                              RetryReadListener, RetryProcessListener, RetryWriteListener {
+
+        private final List<String> notifications = new ArrayList<String>();
+
+        List<String> getNotifications() {
+            return notifications;
+        }
+
+        @Override
+        public void onSkipReadItem(Exception ex) throws Exception {
+            notifications.add("skipRead " + ex.getMessage());
+        }
+
+        @Override
+        public void onSkipProcessItem(Object item, Exception ex) throws Exception {
+            notifications.add("skipProcess " + item + " " + ex.getMessage());
+        }
+
+        @Override
+        public void onSkipWriteItem(List items, Exception ex) throws Exception {
+            notifications.add("skipWrite " + items + " " + ex.getMessage());
+        }
+
+        @Override
+        public void onRetryReadException(Exception ex) throws Exception {
+            notifications.add("retryRead " + ex.getMessage());
+        }
+
+        @Override
+        public void onRetryProcessException(Object item, Exception ex) throws Exception {
+            notifications.add("retryProcess " + item + " " + ex.getMessage());
+        }
+
+        @Override
+        public void onRetryWriteException(List items, Exception ex) throws Exception {
+            notifications.add("retryWrite " + items + " " + ex.getMessage());
+        }
+    }
+
+    /**
+     * Create an artifact container holding a step listener.
+     */
+    static ArtifactContainer createContainer(final Object listener) {
+        ArtifactContainer container = new ArtifactContainer(null, new ArtifactFactory() {
+
+            @Override
+            public Object create(String name) {
+                return listener;
+            }
+
+            @Override
+            public void destroy(Object instance) {
+            }
+        }, null);
+        container.createStepListener("listener");
+        return container;
+    }
+
+    private ExecutorService executor;
+
+    public SkipRetryHandlerTest() {
+    }
+
+    @Before
+    public void setUp() {
+        executor = Executors.newFixedThreadPool(THREADS);
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    private static ChunkStepBuilder createStep() {
+        return new ChunkStepBuilder()
+                .setId("chunk")
+                .setReader(new ArtifactBuilder().setRef("reader").build())
+                .setProcessor(new ArtifactBuilder().setRef("processor").build())
+                .setWriter(new ArtifactBuilder().setRef("writer").build());
+    }
+
+    /**
+     * Call a check of the handler concurrently from several threads.
+     *
+     * @return the number of successful checks
+     */
+    private int countConcurrently(final int checksPerThread, final Callable<Boolean> check) throws Exception {
+        final CountDownLatch startSignal = new CountDownLatch(1);
+        List<Future<Integer>> futures = new ArrayList<Future<Integer>>();
+        for (int i = 0; i < THREADS; i++) {
+            futures.add(executor.submit(new Callable<Integer>() {
+
+                @Override
+                public Integer call() throws Exception {
+                    startSignal.await();
+                    int count = 0;
+                    for (int j = 0; j < checksPerThread; j++) {
+                        if (check.call()) {
+                            count++;
+                        }
+                    }
+                    return count;
+                }
+            }));
+        }
+        startSignal.countDown();
+        int count = 0;
+        for (Future<Integer> future : futures) {
+            count += future.get();
+        }
+        return count;
+    }
+
+    @Test(timeout = 10000)
+    public void testRetryLimitSharedByThreads() throws Exception {
+        ChunkStep step = createStep()
+                .includeRetryableException(IOException.class)
+                .setRetryLimit(100)
+                .build();
+        final SkipRetryHandler handler = new SkipRetryHandler(step, null);
+        int retries = countConcurrently(50, new Callable<Boolean>() {
+
+            @Override
+            public Boolean call() throws Exception {
+                return handler.retry(new IOException());
+            }
+        });
+        assertEquals(100, retries);
+        assertEquals(100, handler.getRetryCount());
+
+        // a failure which is not retryable is not counted
+        assertFalse(handler.retry(new IllegalStateException()));
+        assertEquals(100, handler.getRetryCount());
+        assertEquals(0, handler.getSkipCount());
+    }
+
+    @Test(timeout = 10000)
+    public void testNoRetryLimit() throws Exception {
+        ChunkStep step = createStep()
+                .includeRetryableException(IOException.class)
+                .build();
+        final SkipRetryHandler handler = new SkipRetryHandler(step, null);
+        int retries = countConcurrently(50, new Callable<Boolean>() {
+
+            @Override
+            public Boolean call() throws Exception {
+                return handler.retry(new IOException());
+            }
+        });
+        assertEquals(THREADS * 50, retries);
+        assertEquals(THREADS * 50, handler.getRetryCount());
+    }
+
+    @Test(timeout = 10000)
+    public void testSkipLimit() throws Exception {
+        ChunkStep step = createStep()
+                .includeSkippableException(IllegalArgumentException.class)
+                .excludeSkippableException(NumberFormatException.class)
+                .setSkipLimit(3)
+                .build();
+        final SkipRetryHandler handler = new SkipRetryHandler(step, null);
+
+        // an excluded subclass is not skippable
+        assertFalse(handler.isSkippable(new NumberFormatException()));
+        assertFalse(handler.skip(new NumberFormatException()));
+        assertEquals(0, handler.getSkipCount());
+
+        int skips = countConcurrently(10, new Callable<Boolean>() {
+
+            @Override
+            public Boolean call() throws Exception {
+                return handler.skip(new IllegalArgumentException());
+            }
+        });
+        assertEquals(3, skips);
+        assertEquals(3, handler.getSkipCount());
+
+        // the exception is still skippable, but the limit has been reached
+        assertTrue(handler.isSkippable(new IllegalArgumentException()));
+        assertFalse(handler.skip(new IllegalArgumentException()));
+    }
+
+    @Test
+    public void testListeners() throws Exception {
+        RecordingListener listener = new RecordingListener();
+        SkipRetryHandler handler = new SkipRetryHandler(createStep().build(), createContainer(listener));
+        List<Object> items = Arrays.<Object>asList(1, 2);
+        handler.onSkipRead(new Exception("a"));
+        handler.onSkipProcess(3, new Exception("b"));
+        handler.onSkipWrite(items, new Exception("c"));
+        handler.onRetryRead(new Exception("d"));
+        handler.onRetryProcess(4, new Exception("e"));
+        handler.onRetryWrite(items, new Exception("f"));
+        assertEquals(Arrays.asList("skipRead a", "skipProcess 3 b", "skipWrite [1, 2] c",
+                                   "retryRead d", "retryProcess 4 e", "retryWrite [1, 2] f"),
+                     listener.getNotifications());
+    }
+
+    @Test
+    public void testNoListener() throws Exception {
+        SkipRetryHandler handler = new SkipRetryHandler(createStep().build(), null);
+        handler.onSkipWrite(Collections.<Object>singletonList(1), new Exception());
+        handler.onRetryRead(new Exception());
+    }
+
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright 2013 Geoffroy Jamgotchian <geoffroy.jamgotchian at gmail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.jamgotchian.jabat.runtime.chunk;
+
+import fr.jamgotchian.jabat.runtime.checkpoint.CheckpointCodec;
+import fr.jamgotchian.jabat.runtime.checkpoint.CheckpointRecord;
+import fr.jamgotchian.jabat.runtime.checkpoint.CheckpointStore;
+import fr.jamgotchian.jabat.runtime.checkpoint.PositionCheckpoint;
+import fr.jamgotchian.jabat.runtime.checkpoint.impl.CompactCheckpointCodec;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * A checkpoint store recording, for each stored checkpoint, the reader and
+ * writer positions and the number of items committed at that time.
+ *
+ * @author Geoffroy Jamgotchian <geoffroy.jamgotchian at gmail.com>
+ */
+class TestCheckpointStore implements CheckpointStore {
+
+    static class Checkpoint {
+
+        final long readerPosition;
+
+        final long writerPosition;
+
+        final int committedCount;
+
+        private Checkpoint(long readerPosition, long writerPosition, int committedCount) {
+            this.readerPosition = readerPosition;
+            this.writerPosition = writerPosition;
+            this.committedCount = committedCount;
+        }
+    }
+
+    private final CheckpointCodec codec = new CompactCheckpointCodec();
+
+    private final TestTransactionManager transaction;
+
+    private final List<Checkpoint> checkpoints = new ArrayList<Checkpoint>();
+
+    TestCheckpointStore(TestTransactionManager transaction) {
+        this.transaction = transaction;
+    }
+
+    synchronized List<Checkpoint> getCheckpoints() {
+        return new ArrayList<Checkpoint>(checkpoints);
+    }
+
+    synchronized Checkpoint getLastCheckpoint() {
+        return checkpoints.isEmpty() ? null : checkpoints.get(checkpoints.size() - 1);
+    }
+
+    ChunkCheckpoint newChunkCheckpoint() {
+        return new ChunkCheckpoint(0, this, codec);
+    }
+
+    @Override
+    public void initialize(Properties configuration) throws Exception {
+    }
+
+    @Override
+    public void shutdown() throws Exception {
+    }
+
+    @Override
+    public synchronized void store(long stepExecutionId, byte[] readerData, byte[] writerData) throws Exception {
+        PositionCheckpoint reader = (PositionCheckpoint) codec.decode(readerData);
+        PositionCheckpoint writer = (PositionCheckpoint) codec.decode(writerData);
+        checkpoints.add(new Checkpoint(reader.getPosition(), writer.getPosition(),
+                                       transaction.getCommittedItems().size()));
+    }
+
+    @Override
+    public CheckpointRecord load(long stepExecutionId) throws Exception {
+        return null;
+    }
+
+    @Override
+    public void remove(long stepExecutionId) throws Exception {
+    }
+
+}
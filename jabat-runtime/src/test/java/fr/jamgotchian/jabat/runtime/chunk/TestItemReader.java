@@ -0,0 +1,78 @@
+/*
+ * Copyright 2013 Geoffroy Jamgotchian <geoffroy.jamgotchian at gmail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.jamgotchian.jabat.runtime.chunk;
+
+import fr.jamgotchian.jabat.runtime.checkpoint.PositionCheckpoint;
+import java.io.Externalizable;
+import javax.batch.api.ItemReader;
+
+/**
+ * A reader of the integers from 0 to a count, positioned by its checkpoint.
+ *
+ * @author Geoffroy Jamgotchian <geoffroy.jamgotchian at gmail.com>
+ */
+class TestItemReader implements ItemReader<Integer> {
+
+    private final int count;
+
+    private volatile int position;
+
+    private volatile PositionCheckpoint openCheckpoint;
+
+    TestItemReader(int count) {
+        this.count = count;
+    }
+
+    int getPosition() {
+        return position;
+    }
+
+    PositionCheckpoint getOpenCheckpoint() {
+        return openCheckpoint;
+    }
+
+    /**
+     * Called before an item is read, a failure leaves the reader at the same
+     * position.
+     */
+    protected void beforeRead(int item) throws Exception {
+    }
+
+    @Override
+    public void open(Externalizable checkpoint) throws Exception {
+        openCheckpoint = (PositionCheckpoint) checkpoint;
+        position = checkpoint != null ? (int) openCheckpoint.getPosition() : 0;
+    }
+
+    @Override
+    public void close() throws Exception {
+    }
+
+    @Override
+    public Integer readItem() throws Exception {
+        if (position >= count) {
+            return null;
+        }
+        beforeRead(position);
+        return position++;
+    }
+
+    @Override
+    public Externalizable checkpointInfo() throws Exception {
+        return new PositionCheckpoint(position);
+    }
+
+}
@@ -0,0 +1,62 @@
+/*
+ * Copyright 2013 Geoffroy Jamgotchian <geoffroy.jamgotchian at gmail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.jamgotchian.jabat.runtime.chunk;
+
+import fr.jamgotchian.jabat.runtime.checkpoint.PositionCheckpoint;
+import java.io.Externalizable;
+import java.util.List;
+import javax.batch.api.ItemWriter;
+
+/**
+ * A writer of items in the current transaction of a test transaction
+ * manager, positioned by the number of items written.
+ *
+ * @author Geoffroy Jamgotchian <geoffroy.jamgotchian at gmail.com>
+ */
+class TestItemWriter implements ItemWriter<Object> {
+
+    private final TestTransactionManager transaction;
+
+    TestItemWriter(TestTransactionManager transaction) {
+        this.transaction = transaction;
+    }
+
+    /**
+     * Called before items are written, a failure writes none of them.
+     */
+    protected void beforeWrite(List<Object> items) throws Exception {
+    }
+
+    @Override
+    public void open(Externalizable checkpoint) throws Exception {
+    }
+
+    @Override
+    public void close() throws Exception {
+    }
+
+    @Override
+    public void writeItems(List<Object> items) throws Exception {
+        beforeWrite(items);
+        transaction.write(items);
+    }
+
+    @Override
+    public Externalizable checkpointInfo() throws Exception {
+        return new PositionCheckpoint(transaction.getWrittenCount());
+    }
+
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright 2013 Geoffroy Jamgotchian <geoffroy.jamgotchian at gmail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.jamgotchian.jabat.runtime.chunk;
+
+import java.util.ArrayList;
+import java.util.List;
+import javax.batch.runtime.spi.TransactionManagerSPI;
+
+/**
+ * A transaction manager keeping the items written by a transaction apart
+ * until it is committed.
+ *
+ * @author Geoffroy Jamgotchian <geoffroy.jamgotchian at gmail.com>
+ */
+class TestTransactionManager implements TransactionManagerSPI {
+
+    private final List<Object> pendingItems = new ArrayList<Object>();
+
+    private final List<Object> committedItems = new ArrayList<Object>();
+
+    private int commitCount = 0;
+
+    private int rollbackCount = 0;
+
+    synchronized void write(List<Object> items) {
+        pendingItems.addAll(items);
+    }
+
+    synchronized int getWrittenCount() {
+        return committedItems.size() + pendingItems.size();
+    }
+
+    synchronized List<Object> getCommittedItems() {
+        return new ArrayList<Object>(committedItems);
+    }
+
+    synchronized int getCommitCount() {
+        return commitCount;
+    }
+
+    synchronized int getRollbackCount() {
+        return rollbackCount;
+    }
+
+    @Override
+    public void begin() throws Exception {
+    }
+
+    @Override
+    public synchronized void commit() throws Exception {
+        committedItems.addAll(pendingItems);
+        pendingItems.clear();
+        commitCount++;
+    }
+
+    @Override
+    public int getStatus() throws Exception {
+        return -1;
+    }
+
+    @Override
+    public synchronized void rollback() throws Exception {
+        pendingItems.clear();
+        rollbackCount++;
+    }
+
+    @Override
+    public void setRollbackOnly() throws Exception {
+    }
+
+    @Override
+    public void setTransactionTimeout(int seconds) throws Exception {
+    }
+
+}
@@ -0,0 +1,195 @@
+/*
+ * Copyright 2013 Geoffroy Jamgotchian <geoffroy.jamgotchian at gmail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.jamgotchian.jabat.runtime.context;
+
+import fr.jamgotchian.jabat.jobxml.JobUtil;
+import fr.jamgotchian.jabat.jobxml.model.ArtifactBuilder;
+import fr.jamgotchian.jabat.jobxml.model.ChunkStep;
+import fr.jamgotchian.jabat.jobxml.model.ChunkStepBuilder;
+import fr.jamgotchian.jabat.runtime.util.JabatRuntimeException;
+import java.util.Properties;
+import javax.batch.annotation.BatchContext;
+import javax.batch.annotation.BatchProperty;
+import javax.batch.runtime.context.JobContext;
+import javax.batch.runtime.context.StepContext;
+import org.junit.After;
+import static org.junit.Assert.*;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ *
+ * @author Geoffroy Jamgotchian <geoffroy.jamgotchian at gmail.com>
+ */
+public class InjectionPlanTest {
+
+    public static class BaseArtifact {
+
+        @BatchProperty
+        private String inherited;
+
+        public String getInherited() {
+            return inherited;
+        }
+    }
+
+    public static class Artifact extends BaseArtifact {
+
+        @BatchContext
+        private StepContext stepContext;
+
+        @BatchContext
+        private JobContext jobContext;
+
+        @BatchProperty
+        private String name;
+
+        @BatchProperty(name = "other-name")
+        private String renamed;
+
+        @BatchProperty
+        private String undefined = "default";
+    }
+
+    private static class NotPublicArtifact {
+
+        @BatchProperty
+        private String name;
+
+        public NotPublicArtifact() {
+        }
+    }
+
+    public static class NoDefaultConstructorArtifact {
+
+        public NoDefaultConstructorArtifact(String name) {
+        }
+    }
+
+    public static class FinalPropertyArtifact {
+
+        @BatchProperty
+        private final String name = null;
+    }
+
+    public static class NotStringPropertyArtifact {
+
+        @BatchProperty
+        private Integer name;
+    }
+
+    public static class WrongContextArtifact {
+
+        @BatchContext
+        private String context;
+    }
+
+    private JabatStepContext stepContext;
+
+    public InjectionPlanTest() {
+    }
+
+    @Before
+    public void setUp() {
+        ChunkStep step = new ChunkStepBuilder()
+                .setId("chunk")
+                .setReader(new ArtifactBuilder().setRef("reader")
+                        .addProperty("name", "#{jobParameters['name']}")
+                        .addProperty("other-name", "renamed")
+                        .addProperty("inherited", "inherited")
+                        .build())
+                .setProcessor(new ArtifactBuilder().setRef("processor").build())
+                .setWriter(new ArtifactBuilder().setRef("writer").build())
+                .build();
+        Properties jobParameters = new Properties();
+        jobParameters.setProperty("name", "value");
+        stepContext = ThreadContext.getInstance().createStepContext(step, null);
+        stepContext.setResolvedProperties(JobUtil.resolve(step, jobParameters));
+    }
+
+    @After
+    public void tearDown() {
+        ThreadContext.getInstance().removeStepContext();
+    }
+
+    @Test
+    public void testPlanIsCached() {
+        assertSame(InjectionPlan.get(Artifact.class), InjectionPlan.get(Artifact.class));
+        assertNotSame(InjectionPlan.get(Artifact.class), InjectionPlan.get(BaseArtifact.class));
+    }
+
+    @Test
+    public void testInject() throws Exception {
+        InjectionPlan plan = InjectionPlan.get(Artifact.class);
+        Artifact artifact = (Artifact) plan.newInstance();
+        plan.inject(artifact, "reader", ThreadContext.getInstance());
+        assertSame(stepContext, artifact.stepContext);
+        // no job context on this thread
+        assertNull(artifact.jobContext);
+        // properties are the resolved ones
+        assertEquals("value", artifact.name);
+        assertEquals("renamed", artifact.renamed);
+        assertEquals("inherited", artifact.getInherited());
+        // a property which is not defined keeps its value
+        assertEquals("default", artifact.undefined);
+    }
+
+    @Test
+    public void testInjectArtifactWithoutProperty() throws Exception {
+        InjectionPlan plan = InjectionPlan.get(Artifact.class);
+        Artifact artifact = (Artifact) plan.newInstance();
+        plan.inject(artifact, "writer", ThreadContext.getInstance());
+        assertSame(stepContext, artifact.stepContext);
+        assertNull(artifact.name);
+        assertEquals("default", artifact.undefined);
+    }
+
+    @Test
+    public void testNotPublicClass() throws Exception {
+        InjectionPlan plan = InjectionPlan.get(NotPublicArtifact.class);
+        NotPublicArtifact artifact = (NotPublicArtifact) plan.newInstance();
+        plan.inject(artifact, "reader", ThreadContext.getInstance());
+        assertEquals("value", artifact.name);
+    }
+
+    @Test(expected = JabatRuntimeException.class)
+    public void testInjectPropertiesWithoutContext() throws Exception {
+        ThreadContext.getInstance().removeStepContext();
+        InjectionPlan plan = InjectionPlan.get(Artifact.class);
+        plan.inject(plan.newInstance(), "reader", ThreadContext.getInstance());
+    }
+
+    @Test(expected = JabatRuntimeException.class)
+    public void testNoDefaultConstructor() {
+        InjectionPlan.get(NoDefaultConstructorArtifact.class).newInstance();
+    }
+
+    @Test(expected = JabatRuntimeException.class)
+    public void testFinalProperty() {
+        InjectionPlan.get(FinalPropertyArtifact.class);
+    }
+
+    @Test(expected = JabatRuntimeException.class)
+    public void testNotStringProperty() {
+        InjectionPlan.get(NotStringPropertyArtifact.class);
+    }
+
+    @Test(expected = JabatRuntimeException.class)
+    public void testWrongContextType() {
+        InjectionPlan.get(WrongContextArtifact.class);
+    }
+
+}
@@ -0,0 +1,176 @@
+/*
+ * Copyright 2013 Geoffroy Jamgotchian <geoffroy.jamgotchian at gmail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.jamgotchian.jabat.runtime.metric;
+
+import org.junit.After;
+import static org.junit.Assert.*;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ *
+ * @author Geoffroy Jamgotchian <geoffroy.jamgotchian at gmail.com>
+ */
+public class LatencyHistogramTest {
+
+    public LatencyHistogramTest() {
+    }
+
+    @Before
+    public void setUp() {
+    }
+
+    @After
+    public void tearDown() {
+    }
+
+    @Test
+    public void testSmallValueBuckets() {
+        // values below the sub-bucket count are exact
+        for (int i = 0; i < 16; i++) {
+            assertEquals(i, LatencyHistogram.getBucket(i));
+            assertEquals(i, LatencyHistogram.getBucketUpperBound(i));
+        }
+        // from 16, a bucket holds 2 values, then 4 from 32...
+        assertEquals(16, LatencyHistogram.getBucket(16));
+        assertEquals(16, LatencyHistogram.getBucket(17));
+        assertEquals(17, LatencyHistogram.getBucketUpperBound(16));
+        assertEquals(17, LatencyHistogram.getBucket(18));
+        assertEquals(24, LatencyHistogram.getBucket(32));
+        assertEquals(24, LatencyHistogram.getBucket(35));
+        assertEquals(35, LatencyHistogram.getBucketUpperBound(24));
+    }
+
+    @Test
+    public void testBucketBounds() {
+        long[] values = {100, 999, 1000, 1024, 123456, 1000000, 987654321, 1L << 40, (1L << 40) + 1,
+                         Long.MAX_VALUE / 3, Long.MAX_VALUE};
+        for (long value : values) {
+            int bucket = LatencyHistogram.getBucket(value);
+            long upperBound = LatencyHistogram.getBucketUpperBound(bucket);
+            // the upper bound is within 12.5% of the value
+            assertTrue(upperBound >= value);
+            assertTrue(upperBound - value <= value / 8);
+            // and the next value falls in the next bucket
+            if (upperBound < Long.MAX_VALUE) {
+                assertEquals(bucket + 1, LatencyHistogram.getBucket(upperBound + 1));
+            }
+        }
+        assertEquals(Long.MAX_VALUE,
+                     LatencyHistogram.getBucketUpperBound(LatencyHistogram.getBucket(Long.MAX_VALUE)));
+    }
+
+    @Test
+    public void testBucketsAreContiguous() {
+        long previousUpperBound = -1;
+        for (int bucket = 0; bucket <= LatencyHistogram.getBucket(Long.MAX_VALUE); bucket++) {
+            long upperBound = LatencyHistogram.getBucketUpperBound(bucket);
+            assertTrue(upperBound > previousUpperBound);
+            assertEquals(bucket, LatencyHistogram.getBucket(previousUpperBound + 1));
+            assertEquals(bucket, LatencyHistogram.getBucket(upperBound));
+            previousUpperBound = upperBound;
+        }
+        assertEquals(Long.MAX_VALUE, previousUpperBound);
+    }
+
+    @Test
+    public void testEmpty() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getMax());
+        assertEquals(0, histogram.getP50());
+        assertEquals(0, histogram.getP99());
+    }
+
+    @Test
+    public void testPercentiles() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        // 1 to 1000 us
+        for (int i = 1000; i >= 1; i--) {
+            histogram.record(i * 1000L);
+        }
+        assertEquals(1000, histogram.getCount());
+        assertEquals(1000000, histogram.getMax());
+        long p50 = histogram.getP50();
+        assertTrue(p50 >= 500000 && p50 <= 500000 + 500000 / 8);
+        long p99 = histogram.getP99();
+        assertTrue(p99 >= 990000 && p99 <= 990000 + 990000 / 8);
+        // bounded by the exact maximum
+        assertEquals(1000000, histogram.getPercentile(100));
+        // upper bound of the bucket of the minimum
+        assertEquals(1023, histogram.getPercentile(0));
+    }
+
+    @Test
+    public void testPercentileBoundedByMax() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(1000);
+        // the upper bound of the bucket of 1000 is 1023
+        assertEquals(1000, histogram.getP50());
+        assertEquals(1000, histogram.getP99());
+    }
+
+    @Test
+    public void testNegativeValue() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(-5);
+        assertEquals(1, histogram.getCount());
+        assertEquals(0, histogram.getMax());
+        assertEquals(0, histogram.getP99());
+    }
+
+    @Test
+    public void testAdd() {
+        LatencyHistogram histogram1 = new LatencyHistogram();
+        LatencyHistogram histogram2 = new LatencyHistogram();
+        for (int i = 0; i < 99; i++) {
+            histogram1.record(10);
+        }
+        histogram2.record(5000);
+        histogram1.add(histogram2);
+        assertEquals(100, histogram1.getCount());
+        assertEquals(5000, histogram1.getMax());
+        assertEquals(10, histogram1.getP50());
+        assertEquals(10, histogram1.getP99());
+        assertEquals(5000, histogram1.getPercentile(100));
+        // the added histogram is unchanged
+        assertEquals(1, histogram2.getCount());
+    }
+
+    @Test
+    public void testMergedPartitionLatencies() {
+        StepMetrics metrics = new StepMetrics(2, true);
+        metrics.getPartition(0).recordLatency(ChunkPhase.READ, 100);
+        metrics.getPartition(1).recordLatency(ChunkPhase.READ, 200);
+        metrics.getPartition(1).recordLatency(ChunkPhase.WRITE, 300);
+        LatencyHistogram read = metrics.getLatency(ChunkPhase.READ);
+        assertEquals(2, read.getCount());
+        assertEquals(200, read.getMax());
+        assertEquals(1, metrics.getLatency(ChunkPhase.WRITE).getCount());
+        assertEquals(0, metrics.getLatency(ChunkPhase.COMMIT).getCount());
+        // latency recording disabled
+        StepMetrics notRecorded = new StepMetrics(2, false);
+        notRecorded.getPartition(0).recordLatency(ChunkPhase.READ, 100);
+        assertNull(notRecorded.getLatency(ChunkPhase.READ));
+        assertNull(notRecorded.getPartition(0).getLatency(ChunkPhase.READ));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidPercentile() {
+        new LatencyHistogram().getPercentile(101);
+    }
+
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright 2013 Geoffroy Jamgotchian <geoffroy.jamgotchian at gmail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.jamgotchian.jabat.runtime.metric;
+
+import fr.jamgotchian.jabat.runtime.repository.impl.MetricImpl;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import javax.batch.runtime.Metric.MetricName;
+import org.junit.After;
+import static org.junit.Assert.*;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ *
+ * @author Geoffroy Jamgotchian <geoffroy.jamgotchian at gmail.com>
+ */
+public class StepMetricsTest {
+
+    public StepMetricsTest() {
+    }
+
+    @Before
+    public void setUp() {
+    }
+
+    @After
+    public void tearDown() {
+    }
+
+    @Test
+    public void testSinglePartition() {
+        StepMetrics metrics = new StepMetrics();
+        assertEquals(1, metrics.getPartitionCount());
+        assertFalse(metrics.isLatencyRecorded());
+        metrics.getPartition(0).increment(MetricName.READCOUNT);
+        metrics.getPartition(0).add(MetricName.WRITECOUNT, 3);
+        assertEquals(1, metrics.get(MetricName.READCOUNT));
+        assertEquals(3, metrics.get(MetricName.WRITECOUNT));
+        assertEquals(0, metrics.get(MetricName.COMMITCOUNT));
+    }
+
+    @Test
+    public void testAggregation() {
+        StepMetrics metrics = new StepMetrics(3, false);
+        metrics.getPartition(0).add(MetricName.READCOUNT, 10);
+        metrics.getPartition(1).add(MetricName.READCOUNT, 20);
+        metrics.getPartition(2).add(MetricName.READCOUNT, 30);
+        metrics.getPartition(1).increment(MetricName.ROLLBACKCOUNT);
+        // each partition keeps its own counters
+        assertEquals(10, metrics.getPartition(0).get(MetricName.READCOUNT));
+        assertEquals(20, metrics.getPartition(1).get(MetricName.READCOUNT));
+        assertEquals(0, metrics.getPartition(0).get(MetricName.ROLLBACKCOUNT));
+        // and the step sums them
+        assertEquals(60, metrics.get(MetricName.READCOUNT));
+        assertEquals(1, metrics.get(MetricName.ROLLBACKCOUNT));
+    }
+
+    @Test
+    public void testToArray() {
+        StepMetrics metrics = new StepMetrics(2, false);
+        metrics.getPartition(0).add(MetricName.FILTERCOUNT, 2);
+        metrics.getPartition(1).add(MetricName.FILTERCOUNT, 5);
+        MetricImpl[] array = metrics.toArray();
+        assertEquals(MetricName.values().length, array.length);
+        assertEquals("filterCount", array[MetricName.FILTERCOUNT.ordinal()].getName());
+        assertEquals(7, array[MetricName.FILTERCOUNT.ordinal()].getValue());
+        assertEquals("readCount", array[MetricName.READCOUNT.ordinal()].getName());
+        assertEquals(0, array[MetricName.READCOUNT.ordinal()].getValue());
+        MetricImpl[] partitionArray = metrics.getPartition(1).toArray();
+        assertEquals(5, partitionArray[MetricName.FILTERCOUNT.ordinal()].getValue());
+    }
+
+    @Test
+    public void testConcurrentUpdates() throws Exception {
+        final int partitionCount = 4;
+        final int threadsPerPartition = 2;
+        final int incrementCount = 10000;
+        final StepMetrics metrics = new StepMetrics(partitionCount, false);
+        final CountDownLatch startLatch = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < partitionCount * threadsPerPartition; i++) {
+            final StepMetrics.PartitionMetrics partition = metrics.getPartition(i % partitionCount);
+            Thread thread = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        startLatch.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (int j = 0; j < incrementCount; j++) {
+                        partition.increment(MetricName.READCOUNT);
+                        partition.add(MetricName.WRITECOUNT, 2);
+                    }
+                }
+            };
+            thread.start();
+            threads.add(thread);
+        }
+        startLatch.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        for (int i = 0; i < partitionCount; i++) {
+            assertEquals(threadsPerPartition * incrementCount, metrics.getPartition(i).get(MetricName.READCOUNT));
+        }
+        assertEquals(partitionCount * threadsPerPartition * incrementCount, metrics.get(MetricName.READCOUNT));
+        assertEquals(2L * partitionCount * threadsPerPartition * incrementCount, metrics.get(MetricName.WRITECOUNT));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNoPartition() {
+        new StepMetrics(0, false);
+    }
+
+}
@@ -0,0 +1,389 @@
+/*
+ * Copyright 2013 Geoffroy Jamgotchian <geoffroy.jamgotchian at gmail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.jamgotchian.jabat.runtime.repository.impl;
+
+import fr.jamgotchian.jabat.jobxml.model.ArtifactBuilder;
+import fr.jamgotchian.jabat.jobxml.model.BatchletStepBuilder;
+import fr.jamgotchian.jabat.jobxml.model.Job;
+import fr.jamgotchian.jabat.jobxml.model.JobBuilder;
+import fr.jamgotchian.jabat.jobxml.model.Node;
+import fr.jamgotchian.jabat.jobxml.model.Step;
+import fr.jamgotchian.jabat.runtime.repository.BatchStatus;
+import fr.jamgotchian.jabat.runtime.repository.JabatJobExecution;
+import fr.jamgotchian.jabat.runtime.repository.JabatJobInstance;
+import fr.jamgotchian.jabat.runtime.repository.JabatStepExecution;
+import fr.jamgotchian.jabat.runtime.repository.JobInstanceEvictionListener;
+import fr.jamgotchian.jabat.runtime.util.JabatRuntimeException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import javax.batch.runtime.Metric.MetricName;
+import org.junit.After;
+import static org.junit.Assert.*;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ *
+ * @author Geoffroy Jamgotchian <geoffroy.jamgotchian at gmail.com>
+ */
+public class CompactJobRepositoryTest {
+
+    private Step step1;
+
+    private Step step2;
+
+    private Step step3;
+
+    private Job job1;
+
+    private Job job2;
+
+    private CompactJobRepository repository;
+
+    public CompactJobRepositoryTest() {
+    }
+
+    @Before
+    public void setUp() {
+        step1 = new BatchletStepBuilder()
+                .setId("step1")
+                .setArtifact(new ArtifactBuilder().setRef("batchlet").build())
+                .build();
+        step2 = new BatchletStepBuilder()
+                .setId("step2")
+                .setArtifact(new ArtifactBuilder().setRef("batchlet").build())
+                .build();
+        step3 = new BatchletStepBuilder()
+                .setId("step3")
+                .setArtifact(new ArtifactBuilder().setRef("batchlet").build())
+                .build();
+        job1 = new JobBuilder().setId("job1").addStep(step1).addStep(step2).build();
+        job2 = new JobBuilder().setId("job2").addStep(step3).build();
+        repository = new CompactJobRepository();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        repository.shutdown();
+        repository = null;
+    }
+
+    private void initialize(int maxInstancesPerJob, long maxAge) throws Exception {
+        Properties configuration = new Properties();
+        configuration.setProperty(CompactJobRepository.MAX_INSTANCES_PER_JOB_KEY, Integer.toString(maxInstancesPerJob));
+        configuration.setProperty(CompactJobRepository.MAX_AGE_KEY, Long.toString(maxAge));
+        repository.initialize(configuration);
+    }
+
+    private JabatJobExecution start(JabatJobInstance jobInstance, Job job) {
+        JabatJobExecution jobExecution = repository.createJobExecution(jobInstance, new Properties());
+        jobExecution.setStatus(BatchStatus.STARTED);
+        jobExecution.setStartTime(new Date());
+        for (Node node : job.getNodes()) {
+            repository.createStepExecution((Step) node, jobExecution);
+        }
+        return jobExecution;
+    }
+
+    private JabatJobExecution start(Job job) {
+        return start(repository.createJobInstance(job), job);
+    }
+
+    private void end(JabatJobExecution jobExecution, Date endTime) {
+        for (long stepExecutionId : jobExecution.getStepExecutionIds()) {
+            JabatStepExecution stepExecution = repository.getStepExecution(stepExecutionId);
+            stepExecution.setStatus(BatchStatus.COMPLETED);
+            stepExecution.setExitStatus("COMPLETED");
+            stepExecution.setEndTime(endTime);
+        }
+        jobExecution.setStatus(BatchStatus.COMPLETED);
+        jobExecution.setExitStatus("COMPLETED");
+        jobExecution.setEndTime(endTime);
+        repository.jobExecutionEnded(jobExecution);
+    }
+
+    private void end(JabatJobExecution jobExecution) {
+        end(jobExecution, new Date());
+    }
+
+    private long getInstanceId(JabatJobExecution jobExecution) {
+        for (String jobId : repository.getJobIds()) {
+            for (long instanceId : repository.getJobInstanceIds(jobId)) {
+                if (repository.getJobInstance(instanceId).getExecutionIds().contains(jobExecution.getId())) {
+                    return instanceId;
+                }
+            }
+        }
+        return -1;
+    }
+
+    @Test(expected = JabatRuntimeException.class)
+    public void testNoInstanceRetained() throws Exception {
+        initialize(0, -1);
+    }
+
+    @Test
+    public void testRetentionByCount() throws Exception {
+        initialize(2, -1);
+        JabatJobExecution e1 = start(job1);
+        long i1 = getInstanceId(e1);
+        end(e1);
+        JabatJobExecution e2 = start(job1);
+        long i2 = getInstanceId(e2);
+        end(e2);
+        JabatJobExecution other = start(job2);
+        long otherId = getInstanceId(other);
+        end(other);
+        assertEquals(Arrays.asList(i1, i2), repository.getJobInstanceIds("job1"));
+
+        JabatJobExecution e3 = start(job1);
+        long i3 = getInstanceId(e3);
+        // retained while running
+        assertEquals(3, repository.getJobInstanceCount("job1"));
+        end(e3);
+        // the oldest instance is evicted with its executions
+        assertEquals(Arrays.asList(i2, i3), repository.getJobInstanceIds("job1"));
+        assertNull(repository.getJobInstance(i1));
+        assertNull(repository.getJobExecution(e1.getId()));
+        for (long stepExecutionId : e1.getStepExecutionIds()) {
+            assertNull(repository.getStepExecution(stepExecutionId));
+        }
+        assertNotNull(repository.getJobExecution(e2.getId()));
+        // the instances of the other jobs are not counted
+        assertEquals(Arrays.asList(otherId), repository.getJobInstanceIds("job2"));
+    }
+
+    @Test
+    public void testRetentionByAge() throws Exception {
+        long maxAge = TimeUnit.MINUTES.toMillis(1);
+        initialize(-1, maxAge);
+        JabatJobExecution recent = start(job1);
+        long recentId = getInstanceId(recent);
+        end(recent);
+        JabatJobExecution old = start(job1);
+        long oldId = getInstanceId(old);
+        end(old, new Date(System.currentTimeMillis() - 2 * maxAge));
+        // instances are evicted oldest first, the recent one stops the
+        // eviction of the old one created after it
+        assertEquals(Arrays.asList(recentId, oldId), repository.getJobInstanceIds("job1"));
+    }
+
+    @Test
+    public void testExpiredInstancesEvicted() throws Exception {
+        long maxAge = TimeUnit.MINUTES.toMillis(1);
+        initialize(-1, maxAge);
+        JabatJobExecution e1 = start(job1);
+        long i1 = getInstanceId(e1);
+        JabatJobExecution e2 = start(job1);
+        long i2 = getInstanceId(e2);
+        end(e1, new Date(System.currentTimeMillis() - 2 * maxAge));
+        // the first instance has expired, the second one is running
+        assertEquals(Arrays.asList(i2), repository.getJobInstanceIds("job1"));
+        assertNull(repository.getJobInstance(i1));
+        end(e2);
+        assertEquals(Arrays.asList(i2), repository.getJobInstanceIds("job1"));
+    }
+
+    @Test
+    public void testRunningInstanceNotEvicted() throws Exception {
+        initialize(1, -1);
+        JabatJobExecution running = start(job1);
+        long runningId = getInstanceId(running);
+        JabatJobExecution e2 = start(job1);
+        long i2 = getInstanceId(e2);
+        JabatJobExecution e3 = start(job1);
+        long i3 = getInstanceId(e3);
+        end(e2);
+        end(e3);
+        // neither the running instance nor the instances created after it
+        // are evicted
+        assertEquals(Arrays.asList(runningId, i2, i3), repository.getJobInstanceIds("job1"));
+        assertSame(running, repository.getJobExecution(running.getId()));
+
+        end(running);
+        assertEquals(Arrays.asList(i3), repository.getJobInstanceIds("job1"));
+        assertNull(repository.getJobExecution(running.getId()));
+        assertNull(repository.getJobExecution(e2.getId()));
+    }
+
+    @Test
+    public void testRecordRebuilt() throws Exception {
+        initialize(-1, -1);
+        JabatJobInstance jobInstance = repository.createJobInstance(job1);
+        Properties jobParameters = new Properties();
+        jobParameters.setProperty("file", "input.txt");
+        JabatJobExecution jobExecution = repository.createJobExecution(jobInstance, jobParameters);
+        jobExecution.setStartTime(new Date(1000));
+        JabatStepExecution stepExecution = repository.createStepExecution(step1, jobExecution);
+        stepExecution.getStepMetrics().getPartition(0).add(MetricName.READCOUNT, 5);
+        stepExecution.setUserPersistentData("data");
+        stepExecution.setStatus(BatchStatus.FAILED);
+        stepExecution.setExitStatus("BROKEN");
+        stepExecution.setEndTime(new Date(2000));
+        jobExecution.setStatus(BatchStatus.FAILED);
+        jobExecution.setExitStatus("BROKEN");
+        jobExecution.setEndTime(new Date(3000));
+        repository.jobExecutionEnded(jobExecution);
+
+        JabatJobExecution record = repository.getJobExecution(jobExecution.getId());
+        assertNotSame(jobExecution, record);
+        assertEquals(BatchStatus.FAILED, record.getStatusEnum());
+        assertEquals("BROKEN", record.getExitStatus());
+        assertEquals(new Date(1000), record.getStartTime());
+        assertEquals(new Date(3000), record.getEndTime());
+        assertEquals(jobExecution.getCreateTime(), record.getCreateTime());
+        assertEquals(jobParameters, record.getJobParameters());
+        assertEquals(Arrays.asList(stepExecution.getId()), record.getStepExecutionIds());
+
+        JabatStepExecution stepRecord = repository.getStepExecution(stepExecution.getId());
+        assertNotSame(stepExecution, stepRecord);
+        assertEquals("step1", stepRecord.getStepName());
+        assertEquals(BatchStatus.FAILED, stepRecord.getStatusEnum());
+        assertEquals("BROKEN", stepRecord.getExitStatus());
+        assertEquals(new Date(2000), stepRecord.getEndTime());
+        assertEquals("data", stepRecord.getUserPersistentData());
+        assertEquals(5, stepRecord.getStepMetrics().get(MetricName.READCOUNT));
+    }
+
+    @Test
+    public void testRestart() throws Exception {
+        initialize(1, -1);
+        JabatJobInstance jobInstance = repository.createJobInstance(job1);
+        JabatJobExecution first = start(jobInstance, job1);
+        end(first);
+        JabatJobExecution restart = start(jobInstance, job1);
+        assertEquals(Arrays.asList(first.getId(), restart.getId()), jobInstance.getExecutionIds());
+        // the ended execution is rebuilt from the history, the restart is
+        // the running object
+        assertEquals(BatchStatus.COMPLETED, repository.getJobExecution(first.getId()).getStatusEnum());
+        assertSame(restart, repository.getJobExecution(restart.getId()));
+
+        // the restarted instance is running, it is not evicted
+        JabatJobExecution other = start(job1);
+        end(other);
+        assertSame(jobInstance, repository.getJobInstance(jobInstance.getInstanceId()));
+
+        end(restart);
+        assertNull(repository.getJobInstance(jobInstance.getInstanceId()));
+        assertNull(repository.getJobExecution(first.getId()));
+        assertNull(repository.getJobExecution(restart.getId()));
+        // no execution of an evicted instance
+        assertNull(repository.createJobExecution(jobInstance, new Properties()));
+    }
+
+    @Test
+    public void testEndedSetters() throws Exception {
+        initialize(-1, -1);
+        JabatJobExecution jobExecution = start(job2);
+        end(jobExecution);
+        JabatJobExecution record = repository.getJobExecution(jobExecution.getId());
+        JabatStepExecution stepRecord = repository.getStepExecution(jobExecution.getStepExecutionIds().get(0));
+        try {
+            record.setStatus(BatchStatus.FAILED);
+            fail();
+        } catch (UnsupportedOperationException e) {
+        }
+        try {
+            record.setEndTime(new Date());
+            fail();
+        } catch (UnsupportedOperationException e) {
+        }
+        try {
+            record.setExitStatus("FAILED");
+            fail();
+        } catch (UnsupportedOperationException e) {
+        }
+        try {
+            stepRecord.setStatus(BatchStatus.FAILED);
+            fail();
+        } catch (UnsupportedOperationException e) {
+        }
+        try {
+            stepRecord.setUserPersistentData("data");
+            fail();
+        } catch (UnsupportedOperationException e) {
+        }
+        try {
+            stepRecord.setExitStatus("FAILED");
+            fail();
+        } catch (UnsupportedOperationException e) {
+        }
+        // the stored record is unchanged
+        assertEquals(BatchStatus.COMPLETED, repository.getJobExecution(jobExecution.getId()).getStatusEnum());
+    }
+
+    @Test
+    public void testJobExecutionNotRunning() throws Exception {
+        initialize(-1, -1);
+        JabatJobExecution jobExecution = start(job2);
+        end(jobExecution);
+        try {
+            repository.jobExecutionEnded(jobExecution);
+            fail();
+        } catch (JabatRuntimeException e) {
+        }
+    }
+
+    @Test
+    public void testEvictionListener() throws Exception {
+        initialize(1, -1);
+        final List<Long> evictedInstanceIds = new ArrayList<Long>();
+        final List<Long> evictedStepExecutionIds = new ArrayList<Long>();
+        repository.setEvictionListener(new JobInstanceEvictionListener() {
+
+            @Override
+            public void jobInstanceEvicted(JabatJobInstance jobInstance, List<Long> stepExecutionIds) {
+                evictedInstanceIds.add(jobInstance.getInstanceId());
+                evictedStepExecutionIds.addAll(stepExecutionIds);
+            }
+        });
+        JabatJobInstance jobInstance = repository.createJobInstance(job1);
+        JabatJobExecution first = start(jobInstance, job1);
+        end(first);
+        JabatJobExecution restart = start(jobInstance, job1);
+        end(restart);
+        assertTrue(evictedInstanceIds.isEmpty());
+
+        end(start(job1));
+        assertEquals(Arrays.asList(jobInstance.getInstanceId()), evictedInstanceIds);
+        List<Long> expected = new ArrayList<Long>(first.getStepExecutionIds());
+        expected.addAll(restart.getStepExecutionIds());
+        assertEquals(expected, evictedStepExecutionIds);
+    }
+
+    @Test
+    public void testFailingEvictionListener() throws Exception {
+        initialize(1, -1);
+        repository.setEvictionListener(new JobInstanceEvictionListener() {
+
+            @Override
+            public void jobInstanceEvicted(JabatJobInstance jobInstance, List<Long> stepExecutionIds) {
+                throw new IllegalStateException();
+            }
+        });
+        JabatJobExecution e1 = start(job1);
+        end(e1);
+        JabatJobExecution e2 = start(job1);
+        // the failure of the listener is logged, the eviction is done
+        end(e2);
+        assertEquals(Arrays.asList(getInstanceId(e2)), repository.getJobInstanceIds("job1"));
+    }
+
+}
@@ -0,0 +1,293 @@
+/*
+ * Copyright 2013 Geoffroy Jamgotchian <geoffroy.jamgotchian at gmail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.jamgotchian.jabat.runtime.repository.impl;
+
+import fr.jamgotchian.jabat.jobxml.model.ArtifactBuilder;
+import fr.jamgotchian.jabat.jobxml.model.BatchletStepBuilder;
+import fr.jamgotchian.jabat.jobxml.model.Job;
+import fr.jamgotchian.jabat.jobxml.model.JobBuilder;
+import fr.jamgotchian.jabat.jobxml.model.Step;
+import fr.jamgotchian.jabat.runtime.repository.BatchStatus;
+import fr.jamgotchian.jabat.runtime.repository.JabatJobExecution;
+import fr.jamgotchian.jabat.runtime.repository.JabatJobInstance;
+import fr.jamgotchian.jabat.runtime.repository.JabatStepExecution;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.junit.After;
+import static org.junit.Assert.*;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ *
+ * @author Geoffroy Jamgotchian <geoffroy.jamgotchian at gmail.com>
+ */
+public class ConcurrentJobRepositoryTest {
+
+    private static final int THREADS = 8;
+
+    private static final int INSTANCES_PER_THREAD = 500;
+
+    private static final int STEPS_PER_EXECUTION = 3;
+
+    private Job[] jobs;
+
+    private Step[] steps;
+
+    private ConcurrentJobRepository repository;
+
+    private ExecutorService executor;
+
+    public ConcurrentJobRepositoryTest() {
+    }
+
+    @Before
+    public void setUp() {
+        steps = new Step[STEPS_PER_EXECUTION];
+        for (int i = 0; i < steps.length; i++) {
+            steps[i] = new BatchletStepBuilder()
+                    .setId("step" + i)
+                    .setArtifact(new ArtifactBuilder().setRef("batchlet").build())
+                    .build();
+        }
+        jobs = new Job[] {
+            new JobBuilder().setId("job1").addStep(steps[0]).build(),
+            new JobBuilder().setId("job2").addStep(steps[1]).build()
+        };
+        repository = new ConcurrentJobRepository();
+        // one more thread to list the repository while it is filled
+        executor = Executors.newFixedThreadPool(THREADS + 1);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        executor.shutdownNow();
+        executor.awaitTermination(10, TimeUnit.SECONDS);
+        repository = null;
+    }
+
+    @Test
+    public void testConcurrentCreation() throws Exception {
+        final CountDownLatch startLatch = new CountDownLatch(1);
+        final AtomicBoolean writing = new AtomicBoolean(true);
+        List<Future<List<JabatJobInstance>>> writers = new ArrayList<Future<List<JabatJobInstance>>>();
+        for (int t = 0; t < THREADS; t++) {
+            final Job job = jobs[t % jobs.length];
+            writers.add(executor.submit(new Callable<List<JabatJobInstance>>() {
+
+                @Override
+                public List<JabatJobInstance> call() throws Exception {
+                    startLatch.await();
+                    List<JabatJobInstance> instances = new ArrayList<JabatJobInstance>();
+                    for (int i = 0; i < INSTANCES_PER_THREAD; i++) {
+                        JabatJobInstance jobInstance = repository.createJobInstance(job);
+                        JabatJobExecution jobExecution = repository.createJobExecution(jobInstance, new Properties());
+                        for (Step step : steps) {
+                            repository.createStepExecution(step, jobExecution);
+                        }
+                        instances.add(jobInstance);
+                    }
+                    return instances;
+                }
+            }));
+        }
+        Future<Integer> reader = executor.submit(new Callable<Integer>() {
+
+            @Override
+            public Integer call() throws Exception {
+                startLatch.await();
+                int listings = 0;
+                while (writing.get()) {
+                    for (String jobId : repository.getJobIds()) {
+                        List<Long> instanceIds = repository.getJobInstanceIds(jobId);
+                        // a snapshot does not change and only lists retrievable instances
+                        int size = instanceIds.size();
+                        for (long instanceId : instanceIds) {
+                            JabatJobInstance jobInstance = repository.getJobInstance(instanceId);
+                            assertNotNull(jobInstance);
+                            assertEquals(jobId, jobInstance.getJobName());
+                            for (long executionId : jobInstance.getExecutionIds()) {
+                                assertNotNull(repository.getJobExecution(executionId));
+                            }
+                        }
+                        assertEquals(size, instanceIds.size());
+                        listings++;
+                    }
+                }
+                return listings;
+            }
+        });
+
+        startLatch.countDown();
+        Set<Long> instanceIds = new HashSet<Long>();
+        Set<Long> executionIds = new HashSet<Long>();
+        Set<Long> stepExecutionIds = new HashSet<Long>();
+        try {
+            for (Future<List<JabatJobInstance>> writer : writers) {
+                for (JabatJobInstance jobInstance : writer.get(60, TimeUnit.SECONDS)) {
+                    assertTrue(instanceIds.add(jobInstance.getInstanceId()));
+                    assertEquals(1, jobInstance.getExecutionIds().size());
+                    long executionId = jobInstance.getLastExecutionId();
+                    assertTrue(executionIds.add(executionId));
+                    JabatJobExecution jobExecution = repository.getJobExecution(executionId);
+                    assertEquals(STEPS_PER_EXECUTION, jobExecution.getStepExecutionIds().size());
+                    int i = 0;
+                    for (long stepExecutionId : jobExecution.getStepExecutionIds()) {
+                        assertTrue(stepExecutionIds.add(stepExecutionId));
+                        JabatStepExecution stepExecution = repository.getStepExecution(stepExecutionId);
+                        assertEquals(steps[i++].getId(), stepExecution.getStepName());
+                    }
+                }
+            }
+        } finally {
+            writing.set(false);
+        }
+        assertTrue(reader.get(60, TimeUnit.SECONDS) > 0);
+
+        // ids are unique and none has been lost
+        int instanceCount = THREADS * INSTANCES_PER_THREAD;
+        assertEquals(instanceCount, instanceIds.size());
+        assertEquals(instanceCount, executionIds.size());
+        assertEquals(instanceCount * STEPS_PER_EXECUTION, stepExecutionIds.size());
+        for (long id = 0; id < instanceCount; id++) {
+            assertTrue(instanceIds.contains(id));
+            assertTrue(executionIds.contains(id));
+        }
+
+        // each instance is listed exactly once under its job
+        assertEquals(jobs.length, repository.getJobIds().size());
+        Set<Long> listedIds = new HashSet<Long>();
+        for (Job job : jobs) {
+            List<Long> ids = repository.getJobInstanceIds(job.getId());
+            assertEquals(instanceCount / jobs.length, ids.size());
+            listedIds.addAll(ids);
+        }
+        assertEquals(instanceIds, listedIds);
+        assertNull(repository.getJobInstanceIds("unknown"));
+    }
+
+    @Test
+    public void testSnapshotIsImmutable() {
+        JabatJobInstance jobInstance = repository.createJobInstance(jobs[0]);
+        List<Long> snapshot = repository.getJobInstanceIds(jobs[0].getId());
+        repository.createJobInstance(jobs[0]);
+        assertEquals(1, snapshot.size());
+        assertEquals(Long.valueOf(jobInstance.getInstanceId()), snapshot.get(0));
+        assertEquals(2, repository.getJobInstanceIds(jobs[0].getId()).size());
+        try {
+            snapshot.add(3L);
+            fail();
+        } catch (UnsupportedOperationException e) {
+        }
+    }
+
+    @Test
+    public void testQueries() throws Exception {
+        // instances 0 to 9 of job1 alternately completed and failed, 10 and 11
+        // running, created after a pause
+        List<JabatJobExecution> jobExecutions = new ArrayList<JabatJobExecution>();
+        for (int i = 0; i < 12; i++) {
+            if (i == 10) {
+                Thread.sleep(20);
+            }
+            JabatJobInstance jobInstance = repository.createJobInstance(jobs[0]);
+            JabatJobExecution jobExecution = repository.createJobExecution(jobInstance, new Properties());
+            if (i < 10) {
+                jobExecution.setStatus(i % 2 == 0 ? BatchStatus.COMPLETED : BatchStatus.FAILED);
+                repository.jobExecutionEnded(jobExecution);
+            } else {
+                jobExecution.setStatus(BatchStatus.STARTED);
+            }
+            jobExecutions.add(jobExecution);
+        }
+        repository.createJobInstance(jobs[1]);
+
+        assertEquals(12, repository.getJobInstanceCount("job1"));
+        assertEquals(-1, repository.getJobInstanceCount("unknown"));
+        assertEquals(Arrays.asList(11L, 10L, 9L), repository.getJobInstanceIds("job1", 0, 3));
+        assertEquals(Arrays.asList(1L, 0L), repository.getJobInstanceIds("job1", 10, 5));
+        assertEquals(Collections.<Long>emptyList(), repository.getJobInstanceIds("job1", 12, 5));
+        assertNull(repository.getJobInstanceIds("unknown", 0, 5));
+
+        Set<BatchStatus> running = EnumSet.of(BatchStatus.STARTING, BatchStatus.STARTED, BatchStatus.STOPPING);
+        assertEquals(Arrays.asList(11L, 10L), repository.getJobInstanceIds("job1", running, 0, 5));
+        assertEquals(Arrays.asList(7L, 5L), repository.getJobInstanceIds("job1", EnumSet.of(BatchStatus.FAILED), 1, 2));
+        assertEquals(Arrays.asList(11L, 10L, 9L, 7L),
+                     repository.getJobInstanceIds("job1", EnumSet.of(BatchStatus.STARTED, BatchStatus.FAILED), 0, 4));
+        // an instance without execution has no status
+        assertEquals(Collections.<Long>emptyList(), repository.getJobInstanceIds("job2", running, 0, 5));
+
+        // a restart moves the instance from failed to running, then to completed
+        JabatJobInstance restarted = repository.getJobInstance(1L);
+        JabatJobExecution jobExecution = repository.createJobExecution(restarted, new Properties());
+        assertEquals(Arrays.asList(11L, 10L, 1L), repository.getJobInstanceIds("job1", running, 0, 5));
+        assertEquals(Arrays.asList(9L, 7L, 5L, 3L), repository.getJobInstanceIds("job1", EnumSet.of(BatchStatus.FAILED), 0, 5));
+        jobExecution.setStatus(BatchStatus.COMPLETED);
+        repository.jobExecutionEnded(jobExecution);
+        assertEquals(Arrays.asList(11L, 10L), repository.getJobInstanceIds("job1", running, 0, 5));
+        assertEquals(Arrays.asList(2L, 1L, 0L),
+                     repository.getJobInstanceIds("job1", EnumSet.of(BatchStatus.COMPLETED), 3, 5));
+
+        // the creation time of an instance is the one of its first execution
+        Date pause = jobExecutions.get(10).getCreateTime();
+        assertEquals(Arrays.asList(11L, 10L), repository.getJobInstanceIds("job1", pause, null, 0, 5));
+        assertEquals(Arrays.asList(9L, 8L), repository.getJobInstanceIds("job1", null, pause, 0, 2));
+        assertEquals(Arrays.asList(10L), repository.getJobInstanceIds("job1", pause, null, 1, 5));
+        assertEquals(12, repository.getJobInstanceIds("job1", null, null, 0, 20).size());
+        assertNull(repository.getJobInstanceIds("unknown", null, null, 0, 5));
+    }
+
+    @Test
+    public void testTimeRangeWithoutExecution() throws Exception {
+        // instances 0 and 2 executed, 1 and 3 never executed
+        List<JabatJobExecution> jobExecutions = new ArrayList<JabatJobExecution>();
+        for (int i = 0; i < 4; i++) {
+            JabatJobInstance jobInstance = repository.createJobInstance(jobs[0]);
+            if (i % 2 == 0) {
+                jobExecutions.add(repository.createJobExecution(jobInstance, new Properties()));
+            }
+            Thread.sleep(5);
+        }
+        Date first = jobExecutions.get(0).getCreateTime();
+        Date second = jobExecutions.get(1).getCreateTime();
+
+        // instances without execution have no creation time and are never
+        // listed, whatever the range
+        assertEquals(Arrays.asList(2L, 0L), repository.getJobInstanceIds("job1", null, null, 0, 10));
+        assertEquals(Arrays.asList(2L, 0L), repository.getJobInstanceIds("job1", first, null, 0, 10));
+        assertEquals(Arrays.asList(0L), repository.getJobInstanceIds("job1", first, second, 0, 10));
+        assertEquals(Arrays.asList(0L), repository.getJobInstanceIds("job1", null, second, 0, 10));
+        assertEquals(Arrays.asList(2L), repository.getJobInstanceIds("job1", second, null, 0, 10));
+        assertEquals(Arrays.asList(0L), repository.getJobInstanceIds("job1", null, null, 1, 10));
+        assertEquals(Arrays.asList(2L), repository.getJobInstanceIds("job1", null, null, 0, 1));
+        assertEquals(Collections.<Long>emptyList(), repository.getJobInstanceIds("job1", new Date(0), first, 0, 10));
+    }
+
+}
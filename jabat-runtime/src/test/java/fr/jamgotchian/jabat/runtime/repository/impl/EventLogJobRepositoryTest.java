@@ -0,0 +1,337 @@
+/*
+ * Copyright 2013 Geoffroy Jamgotchian <geoffroy.jamgotchian at gmail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.jamgotchian.jabat.runtime.repository.impl;
+
+import fr.jamgotchian.jabat.jobxml.model.ArtifactBuilder;
+import fr.jamgotchian.jabat.jobxml.model.BatchletStepBuilder;
+import fr.jamgotchian.jabat.jobxml.model.Job;
+import fr.jamgotchian.jabat.jobxml.model.JobBuilder;
+import fr.jamgotchian.jabat.jobxml.model.Step;
+import fr.jamgotchian.jabat.runtime.repository.BatchStatus;
+import fr.jamgotchian.jabat.runtime.repository.JabatJobExecution;
+import fr.jamgotchian.jabat.runtime.repository.JabatJobInstance;
+import fr.jamgotchian.jabat.runtime.repository.JabatStepExecution;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import javax.batch.runtime.Metric.MetricName;
+import org.junit.After;
+import static org.junit.Assert.*;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ *
+ * @author Geoffroy Jamgotchian <geoffroy.jamgotchian at gmail.com>
+ */
+public class EventLogJobRepositoryTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Job[] jobs;
+
+    private Step[] steps;
+
+    private Properties configuration;
+
+    private EventLogJobRepository repository;
+
+    public EventLogJobRepositoryTest() {
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        steps = new Step[2];
+        jobs = new Job[steps.length];
+        for (int i = 0; i < steps.length; i++) {
+            steps[i] = new BatchletStepBuilder()
+                    .setId("step")
+                    .setArtifact(new ArtifactBuilder().setRef("batchlet").build())
+                    .build();
+            jobs[i] = new JobBuilder().setId("job" + (i + 1)).addStep(steps[i]).build();
+        }
+        configuration = new Properties();
+        configuration.setProperty(EventLogJobRepository.DIRECTORY_KEY, folder.getRoot().getPath());
+        // small segments, compacted on demand by the tests
+        configuration.setProperty(EventLogJobRepository.SEGMENT_SIZE_KEY, "4096");
+        configuration.setProperty(EventLogJobRepository.COMPACTION_THRESHOLD_KEY, Long.toString(Long.MAX_VALUE));
+        configuration.setProperty(EventLogJobRepository.FLUSH_INTERVAL_KEY, "600000");
+        repository = new EventLogJobRepository();
+        repository.initialize(configuration);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        repository.shutdown();
+    }
+
+    private void reopen() throws Exception {
+        repository.shutdown();
+        repository = new EventLogJobRepository();
+        repository.initialize(configuration);
+    }
+
+    /**
+     * Create job instances and run an execution of each, the ones of odd
+     * index fail.
+     */
+    private void runJobs(List<JabatJobInstance> jobInstances, int instanceCount) {
+        int first = jobInstances.size();
+        for (int i = first; i < first + instanceCount; i++) {
+            JabatJobInstance jobInstance = repository.createJobInstance(jobs[i % jobs.length]);
+            Properties jobParameters = new Properties();
+            jobParameters.setProperty("i", Integer.toString(i));
+            JabatJobExecution jobExecution = repository.createJobExecution(jobInstance, jobParameters);
+            jobExecution.setStartTime(new Date());
+            jobExecution.setStatus(BatchStatus.STARTED);
+            JabatStepExecution stepExecution = repository.createStepExecution(steps[i % steps.length], jobExecution);
+            stepExecution.setStatus(BatchStatus.STARTED);
+            stepExecution.getStepMetrics().getPartition(0).add(MetricName.READCOUNT, i);
+            stepExecution.getCompletedPartitions().add(0);
+            BatchStatus status = i % 2 == 0 ? BatchStatus.COMPLETED : BatchStatus.FAILED;
+            stepExecution.setEndTime(new Date());
+            stepExecution.setStatus(status);
+            jobExecution.setEndTime(new Date());
+            jobExecution.setExitStatus(status.name());
+            jobExecution.setStatus(status);
+            repository.jobExecutionEnded(jobExecution);
+            jobInstances.add(jobInstance);
+        }
+    }
+
+    private void checkJobs(List<JabatJobInstance> jobInstances) {
+        assertEquals(new HashSet<String>(Arrays.asList("job1", "job2")), repository.getJobIds());
+        List<Long> listedIds = new ArrayList<Long>();
+        for (Job job : jobs) {
+            List<Long> ids = repository.getJobInstanceIds(job.getId());
+            assertEquals(new HashSet<Long>(ids).size(), ids.size());
+            listedIds.addAll(ids);
+        }
+        assertEquals(jobInstances.size(), listedIds.size());
+        for (int i = 0; i < jobInstances.size(); i++) {
+            JabatJobInstance expected = jobInstances.get(i);
+            assertTrue(listedIds.contains(expected.getInstanceId()));
+            JabatJobInstance jobInstance = repository.getJobInstance(expected.getInstanceId());
+            assertEquals(expected.getJobName(), jobInstance.getJobName());
+            assertEquals(expected.getExecutionIds(), jobInstance.getExecutionIds());
+            JabatJobExecution jobExecution = repository.getJobExecution(jobInstance.getExecutionIds().get(0));
+            BatchStatus status = i % 2 == 0 ? BatchStatus.COMPLETED : BatchStatus.FAILED;
+            assertEquals(status, jobExecution.getStatusEnum());
+            assertEquals(status.name(), jobExecution.getExitStatus());
+            assertEquals(Integer.toString(i), jobExecution.getJobParameters().getProperty("i"));
+            assertNotNull(jobExecution.getStartTime());
+            assertNotNull(jobExecution.getEndTime());
+            assertEquals(1, jobExecution.getStepExecutionIds().size());
+            JabatStepExecution stepExecution = repository.getStepExecution(jobExecution.getStepExecutionIds().get(0));
+            assertEquals("step", stepExecution.getStepName());
+            assertEquals(status, stepExecution.getStatusEnum());
+            assertEquals(i, stepExecution.getStepMetrics().get(MetricName.READCOUNT));
+            assertEquals(Collections.singleton(0), stepExecution.getCompletedPartitions());
+        }
+        assertNull(repository.getJobInstanceIds("unknown"));
+        assertNull(repository.getJobInstance(Long.MAX_VALUE));
+    }
+
+    private File[] listFiles(final String suffix) {
+        return folder.getRoot().listFiles(new FilenameFilter() {
+
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.endsWith(suffix);
+            }
+        });
+    }
+
+    @Test
+    public void testRecovery() throws Exception {
+        List<JabatJobInstance> jobInstances = new ArrayList<JabatJobInstance>();
+        runJobs(jobInstances, 100);
+        checkJobs(jobInstances);
+        reopen();
+        checkJobs(jobInstances);
+
+        // ids go on after the recovered ones
+        runJobs(jobInstances, 10);
+        checkJobs(jobInstances);
+        reopen();
+        checkJobs(jobInstances);
+    }
+
+    @Test
+    public void testCompaction() throws Exception {
+        List<JabatJobInstance> jobInstances = new ArrayList<JabatJobInstance>();
+        runJobs(jobInstances, 100);
+        int segmentCount = listFiles(".log").length;
+        assertTrue(segmentCount > 2);
+
+        repository.compact();
+        assertEquals(1, listFiles(".snapshot").length);
+        assertEquals(1, listFiles(".log").length);
+        checkJobs(jobInstances);
+
+        // a restart appends a new version of an instance of the snapshot
+        JabatJobInstance restarted = repository.getJobInstance(jobInstances.get(1).getInstanceId());
+        JabatJobExecution jobExecution = repository.createJobExecution(restarted, new Properties());
+        jobExecution.setStatus(BatchStatus.COMPLETED);
+        repository.jobExecutionEnded(jobExecution);
+        jobInstances.set(1, restarted);
+        runJobs(jobInstances, 100);
+
+        // compacted with the previous snapshot
+        repository.compact();
+        assertEquals(1, listFiles(".snapshot").length);
+        checkJobs(jobInstances);
+        assertEquals(2, repository.getJobInstance(restarted.getInstanceId()).getExecutionIds().size());
+        assertEquals(BatchStatus.COMPLETED, repository.getJobExecution(jobExecution.getId()).getStatusEnum());
+
+        // the snapshot and the segments appended since are recovered
+        runJobs(jobInstances, 10);
+        reopen();
+        assertEquals(2, repository.getJobInstance(restarted.getInstanceId()).getExecutionIds().size());
+        assertEquals(jobInstances.size(), repository.getJobInstanceIds("job1").size()
+                + repository.getJobInstanceIds("job2").size());
+        assertEquals(Long.valueOf(jobInstances.get(0).getInstanceId()), repository.getJobInstanceIds("job1").get(0));
+    }
+
+    @Test
+    public void testIncompleteRecord() throws Exception {
+        List<JabatJobInstance> jobInstances = new ArrayList<JabatJobInstance>();
+        runJobs(jobInstances, 10);
+        repository.shutdown();
+
+        // a record interrupted by a crash
+        File[] segments = listFiles(".log");
+        Arrays.sort(segments);
+        FileOutputStream os = new FileOutputStream(segments[segments.length - 1], true);
+        try {
+            os.write(new byte[] {0, 0, 0, 100, 1, 2, 3});
+        } finally {
+            os.close();
+        }
+
+        repository = new EventLogJobRepository();
+        repository.initialize(configuration);
+        checkJobs(jobInstances);
+        runJobs(jobInstances, 10);
+        reopen();
+        checkJobs(jobInstances);
+    }
+
+    /**
+     * Run instances of job1, one out of three completes, the other ones
+     * fail. The ids are added at the front of the expected lists.
+     */
+    private void runJob1(int instanceCount, List<Long> completedIds, List<Long> failedIds) {
+        for (int i = 0; i < instanceCount; i++) {
+            JabatJobInstance jobInstance = repository.createJobInstance(jobs[0]);
+            JabatJobExecution jobExecution = repository.createJobExecution(jobInstance, new Properties());
+            jobExecution.setStatus(BatchStatus.STARTED);
+            BatchStatus status = i % 3 == 0 ? BatchStatus.COMPLETED : BatchStatus.FAILED;
+            jobExecution.setStatus(status);
+            repository.jobExecutionEnded(jobExecution);
+            (status == BatchStatus.COMPLETED ? completedIds : failedIds).add(0, jobInstance.getInstanceId());
+        }
+    }
+
+    /**
+     * Get the ids of the instances of job1 whose last execution has a
+     * status, by pages of 7.
+     */
+    private List<Long> getJob1InstanceIds(Set<BatchStatus> statuses) {
+        List<Long> ids = new ArrayList<Long>();
+        for (int start = 0; ; start += 7) {
+            List<Long> page = repository.getJobInstanceIds("job1", statuses, start, 7);
+            ids.addAll(page);
+            if (page.size() < 7) {
+                return ids;
+            }
+        }
+    }
+
+    private void checkStatusIndex(List<Long> completedIds, List<Long> failedIds, List<Long> runningIds) {
+        assertEquals(completedIds, getJob1InstanceIds(EnumSet.of(BatchStatus.COMPLETED)));
+        assertEquals(failedIds, getJob1InstanceIds(EnumSet.of(BatchStatus.FAILED)));
+        assertEquals(runningIds, getJob1InstanceIds(EnumSet.of(BatchStatus.STARTED)));
+        assertEquals(completedIds.size() + failedIds.size() + runningIds.size(),
+                     getJob1InstanceIds(EnumSet.allOf(BatchStatus.class)).size());
+    }
+
+    @Test
+    public void testStatusIndex() throws Exception {
+        List<Long> completedIds = new ArrayList<Long>();
+        List<Long> failedIds = new ArrayList<Long>();
+        List<Long> runningIds = new ArrayList<Long>();
+        runJob1(100, completedIds, failedIds);
+        checkStatusIndex(completedIds, failedIds, runningIds);
+        assertEquals(100, repository.getJobInstanceCount("job1"));
+        assertEquals(Arrays.asList(99L, 98L), repository.getJobInstanceIds("job1", 0, 2));
+
+        // indexed by the snapshot
+        repository.compact();
+        checkStatusIndex(completedIds, failedIds, runningIds);
+
+        // a failed instance of the snapshot is restarted
+        long restartedId = 1;
+        JabatJobExecution jobExecution = repository.createJobExecution(repository.getJobInstance(restartedId),
+                                                                       new Properties());
+        jobExecution.setStatus(BatchStatus.STARTED);
+        failedIds.remove(restartedId);
+        runningIds.add(restartedId);
+        checkStatusIndex(completedIds, failedIds, runningIds);
+
+        // the running execution is folded, then completes
+        runJob1(100, completedIds, failedIds);
+        repository.compact();
+        checkStatusIndex(completedIds, failedIds, runningIds);
+        jobExecution.setStatus(BatchStatus.COMPLETED);
+        repository.jobExecutionEnded(jobExecution);
+        runningIds.clear();
+        completedIds.add(restartedId);
+        Collections.sort(completedIds, Collections.reverseOrder());
+        checkStatusIndex(completedIds, failedIds, runningIds);
+
+        // recovered from the snapshot and the segments appended since
+        reopen();
+        checkStatusIndex(completedIds, failedIds, runningIds);
+        repository.compact();
+        checkStatusIndex(completedIds, failedIds, runningIds);
+        reopen();
+        checkStatusIndex(completedIds, failedIds, runningIds);
+        assertNull(repository.getJobInstanceIds("unknown", EnumSet.of(BatchStatus.FAILED), 0, 1));
+
+        // creation time of the instances
+        Date from = repository.getJobExecution(repository.getJobInstance(150).getExecutionIds().get(0))
+                .getCreateTime();
+        List<Long> ids = repository.getJobInstanceIds("job1", from, null, 0, Integer.MAX_VALUE);
+        assertTrue(ids.size() >= 50);
+        assertEquals(Long.valueOf(199), ids.get(0));
+        assertTrue(ids.contains(150L));
+        assertEquals(200, repository.getJobInstanceIds("job1", null, null, 0, 300).size());
+    }
+
+}
@@ -0,0 +1,141 @@
+/*
+ * Copyright 2013 Geoffroy Jamgotchian <geoffroy.jamgotchian at gmail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.jamgotchian.jabat.runtime.repository.impl;
+
+import fr.jamgotchian.jabat.runtime.repository.BatchStatus;
+import fr.jamgotchian.jabat.runtime.repository.JabatJobExecution;
+import fr.jamgotchian.jabat.runtime.repository.JabatStepExecution;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Properties;
+import org.junit.After;
+import static org.junit.Assert.*;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ *
+ * @author Geoffroy Jamgotchian <geoffroy.jamgotchian at gmail.com>
+ */
+public class ExecutionHistoryTest {
+
+    /* the number of records of a segment */
+    private static final int SEGMENT_SIZE = 1024;
+
+    private ExecutionHistory history;
+
+    public ExecutionHistoryTest() {
+    }
+
+    @Before
+    public void setUp() {
+        history = new ExecutionHistory();
+    }
+
+    @After
+    public void tearDown() {
+        history = null;
+    }
+
+    /**
+     * Store a job execution with a single step execution of the same id.
+     */
+    private void store(long id, String jobName, String stepName, String exitStatus) {
+        JabatJobExecution jobExecution = new JabatJobExecutionImpl(id, new Properties());
+        jobExecution.setStatus(BatchStatus.COMPLETED);
+        jobExecution.setExitStatus(exitStatus);
+        jobExecution.setEndTime(new Date());
+        JabatStepExecution stepExecution = new JabatStepExecutionImpl(id, stepName);
+        stepExecution.setStatus(BatchStatus.COMPLETED);
+        stepExecution.setExitStatus(exitStatus);
+        stepExecution.setEndTime(new Date());
+        jobExecution.getStepExecutionIds().add(id);
+        List<JabatStepExecution> stepExecutions = Collections.singletonList(stepExecution);
+        history.store(id, jobName, jobExecution, stepExecutions);
+    }
+
+    @Test
+    public void testStringsReleased() {
+        store(0, "job", "step1", "COMPLETED");
+        store(1, "job", "step2", "COMPLETED");
+        // job, step1, step2 and COMPLETED
+        assertEquals(4, history.getStringCount());
+
+        history.evict(0);
+        // step1 is no longer used
+        assertEquals(3, history.getStringCount());
+        assertEquals("COMPLETED", history.getJobExecution(1).getExitStatus());
+        assertEquals("step2", history.getStepExecution(1).getStepName());
+
+        history.evict(1);
+        assertEquals(0, history.getStringCount());
+
+        // a released index is reused
+        store(2, "other", "step3", "FAILED");
+        assertEquals(3, history.getStringCount());
+        assertEquals("step3", history.getStepExecution(2).getStepName());
+        assertEquals("FAILED", history.getJobExecution(2).getExitStatus());
+    }
+
+    @Test
+    public void testSegmentsDropped() {
+        for (int id = 0; id <= SEGMENT_SIZE; id++) {
+            store(id, "job", "step", "COMPLETED");
+        }
+        // two job execution segments and two step execution segments
+        assertEquals(4, history.getSegmentCount());
+        assertEquals(SEGMENT_SIZE + 1, history.getJobExecutionCount());
+        assertEquals(SEGMENT_SIZE + 1, history.getStepExecutionCount());
+
+        for (int id = 0; id < SEGMENT_SIZE - 1; id++) {
+            history.evict(id);
+        }
+        assertEquals(4, history.getSegmentCount());
+        history.evict(SEGMENT_SIZE - 1);
+        // the first segments are fully evicted
+        assertEquals(2, history.getSegmentCount());
+        assertNull(history.getJobExecution(0));
+        assertNull(history.getStepExecution(0));
+        assertNotNull(history.getJobExecution(SEGMENT_SIZE));
+
+        history.evict(SEGMENT_SIZE);
+        // the last segments are kept until all their records are evicted
+        assertEquals(2, history.getSegmentCount());
+        assertEquals(0, history.getJobExecutionCount());
+        assertEquals(0, history.getStepExecutionCount());
+        assertEquals(0, history.getStringCount());
+    }
+
+    @Test
+    public void testEvict() {
+        store(0, "job", "step", "COMPLETED");
+        assertArrayEquals(new long[] {0}, history.evict(0));
+        assertEquals(ExecutionHistory.NO_TIME, history.getEndTime(0));
+        // already evicted
+        assertNull(history.evict(0));
+        // never stored
+        assertNull(history.evict(1));
+        assertNull(history.evict(SEGMENT_SIZE * 10));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testStoredTwice() {
+        store(0, "job", "step", "COMPLETED");
+        store(0, "job", "step", "COMPLETED");
+    }
+
+}
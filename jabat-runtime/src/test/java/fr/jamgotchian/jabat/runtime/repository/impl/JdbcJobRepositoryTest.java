@@ -0,0 +1,266 @@
+/*
+ * Copyright 2013 Geoffroy Jamgotchian <geoffroy.jamgotchian at gmail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.jamgotchian.jabat.runtime.repository.impl;
+
+import fr.jamgotchian.jabat.jobxml.model.ArtifactBuilder;
+import fr.jamgotchian.jabat.jobxml.model.BatchletStepBuilder;
+import fr.jamgotchian.jabat.jobxml.model.Job;
+import fr.jamgotchian.jabat.jobxml.model.JobBuilder;
+import fr.jamgotchian.jabat.jobxml.model.Step;
+import fr.jamgotchian.jabat.runtime.repository.BatchStatus;
+import fr.jamgotchian.jabat.runtime.repository.JabatJobExecution;
+import fr.jamgotchian.jabat.runtime.repository.JabatJobInstance;
+import fr.jamgotchian.jabat.runtime.repository.JabatStepExecution;
+import fr.jamgotchian.jabat.runtime.util.JdbcUtil;
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import javax.batch.runtime.Metric.MetricName;
+import org.junit.After;
+import static org.junit.Assert.*;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ *
+ * @author Geoffroy Jamgotchian <geoffroy.jamgotchian at gmail.com>
+ */
+public class JdbcJobRepositoryTest {
+
+    public static class UserData implements Externalizable {
+
+        private String value;
+
+        public UserData() {
+        }
+
+        public UserData(String value) {
+            this.value = value;
+        }
+
+        @Override
+        public void writeExternal(ObjectOutput out) throws IOException {
+            out.writeUTF(value);
+        }
+
+        @Override
+        public void readExternal(ObjectInput in) throws IOException, ClassNotFoundException {
+            value = in.readUTF();
+        }
+    }
+
+    private static int databaseCount = 0;
+
+    private Job job;
+
+    private Step step;
+
+    private Properties configuration;
+
+    private JdbcJobRepository repository;
+
+    private JdbcJobRepository otherRepository;
+
+    public JdbcJobRepositoryTest() {
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        step = new BatchletStepBuilder()
+                .setId("step")
+                .setArtifact(new ArtifactBuilder().setRef("batchlet").build())
+                .build();
+        job = new JobBuilder().setId("job").addStep(step).build();
+        configuration = new Properties();
+        configuration.setProperty(JdbcUtil.URL_KEY, "jdbc:h2:mem:jabat" + databaseCount++ + ";DB_CLOSE_DELAY=-1");
+        // long enough for the background writer not to flush during a test
+        configuration.setProperty(JdbcJobRepository.FLUSH_INTERVAL_KEY, "600000");
+        repository = new JdbcJobRepository();
+        repository.initialize(configuration);
+        // another container sharing the database
+        otherRepository = new JdbcJobRepository();
+        otherRepository.initialize(configuration);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        repository.shutdown();
+        otherRepository.shutdown();
+    }
+
+    @Test
+    public void testWrites() throws Exception {
+        JabatJobInstance jobInstance = repository.createJobInstance(job);
+        Properties jobParameters = new Properties();
+        jobParameters.setProperty("p", "v");
+        JabatJobExecution jobExecution = repository.createJobExecution(jobInstance, jobParameters);
+
+        // instances and executions are written at once
+        assertEquals(Collections.singleton("job"), otherRepository.getJobIds());
+        assertEquals(Arrays.asList(jobInstance.getInstanceId()), otherRepository.getJobInstanceIds("job"));
+        assertNull(otherRepository.getJobInstanceIds("unknown"));
+        JabatJobInstance otherJobInstance = otherRepository.getJobInstance(jobInstance.getInstanceId());
+        assertEquals("job", otherJobInstance.getJobName());
+        assertEquals(Arrays.asList(jobExecution.getId()), otherJobInstance.getExecutionIds());
+        JabatJobExecution otherJobExecution = otherRepository.getJobExecution(jobExecution.getId());
+        assertEquals(BatchStatus.STARTING, otherJobExecution.getStatusEnum());
+        assertEquals(jobParameters, otherJobExecution.getJobParameters());
+
+        // other changes are coalesced until the next flush
+        JabatStepExecution stepExecution = repository.createStepExecution(step, jobExecution);
+        jobExecution.setStartTime(new Date());
+        jobExecution.setStatus(BatchStatus.STARTED);
+        stepExecution.setStatus(BatchStatus.STARTED);
+        assertSame(jobExecution, repository.getJobExecution(jobExecution.getId()));
+        assertSame(stepExecution, repository.getStepExecution(stepExecution.getId()));
+        assertEquals(BatchStatus.STARTING, otherRepository.getJobExecution(jobExecution.getId()).getStatusEnum());
+        assertNull(otherRepository.getStepExecution(stepExecution.getId()));
+
+        // a terminal status is written at once, with the pending changes
+        stepExecution.getStepMetrics().getPartition(0).add(MetricName.READCOUNT, 5);
+        stepExecution.getCompletedPartitions().add(0);
+        stepExecution.setUserPersistentData(new UserData("data"));
+        stepExecution.setExitStatus("done");
+        stepExecution.setEndTime(new Date());
+        stepExecution.setStatus(BatchStatus.COMPLETED);
+        JabatStepExecution otherStepExecution = otherRepository.getStepExecution(stepExecution.getId());
+        assertEquals("step", otherStepExecution.getStepName());
+        assertEquals(BatchStatus.COMPLETED, otherStepExecution.getStatusEnum());
+        assertEquals("done", otherStepExecution.getExitStatus());
+        assertNotNull(otherStepExecution.getEndTime());
+        assertEquals(5, otherStepExecution.getStepMetrics().get(MetricName.READCOUNT));
+        assertEquals(Collections.singleton(0), otherStepExecution.getCompletedPartitions());
+        assertEquals("data", ((UserData) otherStepExecution.getUserPersistentData()).value);
+        assertEquals(Arrays.asList(stepExecution.getId()),
+                     otherRepository.getJobExecution(jobExecution.getId()).getStepExecutionIds());
+
+        jobExecution.setExitStatus("COMPLETED");
+        jobExecution.setEndTime(new Date());
+        jobExecution.setStatus(BatchStatus.COMPLETED);
+        repository.jobExecutionEnded(jobExecution);
+        otherJobExecution = otherRepository.getJobExecution(jobExecution.getId());
+        assertEquals(BatchStatus.COMPLETED, otherJobExecution.getStatusEnum());
+        assertEquals("COMPLETED", otherJobExecution.getExitStatus());
+        assertNotNull(otherJobExecution.getStartTime());
+        assertNotNull(otherJobExecution.getEndTime());
+
+        // an ended execution is read from the database
+        assertNotSame(jobExecution, repository.getJobExecution(jobExecution.getId()));
+        assertNotSame(stepExecution, repository.getStepExecution(stepExecution.getId()));
+    }
+
+    @Test
+    public void testRunningMetricsAreFlushed() throws Exception {
+        JabatJobInstance jobInstance = repository.createJobInstance(job);
+        JabatJobExecution jobExecution = repository.createJobExecution(jobInstance, new Properties());
+        JabatStepExecution stepExecution = repository.createStepExecution(step, jobExecution);
+        stepExecution.setStatus(BatchStatus.STARTED);
+        stepExecution.getStepMetrics().getPartition(0).add(MetricName.READCOUNT, 3);
+        stepExecution.getCompletedPartitions().add(1);
+
+        // the shutdown flushes the pending changes
+        repository.shutdown();
+        JabatStepExecution otherStepExecution = otherRepository.getStepExecution(stepExecution.getId());
+        assertEquals(BatchStatus.STARTED, otherStepExecution.getStatusEnum());
+        assertEquals(3, otherStepExecution.getStepMetrics().get(MetricName.READCOUNT));
+        assertEquals(Collections.singleton(1), otherStepExecution.getCompletedPartitions());
+
+        // and a reinitialized repository reads them back
+        repository = new JdbcJobRepository();
+        repository.initialize(configuration);
+        assertEquals(Arrays.asList(jobInstance.getInstanceId()), repository.getJobInstanceIds("job"));
+        assertEquals(BatchStatus.STARTED, repository.getStepExecution(stepExecution.getId()).getStatusEnum());
+    }
+
+    @Test
+    public void testUniqueIds() throws Exception {
+        Set<Long> instanceIds = new HashSet<Long>();
+        Set<Long> executionIds = new HashSet<Long>();
+        Set<Long> stepExecutionIds = new HashSet<Long>();
+        int count = 250;
+        for (int i = 0; i < count; i++) {
+            JdbcJobRepository r = i % 2 == 0 ? repository : otherRepository;
+            JabatJobInstance jobInstance = r.createJobInstance(job);
+            assertTrue(instanceIds.add(jobInstance.getInstanceId()));
+            JabatJobExecution jobExecution = r.createJobExecution(jobInstance, new Properties());
+            assertTrue(executionIds.add(jobExecution.getId()));
+            assertTrue(stepExecutionIds.add(r.createStepExecution(step, jobExecution).getId()));
+        }
+        assertEquals(count, repository.getJobInstanceIds("job").size());
+    }
+
+    @Test
+    public void testQueries() throws Exception {
+        Long[] instanceIds = new Long[5];
+        JabatJobExecution runningExecution = null;
+        for (int i = 0; i < instanceIds.length; i++) {
+            JabatJobInstance jobInstance = repository.createJobInstance(job);
+            instanceIds[i] = jobInstance.getInstanceId();
+            JabatJobExecution jobExecution = repository.createJobExecution(jobInstance, new Properties());
+            if (i < 4) {
+                jobExecution.setStatus(i % 2 == 0 ? BatchStatus.COMPLETED : BatchStatus.FAILED);
+                repository.jobExecutionEnded(jobExecution);
+            } else {
+                runningExecution = jobExecution;
+            }
+        }
+        repository.createJobInstance(job); // never executed
+
+        assertEquals(6, otherRepository.getJobInstanceCount("job"));
+        assertEquals(-1, otherRepository.getJobInstanceCount("unknown"));
+        assertEquals(Arrays.asList(instanceIds[4], instanceIds[3]), otherRepository.getJobInstanceIds("job", 1, 2));
+        assertNull(otherRepository.getJobInstanceIds("unknown", 0, 2));
+
+        // the status of the last execution is seen by the other container
+        assertEquals(Arrays.asList(instanceIds[2], instanceIds[0]),
+                     otherRepository.getJobInstanceIds("job", EnumSet.of(BatchStatus.COMPLETED), 0, 10));
+        assertEquals(Arrays.asList(instanceIds[4], instanceIds[3], instanceIds[1]),
+                     otherRepository.getJobInstanceIds("job", EnumSet.of(BatchStatus.STARTING, BatchStatus.FAILED),
+                                                       0, 10));
+        assertEquals(Arrays.asList(instanceIds[3], instanceIds[1]),
+                     otherRepository.getJobInstanceIds("job", EnumSet.of(BatchStatus.FAILED), 0, 10));
+
+        // a restart changes the status of the instance
+        JabatJobExecution restartExecution
+                = repository.createJobExecution(repository.getJobInstance(instanceIds[1]), new Properties());
+        assertEquals(Arrays.asList(instanceIds[3]),
+                     otherRepository.getJobInstanceIds("job", EnumSet.of(BatchStatus.FAILED), 0, 10));
+        restartExecution.setStatus(BatchStatus.COMPLETED);
+        repository.jobExecutionEnded(restartExecution);
+        assertEquals(Arrays.asList(instanceIds[2], instanceIds[1], instanceIds[0]),
+                     otherRepository.getJobInstanceIds("job", EnumSet.of(BatchStatus.COMPLETED), 0, 10));
+        runningExecution.setStatus(BatchStatus.FAILED);
+        repository.jobExecutionEnded(runningExecution);
+
+        // instances never executed have no creation time
+        Date from = otherRepository.getJobExecution(
+                otherRepository.getJobInstance(instanceIds[3]).getExecutionIds().get(0)).getCreateTime();
+        List<Long> ids = otherRepository.getJobInstanceIds("job", from, null, 0, 10);
+        assertTrue(ids.contains(instanceIds[4]) && ids.contains(instanceIds[3]));
+        assertEquals(5, otherRepository.getJobInstanceIds("job", null, null, 0, 10).size());
+        assertTrue(otherRepository.getJobInstanceIds("job", null, new Date(0), 0, 10).isEmpty());
+    }
+
+}
@@ -0,0 +1,162 @@
+/*
+ * Copyright 2013 Geoffroy Jamgotchian <geoffroy.jamgotchian at gmail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.jamgotchian.jabat.runtime.task.impl;
+
+import fr.jamgotchian.jabat.runtime.task.AbstractTaskResultListener;
+import fr.jamgotchian.jabat.runtime.task.TaskResultListener;
+import fr.jamgotchian.jabat.runtime.util.JabatRuntimeException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.After;
+import static org.junit.Assert.*;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ *
+ * @author Geoffroy Jamgotchian <geoffroy.jamgotchian at gmail.com>
+ */
+public class ForkJoinTaskManagerTest {
+
+    private ForkJoinTaskManager taskManager;
+
+    public ForkJoinTaskManagerTest() {
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        taskManager = new ForkJoinTaskManager();
+        Properties configuration = new Properties();
+        configuration.setProperty(ForkJoinTaskManager.PARALLELISM_KEY, "1");
+        taskManager.initialize(configuration);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        taskManager.shutdown();
+    }
+
+    /**
+     * A task waiting for a group of sub-tasks, down to a depth.
+     */
+    private Callable<Integer> newNestedTask(final int depth, final AtomicInteger leafCount) {
+        return new Callable<Integer>() {
+            @Override
+            public Integer call() throws Exception {
+                assertTrue(Thread.currentThread().getName().startsWith("JABAT-"));
+                if (depth == 0) {
+                    leafCount.incrementAndGet();
+                    return 1;
+                }
+                List<Callable<Integer>> tasks = new ArrayList<Callable<Integer>>();
+                for (int i = 0; i < 3; i++) {
+                    tasks.add(newNestedTask(depth - 1, leafCount));
+                }
+                final AtomicInteger sum = new AtomicInteger();
+                taskManager.submitAndWait(tasks, 3, new TaskResultListener<Integer>() {
+                    @Override
+                    public void onSuccess(Integer result) {
+                        sum.addAndGet(result);
+                    }
+
+                    @Override
+                    public void onFailure(Throwable thrown) {
+                        throw new RuntimeException(thrown);
+                    }
+                });
+                return sum.get();
+            }
+        };
+    }
+
+    @Test(timeout = 10000)
+    public void testNestedGroupsDoNotDeadlock() throws Exception {
+        // a single pool thread, each level waits for the next one
+        AtomicInteger leafCount = new AtomicInteger();
+        List<Callable<Integer>> tasks = new ArrayList<Callable<Integer>>();
+        tasks.add(newNestedTask(3, leafCount));
+        final AtomicInteger sum = new AtomicInteger();
+        taskManager.submitAndWait(tasks, 1, new AbstractTaskResultListener<Integer>() {
+            @Override
+            public void onSuccess(Integer result) {
+                sum.set(result);
+            }
+        });
+        assertEquals(27, sum.get());
+        assertEquals(27, leafCount.get());
+    }
+
+    @Test(timeout = 10000)
+    public void testTaskCounts() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(5);
+        for (int i = 0; i < 5; i++) {
+            taskManager.submit(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            });
+        }
+        // one running task, the other ones are queued
+        while (taskManager.getActiveTaskCount() == 0) {
+            Thread.sleep(1);
+        }
+        assertEquals(1, taskManager.getActiveTaskCount());
+        assertEquals(4, taskManager.getQueuedTaskCount());
+        release.countDown();
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        while (taskManager.getCompletedTaskCount() < 5) {
+            Thread.sleep(1);
+        }
+        assertEquals(0, taskManager.getActiveTaskCount());
+        assertEquals(0, taskManager.getQueuedTaskCount());
+    }
+
+    @Test
+    public void testConfiguration() throws Exception {
+        ForkJoinTaskManager other = new ForkJoinTaskManager();
+        try {
+            other.submit(new Runnable() {
+                @Override
+                public void run() {
+                }
+            });
+            fail();
+        } catch (JabatRuntimeException e) {
+        }
+        assertEquals(0, other.getQueuedTaskCount());
+        Properties configuration = new Properties();
+        configuration.setProperty(ForkJoinTaskManager.PARALLELISM_KEY, "0");
+        try {
+            other.initialize(configuration);
+            fail();
+        } catch (JabatRuntimeException e) {
+        }
+    }
+
+}
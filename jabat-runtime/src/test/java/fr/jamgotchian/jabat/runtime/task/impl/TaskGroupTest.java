@@ -0,0 +1,274 @@
+/*
+ * Copyright 2013 Geoffroy Jamgotchian <geoffroy.jamgotchian at gmail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.jamgotchian.jabat.runtime.task.impl;
+
+import com.google.common.util.concurrent.Uninterruptibles;
+import fr.jamgotchian.jabat.runtime.task.TaskResultListener;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.After;
+import static org.junit.Assert.*;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ *
+ * @author Geoffroy Jamgotchian <geoffroy.jamgotchian at gmail.com>
+ */
+public class TaskGroupTest {
+
+    private static class RecordingListener implements TaskResultListener<Integer> {
+
+        private final List<Integer> results = Collections.synchronizedList(new ArrayList<Integer>());
+
+        private final List<Throwable> failures = Collections.synchronizedList(new ArrayList<Throwable>());
+
+        @Override
+        public void onSuccess(Integer result) {
+            results.add(result);
+        }
+
+        @Override
+        public void onFailure(Throwable thrown) {
+            failures.add(thrown);
+        }
+    }
+
+    private ExecutorService executor;
+
+    public TaskGroupTest() {
+    }
+
+    @Before
+    public void setUp() {
+        executor = Executors.newCachedThreadPool();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        executor.shutdownNow();
+        executor.awaitTermination(10, TimeUnit.SECONDS);
+    }
+
+    private static Callable<Integer> awaiting(final int result, final CountDownLatch latch) {
+        return new Callable<Integer>() {
+            @Override
+            public Integer call() throws Exception {
+                latch.await();
+                return result;
+            }
+        };
+    }
+
+    @Test(timeout = 10000)
+    public void testCompletionOrder() throws Exception {
+        // task 2 completes first, its notification releases task 0, whose
+        // notification releases task 1
+        final CountDownLatch latch0 = new CountDownLatch(1);
+        final CountDownLatch latch1 = new CountDownLatch(1);
+        List<Callable<Integer>> tasks = new ArrayList<Callable<Integer>>();
+        tasks.add(awaiting(0, latch0));
+        tasks.add(awaiting(1, latch1));
+        tasks.add(awaiting(2, new CountDownLatch(0)));
+        RecordingListener listener = new RecordingListener() {
+            @Override
+            public void onSuccess(Integer result) {
+                super.onSuccess(result);
+                (result == 2 ? latch0 : latch1).countDown();
+            }
+        };
+        new TaskGroup<Integer>(executor, tasks).runAndWait(3, listener);
+        assertEquals(Arrays.asList(2, 0, 1), listener.results);
+        assertTrue(listener.failures.isEmpty());
+    }
+
+    @Test(timeout = 10000)
+    public void testConcurrencyLimit() throws Exception {
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger maxRunning = new AtomicInteger();
+        List<Callable<Integer>> tasks = new ArrayList<Callable<Integer>>();
+        for (int i = 0; i < 20; i++) {
+            final int result = i;
+            tasks.add(new Callable<Integer>() {
+                @Override
+                public Integer call() throws Exception {
+                    int count = running.incrementAndGet();
+                    synchronized (maxRunning) {
+                        maxRunning.set(Math.max(maxRunning.get(), count));
+                    }
+                    Thread.sleep(2);
+                    running.decrementAndGet();
+                    return result;
+                }
+            });
+        }
+        RecordingListener listener = new RecordingListener();
+        new TaskGroup<Integer>(executor, tasks).runAndWait(3, listener);
+        assertEquals(20, listener.results.size());
+        assertTrue(maxRunning.get() <= 3);
+    }
+
+    @Test(timeout = 10000)
+    public void testCancelOnFirstFailure() throws Exception {
+        final CountDownLatch started = new CountDownLatch(1);
+        final AtomicBoolean interrupted = new AtomicBoolean();
+        final AtomicInteger runCount = new AtomicInteger();
+        final IllegalStateException failure = new IllegalStateException();
+        List<Callable<Integer>> tasks = new ArrayList<Callable<Integer>>();
+        // a running task, interrupted by the cancellation
+        tasks.add(new Callable<Integer>() {
+            @Override
+            public Integer call() throws Exception {
+                runCount.incrementAndGet();
+                started.countDown();
+                try {
+                    Thread.sleep(10000);
+                } catch (InterruptedException e) {
+                    interrupted.set(true);
+                    throw e;
+                }
+                return 0;
+            }
+        });
+        // the failing task
+        tasks.add(new Callable<Integer>() {
+            @Override
+            public Integer call() throws Exception {
+                runCount.incrementAndGet();
+                started.await();
+                throw failure;
+            }
+        });
+        // tasks not yet started are skipped
+        for (int i = 2; i < 10; i++) {
+            tasks.add(new Callable<Integer>() {
+                @Override
+                public Integer call() throws Exception {
+                    runCount.incrementAndGet();
+                    return -1;
+                }
+            });
+        }
+        RecordingListener listener = new RecordingListener();
+        new TaskGroup<Integer>(executor, tasks).runAndWait(2, listener);
+        assertTrue(interrupted.get());
+        assertEquals(2, runCount.get());
+        assertTrue(listener.results.isEmpty());
+        // the outcome of the interrupted task is still notified
+        assertEquals(2, listener.failures.size());
+        assertSame(failure, listener.failures.get(0));
+        assertTrue(listener.failures.get(1) instanceof InterruptedException);
+    }
+
+    @Test(timeout = 10000)
+    public void testListenerFailureIsRethrown() throws Exception {
+        final RuntimeException failure = new RuntimeException();
+        List<Callable<Integer>> tasks = new ArrayList<Callable<Integer>>();
+        for (int i = 0; i < 5; i++) {
+            tasks.add(awaiting(i, new CountDownLatch(0)));
+        }
+        RecordingListener listener = new RecordingListener() {
+            @Override
+            public void onSuccess(Integer result) {
+                super.onSuccess(result);
+                throw failure;
+            }
+        };
+        try {
+            new TaskGroup<Integer>(executor, tasks).runAndWait(1, listener);
+            fail();
+        } catch (RuntimeException e) {
+            assertSame(failure, e);
+        }
+        assertEquals(1, listener.results.size());
+    }
+
+    @Test(timeout = 10000)
+    public void testInterruptWaitsForRunningTasks() throws Exception {
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicBoolean completed = new AtomicBoolean();
+        final AtomicBoolean completedBeforeRethrow = new AtomicBoolean();
+        final CountDownLatch waiterDone = new CountDownLatch(1);
+        final List<Callable<Integer>> tasks = new ArrayList<Callable<Integer>>();
+        // a task ignoring the cancellation
+        tasks.add(new Callable<Integer>() {
+            @Override
+            public Integer call() throws Exception {
+                started.countDown();
+                Uninterruptibles.awaitUninterruptibly(release);
+                completed.set(true);
+                return 0;
+            }
+        });
+        Thread waiter = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    new TaskGroup<Integer>(executor, tasks).runAndWait(1, new RecordingListener());
+                } catch (InterruptedException e) {
+                    completedBeforeRethrow.set(completed.get());
+                } finally {
+                    waiterDone.countDown();
+                }
+            }
+        };
+        waiter.start();
+        started.await();
+        waiter.interrupt();
+        // the waiter keeps waiting for the running task
+        assertFalse(waiterDone.await(100, TimeUnit.MILLISECONDS));
+        release.countDown();
+        waiterDone.await();
+        assertTrue(completedBeforeRethrow.get());
+    }
+
+    @Test(timeout = 10000)
+    public void testRejectedTaskIsNotified() throws Exception {
+        // the executor accepts the first task only
+        final AtomicInteger accepted = new AtomicInteger();
+        Executor rejectingExecutor = new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                if (accepted.getAndIncrement() > 0) {
+                    throw new RejectedExecutionException();
+                }
+                executor.execute(command);
+            }
+        };
+        List<Callable<Integer>> tasks = new ArrayList<Callable<Integer>>();
+        for (int i = 0; i < 3; i++) {
+            tasks.add(awaiting(i, new CountDownLatch(0)));
+        }
+        RecordingListener listener = new RecordingListener();
+        new TaskGroup<Integer>(rejectingExecutor, tasks).runAndWait(1, listener);
+        assertEquals(Arrays.asList(0), listener.results);
+        assertEquals(1, listener.failures.size());
+        assertTrue(listener.failures.get(0) instanceof RejectedExecutionException);
+    }
+
+}